@@ -0,0 +1,86 @@
+package com.johnlpage.memex.benchmarks;
+
+import com.johnlpage.memex.VehicleInspection.model.VehicleInspection;
+import com.johnlpage.memex.util.AnnotationExtractor;
+import com.johnlpage.memex.util.ModelMetadata;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The AnnotationExtractor lookups, each one per document where it is used. getIdFromModel and
+ * hasDeleteFlag go through the cached ModelMetadata, the others still use reflection every call,
+ * so comparing them shows what the cache saves.
+ *
+ * <pre>
+ * java -jar target/benchmarks.jar AnnotationExtractorBenchmark
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AnnotationExtractorBenchmark {
+
+    @Param({Fixtures.SMALL_SAMPLE})
+    public String file;
+
+    private List<VehicleInspection> models;
+    private int next;
+
+    @Setup
+    public void setup() throws IOException {
+        models = Fixtures.models(file, VehicleInspection.class);
+    }
+
+    private VehicleInspection nextModel() {
+        VehicleInspection model = models.get(next);
+        next = next + 1 == models.size() ? 0 : next + 1;
+        return model;
+    }
+
+    @Benchmark
+    public String collectionName() {
+        return AnnotationExtractor.getCollectionName(VehicleInspection.class);
+    }
+
+    @Benchmark
+    public Object idFromModel() throws IllegalAccessException {
+        return AnnotationExtractor.getIdFromModel(nextModel());
+    }
+
+    @Benchmark
+    public Object idFromModelMetadata() {
+        return ModelMetadata.of(VehicleInspection.class).getId(nextModel());
+    }
+
+    @Benchmark
+    public Boolean deleteFlag() throws IllegalAccessException {
+        return AnnotationExtractor.hasDeleteFlag(nextModel());
+    }
+
+    @Benchmark
+    public Field versionField() throws IllegalAccessException {
+        return AnnotationExtractor.getVersionField(nextModel());
+    }
+
+    @Benchmark
+    public String databaseFieldName() {
+        return AnnotationExtractor.getDatabaseFieldNameByJsonProperty(VehicleInspection.class, "testid");
+    }
+}
@@ -0,0 +1,108 @@
+package com.johnlpage.memex.benchmarks;
+
+import com.johnlpage.memex.VehicleInspection.model.VehicleInspection;
+import com.johnlpage.memex.generics.repository.AsOfReconstruction;
+import org.bson.Document;
+import org.bson.types.MinKey;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of rebuilding one record as of a time before all of its changes with the client side
+ * AsOfReconstruction, for records with 10, 100 and 1000 versions. Each change has the previous
+ * values an UPDATEWITHHISTORY load records when a test is retaken: the result, mileage and date,
+ * and the failed items with MinKey for those that stayed the same. Reading the history is not
+ * measured.
+ *
+ * <p>replay merges every change back from the current document, fromSnapshot only the changes
+ * back from the nearest snapshot, as the repository does with one every 100 changes. The
+ * aggregation does the same merging on the database and needs a mongod to measure.
+ *
+ * <pre>
+ * java -jar target/benchmarks.jar AsOfReconstructionBenchmark -prof gc
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AsOfReconstructionBenchmark {
+
+    private static final int SNAPSHOT_EVERY = 100;
+
+    @Param({"10", "100", "1000"})
+    public int versions;
+
+    @Param({Fixtures.SMALL_SAMPLE})
+    public String file;
+
+    private Document current;
+    private List<Document> changes;
+
+    @Setup
+    public void setup() throws IOException {
+        // The record with the most failed items, so the arrays have something to merge
+        current = null;
+        for (Document document : Fixtures.mappedDocuments(file, VehicleInspection.class)) {
+            if (current == null || failedItems(document).size() > failedItems(current).size()) {
+                current = document;
+            }
+        }
+        List<Object> items = failedItems(current);
+        changes = new ArrayList<>(versions);
+        for (int i = 0; i < versions; i++) {
+            List<Object> previousItems = new ArrayList<>(items.size());
+            for (int j = 0; j < items.size(); j++) {
+                previousItems.add(j == i % items.size() ? items.get(j) : new MinKey());
+            }
+            changes.add(
+                    new Document("testresult", i % 2 == 0 ? "Failed" : "Passed")
+                            .append("testmileage", 100_000 - i * 10)
+                            .append("testdate", new Date(1_600_000_000_000L - i * 86_400_000L))
+                            .append("faileditems", previousItems));
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Object> failedItems(Document document) {
+        Object items = document.get("faileditems");
+        return items instanceof List ? (List<Object>) items : List.of(new Document());
+    }
+
+    private Document rebuild(Document start, int from) {
+        AsOfReconstruction reconstruction = new AsOfReconstruction();
+        reconstruction.merge(start);
+        for (int i = from; i < changes.size(); i++) {
+            reconstruction.merge(changes.get(i));
+        }
+        return reconstruction.result();
+    }
+
+    @Benchmark
+    public Document replay() {
+        return rebuild(current, 0);
+    }
+
+    @Benchmark
+    public Document fromSnapshot() {
+        // The snapshot is a whole document like the current one
+        return rebuild(current, Math.max(0, changes.size() - SNAPSHOT_EVERY));
+    }
+}
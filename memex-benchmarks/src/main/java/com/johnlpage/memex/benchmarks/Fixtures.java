@@ -0,0 +1,103 @@
+package com.johnlpage.memex.benchmarks;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.johnlpage.memex.config.ObjectMapperConfig;
+import com.johnlpage.memex.generics.service.JsonRecord;
+import com.johnlpage.memex.generics.service.JsonRecordBinder;
+import com.johnlpage.memex.generics.service.JsonRecordSplitter;
+import org.bson.Document;
+import org.springframework.data.mongodb.core.convert.DefaultMongoTypeMapper;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+import org.springframework.data.mongodb.core.convert.MongoCustomConversions;
+import org.springframework.data.mongodb.core.convert.NoOpDbRefResolver;
+import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Loads benchmark input and builds the same objects the application would. Paths are relative to
+ * the directory the benchmarks are started from, normally memex-benchmarks.
+ */
+public final class Fixtures {
+
+    public static final String SMALL_SAMPLE = "../SAMPLE_DATA/small.txt";
+
+    public static final JsonFactory JSON_FACTORY = new JsonFactory();
+    public static final ObjectMapper OBJECT_MAPPER =
+            new ObjectMapperConfig().objectMapper(JSON_FACTORY);
+
+    private Fixtures() {
+    }
+
+    /**
+     * A converter set up the way MongoConfig and MongoTypeMapperConfig set up the application's,
+     * without needing a database
+     */
+    public static MappingMongoConverter mappingMongoConverter() {
+        MongoCustomConversions conversions =
+                MongoCustomConversions.create(
+                        MongoCustomConversions.MongoConverterConfigurationAdapter
+                                ::useNativeDriverJavaTimeCodecs);
+        MongoMappingContext mappingContext = new MongoMappingContext();
+        mappingContext.setSimpleTypeHolder(conversions.getSimpleTypeHolder());
+        mappingContext.afterPropertiesSet();
+        MappingMongoConverter converter =
+                new MappingMongoConverter(NoOpDbRefResolver.INSTANCE, mappingContext);
+        converter.setCustomConversions(conversions);
+        converter.setTypeMapper(new DefaultMongoTypeMapper(null));
+        converter.afterPropertiesSet();
+        return converter;
+    }
+
+    /**
+     * Every record in the file bound to the model class
+     */
+    public static <T> List<T> models(String file, Class<T> type) throws IOException {
+        JsonRecordBinder<T> binder =
+                new JsonRecordBinder<>(JsonRecordBinder.BindMode.DIRECT, type, OBJECT_MAPPER, JSON_FACTORY);
+        List<T> models = new ArrayList<>();
+        for (JsonRecord record : records(file)) {
+            models.add(binder.bind(record));
+        }
+        return models;
+    }
+
+    /**
+     * Every record in the file bound to the model class and written as a Document, as the
+     * repository does before building an update
+     */
+    public static List<Document> mappedDocuments(String file, Class<?> type) throws IOException {
+        MappingMongoConverter converter = mappingMongoConverter();
+        List<Document> documents = new ArrayList<>();
+        for (Object model : models(file, type)) {
+            Document document = new Document();
+            converter.write(model, document);
+            documents.add(document);
+        }
+        return documents;
+    }
+
+    /**
+     * Every JSON object in the file, cut out the same way the loader does it
+     */
+    public static List<JsonRecord> records(String file) throws IOException {
+        List<JsonRecord> records = new ArrayList<>();
+        try (JsonRecordSplitter splitter =
+                     new JsonRecordSplitter(new BufferedInputStream(Files.newInputStream(Path.of(file))))) {
+            JsonRecord record;
+            while ((record = splitter.next()) != null) {
+                records.add(record);
+            }
+        }
+        if (records.isEmpty()) {
+            throw new IllegalStateException("No JSON records in " + file);
+        }
+        return records;
+    }
+}
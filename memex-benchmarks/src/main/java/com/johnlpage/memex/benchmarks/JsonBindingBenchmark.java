@@ -0,0 +1,65 @@
+package com.johnlpage.memex.benchmarks;
+
+import com.johnlpage.memex.VehicleInspection.model.VehicleInspection;
+import com.johnlpage.memex.generics.service.JsonRecord;
+import com.johnlpage.memex.generics.service.JsonRecordBinder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of turning one JSON record into a VehicleInspection, going via a JsonNode tree (how the
+ * loader used to do it) and binding directly. Each invocation binds one document, so with the GC
+ * profiler gc.alloc.rate.norm is the bytes allocated per document:
+ *
+ * <pre>
+ * java -jar target/benchmarks.jar JsonBindingBenchmark -prof gc
+ * </pre>
+ *
+ * <p>Use -p file=... to run it against other data.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JsonBindingBenchmark {
+
+    @Param({"DIRECT", "TREE"})
+    public JsonRecordBinder.BindMode mode;
+
+    @Param({Fixtures.SMALL_SAMPLE})
+    public String file;
+
+    private List<JsonRecord> records;
+    private JsonRecordBinder<VehicleInspection> binder;
+    private int next;
+
+    @Setup
+    public void setup() throws IOException {
+        records = Fixtures.records(file);
+        binder =
+                new JsonRecordBinder<>(
+                        mode, VehicleInspection.class, Fixtures.OBJECT_MAPPER, Fixtures.JSON_FACTORY);
+    }
+
+    @Benchmark
+    public VehicleInspection bind() throws IOException {
+        JsonRecord record = records.get(next);
+        next = next + 1 == records.size() ? 0 : next + 1;
+        return binder.bind(record);
+    }
+}
@@ -0,0 +1,79 @@
+package com.johnlpage.memex.benchmarks;
+
+import com.johnlpage.memex.VehicleInspection.model.VehicleInspection;
+import com.johnlpage.memex.generics.repository.OptimizedMongoDownstreamRepositoryImpl;
+import com.mongodb.MongoClientSettings;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
+import org.bson.codecs.JsonObjectCodec;
+import org.bson.json.JsonMode;
+import org.bson.json.JsonObject;
+import org.bson.json.JsonWriterSettings;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the nativeJsonExtract path per document - the driver decoding a document from the wire
+ * straight to a JsonObject with a JsonObjectCodec, with no Document or model in between. Each
+ * document is held as the raw BSON a cursor would get. EXTRACT uses the downstream repository's
+ * settings, which write ObjectIds and dates as plain strings, RELAXED the driver's own relaxed
+ * JSON for comparison.
+ *
+ * <pre>
+ * java -jar target/benchmarks.jar JsonExtractBenchmark -prof gc
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JsonExtractBenchmark {
+
+    @Param({"EXTRACT", "RELAXED"})
+    public String settings;
+
+    @Param({Fixtures.SMALL_SAMPLE})
+    public String file;
+
+    private List<RawBsonDocument> documents;
+    private JsonObjectCodec codec;
+    private int next;
+
+    @Setup
+    public void setup() throws IOException {
+        DocumentCodec documentCodec = new DocumentCodec(MongoClientSettings.getDefaultCodecRegistry());
+        documents = new ArrayList<>();
+        for (Document document : Fixtures.mappedDocuments(file, VehicleInspection.class)) {
+            documents.add(new RawBsonDocument(document, documentCodec));
+        }
+        JsonWriterSettings writerSettings =
+                settings.equals("EXTRACT")
+                        ? OptimizedMongoDownstreamRepositoryImpl.extractJsonWriterSettings()
+                        : JsonWriterSettings.builder().outputMode(JsonMode.RELAXED).build();
+        codec = new JsonObjectCodec(writerSettings);
+    }
+
+    @Benchmark
+    public JsonObject decode() {
+        RawBsonDocument document = documents.get(next);
+        next = next + 1 == documents.size() ? 0 : next + 1;
+        return document.decode(codec);
+    }
+}
@@ -0,0 +1,185 @@
+package com.johnlpage.memex.benchmarks;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.johnlpage.memex.VehicleInspection.model.VehicleInspection;
+import com.johnlpage.memex.config.AsyncLoadConfig;
+import com.johnlpage.memex.generics.repository.OptimizedMongoLoadRepositoryImpl;
+import com.johnlpage.memex.generics.service.AdaptiveBatchSizer;
+import com.johnlpage.memex.generics.service.BatchTracer;
+import com.johnlpage.memex.generics.service.BatchValidator;
+import com.johnlpage.memex.generics.service.DeadLetterService;
+import com.johnlpage.memex.generics.service.HistoryCapture;
+import com.johnlpage.memex.generics.service.HistoryCapturePolicy;
+import com.johnlpage.memex.generics.service.LoadMetrics;
+import com.johnlpage.memex.generics.service.WriteRetryPolicy;
+import com.johnlpage.memex.util.UpdateStrategy;
+import com.mongodb.ConnectionString;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.micrometer.observation.ObservationRegistry;
+import jakarta.validation.Validation;
+import org.bson.Document;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.SimpleMongoClientDatabaseFactory;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Batch writes through the loadExecutor in each of its modes, against a real mongod. Each
+ * operation is one round of batchesPerRound REPLACE batches submitted at once, the way the loader
+ * sends them when its in flight window is that big, and waits for all of them. Throughput is rounds
+ * per second, and as a round is as slow as its slowest batch the SampleTime percentiles show the
+ * tail latency.
+ *
+ * <p>Needs a mongod, by default on localhost:27017, it writes to the memex_benchmark database and
+ * drops it afterwards. VIRTUAL needs Java 21 to run the benchmarks, on older JVMs it falls back to
+ * platform threads and measures the same as PLATFORM.
+ *
+ * <pre>
+ * java -jar target/benchmarks.jar LoadExecutorBenchmark -p uri=mongodb://localhost:27017
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 10)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class LoadExecutorBenchmark {
+
+    private static final String DATABASE = "memex_benchmark";
+
+    @Param({"PLATFORM", "VIRTUAL"})
+    public AsyncLoadConfig.ExecutorMode mode;
+
+    @Param({"mongodb://localhost:27017"})
+    public String uri;
+
+    // The loadExecutor's pool size in PLATFORM mode
+    @Param({"16"})
+    public int writeThreads;
+
+    @Param({"128"})
+    public int batchesPerRound;
+
+    @Param({"100"})
+    public int batchSize;
+
+    @Param({Fixtures.SMALL_SAMPLE})
+    public String file;
+
+    private MongoClient mongoClient;
+    private AsyncTaskExecutor executor;
+    private OptimizedMongoLoadRepositoryImpl<VehicleInspection> repository;
+    private final List<List<VehicleInspection>> batches = new ArrayList<>();
+
+    @Setup
+    public void setup() throws IOException {
+        mongoClient =
+                MongoClients.create(
+                        MongoClientSettings.builder()
+                                .applyConnectionString(new ConnectionString(uri))
+                                .applyToClusterSettings(
+                                        cluster -> cluster.serverSelectionTimeout(5, TimeUnit.SECONDS))
+                                .build());
+        // Fail now with a clear error rather than in every write
+        mongoClient.getDatabase(DATABASE).runCommand(new Document("ping", 1));
+
+        MappingMongoConverter converter = Fixtures.mappingMongoConverter();
+        MongoTemplate mongoTemplate =
+                new MongoTemplate(new SimpleMongoClientDatabaseFactory(mongoClient, DATABASE), converter);
+        // Fixed batch size, this is measuring the executor not the sizer
+        AdaptiveBatchSizer batchSizer =
+                new AdaptiveBatchSizer(false, batchSize, 1, batchSize, 250, Long.MAX_VALUE);
+        repository =
+                new OptimizedMongoLoadRepositoryImpl<>(
+                        mongoTemplate,
+                        converter,
+                        mongoClient,
+                        batchSizer,
+                        new WriteRetryPolicy(5, 10, 1000, 2),
+                        new BatchValidator(Validation.buildDefaultValidatorFactory().getValidator()),
+                        // No sink, a failed write fails the benchmark
+                        new DeadLetterService(null, converter, new ObjectMapper()),
+                        new LoadMetrics(new SimpleMeterRegistry()),
+                        new BatchTracer(false, 1, 1, ObservationRegistry.NOOP),
+                        new HistoryCapturePolicy(HistoryCapture.AUTO, 32, 20));
+        executor =
+                AsyncLoadConfig.createLoadExecutor(
+                        mode, writeThreads, AsyncLoadConfig.connectionPoolSize(uri));
+
+        // Every document in a round has its own id so batches don't contend with each other
+        long id = 0;
+        List<VehicleInspection> batch = new ArrayList<>(batchSize);
+        while (batches.size() < batchesPerRound) {
+            for (VehicleInspection inspection : Fixtures.models(file, VehicleInspection.class)) {
+                inspection.setTestid(id++);
+                batch.add(inspection);
+                if (batch.size() == batchSize) {
+                    batches.add(batch);
+                    batch = new ArrayList<>(batchSize);
+                    if (batches.size() == batchesPerRound) {
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        if (executor instanceof DisposableBean pool) {
+            pool.destroy();
+        } else if (executor instanceof AutoCloseable closeable) {
+            closeable.close();
+        }
+        if (mongoClient != null) {
+            mongoClient.getDatabase(DATABASE).drop();
+            mongoClient.close();
+        }
+    }
+
+    @Benchmark
+    public long round() throws Exception {
+        List<Future<Integer>> writes = new ArrayList<>(batches.size());
+        for (List<VehicleInspection> batch : batches) {
+            writes.add(
+                    executor.submit(
+                            () ->
+                                    repository
+                                            .writeMany(
+                                                    batch,
+                                                    VehicleInspection.class,
+                                                    null,
+                                                    UpdateStrategy.REPLACE,
+                                                    null)
+                                            .getMatchedCount()));
+        }
+        long matched = 0;
+        for (Future<Integer> write : writes) {
+            matched += write.get();
+        }
+        return matched;
+    }
+}
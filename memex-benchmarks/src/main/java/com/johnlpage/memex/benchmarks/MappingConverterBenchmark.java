@@ -0,0 +1,59 @@
+package com.johnlpage.memex.benchmarks;
+
+import com.johnlpage.memex.VehicleInspection.model.VehicleInspection;
+import org.bson.Document;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of MappingMongoConverter.write turning one VehicleInspection into a Document, which the
+ * repository does for every document it writes whatever the update strategy. The converter is set
+ * up the same way as the application's.
+ *
+ * <pre>
+ * java -jar target/benchmarks.jar MappingConverterBenchmark -prof gc
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MappingConverterBenchmark {
+
+    @Param({Fixtures.SMALL_SAMPLE})
+    public String file;
+
+    private final MappingMongoConverter converter = Fixtures.mappingMongoConverter();
+    private List<VehicleInspection> models;
+    private int next;
+
+    @Setup
+    public void setup() throws IOException {
+        models = Fixtures.models(file, VehicleInspection.class);
+    }
+
+    @Benchmark
+    public Document write() {
+        VehicleInspection model = models.get(next);
+        next = next + 1 == models.size() ? 0 : next + 1;
+        Document document = new Document();
+        converter.write(model, document);
+        return document;
+    }
+}
@@ -0,0 +1,98 @@
+package com.johnlpage.memex.benchmarks;
+
+import com.johnlpage.memex.generics.service.JsonRecord;
+import com.johnlpage.memex.generics.service.JsonRecordSource;
+import com.johnlpage.memex.generics.service.JsonRecordSplitter;
+import com.johnlpage.memex.generics.service.MappedJsonRecordSource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cutting a whole NDJSON file into records, the way a load over HTTP reads it (a JsonRecordSplitter
+ * on a buffered stream) against the memory mapped MappedJsonRecordSource the file loader uses. Each
+ * operation reads the file once, so the score is seconds per file. Parsing isn't included, it is
+ * the same either way.
+ *
+ * <p>The file is made by repeating the sample data until it is sizeMb big, in the temp directory,
+ * and is in the page cache for all but the first read - this measures the copying and scanning,
+ * not the disk.
+ *
+ * <pre>
+ * java -jar target/benchmarks.jar NdjsonReadBenchmark -prof gc
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class NdjsonReadBenchmark {
+
+    @Param({"STREAM", "MAPPED"})
+    public String reader;
+
+    @Param({"1024"})
+    public int sizeMb;
+
+    @Param({Fixtures.SMALL_SAMPLE})
+    public String file;
+
+    private Path ndjson;
+
+    @Setup
+    public void setup() throws IOException {
+        StringBuilder lines = new StringBuilder();
+        for (JsonRecord record : Fixtures.records(file)) {
+            lines.append(new String(record.bytes(), StandardCharsets.UTF_8)).append('\n');
+        }
+        byte[] sample = lines.toString().getBytes(StandardCharsets.UTF_8);
+        ndjson = Files.createTempFile("memex-benchmark", ".ndjson");
+        long size = (long) sizeMb << 20;
+        try (OutputStream out = Files.newOutputStream(ndjson)) {
+            for (long written = 0; written < size; written += sample.length) {
+                out.write(sample);
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(ndjson);
+    }
+
+    @Benchmark
+    public long read(Blackhole blackhole) throws IOException {
+        long records = 0;
+        try (JsonRecordSource source =
+                     reader.equals("MAPPED")
+                             ? new MappedJsonRecordSource(ndjson)
+                             : new JsonRecordSplitter(new BufferedInputStream(Files.newInputStream(ndjson)))) {
+            JsonRecord record;
+            while ((record = source.next()) != null) {
+                blackhole.consume(record);
+                records++;
+            }
+        }
+        return records;
+    }
+}
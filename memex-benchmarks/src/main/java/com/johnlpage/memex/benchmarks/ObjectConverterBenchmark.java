@@ -0,0 +1,63 @@
+package com.johnlpage.memex.benchmarks;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.johnlpage.memex.generics.service.JsonRecord;
+import com.johnlpage.memex.util.ObjectConverter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of ObjectConverter.convertObject, which VehicleInspection's @JsonAnySetter runs on every
+ * field that isn't in the model. Each invocation converts every field of one record, read as plain
+ * JSON values the way Jackson hands them to the any setter, so this is the worst case of a record
+ * with nothing mapped. The date strings are what make it expensive.
+ *
+ * <pre>
+ * java -jar target/benchmarks.jar ObjectConverterBenchmark -prof gc
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ObjectConverterBenchmark {
+
+    @Param({Fixtures.SMALL_SAMPLE})
+    public String file;
+
+    private List<Map<String, Object>> documents;
+    private int next;
+
+    @Setup
+    public void setup() throws IOException {
+        documents = new ArrayList<>();
+        for (JsonRecord record : Fixtures.records(file)) {
+            documents.add(Fixtures.OBJECT_MAPPER.readValue(record.bytes(), new TypeReference<>() {
+            }));
+        }
+    }
+
+    @Benchmark
+    public Object convert() {
+        Map<String, Object> document = documents.get(next);
+        next = next + 1 == documents.size() ? 0 : next + 1;
+        return ObjectConverter.convertObject(document);
+    }
+}
@@ -0,0 +1,63 @@
+package com.johnlpage.memex.benchmarks;
+
+import com.johnlpage.memex.generics.repository.OptimizedMongoQueryRepositoryImpl;
+import org.bson.Document;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of computeQueryShapeHash, which the query repository runs on every query to find its cached
+ * cost before deciding whether to run it. SIMPLE is a lookup by id, TYPICAL the kind of query the
+ * inspections API gets with a range, a projection and a sort.
+ *
+ * <pre>
+ * java -jar target/benchmarks.jar QueryShapeHashBenchmark -prof gc
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class QueryShapeHashBenchmark {
+
+    @Param({"SIMPLE", "TYPICAL"})
+    public String query;
+
+    private Document filter;
+    private Document projection;
+    private Document sort;
+
+    @Setup
+    public void setup() {
+        if (query.equals("SIMPLE")) {
+            filter = Document.parse("{ \"_id\": 59 }");
+            projection = new Document();
+            sort = new Document();
+        } else {
+            filter =
+                    Document.parse(
+                            "{ \"vehicle.make\": \"FORD\", \"testresult\": \"Failed\","
+                                    + " \"testdate\": { \"$gte\": { \"$date\": \"2021-01-01T00:00:00Z\" } } }");
+            projection = Document.parse("{ \"testid\": 1, \"testdate\": 1, \"vehicle\": 1, \"faileditems\": 1 }");
+            sort = Document.parse("{ \"testdate\": -1, \"testid\": 1 }");
+        }
+    }
+
+    @Benchmark
+    public String hash() {
+        return OptimizedMongoQueryRepositoryImpl.computeQueryShapeHash(filter, projection, sort);
+    }
+}
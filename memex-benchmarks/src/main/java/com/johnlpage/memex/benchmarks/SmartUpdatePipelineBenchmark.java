@@ -0,0 +1,90 @@
+package com.johnlpage.memex.benchmarks;
+
+import com.johnlpage.memex.VehicleInspection.model.VehicleInspection;
+import com.johnlpage.memex.generics.repository.SmartUpdatePipeline;
+import com.johnlpage.memex.util.ModelMetadata;
+import com.johnlpage.memex.util.UpdateStrategy;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of building the smart update pipeline for one document, from the Document the converter
+ * wrote to the list of stages, with the cached per shape templates and the original build from
+ * scratch. unwind is just the first step of the build without a template, flattening the nested
+ * fields into dotted paths with unwindNestedDocumentsInUpdate. Conversion of the model is done up
+ * front and not measured, MappingConverterBenchmark measures that.
+ *
+ * <pre>
+ * java -jar target/benchmarks.jar SmartUpdatePipelineBenchmark -prof gc
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SmartUpdatePipelineBenchmark {
+
+    @Param({"UPDATE", "UPDATEWITHHISTORY"})
+    public UpdateStrategy strategy;
+
+    @Param({Fixtures.SMALL_SAMPLE})
+    public String file;
+
+    private final ObjectId updateBatchId = new ObjectId();
+    private final ModelMetadata metadata = ModelMetadata.of(VehicleInspection.class);
+    private List<Document> documents;
+    private boolean withHistory;
+    private int next;
+
+    @Setup
+    public void setup() throws IOException {
+        if (strategy != UpdateStrategy.UPDATE && strategy != UpdateStrategy.UPDATEWITHHISTORY) {
+            throw new IllegalArgumentException("Only UPDATE and UPDATEWITHHISTORY build pipelines");
+        }
+        documents = Fixtures.mappedDocuments(file, VehicleInspection.class);
+        withHistory = strategy == UpdateStrategy.UPDATEWITHHISTORY;
+    }
+
+    private Document nextDocument() {
+        Document document = documents.get(next);
+        next = next + 1 == documents.size() ? 0 : next + 1;
+        return document;
+    }
+
+    @Benchmark
+    public List<Document> template() {
+        return SmartUpdatePipeline.build(nextDocument(), updateBatchId, withHistory, metadata);
+    }
+
+    @Benchmark
+    public List<Document> withoutTemplate() {
+        return SmartUpdatePipeline.buildWithoutTemplate(
+                nextDocument(), updateBatchId, withHistory, metadata);
+    }
+
+    @Benchmark
+    public Map<String, Object> unwind() {
+        Map<String, Object> unwound = new LinkedHashMap<>();
+        SmartUpdatePipeline.unwindNestedDocumentsInUpdate(nextDocument(), unwound);
+        return unwound;
+    }
+}
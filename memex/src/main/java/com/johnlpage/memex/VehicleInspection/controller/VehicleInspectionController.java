@@ -8,8 +8,16 @@ import com.johnlpage.memex.VehicleInspection.model.Vehicle;
 import com.johnlpage.memex.VehicleInspection.model.VehicleInspection;
 import com.johnlpage.memex.VehicleInspection.repository.VehicleInspectionRepository;
 import com.johnlpage.memex.VehicleInspection.repository.VehicleRepository;
+import com.johnlpage.memex.generics.repository.AsOfMode;
+import com.johnlpage.memex.generics.service.LoadPipelineStats;
 import com.johnlpage.memex.generics.service.MongoDbJsonStreamingLoaderService;
 import com.johnlpage.memex.generics.service.DataLoadException;
+import com.johnlpage.memex.generics.service.DispatchMode;
+import com.johnlpage.memex.generics.service.ChangeDetection;
+import com.johnlpage.memex.generics.service.ContentEncoding;
+import com.johnlpage.memex.generics.service.JsonLoadOptions;
+import com.johnlpage.memex.generics.service.LoadCheckpoint;
+import com.johnlpage.memex.generics.service.LoadCheckpointService;
 import com.johnlpage.memex.util.UpdateStrategy;
 import jakarta.servlet.http.HttpServletRequest;
 
@@ -24,7 +32,9 @@ import java.util.List;
 import java.util.stream.Stream;
 
 import lombok.RequiredArgsConstructor;
+import org.bson.Document;
 import org.bson.json.JsonObject;
+import org.bson.json.JsonParseException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.data.domain.Slice;
@@ -36,6 +46,7 @@ import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
@@ -76,15 +87,35 @@ public class VehicleInspectionController {
     /**
      * This could be something that reads a file, or even from a Kafka Queue as long as it gets a
      * stream of JSON data - using an HTTP endpoint to demonstrate.
+     *
+     * <p>With a loadId the load saves checkpoints, and if it fails can be resumed by sending the
+     * same loadId and either the whole file again with resumeFrom set to the checkpoint's records,
+     * or only the rest of the file with a Content-Range header starting at the checkpoint's bytes.
      */
     @PostMapping("/inspections")
     public ResponseEntity<MongoDbJsonStreamingLoaderService.JsonStreamingLoadResponse> loadFromStream(
             HttpServletRequest request,
             @RequestParam(name = "futz", required = false, defaultValue = "false") Boolean futz,
             @RequestParam(name = "updateStrategy", required = false, defaultValue = "REPLACE")
-            UpdateStrategy updateStrategy) {
+            UpdateStrategy updateStrategy,
+            @RequestParam(name = "maxBatchesInFlight", required = false) Integer maxBatchesInFlight,
+            @RequestParam(name = "maxBytesInFlight", required = false) Long maxBytesInFlight,
+            @RequestParam(name = "changeDetection", required = false) ChangeDetection changeDetection,
+            @RequestParam(name = "dispatchMode", required = false) DispatchMode dispatchMode,
+            @RequestParam(name = "lanes", required = false) Integer lanes,
+            @RequestParam(name = "loadId", required = false) String loadId,
+            @RequestParam(name = "resumeFrom", required = false) Long resumeFrom,
+            @RequestHeader(name = "Content-Range", required = false) String contentRange,
+            @RequestHeader(name = "Content-Encoding", required = false) String contentEncoding) {
         LOG.info("Load data from JSON stream starting...");
         MongoDbJsonStreamingLoaderService.JsonStreamingLoadResponse returnValue;
+        ContentEncoding encoding;
+        try {
+            // gzip, deflate or zstd bodies are decompressed as they are read
+            encoding = ContentEncoding.fromHeader(contentEncoding);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.status(HttpStatus.UNSUPPORTED_MEDIA_TYPE).build();
+        }
         try {
             returnValue =
                     loaderService.loadFromJsonStream(
@@ -95,22 +126,111 @@ public class VehicleInspectionController {
                             futz ? preWriteTriggerService : null,
                             updateStrategy.equals(UpdateStrategy.UPDATEWITHHISTORY)
                                     ? postWriteTriggerService
-                                    : null);
+                                    : null,
+                            JsonLoadOptions.builder()
+                                    .maxBatchesInFlight(maxBatchesInFlight)
+                                    .maxBytesInFlight(maxBytesInFlight)
+                                    .changeDetection(changeDetection)
+                                    .dispatchMode(dispatchMode)
+                                    .lanes(lanes)
+                                    .loadId(loadId)
+                                    .resumeFrom(resumeFrom)
+                                    .streamOffset(LoadCheckpointService.contentRangeStart(contentRange))
+                                    .contentEncoding(encoding)
+                                    .build());
 
             return new ResponseEntity<>(returnValue, HttpStatus.OK);
         } catch (DataLoadException e) {
             returnValue =
                     new MongoDbJsonStreamingLoaderService.JsonStreamingLoadResponse(
-                            e.getUpdates(), e.getDeletes(), e.getInserts(), false, e.getMessage());
+                            e.getUpdates(),
+                            e.getDeletes(),
+                            e.getInserts(),
+                            false,
+                            e.getMessage(),
+                            e.getErrors());
 
             // Log the exception if necessary and return HTTP 500 Internal Server Error
             return new ResponseEntity<>(returnValue, HttpStatus.MULTI_STATUS);
+        } catch (IllegalArgumentException e) {
+            // A resume that doesn't match the checkpoint, or a bad option
+            LOG.warn(e.getMessage());
+            return ResponseEntity.status(
+                            contentRange != null
+                                    ? HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE
+                                    : HttpStatus.BAD_REQUEST)
+                    .build();
         } catch (Exception e) {
             LOG.error(e.getMessage());
         }
         return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
     }
 
+    /**
+     * Per stage progress of the load that is running, or the last one, shows which stage is the
+     * bottleneck.
+     */
+    @GetMapping("/inspections/load/stats")
+    public ResponseEntity<LoadPipelineStats.Snapshot> loadStats() {
+        LoadPipelineStats.Snapshot stats = loaderService.getLoadStats();
+        return stats == null ? ResponseEntity.noContent().build() : ResponseEntity.ok(stats);
+    }
+
+    /**
+     * Rebuilds the hashes used by changeDetection=HASH from what is in the collection now, run it
+     * before the first hashed load or after anything other than the loader has changed the data.
+     */
+    @PostMapping("/inspections/load/hashes/seed")
+    public ResponseEntity<Long> seedChangeDetection() {
+        return ResponseEntity.ok(loaderService.seedChangeDetection(VehicleInspection.class));
+    }
+
+    /**
+     * Loads the dead letters kept for inspections again, once whatever made them fail is fixed. Any that
+     * fail again are dead lettered again.
+     */
+    @PostMapping("/inspections/load/deadletters/replay")
+    public ResponseEntity<MongoDbJsonStreamingLoaderService.JsonStreamingLoadResponse> replayDeadLetters(
+            @RequestParam(name = "updateStrategy", required = false, defaultValue = "REPLACE")
+            UpdateStrategy updateStrategy) {
+        try {
+            return ResponseEntity.ok(
+                    loaderService.replayDeadLetters(
+                            VehicleInspection.class,
+                            invalidDataHandlerService,
+                            updateStrategy,
+                            null,
+                            updateStrategy.equals(UpdateStrategy.UPDATEWITHHISTORY)
+                                    ? postWriteTriggerService
+                                    : null,
+                            JsonLoadOptions.DEFAULTS));
+        } catch (DataLoadException e) {
+            return new ResponseEntity<>(
+                    new MongoDbJsonStreamingLoaderService.JsonStreamingLoadResponse(
+                            e.getUpdates(),
+                            e.getDeletes(),
+                            e.getInserts(),
+                            false,
+                            e.getMessage(),
+                            e.getErrors()),
+                    HttpStatus.MULTI_STATUS);
+        }
+    }
+
+    /**
+     * How far a load with a loadId got, for resuming it
+     */
+    @GetMapping("/inspections/load/checkpoints/{loadId}")
+    public ResponseEntity<LoadCheckpoint> loadCheckpoint(@PathVariable String loadId) {
+        LoadCheckpoint checkpoint = loaderService.getCheckpoint(loadId);
+        return checkpoint == null ? ResponseEntity.notFound().build() : ResponseEntity.ok(checkpoint);
+    }
+
+    @GetMapping("/inspections/load/deadletters/count")
+    public ResponseEntity<Long> countDeadLetters() {
+        return ResponseEntity.ok(loaderService.countDeadLetters(VehicleInspection.class));
+    }
+
     /**
      * Get By ID -
      */
@@ -254,13 +374,43 @@ public class VehicleInspectionController {
     @GetMapping(value = "/inspections/asOf", produces = MediaType.APPLICATION_JSON_VALUE)
     public ResponseEntity<StreamingResponseBody> dataAtDate(
             @RequestParam(name = "asOfDate") @DateTimeFormat(pattern = "yyyyMMddHHmmss") LocalDateTime asOfDateParam,
-            @RequestParam(name = "id") Long id) {
+            @RequestParam(name = "id") Long id,
+            // CLIENT rebuilds it here rather than on the database
+            @RequestParam(name = "mode", defaultValue = "SERVER") AsOfMode mode) {
         Instant asOfDate = asOfDateParam.atZone(ZoneOffset.UTC).toInstant();
         return ResponseEntity.ok()
                 .contentType(MediaType.APPLICATION_JSON)
                 .body(
                         outputStream ->
-                                writeDocumentsToOutputStream(outputStream, historyService.asOfDate(id, asOfDate)));
+                                writeDocumentsToOutputStream(
+                                        outputStream, historyService.asOfDate(id, asOfDate, mode)));
+    }
+
+    /**
+     * Every inspection matching a filter as it was at a time, as NDJSON. The body is a MongoDB
+     * filter using the JSON field names, or nothing for all of them.
+     */
+    @PostMapping(value = "/inspections/asOf/export", produces = "application/x-ndjson")
+    public ResponseEntity<StreamingResponseBody> exportAtDate(
+            @RequestParam(name = "asOfDate") @DateTimeFormat(pattern = "yyyyMMddHHmmss") LocalDateTime asOfDateParam,
+            @RequestBody(required = false) String filter) {
+        Instant asOfDate = asOfDateParam.atZone(ZoneOffset.UTC).toInstant();
+        Document filterDocument;
+        try {
+            filterDocument = filter == null || filter.isBlank() ? new Document() : Document.parse(filter);
+        } catch (JsonParseException e) {
+            LOG.warn("Bad export filter: {}", e.getMessage());
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).build();
+        }
+        return ResponseEntity.ok()
+                .contentType(MediaType.parseMediaType("application/x-ndjson"))
+                .body(
+                        outputStream -> {
+                            try (Stream<VehicleInspection> records =
+                                         historyService.exportAsOfDate(filterDocument, asOfDate)) {
+                                writeDocumentsToOutputStream(outputStream, records);
+                            }
+                        });
     }
 
     private void writeDocumentsToOutputStream(
@@ -0,0 +1,68 @@
+package com.johnlpage.memex.VehicleInspection.fileload;
+
+import com.johnlpage.memex.VehicleInspection.model.VehicleInspection;
+import com.johnlpage.memex.VehicleInspection.service.VehicleInspectionHistoryTriggerService;
+import com.johnlpage.memex.VehicleInspection.service.VehicleInspectionInvalidDataHandlerService;
+import com.johnlpage.memex.VehicleInspection.service.VehicleInspectionJsonLoaderService;
+import com.johnlpage.memex.generics.service.FileLoadProgress;
+import com.johnlpage.memex.generics.service.JsonFileLoadService;
+import com.johnlpage.memex.generics.service.JsonLoadOptions;
+import com.johnlpage.memex.util.UpdateStrategy;
+import java.util.List;
+import lombok.RequiredArgsConstructor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.ApplicationContext;
+import org.springframework.stereotype.Component;
+
+/* Like the Kafka consumer this is another way in to the same loader, for data that is already in
+files on local disk - run with --memex.fileload.path=SAMPLE_DATA/VOSA/*.ndjson.gz for example*/
+
+@RequiredArgsConstructor
+@Component
+@ConditionalOnProperty(name = "memex.fileload.path")
+public class VehicleInspectionFileLoadRunner implements ApplicationRunner {
+    private static final Logger LOG = LoggerFactory.getLogger(VehicleInspectionFileLoadRunner.class);
+    private final JsonFileLoadService fileLoadService;
+    private final VehicleInspectionJsonLoaderService loaderService;
+    private final VehicleInspectionInvalidDataHandlerService invalidDataHandler;
+    private final VehicleInspectionHistoryTriggerService postWriteTriggerService;
+    private final ApplicationContext context;
+
+    @Value("${memex.fileload.path}")
+    private String path;
+
+    @Value("${memex.fileload.update-strategy:REPLACE}")
+    private UpdateStrategy updateStrategy;
+
+    // Stop once the files are loaded rather than carry on serving requests
+    @Value("${memex.fileload.exit-when-done:false}")
+    private boolean exitWhenDone;
+
+    @Override
+    public void run(ApplicationArguments args) throws Exception {
+        LOG.info("Loading {} with {}", path, updateStrategy);
+        List<FileLoadProgress.Snapshot> files =
+                fileLoadService.loadFiles(
+                        loaderService,
+                        path,
+                        VehicleInspection.class,
+                        invalidDataHandler,
+                        updateStrategy,
+                        null,
+                        updateStrategy.equals(UpdateStrategy.UPDATEWITHHISTORY)
+                                ? postWriteTriggerService
+                                : null,
+                        JsonLoadOptions.DEFAULTS);
+        long failed = files.stream().filter(f -> f.state() != FileLoadProgress.State.DONE).count();
+        LOG.info("Loaded {} of {} files from {}", files.size() - failed, files.size(), path);
+        if (exitWhenDone) {
+            System.exit(SpringApplication.exit(context, () -> failed == 0 ? 0 : 1));
+        }
+    }
+}
@@ -5,6 +5,9 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.johnlpage.memex.util.UpdateStrategy;
 import com.johnlpage.memex.VehicleInspection.model.VehicleInspection;
 import com.johnlpage.memex.generics.repository.OptimizedMongoLoadRepository;
+import com.johnlpage.memex.generics.service.AdaptiveBatchSizer;
+import com.johnlpage.memex.generics.service.DeadLetter;
+import com.johnlpage.memex.generics.service.DeadLetterService;
 import com.johnlpage.memex.VehicleInspection.service.VehicleInspectionInvalidDataHandlerService;
 import com.johnlpage.memex.generics.service.PostWriteTriggerService;
 import com.johnlpage.memex.generics.service.PreWriteTriggerService;
@@ -17,6 +20,7 @@ import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 import lombok.RequiredArgsConstructor;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
 import org.slf4j.LoggerFactory;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.event.ContextClosedEvent;
@@ -39,8 +43,12 @@ public class VehicleInspectionKafkaConsumer {
     private final VehicleInspectionInvalidDataHandlerService invalidDataHandler;
     private final ObjectMapper objectMapper;
     private final JsonFactory jsonFactory;
+    // Shared with the JSON loader so both learn the best batch size for the strategy
+    private final AdaptiveBatchSizer batchSizer;
+    private final DeadLetterService deadLetters;
     private final AtomicLong lastMessageTime = new AtomicLong(System.currentTimeMillis());
     List<VehicleInspection> toSave = new ArrayList<>();
+    long toSaveBytes = 0;
     List<CompletableFuture<BulkWriteResult>> futures = new ArrayList<>();
     PostWriteTriggerService posttrigger = null;
     PreWriteTriggerService pretrigger = null;
@@ -51,7 +59,8 @@ public class VehicleInspectionKafkaConsumer {
     AtomicInteger inserts = new AtomicInteger(0);
 
     @KafkaListener(topics = "test", groupId = "my-group-id")
-    public void listen(String message) {
+    public void listen(ConsumerRecord<String, String> consumerRecord) {
+        String message = consumerRecord.value();
         processedCount++;
         lastMessageTime.set(System.currentTimeMillis());
         if (processedCount % 10000 == 0) {
@@ -67,10 +76,21 @@ public class VehicleInspectionKafkaConsumer {
                 // document = pretrigger.newImmutableDataPreWritedocument);
             }
             toSave.add(document);
+            // Bytes as received, like the JSON loader counts them, not UTF-16 chars
+            toSaveBytes += consumerRecord.serializedValueSize();
         } catch (Exception e) {
-            // TODD - Handle Malformed JSON from KAFKA
+            // Malformed JSON from Kafka is kept in the dead letter sink if there is one
+            if (!deadLetters.send(
+                    List.of(
+                            deadLetters.rawLetter(
+                                    VehicleInspection.class,
+                                    DeadLetter.Reason.PARSE_ERROR,
+                                    message,
+                                    e.getMessage())))) {
+                LOG.warn("Discarding malformed message: {}", e.getMessage());
+            }
         }
-        if (toSave.size() >= 100) {
+        if (toSave.size() >= batchSizer.getBatchSize(updateStrategy)) {
             sendBatch();
         }
         // System.out.println("Received message: " + message);
@@ -79,6 +99,8 @@ public class VehicleInspectionKafkaConsumer {
     private void sendBatch() {
         List<VehicleInspection> copyOfToSave = List.copyOf(toSave);
         toSave.clear();
+        batchSizer.recordDocumentBytes(updateStrategy, copyOfToSave.size(), toSaveBytes);
+        toSaveBytes = 0;
         CompletableFuture<BulkWriteResult> future =
                 repository.asyncWriteMany(
                         copyOfToSave, VehicleInspection.class, invalidDataHandler, updateStrategy, posttrigger);
@@ -90,7 +112,13 @@ public class VehicleInspectionKafkaConsumer {
                             deletes.addAndGet(bulkWriteResult.getDeletedCount());
                             inserts.addAndGet(bulkWriteResult.getUpserts().size());
                             return bulkWriteResult;
-                        }));
+                        })
+                        .exceptionally(
+                                error -> {
+                                    // Already logged, and dead lettered if there is a sink
+                                    LOG.warn("Batch failed: {}", error.getMessage());
+                                    return null;
+                                }));
     }
 
     @Scheduled(fixedRate = 1000) // Run every second
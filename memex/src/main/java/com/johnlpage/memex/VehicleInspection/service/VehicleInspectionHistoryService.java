@@ -2,10 +2,12 @@ package com.johnlpage.memex.VehicleInspection.service;
 
 import com.johnlpage.memex.VehicleInspection.model.VehicleInspection;
 import com.johnlpage.memex.VehicleInspection.repository.VehicleInspectionRepository;
+import com.johnlpage.memex.generics.repository.AsOfMode;
 
 import java.time.Instant;
 import java.util.stream.Stream;
 
+import org.bson.Document;
 import org.springframework.stereotype.Service;
 
 // This is intended for downstream service that want to get reported on or perhaps
@@ -19,7 +21,12 @@ public class VehicleInspectionHistoryService {
         this.repository = repository;
     }
 
-    public Stream<VehicleInspection> asOfDate(Long id, Instant asOfDate) {
-        return repository.GetRecordByIdAsOfDate(id, asOfDate, VehicleInspection.class);
+    public Stream<VehicleInspection> asOfDate(Long id, Instant asOfDate, AsOfMode mode) {
+        return repository.GetRecordByIdAsOfDate(id, asOfDate, VehicleInspection.class, mode);
+    }
+
+    // Every inspection matching the filter, say for a month end report of them all
+    public Stream<VehicleInspection> exportAsOfDate(Document filter, Instant asOfDate) {
+        return repository.ExportRecordsAsOfDate(filter, asOfDate, VehicleInspection.class);
     }
 }
@@ -2,8 +2,10 @@ package com.johnlpage.memex.VehicleInspection.service;
 
 import com.johnlpage.memex.VehicleInspection.model.VehicleInspection;
 import com.johnlpage.memex.generics.service.InvalidDataHandlerService;
+import com.johnlpage.memex.generics.service.InvalidDocument;
 import jakarta.validation.ConstraintViolation;
 
+import java.util.List;
 import java.util.Set;
 
 import org.slf4j.Logger;
@@ -27,4 +29,19 @@ public class VehicleInspectionInvalidDataHandlerService
                 violations.size());
         return false;
     }
+
+    // One log line for all the invalid documents in a batch rather than one each, they are kept in
+    // the dead letter sink if there is one
+    @Override
+    public List<VehicleInspection> handleInvalidBatch(
+            List<InvalidDocument<VehicleInspection>> invalid, Class<VehicleInspection> clazz) {
+        LOG.warn(
+                "Invalid Inspection data detected in {} documents, but no explicit handler provided, "
+                        + "discarding. First testid {} : {}",
+                invalid.size(),
+                invalid.get(0).document().getTestid(),
+                invalid.get(0).violations().iterator().next().getMessage());
+        deadLetter(invalid, clazz);
+        return List.of();
+    }
 }
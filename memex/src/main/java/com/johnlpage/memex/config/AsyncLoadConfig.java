@@ -1,8 +1,20 @@
 package com.johnlpage.memex.config;
 
+import com.mongodb.ConnectionString;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.util.concurrent.RejectedExecutionHandler;
 import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
 import org.springframework.scheduling.annotation.EnableAsync;
 import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 
@@ -10,15 +22,175 @@ import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 @EnableAsync
 public class AsyncLoadConfig {
 
+  private static final Logger LOG = LoggerFactory.getLogger(AsyncLoadConfig.class);
+  // The driver's maxPoolSize when the connection string doesn't set one
+  private static final int DEFAULT_CONNECTION_POOL_SIZE = 100;
+
+  /**
+   * What runs the batch writes. A bulk write spends most of its time waiting for the server, so
+   * with PLATFORM the fixed pool size is also the most batches that can be in progress at once.
+   */
+  public enum ExecutorMode {
+    /** A fixed pool of mongo.jsonloader.write-threads platform threads */
+    PLATFORM,
+    /**
+     * A new virtual thread per batch, at most mongo.jsonloader.virtual-concurrency at once. Needs
+     * Java 21, on older JVMs it falls back to PLATFORM.
+     */
+    VIRTUAL
+  }
+
+  /**
+   * Threads that write batches to MongoDB. The JSON loader never has more batches in flight than
+   * mongo.jsonloader.max-batches-in-flight so if that is no bigger than this pool its batches are
+   * never run on the caller's thread. CallerRunsPolicy is left as the last resort for several loads
+   * at once or other callers of asyncWriteMany.
+   *
+   * <p>With mongo.jsonloader.executor=VIRTUAL each write gets its own virtual thread instead and the
+   * limit is mongo.jsonloader.virtual-concurrency, by default the maxPoolSize of the MongoDB
+   * connection string - more concurrent writes than connections would just queue in the driver. A
+   * caller that would go over the limit waits.
+   *
+   * <p>memex.load.executor.saturation is the fraction of the threads, or of the virtual thread
+   * limit, that are writing, and memex.load.executor.caller.runs counts batches a full pool made
+   * the caller write itself.
+   */
   @Bean(name = "loadExecutor")
-  public ThreadPoolTaskExecutor loadExecutor() {
+  public AsyncTaskExecutor loadExecutor(
+      @Value("${mongo.jsonloader.executor:PLATFORM}") ExecutorMode mode,
+      @Value("${mongo.jsonloader.write-threads:16}") int writeThreads,
+      @Value("${mongo.jsonloader.virtual-concurrency:0}") int virtualConcurrency,
+      @Value("${spring.data.mongodb.uri:mongodb://localhost}") String mongoUri,
+      ObjectProvider<MeterRegistry> meterRegistry) {
+    AsyncTaskExecutor executor =
+        createLoadExecutor(
+            mode,
+            writeThreads,
+            virtualConcurrency > 0 ? virtualConcurrency : connectionPoolSize(mongoUri));
+    meterRegistry.ifAvailable(registry -> monitorLoadExecutor(executor, registry));
+    return executor;
+  }
+
+  static void monitorLoadExecutor(AsyncTaskExecutor executor, MeterRegistry registry) {
+    if (executor instanceof ThreadPoolTaskExecutor pooled) {
+      ThreadPoolExecutor pool = pooled.getThreadPoolExecutor();
+      Gauge.builder(
+              "memex.load.executor.saturation",
+              pool,
+              p -> (double) p.getActiveCount() / p.getMaximumPoolSize())
+          .register(registry);
+      Counter callerRuns = registry.counter("memex.load.executor.caller.runs");
+      RejectedExecutionHandler handler = pool.getRejectedExecutionHandler();
+      pool.setRejectedExecutionHandler(
+          (task, rejectedBy) -> {
+            callerRuns.increment();
+            handler.rejectedExecution(task, rejectedBy);
+          });
+    } else if (executor instanceof SimpleAsyncTaskExecutor virtual) {
+      AtomicInteger active = new AtomicInteger();
+      Gauge.builder(
+              "memex.load.executor.saturation",
+              active,
+              a -> (double) a.get() / virtual.getConcurrencyLimit())
+          .register(registry);
+      virtual.setTaskDecorator(
+          task ->
+              () -> {
+                active.incrementAndGet();
+                try {
+                  task.run();
+                } finally {
+                  active.decrementAndGet();
+                }
+              });
+    }
+  }
+
+  /** Builds a loadExecutor outside Spring, the benchmarks use this. */
+  public static AsyncTaskExecutor createLoadExecutor(
+      ExecutorMode mode, int writeThreads, int virtualConcurrency) {
+    if (mode == ExecutorMode.VIRTUAL) {
+      SimpleAsyncTaskExecutor executor = new SimpleAsyncTaskExecutor("AsyncLoadVirtual-");
+      try {
+        executor.setVirtualThreads(true);
+        executor.setConcurrencyLimit(virtualConcurrency);
+        // Let writes that have started finish on shutdown
+        executor.setTaskTerminationTimeout(30_000);
+        LOG.info("Writing batches on virtual threads, at most {} at once", virtualConcurrency);
+        return executor;
+      } catch (UnsupportedOperationException e) {
+        LOG.warn(
+            "Virtual threads need Java 21, running Java {} - using {} platform threads",
+            Runtime.version().feature(),
+            writeThreads);
+      }
+    }
     ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
-    executor.setCorePoolSize(16);
-    executor.setMaxPoolSize(16);
+    executor.setCorePoolSize(writeThreads);
+    executor.setMaxPoolSize(writeThreads);
     executor.setRejectedExecutionHandler(new ThreadPoolExecutor.CallerRunsPolicy());
     executor.setQueueCapacity(0);
     executor.setThreadNamePrefix("AsyncLoadThread-");
     executor.initialize();
     return executor;
   }
+
+  /** The maxPoolSize a MongoDB connection string asks for */
+  public static int connectionPoolSize(String mongoUri) {
+    Integer maxPoolSize = new ConnectionString(mongoUri).getMaxConnectionPoolSize();
+    // maxPoolSize=0 means no limit in the driver
+    return maxPoolSize == null
+        ? DEFAULT_CONNECTION_POOL_SIZE
+        : maxPoolSize == 0 ? Integer.MAX_VALUE : maxPoolSize;
+  }
+
+  /**
+   * Threads that parse JSON records for the streaming loader. Parsing is pure CPU so there is no
+   * point having more of these than cores. The queue is unbounded here because the loader limits
+   * how much work it submits itself.
+   */
+  @Bean(name = "parseExecutor")
+  public ThreadPoolTaskExecutor parseExecutor(
+      @Value("${mongo.jsonloader.parse-threads:0}") int parseThreads) {
+    int threads = parseThreads > 0 ? parseThreads : Runtime.getRuntime().availableProcessors();
+    ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+    executor.setCorePoolSize(threads);
+    executor.setMaxPoolSize(threads);
+    executor.setThreadNamePrefix("JsonParseThread-");
+    executor.initialize();
+    return executor;
+  }
+
+  /**
+   * Threads that decompress gzip, deflate or zstd load bodies, each one is taken for the whole of a
+   * compressed load. There is no queue, when they are all busy a load decompresses on its own
+   * request thread instead.
+   */
+  @Bean(name = "decompressExecutor")
+  public ThreadPoolTaskExecutor decompressExecutor(
+      @Value("${mongo.jsonloader.decompress-threads:4}") int decompressThreads) {
+    ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+    executor.setCorePoolSize(decompressThreads);
+    executor.setMaxPoolSize(decompressThreads);
+    executor.setQueueCapacity(0);
+    executor.setThreadNamePrefix("DecompressThread-");
+    executor.initialize();
+    return executor;
+  }
+
+  /**
+   * Threads that each load one range of a file for the file loader, so this is how many ranges are
+   * loaded at once. Each range is a load of its own with its own in flight window, parsing and
+   * writing happen on the parseExecutor and loadExecutor as usual.
+   */
+  @Bean(name = "fileLoadExecutor")
+  public ThreadPoolTaskExecutor fileLoadExecutor(
+      @Value("${memex.fileload.parallel-ranges:4}") int parallelRanges) {
+    ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+    executor.setCorePoolSize(parallelRanges);
+    executor.setMaxPoolSize(parallelRanges);
+    executor.setThreadNamePrefix("FileLoadThread-");
+    executor.initialize();
+    return executor;
+  }
 }
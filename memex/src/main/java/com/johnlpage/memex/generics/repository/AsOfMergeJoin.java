@@ -0,0 +1,264 @@
+package com.johnlpage.memex.generics.repository;
+
+import com.johnlpage.memex.generics.service.HistorySnapshots;
+import org.bson.BsonBinarySubType;
+import org.bson.BsonNull;
+import org.bson.BsonTimestamp;
+import org.bson.Document;
+import org.bson.types.Binary;
+import org.bson.types.Decimal128;
+import org.bson.types.MaxKey;
+import org.bson.types.MinKey;
+import org.bson.types.ObjectId;
+import org.bson.types.Symbol;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.UUID;
+
+/**
+ * Rebuilds many records as of a time in one pass over two cursors, rather than looking up each
+ * record's history separately. One is the records in _id order, the other every history record
+ * after the as-of time in (recordId, timestamp) order, which is the history collection's index.
+ * Both move forward together, history for records that weren't asked for is skipped over and only
+ * one record's changes, back to its first snapshot, are held at a time.
+ */
+final class AsOfMergeJoin implements Iterator<Document> {
+
+    private final Iterator<Document> records;
+    private final Iterator<Document> history;
+    private Document pending;
+    private Document next;
+
+    /**
+     * @param records the current documents, without their __previousValues, in _id order
+     * @param history the history records after the as-of time in recordId then timestamp order
+     */
+    AsOfMergeJoin(Iterator<Document> records, Iterator<Document> history) {
+        this.records = records;
+        this.history = history;
+        advance();
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (next == null && records.hasNext()) {
+            next = rebuild(records.next());
+        }
+        return next != null;
+    }
+
+    @Override
+    public Document next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Document result = next;
+        next = null;
+        return result;
+    }
+
+    private void advance() {
+        pending = history.hasNext() ? history.next() : null;
+    }
+
+    /**
+     * @return the record as of the time, or null if it didn't exist yet
+     */
+    private Document rebuild(Document current) {
+        Object recordId = current.get("_id");
+        while (pending != null && compareIds(pending.get("recordId"), recordId) < 0) {
+            advance();
+        }
+
+        // Oldest first, up to the first snapshot and any change that shares its timestamp
+        List<Document> changes = new ArrayList<>();
+        Document snapshot = null;
+        boolean inserted = false;
+        while (pending != null && compareIds(pending.get("recordId"), recordId) == 0) {
+            if (snapshot == null || pending.get("timestamp").equals(snapshot.get("timestamp"))) {
+                String type = pending.getString("type");
+                if (HistorySnapshots.SNAPSHOT.equals(type)) {
+                    if (snapshot == null) {
+                        snapshot = pending;
+                    }
+                } else {
+                    inserted |= "insert".equals(type);
+                    changes.add(pending);
+                }
+            }
+            advance();
+        }
+        if (inserted) {
+            return null;
+        }
+
+        AsOfReconstruction reconstruction = new AsOfReconstruction();
+        reconstruction.merge(snapshot == null ? current : snapshot.get("changes", Document.class));
+        for (int i = changes.size() - 1; i >= 0; i--) {
+            Document previous = changes.get(i).get("changes", Document.class);
+            if (previous != null) {
+                reconstruction.merge(previous);
+            }
+        }
+        return reconstruction.result();
+    }
+
+    /*
+     * Has to agree with the order MongoDB sorts the ids in, as _id can hold different types in one
+     * collection. Types sort by their bracket first, then within it numbers compare by value whatever
+     * their type, strings by their UTF-8 bytes, documents field by field and binary by length,
+     * subtype then bytes.
+     */
+    static int compareIds(Object a, Object b) {
+        int brackets = Integer.compare(bracket(a), bracket(b));
+        if (brackets != 0) {
+            return brackets;
+        }
+        if (a instanceof Number x && b instanceof Number y) {
+            return compareNumbers(x, y);
+        }
+        if (isString(a)) {
+            return Arrays.compareUnsigned(utf8(a), utf8(b));
+        }
+        if (a instanceof Document x && b instanceof Document y) {
+            return compareDocuments(x, y);
+        }
+        if (a instanceof Binary || a instanceof UUID) {
+            Binary x = binary(a);
+            Binary y = binary(b);
+            int lengths = Integer.compare(x.getData().length, y.getData().length);
+            if (lengths != 0) {
+                return lengths;
+            }
+            int subtypes = Integer.compare(x.getType() & 0xff, y.getType() & 0xff);
+            return subtypes != 0 ? subtypes : Arrays.compareUnsigned(x.getData(), y.getData());
+        }
+        if (a == null || a instanceof BsonNull || a instanceof MinKey || a instanceof MaxKey) {
+            return 0;
+        }
+        if (a instanceof Comparable && a.getClass() == b.getClass()) {
+            return ((Comparable<Object>) a).compareTo(b);
+        }
+        throw new IllegalArgumentException(
+                "Cannot merge join records with ids " + a + " and " + b + " of types MongoDB doesn't order");
+    }
+
+    // https://www.mongodb.com/docs/manual/reference/bson-type-comparison-order/
+    private static int bracket(Object id) {
+        if (id instanceof MinKey) {
+            return 0;
+        }
+        if (id == null || id instanceof BsonNull) {
+            return 1;
+        }
+        if (id instanceof Number) {
+            return 2;
+        }
+        if (isString(id)) {
+            return 3;
+        }
+        if (id instanceof Document) {
+            return 4;
+        }
+        if (id instanceof List) {
+            return 5;
+        }
+        if (id instanceof Binary || id instanceof UUID) {
+            return 6;
+        }
+        if (id instanceof ObjectId) {
+            return 7;
+        }
+        if (id instanceof Boolean) {
+            return 8;
+        }
+        if (id instanceof Date) {
+            return 9;
+        }
+        if (id instanceof BsonTimestamp) {
+            return 10;
+        }
+        if (id instanceof MaxKey) {
+            return 12;
+        }
+        throw new IllegalArgumentException("Cannot merge join records with an id of type " + id.getClass());
+    }
+
+    // By value, NaN before every other number
+    private static int compareNumbers(Number a, Number b) {
+        BigDecimal x = exactly(a);
+        BigDecimal y = exactly(b);
+        if (x != null && y != null) {
+            return x.compareTo(y);
+        }
+        double first = a.doubleValue();
+        double second = b.doubleValue();
+        if (Double.isNaN(first) || Double.isNaN(second)) {
+            return Boolean.compare(!Double.isNaN(first), !Double.isNaN(second));
+        }
+        return Double.compare(first, second);
+    }
+
+    // Null for NaN and the infinities
+    private static BigDecimal exactly(Number number) {
+        if (number instanceof Integer || number instanceof Long) {
+            return BigDecimal.valueOf(number.longValue());
+        }
+        if (number instanceof Decimal128 decimal) {
+            return decimal.isNaN() || decimal.isInfinite() ? null : decimal.bigDecimalValue();
+        }
+        double value = number.doubleValue();
+        return Double.isFinite(value) ? new BigDecimal(value) : null;
+    }
+
+    // A UUID decoded with the standard representation is binary subtype 4
+    private static Binary binary(Object id) {
+        if (id instanceof UUID uuid) {
+            return new Binary(
+                    BsonBinarySubType.UUID_STANDARD,
+                    ByteBuffer.allocate(16)
+                            .putLong(uuid.getMostSignificantBits())
+                            .putLong(uuid.getLeastSignificantBits())
+                            .array());
+        }
+        return (Binary) id;
+    }
+
+    private static boolean isString(Object id) {
+        return id instanceof String || id instanceof Symbol;
+    }
+
+    private static byte[] utf8(Object string) {
+        return string.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Each field by the bracket of its value, then its name, then its value
+    private static int compareDocuments(Document a, Document b) {
+        Iterator<Map.Entry<String, Object>> x = a.entrySet().iterator();
+        Iterator<Map.Entry<String, Object>> y = b.entrySet().iterator();
+        while (x.hasNext() && y.hasNext()) {
+            Map.Entry<String, Object> first = x.next();
+            Map.Entry<String, Object> second = y.next();
+            int result = Integer.compare(bracket(first.getValue()), bracket(second.getValue()));
+            if (result == 0) {
+                result = Arrays.compareUnsigned(utf8(first.getKey()), utf8(second.getKey()));
+            }
+            if (result == 0) {
+                result = compareIds(first.getValue(), second.getValue());
+            }
+            if (result != 0) {
+                return result;
+            }
+        }
+        return Boolean.compare(x.hasNext(), y.hasNext());
+    }
+}
@@ -0,0 +1,11 @@
+package com.johnlpage.memex.generics.repository;
+
+/**
+ * Where an as-of version of a record is rebuilt from its history
+ */
+public enum AsOfMode {
+    // One aggregation, the database does the merging
+    SERVER,
+    // The history is read in order and merged by AsOfReconstruction, sparing the database's CPU
+    CLIENT
+}
@@ -0,0 +1,95 @@
+package com.johnlpage.memex.generics.repository;
+
+import org.bson.Document;
+import org.bson.types.MinKey;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Rebuilds a version of a record in Java the same way the as-of aggregation in
+ * MongoHistoryRepositoryImpl does. Start with the current document, or a snapshot, then merge the
+ * changes from the newest back to the oldest one after the as-of time, each as it is read.
+ *
+ * <p>Each version is flattened to dotted paths, up to the same depth as the aggregation, and the
+ * paths of a later version replace those already merged. An array is merged element by element,
+ * where a MinKey element means the element was unchanged and keeps the one already merged. The
+ * merged array is as long as the longer of the two, any element past the end of the newer one
+ * becomes null. Empty sub-documents drop out, as they do in the aggregation.
+ */
+public final class AsOfReconstruction {
+
+    private final Map<String, Object> merged = new LinkedHashMap<>();
+
+    /**
+     * @param version the starting document first, then the previous values from each history
+     *                record
+     */
+    public void merge(Map<String, Object> version) {
+        Map<String, Object> flat = new LinkedHashMap<>();
+        flatten("", version, 0, flat);
+        for (Map.Entry<String, Object> field : flat.entrySet()) {
+            Object value = field.getValue();
+            if (value instanceof List<?> newArray) {
+                merged.put(field.getKey(), mergeArray(merged.get(field.getKey()), newArray));
+            } else {
+                merged.put(field.getKey(), value);
+            }
+        }
+    }
+
+    /**
+     * The version merged so far, nested again and without the lock_version
+     */
+    public Document result() {
+        Document root = new Document();
+        for (Map.Entry<String, Object> field : merged.entrySet()) {
+            String[] path = field.getKey().split("\\.");
+            Document parent = root;
+            for (int i = 0; i < path.length - 1; i++) {
+                Object child = parent.get(path[i]);
+                if (!(child instanceof Document)) {
+                    child = new Document();
+                    parent.put(path[i], child);
+                }
+                parent = (Document) child;
+            }
+            parent.put(path[path.length - 1], field.getValue());
+        }
+        root.remove("lock_version");
+        return root;
+    }
+
+    private static void flatten(
+            String prefix, Map<String, Object> object, int depth, Map<String, Object> flat) {
+        for (Map.Entry<String, Object> field : object.entrySet()) {
+            String path = prefix + field.getKey();
+            if (field.getValue() instanceof Map<?, ?> child
+                    && depth < MongoHistoryRepositoryImpl.MAX_UNROLL_DEPTH) {
+                flatten(path + ".", (Map<String, Object>) child, depth + 1, flat);
+            } else {
+                flat.put(path, field.getValue());
+            }
+        }
+    }
+
+    private static Object mergeArray(Object merged, List<?> newArray) {
+        if (merged != null && !(merged instanceof List)) {
+            return newArray;
+        }
+        List<?> mergedArray = merged == null ? List.of() : (List<?>) merged;
+        int size = Math.max(mergedArray.size(), newArray.size());
+        List<Object> result = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            Object newElement = i < newArray.size() ? newArray.get(i) : null;
+            if (newElement instanceof MinKey) {
+                result.add(i < mergedArray.size() ? mergedArray.get(i) : null);
+            } else {
+                result.add(newElement);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,72 @@
+package com.johnlpage.memex.generics.repository;
+
+import com.mongodb.bulk.BulkWriteInsert;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.bulk.BulkWriteUpsert;
+import org.bson.Document;
+
+import java.util.List;
+
+/**
+ * The result of an UPDATEWITHHISTORY batch written with HistoryCapture.RETURNED. As well as the
+ * counts it has the previous values of every document the batch changed, as each write returned
+ * them, so the HistoryTriggerService doesn't need to read them back.
+ */
+public class CapturedHistoryResult extends BulkWriteResult {
+
+    private final BulkWriteResult written;
+    private final List<Document> changed;
+
+    /**
+     * @param changed a Document per changed document with its _id and __previousValues, the same
+     *                as a find for them with only __previousValues projected would return
+     */
+    public CapturedHistoryResult(BulkWriteResult written, List<Document> changed) {
+        this.written = written;
+        this.changed = List.copyOf(changed);
+    }
+
+    public List<Document> getChanged() {
+        return changed;
+    }
+
+    @Override
+    public boolean wasAcknowledged() {
+        return written.wasAcknowledged();
+    }
+
+    @Override
+    public int getInsertedCount() {
+        return written.getInsertedCount();
+    }
+
+    @Override
+    public int getMatchedCount() {
+        return written.getMatchedCount();
+    }
+
+    @Override
+    public int getDeletedCount() {
+        return written.getDeletedCount();
+    }
+
+    @Override
+    public int getModifiedCount() {
+        return written.getModifiedCount();
+    }
+
+    @Override
+    public List<BulkWriteInsert> getInserts() {
+        return written.getInserts();
+    }
+
+    @Override
+    public List<BulkWriteUpsert> getUpserts() {
+        return written.getUpserts();
+    }
+
+    @Override
+    public String toString() {
+        return "CapturedHistoryResult{written=" + written + ", changed=" + changed.size() + '}';
+    }
+}
@@ -3,6 +3,7 @@ package com.johnlpage.memex.generics.repository;
 import java.time.Instant;
 import java.util.stream.Stream;
 
+import org.bson.Document;
 import org.springframework.data.mongodb.core.query.Criteria;
 
 public interface MongoHistoryRepository<T, I> {
@@ -10,4 +11,10 @@ public interface MongoHistoryRepository<T, I> {
     Stream<T> GetRecordByIdAsOfDate(I recordId, Instant asOf, Class<T> clazz);
 
     Stream<T> GetRecordsAsOfDate(Criteria criteria, Instant asOf, Class<T> clazz);
+
+    Stream<T> GetRecordByIdAsOfDate(I recordId, Instant asOf, Class<T> clazz, AsOfMode mode);
+
+    Stream<T> GetRecordsAsOfDate(Criteria criteria, Instant asOf, Class<T> clazz, AsOfMode mode);
+
+    Stream<T> ExportRecordsAsOfDate(Document filter, Instant asOf, Class<T> clazz);
 }
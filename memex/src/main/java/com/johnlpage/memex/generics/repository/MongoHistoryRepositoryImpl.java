@@ -1,5 +1,6 @@
 package com.johnlpage.memex.generics.repository;
 
+import com.johnlpage.memex.generics.service.HistorySnapshots;
 import com.johnlpage.memex.generics.service.HistoryTriggerService;
 import com.johnlpage.memex.util.AnnotationExtractor;
 import com.johnlpage.memex.util.CustomAggregationOperation;
@@ -11,17 +12,25 @@ import org.slf4j.LoggerFactory;
 import org.springframework.data.domain.Sort;
 import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.data.mongodb.core.aggregation.*;
+import org.springframework.data.mongodb.core.convert.MongoConverter;
+import org.springframework.data.mongodb.core.convert.QueryMapper;
+import org.springframework.data.mongodb.core.query.BasicQuery;
 import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
 
 import java.time.Instant;
 import java.util.*;
 import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
+import static com.johnlpage.memex.util.AnnotationExtractor.renameKeysRecursively;
 import static org.springframework.data.mongodb.core.aggregation.LookupOperation.newLookup;
 
 public class MongoHistoryRepositoryImpl<T, I> implements MongoHistoryRepository<T, I> {
     private static final Logger LOG = LoggerFactory.getLogger(MongoHistoryRepositoryImpl.class);
-    private static final int MAX_UNROLL_DEPTH = 10;
+    static final int MAX_UNROLL_DEPTH = 10;
+    // Stands in for the changes of an insert after the as-of time
+    private static final String INSERTED = "__inserted";
     private final MongoTemplate mongoTemplate;
     private final MongoVersionBean mongoVersion;
 
@@ -31,11 +40,142 @@ public class MongoHistoryRepositoryImpl<T, I> implements MongoHistoryRepository<
     }
 
     public Stream<T> GetRecordByIdAsOfDate(I recordId, Instant asOf, Class<T> clazz) {
-        Criteria criteria = Criteria.where("_id").is(recordId);
-        return GetRecordsAsOfDate(criteria, asOf, clazz);
+        return GetRecordByIdAsOfDate(recordId, asOf, clazz, AsOfMode.SERVER);
     }
 
     public Stream<T> GetRecordsAsOfDate(Criteria criteria, Instant asOf, Class<T> clazz) {
+        return GetRecordsAsOfDate(criteria, asOf, clazz, AsOfMode.SERVER);
+    }
+
+    public Stream<T> GetRecordByIdAsOfDate(I recordId, Instant asOf, Class<T> clazz, AsOfMode mode) {
+        Criteria criteria = Criteria.where("_id").is(recordId);
+        return GetRecordsAsOfDate(criteria, asOf, clazz, mode);
+    }
+
+    public Stream<T> GetRecordsAsOfDate(
+            Criteria criteria, Instant asOf, Class<T> clazz, AsOfMode mode) {
+        return mode == AsOfMode.CLIENT
+                ? clientAsOfDate(criteria, asOf, clazz)
+                : serverAsOfDate(criteria, asOf, clazz);
+    }
+
+    /**
+     * Every record matching the filter as of a time, in _id order, for reports over many records.
+     * The filter uses the JSON field names, as mongoDbNativeQuery does. Rather than reading each
+     * record's history separately this scans the records and the history after asOf side by side,
+     * see AsOfMergeJoin. The history is scanned for every record, so for a handful of records
+     * GetRecordsAsOfDate is quicker.
+     */
+    public Stream<T> ExportRecordsAsOfDate(Document filter, Instant asOf, Class<T> clazz) {
+        String collectionName = AnnotationExtractor.getCollectionName(clazz);
+        String historyCollectionName = collectionName + HistoryTriggerService.HISTORY_POSTFIX;
+        MongoConverter converter = mongoTemplate.getConverter();
+
+        Query current =
+                new BasicQuery(new Document(renameKeysRecursively(clazz, filter)))
+                        .with(Sort.by(Sort.Direction.ASC, "_id"));
+        current.fields().exclude(OptimizedMongoLoadRepositoryImpl.PREVIOUS_VALS);
+        // The same order as the (recordId, timestamp) index so it isn't sorted in memory
+        Query changes =
+                new Query(Criteria.where("timestamp").gt(asOf))
+                        .with(Sort.by(Sort.Direction.ASC, "recordId", "timestamp"));
+
+        Stream<Document> records = mongoTemplate.stream(current, Document.class, collectionName);
+        Stream<Document> history;
+        try {
+            history = mongoTemplate.stream(changes, Document.class, historyCollectionName);
+        } catch (RuntimeException e) {
+            records.close();
+            throw e;
+        }
+        AsOfMergeJoin join = new AsOfMergeJoin(records.iterator(), history.iterator());
+        return StreamSupport.stream(
+                        Spliterators.spliteratorUnknownSize(join, Spliterator.ORDERED | Spliterator.NONNULL),
+                        false)
+                .onClose(
+                        () -> {
+                            records.close();
+                            history.close();
+                        })
+                .map(document -> converter.read(clazz, document));
+    }
+
+    /*
+     * Reads each record's history in timestamp order from the (recordId, timestamp) index and merges
+     * it as it arrives, so the database only does index reads. Records are rebuilt one at a time as
+     * the stream is consumed.
+     */
+    private Stream<T> clientAsOfDate(Criteria criteria, Instant asOf, Class<T> clazz) {
+        String collectionName = AnnotationExtractor.getCollectionName(clazz);
+        String historyCollectionName = collectionName + HistoryTriggerService.HISTORY_POSTFIX;
+        MongoConverter converter = mongoTemplate.getConverter();
+        Document filter =
+                new QueryMapper(converter)
+                        .getMappedObject(
+                                criteria.getCriteriaObject(),
+                                converter.getMappingContext().getPersistentEntity(clazz));
+        Query current = new BasicQuery(filter);
+        current.fields().exclude(OptimizedMongoLoadRepositoryImpl.PREVIOUS_VALS);
+        try {
+            return mongoTemplate.stream(current, Document.class, collectionName)
+                    .map(document -> reconstruct(document, asOf, historyCollectionName))
+                    .filter(Objects::nonNull)
+                    .map(document -> converter.read(clazz, document));
+        } catch (Exception e) {
+            LOG.error(e.getMessage());
+            return Stream.empty();
+        }
+    }
+
+    /**
+     * The record as it was at asOf, or null if it didn't exist yet
+     */
+    private Document reconstruct(Document current, Instant asOf, String historyCollectionName) {
+        Object recordId = current.get("_id");
+        Query nearestSnapshot =
+                new Query(
+                        Criteria.where("recordId")
+                                .is(recordId)
+                                .and("timestamp")
+                                .gt(asOf)
+                                .and("type")
+                                .is(HistorySnapshots.SNAPSHOT))
+                        .with(Sort.by(Sort.Direction.ASC, "timestamp"))
+                        .limit(1);
+        Document snapshot = mongoTemplate.findOne(nearestSnapshot, Document.class, historyCollectionName);
+
+        // Only the changes between asOf and the snapshot, all of them if there isn't one
+        Criteria range =
+                Criteria.where("recordId")
+                        .is(recordId)
+                        .and("type")
+                        .ne(HistorySnapshots.SNAPSHOT)
+                        .and("timestamp")
+                        .gt(asOf);
+        if (snapshot != null) {
+            range = range.lte(snapshot.get("timestamp"));
+        }
+        Query changes = new Query(range).with(Sort.by(Sort.Direction.DESC, "timestamp"));
+        changes.fields().include("type").include("changes");
+
+        AsOfReconstruction reconstruction = new AsOfReconstruction();
+        reconstruction.merge(snapshot == null ? current : snapshot.get("changes", Document.class));
+        try (Stream<Document> history =
+                     mongoTemplate.stream(changes, Document.class, historyCollectionName)) {
+            for (Document change : (Iterable<Document>) history::iterator) {
+                if ("insert".equals(change.getString("type"))) {
+                    return null;
+                }
+                Document previous = change.get("changes", Document.class);
+                if (previous != null) {
+                    reconstruction.merge(previous);
+                }
+            }
+        }
+        return reconstruction.result();
+    }
+
+    private Stream<T> serverAsOfDate(Criteria criteria, Instant asOf, Class<T> clazz) {
 
         List<AggregationOperation> stages = new ArrayList<>();
         String collectionName = AnnotationExtractor.getCollectionName(clazz);
@@ -53,11 +193,68 @@ public class MongoHistoryRepositoryImpl<T, I> implements MongoHistoryRepository<
         AggregationOperation shiftRootDown = Aggregation.project().and("$$ROOT").as("__root");
         stages.add(shiftRootDown);
 
+        // The first snapshot after asOf is the nearest whole version to replay back from
+        AggregationPipeline lookupSnapshotPipeline =
+                Aggregation.newAggregation(
+                                Aggregation.match(
+                                        Criteria.where("timestamp").gt(asOf).and("type").is(HistorySnapshots.SNAPSHOT)),
+                                Aggregation.sort(Sort.Direction.ASC, "timestamp"),
+                                Aggregation.limit(1))
+                        .getPipeline();
+
+        LookupOperation fetchNearestSnapshot =
+                newLookup()
+                        .from(historyCollectionName)
+                        .localField("__root._id")
+                        .foreignField("recordId")
+                        .pipeline(lookupSnapshotPipeline)
+                        .as("__snapshot");
+
+        stages.add(fetchNearestSnapshot);
+
+        // Start from it rather than the current version if there is one, __until is when it was taken
+        AggregationOperation startFromSnapshot =
+                new CustomAggregationOperation(
+                        new Document(
+                                "$set",
+                                new Document(
+                                        "__root",
+                                        new Document(
+                                                "$ifNull",
+                                                List.of(
+                                                        new Document("$arrayElemAt", List.of("$__snapshot.changes", 0)),
+                                                        "$__root")))
+                                        .append(
+                                                "__until",
+                                                new Document("$arrayElemAt", List.of("$__snapshot.timestamp", 0)))));
+
+        stages.add(startFromSnapshot);
+
+        // Only the changes between asOf and the snapshot, all of them if there isn't one
         AggregationPipeline lookupHistoryPipeline =
                 Aggregation.newAggregation(
-                                Aggregation.match(Criteria.where("timestamp").gt(asOf)),
+                                Aggregation.match(
+                                        Criteria.where("timestamp").gt(asOf).and("type").ne(HistorySnapshots.SNAPSHOT)),
+                                Aggregation.match(
+                                        context ->
+                                                new Document(
+                                                        "$lte",
+                                                        List.of(
+                                                                "$timestamp",
+                                                                new Document("$ifNull", List.of("$$until", "$timestamp"))))),
                                 Aggregation.sort(Sort.Direction.DESC, "timestamp"),
-                                Aggregation.replaceRoot("changes"))
+                                // An insert has no changes, it means the record didn't exist yet
+                                context ->
+                                        new Document(
+                                                "$replaceRoot",
+                                                new Document(
+                                                        "newRoot",
+                                                        new Document(
+                                                                "$cond",
+                                                                List.of(
+                                                                        new Document("$eq", List.of("$type", "insert")),
+                                                                        new Document(INSERTED, true),
+                                                                        "$changes")))))
                         .getPipeline();
 
         // Fetch and Reshape relevant history entries
@@ -66,11 +263,16 @@ public class MongoHistoryRepositoryImpl<T, I> implements MongoHistoryRepository<
                         .from(historyCollectionName)
                         .localField("__root._id")
                         .foreignField("recordId")
+                        .let(VariableOperators.Let.just(
+                                VariableOperators.Let.ExpressionVariable.newVariable("until").forField("__until")))
                         .pipeline(lookupHistoryPipeline)
                         .as("__versions");
 
         stages.add(fetchRelevantHistoryEntries);
 
+        // Leave out records inserted since, as the client side reconstruct does
+        stages.add(Aggregation.match(Criteria.where("__versions." + INSERTED).ne(true)));
+
         // Move what was the root document into the top of the array.
         AggregationOperation addCurrentVersionToHistory =
                 Aggregation.project()
@@ -44,17 +44,24 @@ public class OptimizedMongoDownstreamRepositoryImpl<T>
         this.mongoOperations = mongoOperations;
         this.mongoClient = mongoClient;
 
-        this.jsonWriterSettings =
-                JsonWriterSettings.builder()
-                        .outputMode(JsonMode.RELAXED)
-                        .objectIdConverter((value, writer) -> writer.writeString(value.toHexString()))
-                        .decimal128Converter((value, writer) -> writer.writeNumber(value.toString()))
-                        .dateTimeConverter(
-                                (value, writer) -> {
-                                    ZonedDateTime zonedDateTime = Instant.ofEpochMilli(value).atZone(ZoneOffset.UTC);
-                                    writer.writeString(DateTimeFormatter.ISO_DATE_TIME.format(zonedDateTime));
-                                })
-                        .build();
+        this.jsonWriterSettings = extractJsonWriterSettings();
+    }
+
+    /**
+     * How documents are written as JSON when extracted, ObjectIds as plain strings and dates as ISO
+     * strings. Public for the benchmarks.
+     */
+    public static JsonWriterSettings extractJsonWriterSettings() {
+        return JsonWriterSettings.builder()
+                .outputMode(JsonMode.RELAXED)
+                .objectIdConverter((value, writer) -> writer.writeString(value.toHexString()))
+                .decimal128Converter((value, writer) -> writer.writeNumber(value.toString()))
+                .dateTimeConverter(
+                        (value, writer) -> {
+                            ZonedDateTime zonedDateTime = Instant.ofEpochMilli(value).atZone(ZoneOffset.UTC);
+                            writer.writeString(DateTimeFormatter.ISO_DATE_TIME.format(zonedDateTime));
+                        })
+                .build();
     }
 
     private static <T> Stream<T> stream(MongoCursor<T> cursor) {
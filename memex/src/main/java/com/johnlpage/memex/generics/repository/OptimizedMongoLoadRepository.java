@@ -1,6 +1,7 @@
 package com.johnlpage.memex.generics.repository;
 
 import com.johnlpage.memex.util.UpdateStrategy;
+import com.johnlpage.memex.generics.service.BatchTracer;
 import com.johnlpage.memex.generics.service.InvalidDataHandlerService;
 import com.johnlpage.memex.generics.service.PostWriteTriggerService;
 import com.mongodb.bulk.BulkWriteResult;
@@ -24,4 +25,18 @@ public interface OptimizedMongoLoadRepository<T> {
             InvalidDataHandlerService<T> invalidDataHandlerService,
             UpdateStrategy updateStrategy,
             PostWriteTriggerService<T> postTrigger);
+
+    /**
+     * Writes a batch the caller has already started tracing, the JSON loader adds the time it spent
+     * parsing the batch before handing it over
+     */
+    default CompletableFuture<BulkWriteResult> asyncWriteMany(
+            List<T> items,
+            Class<T> clazz,
+            InvalidDataHandlerService<T> invalidDataHandlerService,
+            UpdateStrategy updateStrategy,
+            PostWriteTriggerService<T> postTrigger,
+            BatchTracer.Trace trace) {
+        return asyncWriteMany(items, clazz, invalidDataHandlerService, updateStrategy, postTrigger);
+    }
 }
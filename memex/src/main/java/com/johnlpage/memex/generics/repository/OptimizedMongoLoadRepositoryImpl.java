@@ -1,27 +1,43 @@
 package com.johnlpage.memex.generics.repository;
 
-import static com.johnlpage.memex.util.AnnotationExtractor.*;
 import static org.springframework.data.mongodb.core.query.Criteria.where;
 
+import com.johnlpage.memex.generics.service.AdaptiveBatchSizer;
+import com.johnlpage.memex.generics.service.BatchTracer;
+import com.johnlpage.memex.generics.service.BatchValidator;
+import com.johnlpage.memex.generics.service.DeadLetter;
+import com.johnlpage.memex.generics.service.DeadLetterService;
+import com.johnlpage.memex.generics.service.DeadLetteredException;
+import com.johnlpage.memex.generics.service.HistoryCapture;
+import com.johnlpage.memex.generics.service.HistoryCapturePolicy;
+import com.johnlpage.memex.generics.service.HistoryTriggerService;
 import com.johnlpage.memex.generics.service.InvalidDataHandlerService;
+import com.johnlpage.memex.generics.service.LoadMetrics;
 import com.johnlpage.memex.generics.service.PostWriteTriggerService;
+import com.johnlpage.memex.generics.service.WriteRetryPolicy;
+import com.johnlpage.memex.util.AnnotationExtractor;
+import com.johnlpage.memex.util.ModelMetadata;
 import com.johnlpage.memex.util.UpdateStrategy;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoCommandException;
+import com.mongodb.ServerAddress;
+import com.mongodb.bulk.BulkWriteError;
 import com.mongodb.bulk.BulkWriteInsert;
 import com.mongodb.bulk.BulkWriteResult;
 import com.mongodb.bulk.BulkWriteUpsert;
 import com.mongodb.client.ClientSession;
 import com.mongodb.client.MongoClient;
-import jakarta.validation.ConstraintViolation;
-import jakarta.validation.Validation;
-import jakarta.validation.Validator;
-import jakarta.validation.ValidatorFactory;
+import com.mongodb.client.MongoDatabase;
 
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
+import java.util.function.IntUnaryOperator;
 import java.util.stream.Collectors;
 
 import lombok.RequiredArgsConstructor;
-import lombok.SneakyThrows;
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentWrapper;
+import org.bson.BsonValue;
 import org.bson.Document;
 import org.bson.types.ObjectId;
 import org.slf4j.Logger;
@@ -31,7 +47,7 @@ import org.springframework.data.mongodb.core.FindAndReplaceOptions;
 import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.data.mongodb.core.aggregation.*;
 import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
-import org.springframework.data.mongodb.core.mapping.Field;
+import org.springframework.data.mongodb.core.convert.QueryMapper;
 import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.scheduling.annotation.Async;
@@ -45,65 +61,224 @@ public class OptimizedMongoLoadRepositoryImpl<T> implements OptimizedMongoLoadRe
     public static final String UPDATE_ID = "__updateId";
     public static final String LAST_UPDATE_DATE = "__lastUpdateDate";
     private static final Logger LOG = LoggerFactory.getLogger(OptimizedMongoLoadRepositoryImpl.class);
-    // Internal only
-    private static final String BACKUP_VALS = "__backupValues";
-    private static final String CHANGED = "__changed";
-    private static final String IS_INSERT = "__isInsert";
-    private static final Document flagInsert;
-    private static final Document backupDelta;
-    private static final Document cleanUp;
-
-    static {
-        Document previousSize = new Document("$size", new Document("$objectToArray", "$$ROOT"));
-        Document isInsert = new Document("$eq", Arrays.asList(previousSize, 1));
-        flagInsert = new Document("$set", new Document(IS_INSERT, isInsert));
-
-        backupDelta =
-                new Document(
-                        "$set",
-                        new Document(PREVIOUS_VALS, new Document()).append(BACKUP_VALS, "$" + PREVIOUS_VALS));
-
-        // If there was no change then revert to BACKUP_VALS
-        Document finalUpdate =
-                new Document("$cond", Arrays.asList("$" + CHANGED, "$" + PREVIOUS_VALS, "$" + BACKUP_VALS));
-
-        // For an insert all we want it the timestamp
-        Document condFinal =
-                new Document(
-                        "$cond",
-                        Arrays.asList("$" + IS_INSERT, new Document(LAST_UPDATE_DATE, "$$NOW"), finalUpdate));
-
-        cleanUp =
-                new Document(
-                        "$set",
-                        new Document(BACKUP_VALS, "$$REMOVE")
-                                .append(CHANGED, "$$REMOVE")
-                                .append(IS_INSERT, "$$REMOVE")
-                                .append(PREVIOUS_VALS, condFinal));
-    }
 
     private final MongoTemplate mongoTemplate;
     private final MappingMongoConverter mappingMongoConverter;
     private final MongoClient mongoClient;
-    ValidatorFactory factory = Validation.buildDefaultValidatorFactory();
-    Validator validator = factory.getValidator();
+    private final AdaptiveBatchSizer batchSizer;
+    private final WriteRetryPolicy retryPolicy;
+    private final BatchValidator batchValidator;
+    private final DeadLetterService deadLetters;
+    private final LoadMetrics metrics;
+    private final BatchTracer tracer;
+    private final HistoryCapturePolicy historyCapture;
+
+    public BulkWriteResult writeMany(
+            List<T> items,
+            Class<T> clazz,
+            InvalidDataHandlerService<T> invalidDataHandlerService,
+            UpdateStrategy updateStrategy,
+            PostWriteTriggerService<T> postWrite)
+            throws IllegalAccessException {
+        return writeMany(
+                items,
+                clazz,
+                invalidDataHandlerService,
+                updateStrategy,
+                postWrite,
+                tracer.trace(AnnotationExtractor.getCollectionName(clazz), updateStrategy, items.size()));
+    }
+
+    private BulkWriteResult writeMany(
+            List<T> items,
+            Class<T> clazz,
+            InvalidDataHandlerService<T> invalidDataHandlerService,
+            UpdateStrategy updateStrategy,
+            PostWriteTriggerService<T> postWrite,
+            BatchTracer.Trace trace)
+            throws IllegalAccessException {
+
+        // Validate after the trigger before write, unacceptable data goes to the bad data handler
+        // class if defined. The JSON loader has already done this in its own stage and passes null.
+        List<T> toWrite = batchValidator.validate(items, clazz, invalidDataHandlerService);
+        int invalid = items.size() - toWrite.size();
+
+        // The ChangeStreamHistoryWriter writes the history instead, so no trigger or transaction
+        PostWriteTriggerService<T> trigger =
+                postWrite instanceof HistoryTriggerService<?> && historyCapture.isChangeStream()
+                        ? null
+                        : postWrite;
+
+        // Retries and split halves all add to the same trace, which writeOnce finds on this thread
+        BulkWriteResult result;
+        trace.start();
+        Exception error = null;
+        try {
+            result =
+                    toWrite.isEmpty()
+                            ? getEmptyBWResult()
+                            : writeWithRetries(toWrite, clazz, updateStrategy, trigger);
+        } catch (IllegalAccessException | RuntimeException e) {
+            error = e;
+            throw e;
+        } finally {
+            trace.finish(error);
+        }
+        if (invalid == 0) {
+            return result;
+        }
+        Map<String, Long> errors = new TreeMap<>(Map.of(PartialBulkWriteResult.INVALID, (long) invalid));
+        addErrors(errors, result);
+        return new PartialBulkWriteResult(result, errors);
+    }
 
-    private static <T> void addVersionField(T item) throws IllegalAccessException {
-        java.lang.reflect.Field versionField = getVersionField(item);
-        if (versionField != null) {
+    /**
+     * Runs the write again if it fails with a transient transaction error, which is what two
+     * batches updating the same _id in transactions at the same time get. After repeated conflicts
+     * the batch is split in half and each half written (and retried) on its own so the documents
+     * causing the conflicts end up in small batches.
+     *
+     * <p>If instead the server reports errors for individual documents those are matched back to
+     * the documents by index. Ones that may work next time are retried on their own, the others are
+     * rejected - counted by reason in the result and sent to the dead letter sink if there is one -
+     * and everything else in the batch is kept. Outside a transaction the unordered bulk write has
+     * already written everything else, inside one it was rolled back and is written again without
+     * the rejects.
+     */
+    private BulkWriteResult writeWithRetries(
+            List<T> batch,
+            Class<T> clazz,
+            UpdateStrategy updateStrategy,
+            PostWriteTriggerService<T> postWrite)
+            throws IllegalAccessException {
+        List<T> items = batch;
+        // Where each of items is in batch, null while items is the whole batch
+        int[] positions = null;
+        // Anything already written when only some of the batch is being written again
+        BulkWriteResult written = null;
+        Map<String, Long> errors = new TreeMap<>();
+        int conflicts = 0;
+        for (int attempt = 1; ; attempt++) {
+            try {
+                BulkWriteResult result = writeOnce(items, clazz, updateStrategy, postWrite);
+                return withErrors(addResults(written, remap(result, positions)), errors);
+            } catch (RuntimeException e) {
+                if (!retryPolicy.isTransient(e)) {
+                    MongoBulkWriteException bulkError = bulkWriteException(e);
+                    if (bulkError == null
+                            || bulkError.getWriteConcernError() != null
+                            || bulkError.getWriteErrors().isEmpty()) {
+                        throw e;
+                    }
+                    Set<Integer> failed = new HashSet<>();
+                    Set<Integer> retry = new HashSet<>();
+                    List<DeadLetter> letters = new ArrayList<>();
+                    for (BulkWriteError error : bulkError.getWriteErrors()) {
+                        int index = error.getIndex();
+                        if (index < 0 || index >= items.size()) {
+                            throw e;
+                        }
+                        if (!failed.add(index)) {
+                            continue;
+                        }
+                        if (retryPolicy.isRetryable(error) && attempt < retryPolicy.getMaxAttempts()) {
+                            retry.add(index);
+                        } else {
+                            errors.merge(WriteRetryPolicy.reason(error.getCode()), 1L, Long::sum);
+                            if (deadLetters.isEnabled()) {
+                                letters.add(
+                                        deadLetters.letter(
+                                                clazz,
+                                                DeadLetter.Reason.WRITE_ERROR,
+                                                items.get(index),
+                                                error.getCode() + ": " + error.getMessage()));
+                            }
+                        }
+                    }
+                    if (!letters.isEmpty() && !deadLetters.send(letters)) {
+                        // Nowhere to keep the rejects, so fail as a whole rather than lose them
+                        throw e;
+                    }
+                    LOG.warn(
+                            "{} of a batch of {} not written, retrying {}",
+                            failed.size(),
+                            items.size(),
+                            retry.size());
+
+                    List<Integer> next = new ArrayList<>();
+                    if (postWrite == null) {
+                        written = addResults(written, remap(bulkError.getWriteResult(), positions));
+                        next.addAll(new TreeSet<>(retry));
+                    } else {
+                        for (int i = 0; i < items.size(); i++) {
+                            if (!failed.contains(i) || retry.contains(i)) {
+                                next.add(i);
+                            }
+                        }
+                    }
+                    if (next.isEmpty()) {
+                        return withErrors(written == null ? getEmptyBWResult() : written, errors);
+                    }
+                    List<T> nextItems = new ArrayList<>(next.size());
+                    int[] nextPositions = new int[next.size()];
+                    for (int i = 0; i < next.size(); i++) {
+                        int index = next.get(i);
+                        nextItems.add(items.get(index));
+                        nextPositions[i] = positions == null ? index : positions[index];
+                    }
+                    items = nextItems;
+                    positions = nextPositions;
+                    conflicts = 0;
+                    if (retry.isEmpty()) {
+                        // Only rejects were taken out, what's left hasn't failed yet
+                        attempt = 0;
+                    } else {
+                        retryPolicy.recordDocumentRetries(updateStrategy, retry.size());
+                        if (!retryPolicy.backoff(attempt)) {
+                            throw e;
+                        }
+                    }
+                    continue;
+                }
+                conflicts++;
+                if (items.size() > 1 && conflicts >= retryPolicy.getSplitAfter()) {
+                    retryPolicy.recordSplit(updateStrategy);
+                    int half = items.size() / 2;
+                    LOG.info(
+                            "Splitting a batch of {} after {} transient errors", items.size(), conflicts);
+                    BulkWriteResult first =
+                            writeWithRetries(items.subList(0, half), clazz, updateStrategy, postWrite);
+                    BulkWriteResult second =
+                            writeWithRetries(
+                                    items.subList(half, items.size()), clazz, updateStrategy, postWrite);
+                    addErrors(errors, first);
+                    addErrors(errors, second);
+                    BulkWriteResult both = combineResults(first, second, half);
+                    return withErrors(addResults(written, remap(both, positions)), errors);
+                }
+                if (attempt >= retryPolicy.getMaxAttempts() || !retryPolicy.backoff(attempt)) {
+                    LOG.error("Giving up on a batch after {} attempts: {}", attempt, e.getMessage());
+                    retryPolicy.recordExhausted(updateStrategy);
+                    throw e;
+                }
+                retryPolicy.recordRetry(updateStrategy);
+            }
+        }
+    }
 
-            if (versionField.getType() == Long.class) {
-                versionField.set(item, 1L);
-            } else if (versionField.getType() == Integer.class) {
-                versionField.set(item, 1);
+    // Spring translates the driver's exception but keeps it as the cause
+    private static MongoBulkWriteException bulkWriteException(Throwable error) {
+        for (Throwable e = error; e != null; e = e.getCause() == e ? null : e.getCause()) {
+            if (e instanceof MongoBulkWriteException bulkError) {
+                return bulkError;
             }
         }
+        return null;
     }
 
-    public BulkWriteResult writeMany(
+    private BulkWriteResult writeOnce(
             List<T> items,
             Class<T> clazz,
-            InvalidDataHandlerService<T> invalidDataHandlerService,
             UpdateStrategy updateStrategy,
             PostWriteTriggerService<T> postWrite)
             throws IllegalAccessException {
@@ -111,8 +286,16 @@ public class OptimizedMongoLoadRepositoryImpl<T> implements OptimizedMongoLoadRe
         ClientSession session = null;
         ObjectId updateBatchId = new ObjectId();
         boolean usingTransactions = postWrite != null;
-        int nOps = 0;
-
+        // Reflection on the model class is done once per class and cached
+        ModelMetadata metadata = ModelMetadata.of(clazz);
+        BatchTracer.Trace trace = BatchTracer.current();
+        String collection = AnnotationExtractor.getCollectionName(clazz);
+        HistoryCapture capture = historyCaptureFor(collection, items.size(), updateStrategy, postWrite);
+        // With RETURNED each document is its own command rather than part of a bulk write
+        List<Document> commands = capture == HistoryCapture.RETURNED ? new ArrayList<>(items.size()) : null;
+        QueryMapper queryMapper = commands == null ? null : new QueryMapper(mappingMongoConverter);
+
+        long buildStart = System.nanoTime();
         BulkOperations ops;
         if (usingTransactions) {
             session = mongoClient.startSession();
@@ -122,54 +305,59 @@ public class OptimizedMongoLoadRepositoryImpl<T> implements OptimizedMongoLoadRe
             ops = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, clazz);
         }
 
-        for (T item : items) {
-
-            // Validate after the trigger before write.
-            Set<ConstraintViolation<T>> violations = validator.validate(item);
-            if (!violations.isEmpty()) {
-                // We have unacceptable data - send it to the bad data handler class if defined
-                if (invalidDataHandlerService != null
-                        && !invalidDataHandlerService.handleInvalidData(item, violations, clazz)) {
-                    continue; // Default always rejects
+        try (BatchTracer.Span build = trace.span(BatchTracer.Phase.BUILD)) {
+            for (T item : items) {
+                Object idValue = metadata.getId(item);
+                Query query = new Query(where("_id").is(idValue));
+                if (commands != null) {
+                    // The same _id the bulk write would have used, e.g. a hex String as an ObjectId
+                    Document filter =
+                            queryMapper.getMappedObject(
+                                    query.getQueryObject(),
+                                    mappingMongoConverter.getMappingContext().getPersistentEntity(clazz));
+                    commands.add(
+                            historyCommand(item, collection, filter, updateBatchId, metadata, trace));
+                    continue;
                 }
-            }
-            nOps++;
-            Object idValue = getIdFromModel(item);
-            Query query = new Query(where("_id").is(idValue));
-            if (hasDeleteFlag(item)) {
+                if (metadata.isDeleted(item)) {
 
-        /* TODO - Figure out history on this, when we delete one we need to keep it in history
-        For now we are auditing a delete op and removing the top level document but keeping the last
-        version in history. We could alternatively purge all from history too */
+            /* TODO - Figure out history on this, when we delete one we need to keep it in history
+            For now we are auditing a delete op and removing the top level document but keeping the last
+            version in history. We could alternatively purge all from history too */
 
-                ops.remove(query);
+                    ops.remove(query);
 
-            } else {
-                if (updateStrategy == UpdateStrategy.INSERT) {
-                    // If a @Version annotation is in the model, then make sure we set it to 1
-                    // This means that save() will work with it properly
-                    addVersionField(item);
-                    ops.insert(item); // This will throw exceptions on duplicates
-                } else if (updateStrategy == UpdateStrategy.UPDATE) {
-                    // useSimpleUpdate(item, ops, query);
-                    // Unwinds and uses $set - smaller oplog, less network
-                    // Left in for comparison after we moved to always smart updates
-                    useSmartUpdate(item, ops, query, updateBatchId, false);
-                } else if (updateStrategy == UpdateStrategy.UPDATEWITHHISTORY) {
-                    useSmartUpdate(item, ops, query, updateBatchId, true);
                 } else {
-                    // Basic full overwrite can be a little less CPU, but more network/disk
-                    // Still better than Spring's default
-
-                    // If a @Version annotation is in the model, then make sure we set it to 1
-                    // This means that save() will work with it properly
-                    // When we replace we always set version back to 1, this means that a replace
-                    // with the same upstream is a no-op.
-                    // If someone uses save() to modify then tries to overwrite from
-                    // upstream with Replace that should fail as would cause data loss.
-
-                    addVersionField(item);
-                    ops.replaceOne(query, item, FindAndReplaceOptions.options().upsert());
+                    if (updateStrategy == UpdateStrategy.INSERT) {
+                        // If a @Version annotation is in the model, then make sure we set it to 1
+                        // This means that save() will work with it properly
+                        metadata.setInitialVersion(item);
+                        long mapStart = System.nanoTime();
+                        ops.insert(item); // This will throw exceptions on duplicates
+                        trace.add(BatchTracer.Phase.MAP, System.nanoTime() - mapStart);
+                    } else if (updateStrategy == UpdateStrategy.UPDATE) {
+                        // useSimpleUpdate(item, ops, query);
+                        // Unwinds and uses $set - smaller oplog, less network
+                        // Left in for comparison after we moved to always smart updates
+                        useSmartUpdate(item, ops, query, updateBatchId, false, metadata, trace);
+                    } else if (updateStrategy == UpdateStrategy.UPDATEWITHHISTORY) {
+                        useSmartUpdate(item, ops, query, updateBatchId, true, metadata, trace);
+                    } else {
+                        // Basic full overwrite can be a little less CPU, but more network/disk
+                        // Still better than Spring's default
+
+                        // If a @Version annotation is in the model, then make sure we set it to 1
+                        // This means that save() will work with it properly
+                        // When we replace we always set version back to 1, this means that a replace
+                        // with the same upstream is a no-op.
+                        // If someone uses save() to modify then tries to overwrite from
+                        // upstream with Replace that should fail as would cause data loss.
+
+                        metadata.setInitialVersion(item);
+                        long mapStart = System.nanoTime();
+                        ops.replaceOne(query, item, FindAndReplaceOptions.options().upsert());
+                        trace.add(BatchTracer.Phase.MAP, System.nanoTime() - mapStart);
+                    }
                 }
             }
         }
@@ -177,28 +365,275 @@ public class OptimizedMongoLoadRepositoryImpl<T> implements OptimizedMongoLoadRe
         // If we have a postWriteTrigger then we want this update to be
         // In a transaction if not we don't
         try {
-            if (nOps > 0) {
-                BulkWriteResult result = ops.execute();
-                if (usingTransactions) {
+            long executeStart = System.nanoTime();
+            BulkWriteResult result;
+            try (BatchTracer.Span execute = trace.span(BatchTracer.Phase.EXECUTE)) {
+                result =
+                        commands == null
+                                ? ops.execute()
+                                : executeHistoryCommands(session, commands, updateBatchId);
+            }
+            if (commands == null) {
+                // A round trip per document would teach the sizer the wrong cost per batch
+                batchSizer.recordExecute(updateStrategy, items.size(), System.nanoTime() - executeStart);
+            }
+            if (usingTransactions) {
+                try (BatchTracer.Span trigger = trace.span(BatchTracer.Phase.TRIGGER)) {
                     postWrite.postWriteTrigger(session, result, items, clazz, updateBatchId);
-                    session.commitTransaction();
                 }
-                return result;
-            } else {
-                return getEmptyBWResult();
+                try (BatchTracer.Span commit = trace.span(BatchTracer.Phase.COMMIT)) {
+                    commitWithRetries(session, updateStrategy);
+                }
+                long transactionNanos = System.nanoTime() - executeStart;
+                if (capture != null) {
+                    historyCapture.recordTransaction(collection, capture, items.size(), transactionNanos);
+                }
+                metrics.transactionCommitted(
+                        collection, capture == null ? "NONE" : capture.name(), transactionNanos);
             }
+            metrics.batchWritten(
+                    collection,
+                    updateStrategy,
+                    items.size(),
+                    executeStart - buildStart,
+                    System.nanoTime() - executeStart,
+                    result);
+            return result;
         } catch (Exception e) {
-            // TODO - Add code to retry if a transient transaction error, that would happen if
-            // two threads had updates to the same document and means retrying the whole set
-            // Only happens if playing a bunch of updates with multiple updates to same doc in different
-            // simultaneous batches Ties into dead letter queue etc.
-
-            LOG.error(e.getMessage());
+            // Transient errors are retried by writeWithRetries, anything else goes upstream
+            if (retryPolicy.isTransient(e)) {
+                LOG.debug("Transient error writing a batch of {}: {}", items.size(), e.getMessage());
+            } else {
+                LOG.error(e.getMessage());
+            }
+            batchSizer.recordFailure(updateStrategy);
+            metrics.batchFailed(collection, updateStrategy);
             if (usingTransactions && session.hasActiveTransaction()) {
-                session.abortTransaction();
+                try {
+                    session.abortTransaction();
+                } catch (RuntimeException abortError) {
+                    // Can't abort once a commit has been tried, the original error is what matters
+                    LOG.debug("Could not abort transaction: {}", abortError.getMessage());
+                }
             }
             throw e; // Rethrow to handle upstream
+        } finally {
+            if (session != null) {
+                session.close();
+            }
+        }
+    }
+
+    /**
+     * How an UPDATEWITHHISTORY batch with the history trigger gets its previous values, null for
+     * anything else
+     */
+    private HistoryCapture historyCaptureFor(
+            String collection,
+            int documents,
+            UpdateStrategy updateStrategy,
+            PostWriteTriggerService<T> postWrite) {
+        if (updateStrategy != UpdateStrategy.UPDATEWITHHISTORY
+                || !(postWrite instanceof HistoryTriggerService<?>)) {
+            return null;
+        }
+        return historyCapture.choose(collection, documents);
+    }
+
+    /**
+     * The command that writes one document of a HistoryCapture.RETURNED batch. An update is the same
+     * pipeline upsert as the bulk write but as a findAndModify, which returns __previousValues and
+     * whether it inserted, a delete is a delete command.
+     */
+    private Document historyCommand(
+            T item,
+            String collection,
+            Document filter,
+            ObjectId updateBatchId,
+            ModelMetadata metadata,
+            BatchTracer.Trace trace) {
+        if (metadata.isDeleted(item)) {
+            return new Document("delete", collection)
+                    .append("deletes", List.of(new Document("q", filter).append("limit", 1)));
+        }
+        long mapStart = System.nanoTime();
+        Document bsonDocument = new Document();
+        mappingMongoConverter.write(item, bsonDocument);
+        long pipelineStart = System.nanoTime();
+        trace.add(BatchTracer.Phase.MAP, pipelineStart - mapStart);
+        List<Document> updateSteps =
+                SmartUpdatePipeline.build(bsonDocument, updateBatchId, true, metadata);
+        trace.add(BatchTracer.Phase.PIPELINE, System.nanoTime() - pipelineStart);
+        return new Document("findAndModify", collection)
+                .append("query", filter)
+                .append("update", updateSteps)
+                .append("upsert", true)
+                .append("new", true)
+                .append("fields", new Document(PREVIOUS_VALS, 1));
+    }
+
+    /**
+     * Runs the commands of a HistoryCapture.RETURNED batch in its transaction. The counts are the
+     * same as the bulk write would have reported and every document the batch changed is kept with
+     * its previous values for the trigger. A document the server won't write fails the batch as a
+     * MongoBulkWriteException with that document's index, the same as a bulk write in a transaction,
+     * so it is retried or rejected in the same way.
+     */
+    private CapturedHistoryResult executeHistoryCommands(
+            ClientSession session, List<Document> commands, ObjectId updateBatchId) {
+        MongoDatabase db = mongoTemplate.getDb();
+        int matched = 0;
+        int modified = 0;
+        int deleted = 0;
+        List<BulkWriteUpsert> upserts = new ArrayList<>();
+        List<Document> changed = new ArrayList<>();
+        for (int i = 0; i < commands.size(); i++) {
+            Document response;
+            try {
+                response = db.runCommand(session, commands.get(i));
+            } catch (MongoCommandException e) {
+                if (retryPolicy.isTransient(e)) {
+                    throw e;
+                }
+                throw documentError(
+                        BulkWriteResult.acknowledged(0, matched, deleted, modified, upserts, List.of()),
+                        new BulkWriteError(e.getErrorCode(), e.getErrorMessage(), e.getResponse(), i),
+                        e.getServerAddress(),
+                        e.getErrorLabels());
+            }
+            if (commands.get(i).containsKey("delete")) {
+                // A write command reports a document it couldn't write rather than failing
+                List<Document> writeErrors = response.getList("writeErrors", Document.class);
+                if (writeErrors != null && !writeErrors.isEmpty()) {
+                    Document error = writeErrors.get(0);
+                    // The response doesn't say which server, it is the transaction's primary
+                    throw documentError(
+                            BulkWriteResult.acknowledged(0, matched, deleted, modified, upserts, List.of()),
+                            new BulkWriteError(
+                                    error.getInteger("code"), error.getString("errmsg"), new BsonDocument(), i),
+                            new ServerAddress(),
+                            Set.of());
+                }
+                deleted += response.get("n", Number.class).intValue();
+                continue;
+            }
+            Document lastError = response.get("lastErrorObject", Document.class);
+            if (lastError.containsKey("upserted")) {
+                upserts.add(new BulkWriteUpsert(i, bsonValue(db, lastError.get("upserted"))));
+                continue;
+            }
+            matched++;
+            Document value = response.get("value", Document.class);
+            Document previous = value == null ? null : value.get(PREVIOUS_VALS, Document.class);
+            // A document that didn't change keeps the __previousValues of an older batch
+            if (previous != null && updateBatchId.equals(previous.get(UPDATE_ID))) {
+                modified++;
+                changed.add(new Document("_id", value.get("_id")).append(PREVIOUS_VALS, previous));
+            }
         }
+        return new CapturedHistoryResult(
+                BulkWriteResult.acknowledged(0, matched, deleted, modified, upserts, List.of()), changed);
+    }
+
+    private static MongoBulkWriteException documentError(
+            BulkWriteResult soFar, BulkWriteError error, ServerAddress server, Set<String> labels) {
+        return new MongoBulkWriteException(soFar, List.of(error), null, server, labels);
+    }
+
+    // BulkWriteUpsert has the _id as BSON, as a bulk write reports it
+    private static BsonValue bsonValue(MongoDatabase db, Object value) {
+        BsonDocument wrapped =
+                BsonDocumentWrapper.asBsonDocument(new Document("_id", value), db.getCodecRegistry());
+        return wrapped.get("_id");
+    }
+
+    /**
+     * If the commit result is unknown the commit may or may not have happened, it is safe to send
+     * the commit again.
+     */
+    private void commitWithRetries(ClientSession session, UpdateStrategy updateStrategy) {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                session.commitTransaction();
+                return;
+            } catch (RuntimeException e) {
+                if (!retryPolicy.isUnknownCommitResult(e)
+                        || attempt >= retryPolicy.getMaxAttempts()
+                        || !retryPolicy.backoff(attempt)) {
+                    throw e;
+                }
+                retryPolicy.recordCommitRetry(updateStrategy);
+            }
+        }
+    }
+
+    /**
+     * One result for a batch that was written as two halves, indexes in the second half's upserts
+     * and inserts are moved along by the size of the first.
+     */
+    private static BulkWriteResult combineResults(
+            BulkWriteResult first, BulkWriteResult second, int secondOffset) {
+        return addResults(first, reindex(second, index -> index + secondOffset));
+    }
+
+    /**
+     * @return the two results added together, upserts and inserts in index order
+     */
+    private static BulkWriteResult addResults(BulkWriteResult first, BulkWriteResult second) {
+        if (first == null) {
+            return second;
+        }
+        List<BulkWriteUpsert> upserts = new ArrayList<>(first.getUpserts());
+        upserts.addAll(second.getUpserts());
+        upserts.sort(Comparator.comparingInt(BulkWriteUpsert::getIndex));
+        List<BulkWriteInsert> inserts = new ArrayList<>(first.getInserts());
+        inserts.addAll(second.getInserts());
+        inserts.sort(Comparator.comparingInt(BulkWriteInsert::getIndex));
+        return BulkWriteResult.acknowledged(
+                first.getInsertedCount() + second.getInsertedCount(),
+                first.getMatchedCount() + second.getMatchedCount(),
+                first.getDeletedCount() + second.getDeletedCount(),
+                first.getModifiedCount() + second.getModifiedCount(),
+                upserts,
+                inserts);
+    }
+
+    /**
+     * A result for some of a batch with the indexes of its upserts and inserts changed to where
+     * those documents are in the whole batch.
+     */
+    private static BulkWriteResult remap(BulkWriteResult result, int[] positions) {
+        return positions == null ? result : reindex(result, index -> positions[index]);
+    }
+
+    private static BulkWriteResult reindex(BulkWriteResult result, IntUnaryOperator position) {
+        if (!result.wasAcknowledged()) {
+            return result;
+        }
+        List<BulkWriteUpsert> upserts = new ArrayList<>(result.getUpserts().size());
+        result.getUpserts()
+                .forEach(
+                        u -> upserts.add(new BulkWriteUpsert(position.applyAsInt(u.getIndex()), u.getId())));
+        List<BulkWriteInsert> inserts = new ArrayList<>(result.getInserts().size());
+        result.getInserts()
+                .forEach(
+                        i -> inserts.add(new BulkWriteInsert(position.applyAsInt(i.getIndex()), i.getId())));
+        return BulkWriteResult.acknowledged(
+                result.getInsertedCount(),
+                result.getMatchedCount(),
+                result.getDeletedCount(),
+                result.getModifiedCount(),
+                upserts,
+                inserts);
+    }
+
+    private static void addErrors(Map<String, Long> errors, BulkWriteResult result) {
+        PartialBulkWriteResult.errorsOf(result)
+                .forEach((reason, count) -> errors.merge(reason, count, Long::sum));
+    }
+
+    private static BulkWriteResult withErrors(BulkWriteResult result, Map<String, Long> errors) {
+        return errors.isEmpty() ? result : new PartialBulkWriteResult(result, errors);
     }
 
     private BulkWriteResult getEmptyBWResult() {
@@ -252,191 +687,30 @@ public class OptimizedMongoLoadRepositoryImpl<T> implements OptimizedMongoLoadRe
      * <p>We can combine this with a transaction and a query to fetch just the updated documents for
      * various post-update transactional trigger activities.
      */
-    @SneakyThrows
     private void useSmartUpdate(
-            T item, BulkOperations ops, Query query, ObjectId updateBatchId, boolean withHistory) {
+            T item,
+            BulkOperations ops,
+            Query query,
+            ObjectId updateBatchId,
+            boolean withHistory,
+            ModelMetadata metadata,
+            BatchTracer.Trace trace) {
         // Generate a Mongo Document with all the required fields in, and all the mappings applied
         // we were using various Spring builders for this, but it was a lot slower and more CPU to build
         // them programmatically with the MongoDB fluent builders as they weren't designed for this use
         // case.
 
+        long mapStart = System.nanoTime();
         Document bsonDocument = new Document();
         mappingMongoConverter.write(item, bsonDocument);
+        long pipelineStart = System.nanoTime();
+        trace.add(BatchTracer.Phase.MAP, pipelineStart - mapStart);
 
-        String versionFieldName = null;
-
-        java.lang.reflect.Field versionField = getVersionField(item);
-
-        if (versionField != null) {
-            // I need the database field name  if defined
-            versionFieldName = versionField.getName();
-
-            if (versionField.isAnnotationPresent(Field.class)) {
-                // Get the @Field annotation
-                Field annotation = versionField.getAnnotation(Field.class);
-                // Extract the database field name from @Field annotation
-                versionFieldName = annotation.value();
-            }
-
-            bsonDocument.remove(versionFieldName); // We won't have a version in an incoming doc
-        }
-
-        // Compute all the individual scalar values that have changed.
-        // Arrays are just treated as scalars for now
-        // Unwinding arrays is possible using a.1.b a.2.b syntax, however, if we then use just update
-        // a.1.b becomes  { a: { 1 : {b : "X"}} not { a:[null,{b:b}]} - to fix that we need to move to a
-        // pipelined update and in that we cannot use dot paths - this needs more thought.
-
-        Map<String, Object> unwoundFields = new HashMap<>();
-        unwindNestedDocumentsInUpdate(bsonDocument, unwoundFields);
-
-        // Iterate over the map and modify the string values starting with $
-        //  As they will be in interpreted as variables to Document("$literal","$thing")
-
-        for (Map.Entry<String, Object> entry : unwoundFields.entrySet()) {
-            if (entry.getValue() instanceof String value) {
-                if (value.startsWith("$")) {
-                    // Prefix with _ if it starts with $
-                    entry.setValue(new Document("$literal", value));
-                }
-            }
-        }
-
-        List<Document> updateSteps = new ArrayList<>();
-
-        // If this is an insert then $_id will be undefined, in that case, we don't need a previous
-        // version
-        // Worst case if we didn't do this, we would have a lot of superfluous history.
-        // Detecting an insert when upserting is tricky as _id is already populated but nothing else
-
-        // Defined statically
-
-        // Set a temp field to say is this is actually an insert
-        updateSteps.add(flagInsert);
-        // Take the previous version of the embedded 'latest_change' history and back it up
-        updateSteps.add(backupDelta);
-
-        // Create a new latest_change history document put the updateId and the Time in it
-        Document previousValues = new Document(PREVIOUS_VALS + "." + UPDATE_ID, updateBatchId);
-        previousValues.put(PREVIOUS_VALS + "." + LAST_UPDATE_DATE, "$$NOW");
-
-        // Iterate over all fields conditionally setting any that change into the latest_change
-        List<Document> anyChange = new ArrayList<>();
-        for (Map.Entry<String, Object> entry : unwoundFields.entrySet()) {
-            // True if the value has changed
-
-            Document valueChanged =
-                    new Document("$ne", Arrays.asList("$" + entry.getKey(), entry.getValue()));
-
-            // If we aren't recording the history we just need the valueChanged array
-            if (withHistory) {
-                // If changed record the old value otherwise record nothing
-                Document coerceEmptyToNull =
-                        new Document("$ifNull", Arrays.asList("$" + entry.getKey(), null));
-
-                /*EXPERIMENTAL */
-                // Check if the NEW value being set is an array - if so, do element-wise diff
-
-                Document previousValueExpr;
-                if (entry.getValue() instanceof List) {
-                    // Build an element-wise comparison:
-                    // For each index in the OLD array, if the element equals the corresponding
-                    // new element, store MinKey; otherwise store the old element.
-                    // Also handles the case where array lengths differ.
-                    //
-                    // We use $map over the old array with index, comparing each element
-                    // to the new array at the same index.
-
-                    // $range(0, $size(oldArray))
-                    Document oldArrayRef = new Document("$ifNull",
-                            Arrays.asList("$" + entry.getKey(), new ArrayList<>()));
-                    Document oldSize = new Document("$size", oldArrayRef);
-
-                    // The new value as a literal (in case it contains $ strings)
-                    Object newValueLiteral = entry.getValue();
-
-                    // $map over indices of the old array
-                    // For each index i:
-                    //   if oldArray[i] == newArray[i] -> MinKey
-                    //   else -> oldArray[i]
-                    Document oldElem = new Document("$arrayElemAt",
-                            Arrays.asList(oldArrayRef, "$$idx"));
-                    Document newElem = new Document("$arrayElemAt",
-                            Arrays.asList(new Document("$literal", newValueLiteral), "$$idx"));
-
-                    Document elemEqual = new Document("$eq", Arrays.asList(oldElem, newElem));
-                    // MinKey as a constant - use $literal with a MinKey BSON value
-                    org.bson.types.MinKey minKey = new org.bson.types.MinKey();
-                    Document conditionalElem = new Document("$cond",
-                            Arrays.asList(elemEqual, minKey, oldElem));
-
-                    Document mappedArray = new Document("$map", new Document()
-                            .append("input", new Document("$range",
-                                    Arrays.asList(0, oldSize)))
-                            .append("as", "idx")
-                            .append("in", conditionalElem));
-
-                    previousValueExpr = mappedArray;
-                } else {
-                    previousValueExpr = coerceEmptyToNull;
-                }
-                /*EXPERIMENTAL */
-
-                /* WAS
-                Document conditionalOnChange =
-                        new Document("$cond", Arrays.asList(valueChanged, coerceEmptyToNull, "$$REMOVE"));*/
-
-                Document conditionalOnChange =
-                        new Document("$cond", Arrays.asList(valueChanged, previousValueExpr, "$$REMOVE"));
-
-                previousValues.append(PREVIOUS_VALS + "." + entry.getKey(), conditionalOnChange);
-            }
-            // List of all the conditionals so we can work out if anything changed
-            anyChange.add(valueChanged);
-        }
-
-        // If ANY changed set CHANGED flag to true and create a new latest_update
-        previousValues.append(CHANGED, new Document("$or", anyChange));
-        updateSteps.add(new Document("$set", previousValues));
-
-        // Set to new values - if nothing changed then the server will make this a no-op
-        updateSteps.add(new Document("$set", unwoundFields));
-
-        // We need to support version fields
-        // If there is a @Version field and
-        // If, and only if there are other changes - then we need to increment the version field by 1
-        // If this is an insert then we need to set the version field to 1
-
-        if (versionField != null) {
-
-      /*
-       { $set : { versionFieldName : { $cond : [ "$__isInsert" ,
-                                                  1,
-                                                  {$cond : [  "__changed" ,
-                                                             { $add :  [ "$versionFieldName",1]}
-                                                             "$versionFieldName"]
-                                                             }}}
-      */
-            Object typedOne = 1;
-            if (versionField.getType() == Long.class) {
-                typedOne = 1L;
-            }
-            Document nextVersion = new Document("$add", Arrays.asList("$" + versionFieldName, typedOne));
-
-            Document updatedIfChanged =
-                    new Document("$cond", Arrays.asList("$" + CHANGED, nextVersion, "$" + versionFieldName));
-            Document versionFieldValue =
-                    new Document("$cond", Arrays.asList("$" + IS_INSERT, typedOne, updatedIfChanged));
-            updateSteps.add(new Document("$set", new Document(versionFieldName, versionFieldValue)));
-        }
-
-        // Don't need our backup copy anymore
-        updateSteps.add(cleanUp);
-
-        // Uncomment to see The Pipeline Query, do so with a very simple document
-    /*for (Document s : updateSteps) {
-      LOG.info(s.toJson());
-    }*/
+        // The pipeline for this shape of document is compiled once and cached, only the values
+        // are filled in per document
+        List<Document> updateSteps =
+                SmartUpdatePipeline.build(bsonDocument, updateBatchId, withHistory, metadata);
+        trace.add(BatchTracer.Phase.PIPELINE, System.nanoTime() - pipelineStart);
 
         // Because these expressive pipeline updates are using pipelines they are sometimes
         // Referred to as Aggregation Updates, that's the name of the Spring Data MongoDB class
@@ -464,10 +738,7 @@ public class OptimizedMongoLoadRepositoryImpl<T> implements OptimizedMongoLoadRe
             return CompletableFuture.completedFuture(
                     writeMany(toSave, clazz, invalidDataHandlerService, updateStrategy, null));
         } catch (Exception e) {
-            LOG.error(e.getMessage());
-            // TODO Consider Failed writes going to a dead letter queue or similar.
-            // That may be something you do from the CompletableFuture
-            return CompletableFuture.failedFuture(e);
+            return failedWrite(toSave, clazz, e);
         }
     }
 
@@ -483,13 +754,47 @@ public class OptimizedMongoLoadRepositoryImpl<T> implements OptimizedMongoLoadRe
             return CompletableFuture.completedFuture(
                     writeMany(toSave, clazz, invalidDataHandlerService, updateStrategy, postTrigger));
         } catch (Exception e) {
-            LOG.error(e.getMessage());
-            // TODO Consider Failed writes going to a dead letter queue or similar.
-            // That may be something you do from the CompletableFuture
-            return CompletableFuture.failedFuture(e);
+            return failedWrite(toSave, clazz, e);
         }
     }
 
+    @Async("loadExecutor")
+    @Override
+    public CompletableFuture<BulkWriteResult> asyncWriteMany(
+            List<T> toSave,
+            Class<T> clazz,
+            InvalidDataHandlerService<T> invalidDataHandlerService,
+            UpdateStrategy updateStrategy,
+            PostWriteTriggerService<T> postTrigger,
+            BatchTracer.Trace trace) {
+        try {
+            return CompletableFuture.completedFuture(
+                    writeMany(
+                            toSave, clazz, invalidDataHandlerService, updateStrategy, postTrigger, trace));
+        } catch (Exception e) {
+            return failedWrite(toSave, clazz, e);
+        }
+    }
+
+    /**
+     * Failed batches go to the dead letter sink if there is one, the future then fails with a
+     * DeadLetteredException which tells the caller it can carry on.
+     */
+    private CompletableFuture<BulkWriteResult> failedWrite(List<T> toSave, Class<T> clazz, Exception e) {
+        LOG.error(e.getMessage());
+        if (deadLetters.isEnabled()) {
+            List<DeadLetter> letters = new ArrayList<>(toSave.size());
+            for (T item : toSave) {
+                letters.add(
+                        deadLetters.letter(clazz, DeadLetter.Reason.WRITE_FAILED, item, e.getMessage()));
+            }
+            if (deadLetters.send(letters)) {
+                return CompletableFuture.failedFuture(new DeadLetteredException(toSave.size(), e));
+            }
+        }
+        return CompletableFuture.failedFuture(e);
+    }
+
     /* No longer used but left in for reference, using this is a little faster
        but if you use it to update @Versoin then even if no data changes, it's still
        a version update and a write - which is 100% NOT acceptable.
@@ -502,7 +807,7 @@ public class OptimizedMongoLoadRepositoryImpl<T> implements OptimizedMongoLoadRe
         // Arrays are just treated as scalars for now - complex topic.
 
         Document unwoundFields = new Document();
-        unwindNestedDocumentsInUpdate(bsonDocument, unwoundFields);
+        SmartUpdatePipeline.unwindNestedDocumentsInUpdate(bsonDocument, unwoundFields);
 
         Update update = new Update();
         // Create an Update object
@@ -510,33 +815,4 @@ public class OptimizedMongoLoadRepositoryImpl<T> implements OptimizedMongoLoadRe
         unwoundFields.forEach(update::set);
         ops.upsert(query, update);
     }
-
-    /**
-     * This makes all nested, non array fields into individual paths so they can be considered and set
-     * independently - in a simple case { a: 1, b: { c:2, d:3}} --> { a:1, "b.c":2, "b.d":3 } We use
-     * this to get the list of field paths we are updating and MongoDB can then diff them individually
-     * internally to calculate minimum change.
-     */
-    private void unwindNestedDocumentsInUpdate(
-            Map<String, Object> in, Map<String, Object> out, String basekey) {
-        if (out == null || in == null) return;
-
-        for (Map.Entry<String, Object> entry : in.entrySet()) {
-            // If it's a document then recurse
-            // Don't recurse into Arrays (It's possible, but there are icky limitations to think
-            // about like deletions)
-            if (entry.getValue() instanceof Document) {
-                unwindNestedDocumentsInUpdate(
-                        (Document) entry.getValue(), out, basekey + entry.getKey() + ".");
-            } else {
-                if (!(basekey.isEmpty() && entry.getKey().equals("_id"))) {
-                    out.put(basekey + entry.getKey(), entry.getValue());
-                }
-            }
-        }
-    }
-
-    private void unwindNestedDocumentsInUpdate(Map<String, Object> in, Map<String, Object> out) {
-        unwindNestedDocumentsInUpdate(in, out, "");
-    }
 }
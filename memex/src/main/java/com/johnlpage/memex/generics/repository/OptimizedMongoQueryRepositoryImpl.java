@@ -217,7 +217,11 @@ public class OptimizedMongoQueryRepositoryImpl<T> implements OptimizedMongoQuery
         return score;
     }
 
-    private String computeQueryShapeHash(Document filter, Document projection, Document sort) {
+    /**
+     * Queries with the same fields in the filter and projection, and the same sort, have the same
+     * shape and share a cached cost. Public for the benchmarks.
+     */
+    public static String computeQueryShapeHash(Document filter, Document projection, Document sort) {
         ArrayList<String> fields = new ArrayList<>();
         // idea here is to flatten out into list of field names
 
@@ -0,0 +1,80 @@
+package com.johnlpage.memex.generics.repository;
+
+import com.mongodb.bulk.BulkWriteInsert;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.bulk.BulkWriteUpsert;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The result of a batch where the server rejected some documents and wrote the rest. The counts
+ * are of what was written, and errors is how many documents were rejected for each reason - the
+ * server's name for the error code, e.g. DuplicateKey, or Invalid for documents that failed
+ * validation before they were sent.
+ */
+public class PartialBulkWriteResult extends BulkWriteResult {
+
+    public static final String INVALID = "Invalid";
+
+    private final BulkWriteResult written;
+    private final Map<String, Long> errors;
+
+    public PartialBulkWriteResult(BulkWriteResult written, Map<String, Long> errors) {
+        this.written = written;
+        this.errors = Collections.unmodifiableMap(new TreeMap<>(errors));
+    }
+
+    /**
+     * @return documents rejected per reason, empty for an ordinary result
+     */
+    public static Map<String, Long> errorsOf(BulkWriteResult result) {
+        return result instanceof PartialBulkWriteResult partial ? partial.errors : Map.of();
+    }
+
+    public Map<String, Long> getErrors() {
+        return errors;
+    }
+
+    @Override
+    public boolean wasAcknowledged() {
+        return written.wasAcknowledged();
+    }
+
+    @Override
+    public int getInsertedCount() {
+        return written.getInsertedCount();
+    }
+
+    @Override
+    public int getMatchedCount() {
+        return written.getMatchedCount();
+    }
+
+    @Override
+    public int getDeletedCount() {
+        return written.getDeletedCount();
+    }
+
+    @Override
+    public int getModifiedCount() {
+        return written.getModifiedCount();
+    }
+
+    @Override
+    public List<BulkWriteInsert> getInserts() {
+        return written.getInserts();
+    }
+
+    @Override
+    public List<BulkWriteUpsert> getUpserts() {
+        return written.getUpserts();
+    }
+
+    @Override
+    public String toString() {
+        return "PartialBulkWriteResult{written=" + written + ", errors=" + errors + '}';
+    }
+}
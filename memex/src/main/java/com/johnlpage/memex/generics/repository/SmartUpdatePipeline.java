@@ -0,0 +1,475 @@
+package com.johnlpage.memex.generics.repository;
+
+import static com.johnlpage.memex.generics.repository.OptimizedMongoLoadRepositoryImpl.LAST_UPDATE_DATE;
+import static com.johnlpage.memex.generics.repository.OptimizedMongoLoadRepositoryImpl.PREVIOUS_VALS;
+import static com.johnlpage.memex.generics.repository.OptimizedMongoLoadRepositoryImpl.UPDATE_ID;
+
+import com.johnlpage.memex.util.ModelMetadata;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.bson.Document;
+import org.bson.types.MinKey;
+import org.bson.types.ObjectId;
+
+/**
+ * Builds the pipeline ("aggregation") update used by the UPDATE and UPDATEWITHHISTORY strategies,
+ * see OptimizedMongoLoadRepositoryImpl.useSmartUpdate for what the pipeline does.
+ *
+ * <p>Nearly all of the pipeline depends only on which field paths the document has, not on their
+ * values - the "$path" references, the $ifNull and $map expressions that capture previous values,
+ * the version increment. Documents from one model almost always share the same paths, so the
+ * value-independent parts are compiled once per shape (model class, ordered field paths, which of
+ * them are arrays, history or not) into a Template, and per document only the values are bound in.
+ * Parts of the pipeline without values in are shared between documents, as the fixed stages always
+ * have been, so they must never be modified.
+ *
+ * <p>buildWithoutTemplate is the original per document construction, kept to check the templates
+ * against and to benchmark them.
+ */
+public final class SmartUpdatePipeline {
+
+    // Internal only
+    private static final String BACKUP_VALS = "__backupValues";
+    private static final String CHANGED = "__changed";
+    private static final String IS_INSERT = "__isInsert";
+    private static final Document flagInsert;
+    private static final Document backupDelta;
+    private static final Document cleanUp;
+
+    // Markers in a shape, BSON field names can't contain a NUL so these can't clash with one
+    private static final String OPEN = "\u0000{";
+    private static final String CLOSE = "\u0000}";
+    private static final String ARRAY = "\u0000[]";
+
+    // Models with free-form payloads can have endless shapes, past this many we stop caching
+    private static final int MAX_TEMPLATES = 1024;
+    private static final Map<TemplateKey, Template> TEMPLATES = new ConcurrentHashMap<>();
+
+    static {
+        Document previousSize = new Document("$size", new Document("$objectToArray", "$$ROOT"));
+        Document isInsert = new Document("$eq", Arrays.asList(previousSize, 1));
+        flagInsert = new Document("$set", new Document(IS_INSERT, isInsert));
+
+        backupDelta =
+                new Document(
+                        "$set",
+                        new Document(PREVIOUS_VALS, new Document()).append(BACKUP_VALS, "$" + PREVIOUS_VALS));
+
+        // If there was no change then revert to BACKUP_VALS
+        Document finalUpdate =
+                new Document("$cond", Arrays.asList("$" + CHANGED, "$" + PREVIOUS_VALS, "$" + BACKUP_VALS));
+
+        // For an insert all we want it the timestamp
+        Document condFinal =
+                new Document(
+                        "$cond",
+                        Arrays.asList("$" + IS_INSERT, new Document(LAST_UPDATE_DATE, "$$NOW"), finalUpdate));
+
+        cleanUp =
+                new Document(
+                        "$set",
+                        new Document(BACKUP_VALS, "$$REMOVE")
+                                .append(CHANGED, "$$REMOVE")
+                                .append(IS_INSERT, "$$REMOVE")
+                                .append(PREVIOUS_VALS, condFinal));
+    }
+
+    private SmartUpdatePipeline() {
+    }
+
+    /**
+     * @param bsonDocument the item as written by the MappingMongoConverter, the version field is
+     *                     removed from it
+     * @return the pipeline stages
+     */
+    public static List<Document> build(
+            Document bsonDocument, ObjectId updateBatchId, boolean withHistory, ModelMetadata metadata) {
+        if (metadata.hasVersionField()) {
+            bsonDocument.remove(metadata.getVersionFieldName());
+        }
+        // One walk over the document gets its shape and its values. The shape is made of the field
+        // names themselves, which are the same String instances from one document to the next, so
+        // hashing and comparing it is cheap compared with building the dotted paths.
+        List<String> shape = new ArrayList<>();
+        List<Object> values = new ArrayList<>();
+        describe(bsonDocument, true, withHistory, shape, values);
+
+        TemplateKey key = new TemplateKey(metadata.getModelClass(), withHistory, shape);
+        Template template = TEMPLATES.get(key);
+        if (template == null) {
+            template = new Template(key, metadata);
+            if (TEMPLATES.size() < MAX_TEMPLATES) {
+                TEMPLATES.putIfAbsent(key, template);
+            }
+        }
+        return template.bind(values, updateBatchId);
+    }
+
+    /**
+     * The pipeline built from scratch for every document, as it was before templates.
+     */
+    public static List<Document> buildWithoutTemplate(
+            Document bsonDocument, ObjectId updateBatchId, boolean withHistory, ModelMetadata metadata) {
+        Map<String, Object> unwoundFields = unwindForUpdate(bsonDocument, metadata);
+        // The database field name of any @Version field, already resolved from @Field
+        String versionFieldName = metadata.getVersionFieldName();
+
+        List<Document> updateSteps = new ArrayList<>();
+
+        // If this is an insert then $_id will be undefined, in that case, we don't need a previous
+        // version
+        // Worst case if we didn't do this, we would have a lot of superfluous history.
+        // Detecting an insert when upserting is tricky as _id is already populated but nothing else
+
+        // Defined statically
+
+        // Set a temp field to say is this is actually an insert
+        updateSteps.add(flagInsert);
+        // Take the previous version of the embedded 'latest_change' history and back it up
+        updateSteps.add(backupDelta);
+
+        // Create a new latest_change history document put the updateId and the Time in it
+        Document previousValues = new Document(PREVIOUS_VALS + "." + UPDATE_ID, updateBatchId);
+        previousValues.put(PREVIOUS_VALS + "." + LAST_UPDATE_DATE, "$$NOW");
+
+        // Iterate over all fields conditionally setting any that change into the latest_change
+        List<Document> anyChange = new ArrayList<>();
+        for (Map.Entry<String, Object> entry : unwoundFields.entrySet()) {
+            // True if the value has changed
+
+            Document valueChanged =
+                    new Document("$ne", Arrays.asList("$" + entry.getKey(), entry.getValue()));
+
+            // If we aren't recording the history we just need the valueChanged array
+            if (withHistory) {
+                // If changed record the old value otherwise record nothing
+                Document coerceEmptyToNull =
+                        new Document("$ifNull", Arrays.asList("$" + entry.getKey(), null));
+
+                /*EXPERIMENTAL */
+                // Check if the NEW value being set is an array - if so, do element-wise diff
+
+                Document previousValueExpr;
+                if (entry.getValue() instanceof List) {
+                    // Build an element-wise comparison:
+                    // For each index in the OLD array, if the element equals the corresponding
+                    // new element, store MinKey; otherwise store the old element.
+                    // Also handles the case where array lengths differ.
+                    //
+                    // We use $map over the old array with index, comparing each element
+                    // to the new array at the same index.
+
+                    // $range(0, $size(oldArray))
+                    Document oldArrayRef = new Document("$ifNull",
+                            Arrays.asList("$" + entry.getKey(), new ArrayList<>()));
+                    Document oldSize = new Document("$size", oldArrayRef);
+
+                    // The new value as a literal (in case it contains $ strings)
+                    Object newValueLiteral = entry.getValue();
+
+                    // $map over indices of the old array
+                    // For each index i:
+                    //   if oldArray[i] == newArray[i] -> MinKey
+                    //   else -> oldArray[i]
+                    Document oldElem = new Document("$arrayElemAt",
+                            Arrays.asList(oldArrayRef, "$$idx"));
+                    Document newElem = new Document("$arrayElemAt",
+                            Arrays.asList(new Document("$literal", newValueLiteral), "$$idx"));
+
+                    Document elemEqual = new Document("$eq", Arrays.asList(oldElem, newElem));
+                    // MinKey as a constant - use $literal with a MinKey BSON value
+                    MinKey minKey = new MinKey();
+                    Document conditionalElem = new Document("$cond",
+                            Arrays.asList(elemEqual, minKey, oldElem));
+
+                    Document mappedArray = new Document("$map", new Document()
+                            .append("input", new Document("$range",
+                                    Arrays.asList(0, oldSize)))
+                            .append("as", "idx")
+                            .append("in", conditionalElem));
+
+                    previousValueExpr = mappedArray;
+                } else {
+                    previousValueExpr = coerceEmptyToNull;
+                }
+                /*EXPERIMENTAL */
+
+                /* WAS
+                Document conditionalOnChange =
+                        new Document("$cond", Arrays.asList(valueChanged, coerceEmptyToNull, "$$REMOVE"));*/
+
+                Document conditionalOnChange =
+                        new Document("$cond", Arrays.asList(valueChanged, previousValueExpr, "$$REMOVE"));
+
+                previousValues.append(PREVIOUS_VALS + "." + entry.getKey(), conditionalOnChange);
+            }
+            // List of all the conditionals so we can work out if anything changed
+            anyChange.add(valueChanged);
+        }
+
+        // If ANY changed set CHANGED flag to true and create a new latest_update
+        previousValues.append(CHANGED, new Document("$or", anyChange));
+        updateSteps.add(new Document("$set", previousValues));
+
+        // Set to new values - if nothing changed then the server will make this a no-op
+        updateSteps.add(new Document("$set", unwoundFields));
+
+        // We need to support version fields
+        // If there is a @Version field and
+        // If, and only if there are other changes - then we need to increment the version field by 1
+        // If this is an insert then we need to set the version field to 1
+
+        if (metadata.hasVersionField()) {
+            updateSteps.add(versionStage(versionFieldName, metadata.getVersionOne()));
+        }
+
+        // Don't need our backup copy anymore
+        updateSteps.add(cleanUp);
+
+        // Uncomment to see The Pipeline Query, do so with a very simple document
+    /*for (Document s : updateSteps) {
+      LOG.info(s.toJson());
+    }*/
+        return updateSteps;
+    }
+
+    /**
+     * This makes all nested, non array fields into individual paths so they can be considered and set
+     * independently - in a simple case { a: 1, b: { c:2, d:3}} --> { a:1, "b.c":2, "b.d":3 } We use
+     * this to get the list of field paths we are updating and MongoDB can then diff them individually
+     * internally to calculate minimum change.
+     */
+    public static void unwindNestedDocumentsInUpdate(Map<String, Object> in, Map<String, Object> out) {
+        unwindNestedDocumentsInUpdate(in, out, "");
+    }
+
+    private static void unwindNestedDocumentsInUpdate(
+            Map<String, Object> in, Map<String, Object> out, String basekey) {
+        if (out == null || in == null) return;
+
+        for (Map.Entry<String, Object> entry : in.entrySet()) {
+            // If it's a document then recurse
+            // Don't recurse into Arrays (It's possible, but there are icky limitations to think
+            // about like deletions)
+            if (entry.getValue() instanceof Document) {
+                unwindNestedDocumentsInUpdate(
+                        (Document) entry.getValue(), out, basekey + entry.getKey() + ".");
+            } else {
+                if (!(basekey.isEmpty() && entry.getKey().equals("_id"))) {
+                    out.put(basekey + entry.getKey(), entry.getValue());
+                }
+            }
+        }
+    }
+
+    /**
+     * Walks the document in the same order as unwindNestedDocumentsInUpdate. For each field the
+     * shape gets its name, followed by OPEN ... CLOSE around the contents of a nested document, or
+     * ARRAY if it's an array and we need to diff arrays. Values are the leaf values in order.
+     */
+    private static void describe(
+            Map<String, Object> in,
+            boolean topLevel,
+            boolean withHistory,
+            List<String> shape,
+            List<Object> values) {
+        for (Map.Entry<String, Object> entry : in.entrySet()) {
+            Object value = entry.getValue();
+            if (value instanceof Document nested) {
+                shape.add(entry.getKey());
+                shape.add(OPEN);
+                describe(nested, false, withHistory, shape, values);
+                shape.add(CLOSE);
+            } else if (!(topLevel && entry.getKey().equals("_id"))) {
+                shape.add(entry.getKey());
+                if (withHistory && value instanceof List) {
+                    shape.add(ARRAY);
+                }
+                if (value instanceof String string && string.startsWith("$")) {
+                    value = new Document("$literal", string);
+                }
+                values.add(value);
+            }
+        }
+    }
+
+    /**
+     * Number of shapes compiled and cached so far
+     */
+    public static int templateCount() {
+        return TEMPLATES.size();
+    }
+
+    private static Map<String, Object> unwindForUpdate(Document bsonDocument, ModelMetadata metadata) {
+        if (metadata.hasVersionField()) {
+            bsonDocument.remove(metadata.getVersionFieldName()); // We won't have a version in an incoming doc
+        }
+
+        // Compute all the individual scalar values that have changed.
+        // Arrays are just treated as scalars for now
+        // Unwinding arrays is possible using a.1.b a.2.b syntax, however, if we then use just update
+        // a.1.b becomes  { a: { 1 : {b : "X"}} not { a:[null,{b:b}]} - to fix that we need to move to a
+        // pipelined update and in that we cannot use dot paths - this needs more thought.
+        // Linked so the paths come out in document order, which makes the order part of the shape.
+        Map<String, Object> unwoundFields = new LinkedHashMap<>();
+        unwindNestedDocumentsInUpdate(bsonDocument, unwoundFields);
+
+        // Iterate over the map and modify the string values starting with $
+        //  As they will be in interpreted as variables to Document("$literal","$thing")
+
+        for (Map.Entry<String, Object> entry : unwoundFields.entrySet()) {
+            if (entry.getValue() instanceof String value) {
+                if (value.startsWith("$")) {
+                    // Prefix with _ if it starts with $
+                    entry.setValue(new Document("$literal", value));
+                }
+            }
+        }
+        return unwoundFields;
+    }
+
+    private static Document versionStage(String versionFieldName, Object typedOne) {
+      /*
+       { $set : { versionFieldName : { $cond : [ "$__isInsert" ,
+                                                  1,
+                                                  {$cond : [  "__changed" ,
+                                                             { $add :  [ "$versionFieldName",1]}
+                                                             "$versionFieldName"]
+                                                             }}}
+      */
+        Document nextVersion = new Document("$add", Arrays.asList("$" + versionFieldName, typedOne));
+
+        Document updatedIfChanged =
+                new Document("$cond", Arrays.asList("$" + CHANGED, nextVersion, "$" + versionFieldName));
+        Document versionFieldValue =
+                new Document("$cond", Arrays.asList("$" + IS_INSERT, typedOne, updatedIfChanged));
+        return new Document("$set", new Document(versionFieldName, versionFieldValue));
+    }
+
+    private record TemplateKey(Class<?> modelClass, boolean withHistory, List<String> shape) {
+    }
+
+    /**
+     * Everything about the pipeline for one shape of document that doesn't depend on the values
+     */
+    private static final class Template {
+        private final boolean withHistory;
+        private final String[] paths; // "a.b"
+        private final String[] fieldRefs; // "$a.b"
+        private final String[] previousPaths; // "__previousValues.a.b"
+        // For scalars the expression for the previous value
+        private final Document[] previousValueExprs;
+        // For arrays the parts of the element-wise diff that don't depend on the new value
+        private final Document[] oldElems;
+        private final Document[] oldRanges;
+        private final Document versionStage;
+
+        Template(TemplateKey key, ModelMetadata metadata) {
+            List<String> pathList = new ArrayList<>();
+            List<Boolean> arrayList = new ArrayList<>();
+            List<String> prefixes = new ArrayList<>();
+            String prefix = "";
+            List<String> shape = key.shape();
+            for (int t = 0; t < shape.size(); t++) {
+                String token = shape.get(t);
+                if (token.equals(CLOSE)) {
+                    prefix = prefixes.remove(prefixes.size() - 1);
+                } else if (t + 1 < shape.size() && shape.get(t + 1).equals(OPEN)) {
+                    prefixes.add(prefix);
+                    prefix = prefix + token + ".";
+                    t++;
+                } else {
+                    pathList.add(prefix + token);
+                    boolean isArray = t + 1 < shape.size() && shape.get(t + 1).equals(ARRAY);
+                    arrayList.add(isArray);
+                    if (isArray) {
+                        t++;
+                    }
+                }
+            }
+
+            int size = pathList.size();
+            this.withHistory = key.withHistory();
+            this.paths = pathList.toArray(new String[0]);
+            this.fieldRefs = new String[size];
+            this.previousPaths = new String[size];
+            this.previousValueExprs = new Document[size];
+            this.oldElems = new Document[size];
+            this.oldRanges = new Document[size];
+            for (int i = 0; i < size; i++) {
+                fieldRefs[i] = "$" + paths[i];
+                previousPaths[i] = PREVIOUS_VALS + "." + paths[i];
+                if (arrayList.get(i)) {
+                    Document oldArrayRef =
+                            new Document("$ifNull", Arrays.asList(fieldRefs[i], new ArrayList<>()));
+                    oldElems[i] = new Document("$arrayElemAt", Arrays.asList(oldArrayRef, "$$idx"));
+                    oldRanges[i] =
+                            new Document("$range", Arrays.asList(0, new Document("$size", oldArrayRef)));
+                } else {
+                    previousValueExprs[i] = new Document("$ifNull", Arrays.asList(fieldRefs[i], null));
+                }
+            }
+            this.versionStage =
+                    metadata.hasVersionField()
+                            ? versionStage(metadata.getVersionFieldName(), metadata.getVersionOne())
+                            : null;
+        }
+
+        List<Document> bind(List<Object> values, ObjectId updateBatchId) {
+            List<Document> updateSteps = new ArrayList<>(6);
+            updateSteps.add(flagInsert);
+            updateSteps.add(backupDelta);
+
+            Document previousValues = new Document(PREVIOUS_VALS + "." + UPDATE_ID, updateBatchId);
+            previousValues.put(PREVIOUS_VALS + "." + LAST_UPDATE_DATE, "$$NOW");
+
+            int size = paths.length;
+            Map<String, Object> unwoundFields = new LinkedHashMap<>(size * 2);
+            List<Document> anyChange = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                Object value = values.get(i);
+                unwoundFields.put(paths[i], value);
+                Document valueChanged = new Document("$ne", Arrays.asList(fieldRefs[i], value));
+                if (withHistory) {
+                    Document previousValueExpr =
+                            oldElems[i] == null ? previousValueExprs[i] : arrayDiff(i, value);
+                    previousValues.append(
+                            previousPaths[i],
+                            new Document("$cond", Arrays.asList(valueChanged, previousValueExpr, "$$REMOVE")));
+                }
+                anyChange.add(valueChanged);
+            }
+
+            previousValues.append(CHANGED, new Document("$or", anyChange));
+            updateSteps.add(new Document("$set", previousValues));
+            updateSteps.add(new Document("$set", unwoundFields));
+            if (versionStage != null) {
+                updateSteps.add(versionStage);
+            }
+            updateSteps.add(cleanUp);
+            return updateSteps;
+        }
+
+        // Element-wise diff of the old array against the new one, MinKey where they match
+        private Document arrayDiff(int i, Object newValue) {
+            Document newElem =
+                    new Document(
+                            "$arrayElemAt", Arrays.asList(new Document("$literal", newValue), "$$idx"));
+            Document elemEqual = new Document("$eq", Arrays.asList(oldElems[i], newElem));
+            Document conditionalElem =
+                    new Document("$cond", Arrays.asList(elemEqual, new MinKey(), oldElems[i]));
+            return new Document(
+                    "$map",
+                    new Document()
+                            .append("input", oldRanges[i])
+                            .append("as", "idx")
+                            .append("in", conditionalElem));
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package com.johnlpage.memex.generics.service;
+
+import com.johnlpage.memex.util.UpdateStrategy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Component;
+
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Chooses how many documents to put in each bulk write. The best size depends a lot on the update
+ * strategy - a REPLACE or INSERT batch is cheap per document, an UPDATEWITHHISTORY batch is a large
+ * pipeline update per document plus a transaction - so there is a separate size for each strategy,
+ * shared by everything that batches writes (the JSON loader and the Kafka consumer).
+ *
+ * <p>The repository reports how long each bulk execute took and whether it failed, the callers
+ * report how big the documents they are batching are. From that it keeps a smoothed time per
+ * document and aims for batches that take about target-latency-ms, moving towards that size a
+ * step at a time. A failed batch halves the size, and it doesn't grow again while recent batches
+ * have been failing. Batches are also kept under max-batch-bytes of source JSON. The size always
+ * stays between min-size and max-size.
+ *
+ * <p>The current sizes are available from the batchsizes actuator endpoint.
+ */
+@Component
+@Endpoint(id = "batchsizes")
+public class AdaptiveBatchSizer {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AdaptiveBatchSizer.class);
+    // Weight given to each new observation in the smoothed values
+    private static final double SMOOTHING = 0.2;
+    // Largest increase in size in one step, decreases are not limited
+    private static final double MAX_GROWTH = 1.25;
+    // No growth while the smoothed failure rate is above this
+    private static final double MAX_ERROR_RATE_TO_GROW = 0.05;
+
+    private final boolean enabled;
+    private final int initialSize;
+    private final int minSize;
+    private final int maxSize;
+    private final double targetLatencyNanos;
+    private final long maxBatchBytes;
+    private final Map<UpdateStrategy, StrategyState> states = new EnumMap<>(UpdateStrategy.class);
+
+    public AdaptiveBatchSizer(
+            @Value("${mongo.batchsizer.enabled:true}") boolean enabled,
+            @Value("${mongo.batchsizer.initial-size:${mongo.jsonloader.batch-size:200}}") int initialSize,
+            @Value("${mongo.batchsizer.min-size:10}") int minSize,
+            @Value("${mongo.batchsizer.max-size:2000}") int maxSize,
+            @Value("${mongo.batchsizer.target-latency-ms:250}") long targetLatencyMs,
+            @Value("${mongo.batchsizer.max-batch-bytes:8388608}") long maxBatchBytes) {
+        if (minSize < 1 || maxSize < minSize) {
+            throw new IllegalArgumentException("Batch size bounds must satisfy 1 <= min-size <= max-size");
+        }
+        this.enabled = enabled;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.initialSize = Math.max(minSize, Math.min(maxSize, initialSize));
+        this.targetLatencyNanos = targetLatencyMs * 1_000_000.0;
+        this.maxBatchBytes = maxBatchBytes;
+        for (UpdateStrategy strategy : UpdateStrategy.values()) {
+            states.put(strategy, new StrategyState(strategy, this.initialSize));
+        }
+    }
+
+    /**
+     * @return the number of documents the next batch written with this strategy should have
+     */
+    public int getBatchSize(UpdateStrategy strategy) {
+        return enabled ? states.get(strategy).size() : initialSize;
+    }
+
+    /**
+     * Called by whatever is filling batches with the size of the source of the documents
+     */
+    public void recordDocumentBytes(UpdateStrategy strategy, int documents, long bytes) {
+        if (documents > 0) {
+            states.get(strategy).documentBytes(documents, bytes);
+        }
+    }
+
+    /**
+     * Called by the repository after each successful bulk execute
+     */
+    public void recordExecute(UpdateStrategy strategy, int documents, long nanos) {
+        if (documents > 0) {
+            states.get(strategy).executed(documents, nanos);
+        }
+    }
+
+    /**
+     * Called by the repository when a bulk write fails
+     */
+    public void recordFailure(UpdateStrategy strategy) {
+        states.get(strategy).failed();
+    }
+
+    @ReadOperation
+    public Map<UpdateStrategy, Snapshot> batchSizes() {
+        Map<UpdateStrategy, Snapshot> sizes = new LinkedHashMap<>();
+        states.forEach((strategy, state) -> sizes.put(strategy, state.snapshot()));
+        return sizes;
+    }
+
+    /**
+     * @param size               documents per batch that will be used next
+     * @param nanosPerDocument   smoothed bulk execute time per document
+     * @param bytesPerDocument   smoothed source size of a document
+     * @param errorRate          smoothed fraction of batches that failed
+     */
+    public record Snapshot(
+            int size,
+            boolean adaptive,
+            long batches,
+            long failures,
+            double nanosPerDocument,
+            double bytesPerDocument,
+            double errorRate) {
+    }
+
+    private final class StrategyState {
+        private final UpdateStrategy strategy;
+        private double size;
+        private double nanosPerDocument;
+        private double bytesPerDocument;
+        private double errorRate;
+        private long batches;
+        private long failures;
+
+        StrategyState(UpdateStrategy strategy, int initialSize) {
+            this.strategy = strategy;
+            this.size = initialSize;
+        }
+
+        synchronized int size() {
+            return (int) Math.round(size);
+        }
+
+        synchronized void documentBytes(int documents, long bytes) {
+            bytesPerDocument = smooth(bytesPerDocument, (double) bytes / documents);
+            resize(size);
+        }
+
+        synchronized void executed(int documents, long nanos) {
+            batches++;
+            nanosPerDocument = smooth(nanosPerDocument, (double) nanos / documents);
+            errorRate = errorRate * (1 - SMOOTHING);
+
+            double wanted = targetLatencyNanos / Math.max(1.0, nanosPerDocument);
+            if (errorRate > MAX_ERROR_RATE_TO_GROW) {
+                wanted = Math.min(wanted, size);
+            }
+            resize(Math.min(wanted, size * MAX_GROWTH));
+        }
+
+        synchronized void failed() {
+            batches++;
+            failures++;
+            errorRate = errorRate * (1 - SMOOTHING) + SMOOTHING;
+            resize(size / 2);
+        }
+
+        // Apply the byte limit and the bounds
+        private void resize(double wanted) {
+            if (bytesPerDocument > 0) {
+                wanted = Math.min(wanted, maxBatchBytes / bytesPerDocument);
+            }
+            double next = Math.max(minSize, Math.min(maxSize, wanted));
+            if (LOG.isDebugEnabled() && Math.round(next) != Math.round(size)) {
+                LOG.debug("{} batch size {} -> {}", strategy, Math.round(size), Math.round(next));
+            }
+            size = next;
+        }
+
+        private double smooth(double current, double sample) {
+            return current == 0 ? sample : current + SMOOTHING * (sample - current);
+        }
+
+        synchronized Snapshot snapshot() {
+            return new Snapshot(
+                    enabled ? size() : initialSize,
+                    enabled,
+                    batches,
+                    failures,
+                    nanosPerDocument,
+                    bytesPerDocument,
+                    errorRate);
+        }
+    }
+}
@@ -0,0 +1,283 @@
+package com.johnlpage.memex.generics.service;
+
+import com.johnlpage.memex.util.UpdateStrategy;
+import io.micrometer.observation.Observation;
+import io.micrometer.observation.ObservationRegistry;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Component;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Optional tracing of where the time goes in each batch write. With memex.tracing.enabled=true
+ * every batch the repository writes is a Micrometer Observation, memex.trace.batch, tagged with the
+ * collection, strategy and batch size, with a child span for each phase of the write. With a
+ * tracing bridge such as micrometer-tracing-bridge-otel on the classpath these are exported as
+ * spans, without one they are still timers in /actuator/prometheus.
+ *
+ * <p>The last recent-batches batches are also kept in memory and the slowbatches actuator
+ * endpoint shows the slowest of them with the time spent in each phase, which is usually enough
+ * to see whether a slow load is parsing, mapping, waiting on the server or in the history
+ * trigger.
+ *
+ * <p>Disabled, every batch gets the same do nothing Trace so the write path only pays for a few
+ * calls to System.nanoTime().
+ */
+@Component
+@Endpoint(id = "slowbatches")
+public class BatchTracer {
+
+    // Not memex.load.batch, the observations also become timers and LoadMetrics has those names
+    private static final String BATCH = "memex.trace.batch";
+    // The batch being written on this thread, for the triggers which aren't passed it
+    private static final ThreadLocal<Trace> CURRENT = new ThreadLocal<>();
+
+    private final boolean enabled;
+    private final ObservationRegistry registry;
+    private final int slowest;
+    private final AtomicReferenceArray<SlowBatch> recent;
+    private final AtomicLong written = new AtomicLong();
+
+    @Autowired
+    public BatchTracer(
+            @Value("${memex.tracing.enabled:false}") boolean enabled,
+            @Value("${memex.tracing.recent-batches:1000}") int recentBatches,
+            @Value("${memex.tracing.slowest:20}") int slowest,
+            ObjectProvider<ObservationRegistry> registry) {
+        this(enabled, recentBatches, slowest, registry.getIfAvailable(() -> ObservationRegistry.NOOP));
+    }
+
+    public BatchTracer(
+            boolean enabled, int recentBatches, int slowest, ObservationRegistry registry) {
+        this.enabled = enabled;
+        this.registry = registry;
+        this.slowest = slowest;
+        this.recent = new AtomicReferenceArray<>(Math.max(1, recentBatches));
+    }
+
+    /**
+     * The phases of a batch. MAP and PIPELINE are summed over the documents and are part of BUILD,
+     * HISTORY_READ and HISTORY_INSERT are part of TRIGGER. PARSE happens before the batch exists,
+     * on the parse threads, so it is the time spent parsing the batch's documents rather than a span
+     * of its own.
+     */
+    public enum Phase {
+        PARSE("parse"),
+        BUILD("build"),
+        MAP("build.map"),
+        PIPELINE("build.pipeline"),
+        EXECUTE("execute"),
+        TRIGGER("trigger"),
+        HISTORY_READ("trigger.history.read"),
+        HISTORY_INSERT("trigger.history.insert"),
+        COMMIT("commit");
+
+        private final String key;
+
+        Phase(String key) {
+            this.key = key;
+        }
+
+        public String key() {
+            return key;
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * A trace for a batch that is about to be written, it starts when the repository starts writing
+     * it
+     */
+    public Trace trace(String collection, UpdateStrategy strategy, int documents) {
+        return enabled ? new Trace(this, collection, strategy, documents) : Trace.NOOP;
+    }
+
+    /**
+     * The trace of the batch being written on this thread, or one that does nothing
+     */
+    public static Trace current() {
+        Trace trace = CURRENT.get();
+        return trace == null ? Trace.NOOP : trace;
+    }
+
+    @ReadOperation
+    public List<SlowBatch> slowBatches() {
+        List<SlowBatch> batches = new ArrayList<>(recent.length());
+        for (int i = 0; i < recent.length(); i++) {
+            SlowBatch batch = recent.get(i);
+            if (batch != null) {
+                batches.add(batch);
+            }
+        }
+        batches.sort(Comparator.comparingDouble(SlowBatch::millis).reversed());
+        return batches.size() > slowest ? List.copyOf(batches.subList(0, slowest)) : batches;
+    }
+
+    private void finished(SlowBatch batch) {
+        recent.set((int) (written.getAndIncrement() % recent.length()), batch);
+    }
+
+    /**
+     * @param millis   from starting the write to finishing it, including retries, not including
+     *                 PARSE
+     * @param phases   milliseconds in each phase that took any time, retries add to the same phases
+     * @param error    why the batch failed, null if it didn't
+     */
+    public record SlowBatch(
+            String collection,
+            UpdateStrategy strategy,
+            int documents,
+            Instant started,
+            double millis,
+            Map<String, Double> phases,
+            String error) {
+    }
+
+    /**
+     * The time spent in each phase of one batch. Only used by the thread writing the batch, except
+     * for PARSE which is added before it is handed over.
+     */
+    public static final class Trace {
+
+        static final Trace NOOP = new Trace(null, null, null, 0);
+
+        private final BatchTracer tracer;
+        private final String collection;
+        private final UpdateStrategy strategy;
+        private final int documents;
+        private final long[] nanos = new long[Phase.values().length];
+        private Observation observation = Observation.NOOP;
+        // The innermost open span, which a new one is a child of
+        private Observation parent = Observation.NOOP;
+        private Observation.Scope scope;
+        private Instant started;
+        private long startNanos;
+
+        private Trace(BatchTracer tracer, String collection, UpdateStrategy strategy, int documents) {
+            this.tracer = tracer;
+            this.collection = collection;
+            this.strategy = strategy;
+            this.documents = documents;
+        }
+
+        /**
+         * Adds time to a phase, for the phases that are summed rather than spans
+         */
+        public void add(Phase phase, long elapsedNanos) {
+            if (this != NOOP) {
+                nanos[phase.ordinal()] += elapsedNanos;
+            }
+        }
+
+        /**
+         * Starts a child span of whatever span is open, closing it adds its time to the phase
+         */
+        public Span span(Phase phase) {
+            if (this == NOOP) {
+                return Span.NOOP;
+            }
+            Observation outer = parent;
+            Observation child =
+                    Observation.createNotStarted(BATCH + "." + phase.key(), tracer.registry)
+                            .parentObservation(outer)
+                            .lowCardinalityKeyValue("collection", collection)
+                            .lowCardinalityKeyValue("strategy", strategy.name())
+                            .start();
+            parent = child;
+            long start = System.nanoTime();
+            return () -> {
+                nanos[phase.ordinal()] += System.nanoTime() - start;
+                child.stop();
+                parent = outer;
+            };
+        }
+
+        /**
+         * Called by the repository on the thread that writes the batch
+         */
+        public void start() {
+            if (this == NOOP) {
+                return;
+            }
+            started = Instant.now();
+            startNanos = System.nanoTime();
+            observation =
+                    Observation.createNotStarted(BATCH, tracer.registry)
+                            .contextualName("write " + collection)
+                            .lowCardinalityKeyValue("collection", collection)
+                            .lowCardinalityKeyValue("strategy", strategy.name())
+                            .highCardinalityKeyValue("batch.size", String.valueOf(documents))
+                            .start();
+            parent = observation;
+            scope = observation.openScope();
+            CURRENT.set(this);
+        }
+
+        /**
+         * @param error what the write threw, null if it didn't
+         */
+        public void finish(Throwable error) {
+            if (this == NOOP) {
+                return;
+            }
+            CURRENT.remove();
+            double millis = (System.nanoTime() - startNanos) / 1e6;
+            Map<String, Double> phases = new LinkedHashMap<>();
+            for (Phase phase : Phase.values()) {
+                long elapsed = nanos[phase.ordinal()];
+                if (elapsed > 0) {
+                    phases.put(phase.key(), elapsed / 1e6);
+                }
+            }
+            // The summed phases have no span of their own, so they go on the batch's span
+            observation.highCardinalityKeyValue("parse.ms", format(phases.get(Phase.PARSE.key())));
+            observation.highCardinalityKeyValue("build.map.ms", format(phases.get(Phase.MAP.key())));
+            observation.highCardinalityKeyValue(
+                    "build.pipeline.ms", format(phases.get(Phase.PIPELINE.key())));
+            if (error != null) {
+                observation.error(error);
+            }
+            scope.close();
+            observation.stop();
+            tracer.finished(
+                    new SlowBatch(
+                            collection,
+                            strategy,
+                            documents,
+                            started,
+                            millis,
+                            phases,
+                            error == null ? null : String.valueOf(error.getMessage())));
+        }
+
+        private static String format(Double millis) {
+            return String.format("%.3f", millis == null ? 0.0 : millis);
+        }
+    }
+
+    /**
+     * An open phase span
+     */
+    public interface Span extends AutoCloseable {
+
+        Span NOOP = () -> {
+        };
+
+        @Override
+        void close();
+    }
+}
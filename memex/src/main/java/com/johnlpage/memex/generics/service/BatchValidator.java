@@ -0,0 +1,75 @@
+package com.johnlpage.memex.generics.service;
+
+import jakarta.validation.ConstraintViolation;
+import jakarta.validation.Validator;
+import lombok.RequiredArgsConstructor;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Validates documents a batch at a time with the application's Validator bean. Whether a class has
+ * any constraints at all is looked up once, classes with none are never passed to the validator.
+ * The invalid documents in a batch go to the InvalidDataHandlerService in a single call.
+ */
+@Component
+@RequiredArgsConstructor
+public class BatchValidator {
+
+    private final Validator validator;
+    private final Map<Class<?>, Boolean> constrained = new ConcurrentHashMap<>();
+
+    /**
+     * @return true if the class, or anything it cascades validation to, has a constraint
+     */
+    public boolean isConstrained(Class<?> clazz) {
+        return constrained.computeIfAbsent(
+                clazz, c -> validator.getConstraintsForClass(c).isBeanConstrained());
+    }
+
+    /**
+     * Without a handler nothing is validated, and every document is written as before.
+     *
+     * @return the documents to write - the valid ones and any invalid ones the handler accepted, in
+     * their original order
+     */
+    public <T> List<T> validate(
+            List<T> items, Class<T> clazz, InvalidDataHandlerService<T> invalidDataHandlerService) {
+        if (invalidDataHandlerService == null || items.isEmpty() || !isConstrained(clazz)) {
+            return items;
+        }
+        List<InvalidDocument<T>> invalid = null;
+        for (T item : items) {
+            Set<ConstraintViolation<T>> violations = validator.validate(item);
+            if (!violations.isEmpty()) {
+                if (invalid == null) {
+                    invalid = new ArrayList<>();
+                }
+                invalid.add(new InvalidDocument<>(item, violations));
+            }
+        }
+        if (invalid == null) {
+            return items;
+        }
+
+        // Models may define equals on their id alone, so these are matched by identity
+        Set<T> rejected = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (InvalidDocument<T> document : invalid) {
+            rejected.add(document.document());
+        }
+        invalidDataHandlerService.handleInvalidBatch(invalid, clazz).forEach(rejected::remove);
+        List<T> accepted = new ArrayList<>(items.size() - rejected.size());
+        for (T item : items) {
+            if (!rejected.contains(item)) {
+                accepted.add(item);
+            }
+        }
+        return accepted;
+    }
+}
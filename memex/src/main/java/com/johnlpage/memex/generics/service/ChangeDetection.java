@@ -0,0 +1,16 @@
+package com.johnlpage.memex.generics.service;
+
+/**
+ * How the JSON loader decides whether an incoming document needs writing at all.
+ */
+public enum ChangeDetection {
+    /**
+     * Write every document, the server works out what changed
+     */
+    NONE,
+    /**
+     * Skip documents whose content hash is the same as the last one written for that id, see
+     * DocumentHashCache. Only used with the UPDATE, UPDATEWITHHISTORY and REPLACE strategies.
+     */
+    HASH
+}
@@ -0,0 +1,473 @@
+package com.johnlpage.memex.generics.service;
+
+import com.johnlpage.memex.generics.repository.OptimizedMongoLoadRepositoryImpl;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.ChangeStreamIterable;
+import com.mongodb.client.MongoChangeStreamCursor;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Field;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.InsertManyOptions;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.FullDocument;
+import com.mongodb.client.model.changestream.FullDocumentBeforeChange;
+import com.mongodb.client.model.changestream.OperationType;
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentReader;
+import org.bson.BsonTimestamp;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.BsonDocumentCodec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.DocumentCodec;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.stereotype.Service;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes the _history collections from change streams rather than in each batch's transaction,
+ * used with memex.history.capture=CHANGE_STREAM. UPDATEWITHHISTORY batches are then written with no
+ * transaction and no trigger, they still record __previousValues in each document they change, and
+ * a worker thread per collection with history tails that collection and batch inserts a
+ * DocumentHistory for each change. Loads go several times faster and stop conflicting with each
+ * other over the history, but the history is written a moment after the change rather than with
+ * it.
+ *
+ * <p>The stream asks for the post-image of each update, which has exactly the __previousValues that
+ * update wrote, so the collections have changeStreamPreAndPostImages enabled on start - MongoDB 6.0
+ * or later. An update that didn't record any previous values, such as an UPDATE rather than
+ * UPDATEWITHHISTORY write, has no history, nor does a plain insert or replace. A delete records the
+ * pre-image as its final state, as the history trigger records the deleted document - if the
+ * pre-image has expired it is recorded with none.
+ *
+ * <p>Each collection's resume token is saved in memex.history.stream.checkpoint-collection after
+ * every batch of history is written, so a restart carries on from there. A history record's _id is
+ * made from the change's cluster time and _id, so any changes written again after a restart are
+ * duplicates and ignored. A worker that fails carries on from its last checkpoint the same way. The
+ * historystream actuator endpoint shows how far behind each collection is and why its worker last
+ * failed.
+ *
+ * <p>The stream only carries the whole post-image for the updates {@link HistorySnapshots} picks,
+ * which are written with a snapshot as well.
+ */
+@Service
+@ConditionalOnProperty(name = "memex.history.capture", havingValue = "CHANGE_STREAM")
+@Endpoint(id = "historystream")
+// Straight after the preflight check has created the collections, before a file load starts
+@Order(Ordered.HIGHEST_PRECEDENCE + 1)
+public class ChangeStreamHistoryWriter implements ApplicationRunner, DisposableBean {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ChangeStreamHistoryWriter.class);
+    private static final int DUPLICATE_KEY = 11000;
+    // Keeps the saved position of a quiet collection from falling out of the oplog
+    private static final long IDLE_CHECKPOINT_MILLIS = 10_000;
+    private static final long RECONNECT_MILLIS = 1_000;
+
+    private final MongoTemplate mongoTemplate;
+    private final List<CollectionPreflightConfig> collectionConfigs;
+    private final HistorySnapshots snapshots;
+    private final String checkpointCollection;
+    private final int batchSize;
+    private final long maxWaitMillis;
+    private final Map<String, Worker> workers = new ConcurrentHashMap<>();
+    private volatile boolean running = true;
+
+    public ChangeStreamHistoryWriter(
+            MongoTemplate mongoTemplate,
+            List<CollectionPreflightConfig> collectionConfigs,
+            HistorySnapshots snapshots,
+            @Value("${memex.history.stream.checkpoint-collection:memex_historycheckpoints}")
+            String checkpointCollection,
+            @Value("${memex.history.stream.batch-size:1000}") int batchSize,
+            @Value("${memex.history.stream.max-wait-ms:1000}") long maxWaitMillis) {
+        this.mongoTemplate = mongoTemplate;
+        this.collectionConfigs = collectionConfigs;
+        this.snapshots = snapshots;
+        this.checkpointCollection = checkpointCollection;
+        this.batchSize = batchSize;
+        this.maxWaitMillis = maxWaitMillis;
+    }
+
+    /**
+     * Each stream is opened here so nothing written once this returns is missed, even the first time
+     * when there is no resume token yet.
+     */
+    @Override
+    public void run(ApplicationArguments args) {
+        for (CollectionPreflightConfig config : collectionConfigs) {
+            if (!config.hasHistoryCollection()) {
+                continue;
+            }
+            String collection = config.getCollectionName();
+            mongoTemplate
+                    .getDb()
+                    .runCommand(
+                            new Document("collMod", collection)
+                                    .append(
+                                            "changeStreamPreAndPostImages", new Document("enabled", true)));
+            Worker worker = new Worker(collection);
+            worker.open();
+            worker.thread = new Thread(worker, "HistoryStream-" + collection);
+            worker.thread.setDaemon(true);
+            workers.put(collection, worker);
+            worker.thread.start();
+            LOG.info("Writing {} history from a change stream", collection);
+        }
+    }
+
+    @Override
+    public void destroy() throws InterruptedException {
+        running = false;
+        for (Worker worker : workers.values()) {
+            worker.thread.join(maxWaitMillis * 2 + RECONNECT_MILLIS);
+        }
+    }
+
+    @ReadOperation
+    public Map<String, Snapshot> historyStream() {
+        Map<String, Snapshot> snapshots = new TreeMap<>();
+        workers.forEach((collection, worker) -> snapshots.put(collection, worker.snapshot()));
+        return snapshots;
+    }
+
+    /**
+     * @param changes     events read from the stream
+     * @param written     history records written for them, a replayed duplicate isn't counted
+     * @param lastChange  when the latest change read was made
+     * @param lagMillis   from that change being made to its history being written
+     * @param failure     why the stream last failed, null again once it has checkpointed since
+     */
+    public record Snapshot(
+            long changes,
+            long written,
+            Instant lastChange,
+            long lagMillis,
+            Instant checkpointed,
+            String failure) {
+    }
+
+    /**
+     * The history record for a change, or null if the change doesn't have one. The same change
+     * always gives a record with the same historyId.
+     */
+    static DocumentHistory history(ChangeStreamDocument<Document> change) {
+        OperationType type = change.getOperationType();
+        Document previousValues =
+                change.getFullDocument() == null
+                        ? null
+                        : change.getFullDocument()
+                                .get(OptimizedMongoLoadRepositoryImpl.PREVIOUS_VALS, Document.class);
+        DocumentHistory history = new DocumentHistory();
+        if (type == OperationType.INSERT && previousValues != null) {
+            history.setType("insert");
+        } else if (type == OperationType.UPDATE
+                && previousValues != null
+                && wrotePreviousValues(change.getUpdateDescription().getUpdatedFields())) {
+            Document changes = HistoryTriggerService.previousChanges(previousValues);
+            // Nothing before the change means it didn't record history
+            if (changes.isEmpty()) {
+                return null;
+            }
+            history.setType("update");
+            history.setChanges(changes);
+        } else if (type == OperationType.DELETE) {
+            history.setType("delete");
+            if (change.getFullDocumentBeforeChange() != null) {
+                Document finalState = new Document(change.getFullDocumentBeforeChange());
+                finalState.remove(OptimizedMongoLoadRepositoryImpl.PREVIOUS_VALS);
+                history.setChanges(finalState);
+            }
+        } else {
+            return null;
+        }
+        BsonDocument documentKey = change.getDocumentKey();
+        history.setRecordId(
+                new DocumentCodec()
+                        .decode(new BsonDocumentReader(documentKey), DecoderContext.builder().build())
+                        .get("_id"));
+        history.setHistoryId(historyId(change.getClusterTime(), documentKey));
+        history.setTimestamp(
+                change.getWallTime() != null
+                        ? Instant.ofEpochMilli(change.getWallTime().getValue())
+                        : Instant.ofEpochSecond(change.getClusterTime().getTime()));
+        return history;
+    }
+
+    private static boolean wrotePreviousValues(BsonDocument updatedFields) {
+        String prefix = OptimizedMongoLoadRepositoryImpl.PREVIOUS_VALS + ".";
+        for (String field : updatedFields.keySet()) {
+            if (field.equals(OptimizedMongoLoadRepositoryImpl.PREVIOUS_VALS) || field.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The snapshot of the record an update left, for an update that has a history record and whose
+     * whole post-image the stream carried. Its historyId is fixed by the change as well.
+     */
+    static DocumentHistory snapshotOf(ChangeStreamDocument<Document> change, DocumentHistory history) {
+        DocumentHistory snapshot =
+                HistorySnapshots.snapshot(
+                        history.getRecordId(), history.getTimestamp(), change.getFullDocument());
+        snapshot.setHistoryId(historyId(change.getClusterTime(), change.getDocumentKey(), true));
+        return snapshot;
+    }
+
+    static ObjectId historyId(BsonTimestamp clusterTime, BsonDocument documentKey) {
+        return historyId(clusterTime, documentKey, false);
+    }
+
+    /*
+     * The seconds of the cluster time, so ids still sort by when the change was made, then 64 bits
+     * of a SHA-256 of the rest of the cluster time and the whole encoded documentKey. The changes in
+     * a transaction share a cluster time, the documentKey tells them apart.
+     */
+    private static ObjectId historyId(
+            BsonTimestamp clusterTime, BsonDocument documentKey, boolean snapshot) {
+        MessageDigest sha256;
+        try {
+            sha256 = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Every JVM has SHA-256", e);
+        }
+        sha256.update(
+                ByteBuffer.allocate(5)
+                        .putInt(clusterTime.getInc())
+                        .put((byte) (snapshot ? 1 : 0))
+                        .array());
+        sha256.update(new RawBsonDocument(documentKey, new BsonDocumentCodec()).getByteBuffer().asNIO());
+        return new ObjectId(
+                ByteBuffer.allocate(12)
+                        .putInt(clusterTime.getTime())
+                        .put(sha256.digest(), 0, 8)
+                        .array());
+    }
+
+    /**
+     * Tails one collection, only its own thread uses the cursor
+     */
+    private final class Worker implements Runnable {
+        private final String collection;
+        private final AtomicLong changes = new AtomicLong();
+        private final AtomicLong written = new AtomicLong();
+        private volatile Instant lastChange;
+        private volatile long lagMillis;
+        private volatile Instant checkpointed;
+        private volatile String failure;
+        private MongoChangeStreamCursor<ChangeStreamDocument<Document>> cursor;
+        private BsonDocument resumeToken;
+        private Thread thread;
+
+        Worker(String collection) {
+            this.collection = collection;
+        }
+
+        void open() {
+            if (resumeToken == null) {
+                Document saved =
+                        mongoTemplate
+                                .getCollection(checkpointCollection)
+                                .find(Filters.eq("_id", collection))
+                                .first();
+                if (saved != null) {
+                    resumeToken = saved.get("resumeToken", Document.class).toBsonDocument();
+                }
+            }
+            // Only the previous values of the post-image are needed, $mergeObjects so it replaces it,
+            // unless the change is snapshotted
+            String previous = OptimizedMongoLoadRepositoryImpl.PREVIOUS_VALS;
+            Document previousOnly =
+                    new Document(
+                            "$mergeObjects", List.of(new Document(previous, "$fullDocument." + previous)));
+            Document postImage =
+                    new Document(
+                            "$cond", List.of(snapshots.dueExpression(), "$fullDocument", previousOnly));
+            // Only a delete needs the pre-image, as its final state
+            Document deletedOnly =
+                    new Document(
+                            "$cond",
+                            List.of(
+                                    new Document("$eq", List.of("$operationType", "delete")),
+                                    "$fullDocumentBeforeChange",
+                                    "$$REMOVE"));
+            List<Bson> pipeline =
+                    List.of(
+                            Aggregates.match(
+                                    Filters.in("operationType", List.of("insert", "update", "delete"))),
+                            Aggregates.set(
+                                    new Field<>("fullDocument", postImage),
+                                    new Field<>("fullDocumentBeforeChange", deletedOnly)));
+            ChangeStreamIterable<Document> stream =
+                    mongoTemplate
+                            .getCollection(collection)
+                            .watch(pipeline)
+                            .fullDocument(FullDocument.REQUIRED)
+                            .fullDocumentBeforeChange(FullDocumentBeforeChange.WHEN_AVAILABLE)
+                            .batchSize(batchSize)
+                            .maxAwaitTime(maxWaitMillis, TimeUnit.MILLISECONDS);
+            cursor = (resumeToken == null ? stream : stream.resumeAfter(resumeToken)).cursor();
+            if (resumeToken == null) {
+                resumeToken = cursor.getResumeToken();
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    try {
+                        if (cursor == null) {
+                            open();
+                        }
+                        tail();
+                    } catch (RuntimeException e) {
+                        // Not only the database, a change that can't be converted stops the worker too.
+                        // The cursor is reopened at the last checkpoint, so anything read since is read
+                        // again.
+                        LOG.error("History stream on {} failed, resuming from the last checkpoint", collection, e);
+                        failure = e.toString();
+                        close();
+                        Thread.sleep(RECONNECT_MILLIS);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                close();
+            }
+        }
+
+        private void close() {
+            if (cursor != null) {
+                try {
+                    cursor.close();
+                } catch (MongoException e) {
+                    LOG.debug("Could not close history stream on {}: {}", collection, e.getMessage());
+                }
+                cursor = null;
+            }
+        }
+
+        private void tail() {
+            List<DocumentHistory> batch = new ArrayList<>();
+            BsonDocument batchToken = null;
+            long firstChangeMillis = 0;
+            long lastCheckpointMillis = System.currentTimeMillis();
+            while (running) {
+                ChangeStreamDocument<Document> change = cursor.tryNext();
+                long now = System.currentTimeMillis();
+                if (change != null) {
+                    changes.incrementAndGet();
+                    DocumentHistory history = history(change);
+                    if (history != null) {
+                        if (batch.isEmpty()) {
+                            firstChangeMillis = now;
+                        }
+                        batch.add(history);
+                        if (history.getType().equals("update")
+                                && snapshots.isDue(change.getClusterTime())) {
+                            batch.add(snapshotOf(change, history));
+                        }
+                    }
+                    batchToken = change.getResumeToken();
+                    if (change.getWallTime() != null) {
+                        lastChange = Instant.ofEpochMilli(change.getWallTime().getValue());
+                    }
+                }
+                boolean full = batch.size() >= batchSize;
+                boolean caughtUp = change == null;
+                boolean waited = !batch.isEmpty() && now - firstChangeMillis >= maxWaitMillis;
+                if (batchToken != null && (full || caughtUp || waited)) {
+                    write(batch);
+                    checkpoint(batchToken);
+                    lastCheckpointMillis = now;
+                    batch.clear();
+                    batchToken = null;
+                } else if (caughtUp && now - lastCheckpointMillis >= IDLE_CHECKPOINT_MILLIS) {
+                    BsonDocument idleToken = cursor.getResumeToken();
+                    if (idleToken != null && !idleToken.equals(resumeToken)) {
+                        checkpoint(idleToken);
+                    }
+                    lastCheckpointMillis = now;
+                }
+            }
+        }
+
+        private void write(List<DocumentHistory> batch) {
+            if (batch.isEmpty()) {
+                return;
+            }
+            List<Document> documents = new ArrayList<>(batch.size());
+            for (DocumentHistory history : batch) {
+                Document document = new Document();
+                mongoTemplate.getConverter().write(history, document);
+                documents.add(document);
+            }
+            int duplicates = 0;
+            try {
+                mongoTemplate
+                        .getCollection(collection + HistoryTriggerService.HISTORY_POSTFIX)
+                        .insertMany(documents, new InsertManyOptions().ordered(false));
+            } catch (MongoBulkWriteException e) {
+                // Already written before a restart
+                for (BulkWriteError error : e.getWriteErrors()) {
+                    if (error.getCode() != DUPLICATE_KEY) {
+                        throw e;
+                    }
+                }
+                duplicates = e.getWriteErrors().size();
+            }
+            written.addAndGet(batch.size() - duplicates);
+            if (lastChange != null) {
+                lagMillis = System.currentTimeMillis() - lastChange.toEpochMilli();
+            }
+        }
+
+        private void checkpoint(BsonDocument token) {
+            MongoCollection<Document> checkpoints = mongoTemplate.getCollection(checkpointCollection);
+            checkpoints.replaceOne(
+                    Filters.eq("_id", collection),
+                    new Document("resumeToken", token).append("updated", new Date()),
+                    new ReplaceOptions().upsert(true));
+            resumeToken = token;
+            checkpointed = Instant.now();
+            failure = null;
+        }
+
+        Snapshot snapshot() {
+            return new Snapshot(
+                    changes.get(), written.get(), lastChange, lagMillis, checkpointed, failure);
+        }
+    }
+}
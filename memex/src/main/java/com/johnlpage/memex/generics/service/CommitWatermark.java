@@ -0,0 +1,68 @@
+package com.johnlpage.memex.generics.service;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * How far into a load's source every record has been dealt with - written, found unchanged or
+ * dead lettered - even though batches finish in any order. Each batch is opened with the first
+ * record put in it and, as records reach the batch stage in stream order, everything after that
+ * record is either in the same batch or a later one. So the watermark is the first record of the
+ * oldest batch still open, or just past the last record seen if none are.
+ *
+ * <p>Records are seen and batches opened on the loader thread, batches are closed on whichever
+ * thread finished writing them.
+ */
+class CommitWatermark {
+
+    // First record of each batch being filled or written, and the byte offset it starts at
+    private final ConcurrentSkipListMap<Long, Long> open = new ConcurrentSkipListMap<>();
+    private long nextOrdinal;
+    private long nextOffset;
+
+    CommitWatermark(long startOrdinal, long startOffset) {
+        this.nextOrdinal = startOrdinal;
+        this.nextOffset = startOffset;
+    }
+
+    /**
+     * A record has been through the batch stage, whether or not it was put in a batch
+     *
+     * @param endOffset the byte offset just past the end of the record
+     */
+    void seen(long ordinal, long endOffset) {
+        nextOrdinal = ordinal + 1;
+        nextOffset = endOffset;
+    }
+
+    /**
+     * A batch was started with this record as its first
+     */
+    void opened(long ordinal, long offset) {
+        open.put(ordinal, offset);
+    }
+
+    /**
+     * The batch starting with this record was written or dead lettered
+     */
+    void closed(long firstOrdinal) {
+        open.remove(firstOrdinal);
+    }
+
+    /**
+     * Only from the loader thread, a batch closing at the same time can only move it forward
+     */
+    Position position() {
+        Map.Entry<Long, Long> oldest = open.firstEntry();
+        return oldest == null
+                ? new Position(nextOrdinal, nextOffset)
+                : new Position(oldest.getKey(), oldest.getValue());
+    }
+
+    /**
+     * @param records records before this point, which is also the ordinal of the next one
+     * @param bytes   byte offset in the source to resume from
+     */
+    record Position(long records, long bytes) {
+    }
+}
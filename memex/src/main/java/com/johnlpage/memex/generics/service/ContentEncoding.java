@@ -0,0 +1,57 @@
+package com.johnlpage.memex.generics.service;
+
+import com.github.luben.zstd.ZstdInputStream;
+import jakarta.annotation.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The compression a load's body was sent with, from its Content-Encoding header.
+ */
+public enum ContentEncoding {
+    IDENTITY,
+    GZIP,
+    /**
+     * zlib wrapped deflate, which is what HTTP means by deflate
+     */
+    DEFLATE,
+    ZSTD;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * @return the encoding for a Content-Encoding header, IDENTITY if there isn't one
+     * @throws IllegalArgumentException for anything else, including more than one encoding
+     */
+    public static ContentEncoding fromHeader(@Nullable String contentEncoding) {
+        if (contentEncoding == null || contentEncoding.isBlank()) {
+            return IDENTITY;
+        }
+        return switch (contentEncoding.trim().toLowerCase(Locale.ROOT)) {
+            case "identity" -> IDENTITY;
+            case "gzip", "x-gzip" -> GZIP;
+            case "deflate" -> DEFLATE;
+            case "zstd" -> ZSTD;
+            default -> throw new IllegalArgumentException("Unsupported Content-Encoding " + contentEncoding);
+        };
+    }
+
+    /**
+     * Wraps a compressed stream in one that decompresses it, reading the compressed stream as it
+     * goes. GZIP reads the header straight away.
+     */
+    public InputStream decode(InputStream compressed) throws IOException {
+        return switch (this) {
+            case IDENTITY -> compressed;
+            case GZIP -> new GZIPInputStream(compressed, BUFFER_SIZE);
+            // The default Inflater is the one that is freed on close
+            case DEFLATE -> new InflaterInputStream(new BufferedInputStream(compressed, BUFFER_SIZE));
+            case ZSTD -> new ZstdInputStream(new BufferedInputStream(compressed, BUFFER_SIZE));
+        };
+    }
+}
@@ -2,18 +2,28 @@ package com.johnlpage.memex.generics.service;
 
 import lombok.Getter;
 
+import java.util.Map;
+
 @Getter
 public class DataLoadException extends Exception {
     private final long updates;
     private final long deletes;
     private final long inserts;
+    // Documents not loaded before the failure, per reason
+    private final Map<String, Long> errors;
 
     public DataLoadException(long updates, long deletes, long inserts,
                              String message, Throwable cause) {
+        this(updates, deletes, inserts, Map.of(), message, cause);
+    }
+
+    public DataLoadException(long updates, long deletes, long inserts, Map<String, Long> errors,
+                             String message, Throwable cause) {
         super(message, cause);
         this.updates = updates;
         this.deletes = deletes;
         this.inserts = inserts;
+        this.errors = errors;
     }
 
 }
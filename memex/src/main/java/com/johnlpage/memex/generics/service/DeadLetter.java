@@ -0,0 +1,34 @@
+package com.johnlpage.memex.generics.service;
+
+import java.time.Instant;
+
+/**
+ * Something a load couldn't write, kept so it can be looked at and replayed later.
+ *
+ * @param source  the collection it was meant for
+ * @param reason  which stage gave up on it
+ * @param error   what went wrong
+ * @param payload the JSON of the document, or for a PARSE_ERROR the raw text of the record
+ * @param time    when it was dead lettered
+ */
+public record DeadLetter(String source, Reason reason, String error, String payload, Instant time) {
+
+    public enum Reason {
+        /**
+         * The record could not be parsed into the model
+         */
+        PARSE_ERROR,
+        /**
+         * The document failed validation and the InvalidDataHandlerService rejected it
+         */
+        INVALID,
+        /**
+         * The server rejected this document but wrote the rest of its batch, e.g. a duplicate key
+         */
+        WRITE_ERROR,
+        /**
+         * The whole batch it was in failed to write
+         */
+        WRITE_FAILED
+    }
+}
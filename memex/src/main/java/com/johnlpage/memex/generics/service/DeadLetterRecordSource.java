@@ -0,0 +1,77 @@
+package com.johnlpage.memex.generics.service;
+
+import org.bson.types.ObjectId;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Feeds the dead letters for a model class back to the loader as records. Only as many as there
+ * were when it was created are read, a few hundred at a time, so letters that fail again and are
+ * dead lettered during the replay aren't picked up a second time.
+ *
+ * <p>A letter is only deleted once the loader has committed the record made from it - written,
+ * found unchanged or dead lettered again - so a replay that fails part way through leaves the rest
+ * of the letters to be replayed again.
+ */
+class DeadLetterRecordSource implements JsonRecordSource {
+
+    private static final int READ = 500;
+    private final DeadLetterService deadLetters;
+    private final Class<?> type;
+    private final Deque<DeadLetterSink.Kept> unread = new ArrayDeque<>();
+    // Ids of the letters given to the loader and not yet deleted, the first is for record
+    // firstUncommitted
+    private final Deque<ObjectId> uncommitted = new ArrayDeque<>();
+    private long firstUncommitted = 0;
+    private ObjectId lastRead;
+    private long remaining;
+    private long ordinal = 0;
+    private long bytesRead = 0;
+
+    DeadLetterRecordSource(DeadLetterService deadLetters, Class<?> type) {
+        this.deadLetters = deadLetters;
+        this.type = type;
+        this.remaining = deadLetters.count(type);
+    }
+
+    @Override
+    public JsonRecord next() {
+        if (unread.isEmpty() && remaining > 0) {
+            unread.addAll(deadLetters.read(type, lastRead, (int) Math.min(READ, remaining)));
+            remaining = unread.isEmpty() ? 0 : remaining - unread.size();
+        }
+        DeadLetterSink.Kept kept = unread.poll();
+        if (kept == null) {
+            return null;
+        }
+        lastRead = kept.id();
+        uncommitted.add(kept.id());
+        byte[] bytes = kept.letter().payload().getBytes(StandardCharsets.UTF_8);
+        JsonRecord record = new JsonRecord(bytes, ordinal++, bytesRead);
+        bytesRead += bytes.length;
+        return record;
+    }
+
+    @Override
+    public void committed(long records) {
+        List<ObjectId> ids = new ArrayList<>();
+        while (firstUncommitted < records && !uncommitted.isEmpty()) {
+            ids.add(uncommitted.poll());
+            firstUncommitted++;
+        }
+        deadLetters.delete(type, ids);
+    }
+
+    @Override
+    public long bytesRead() {
+        return bytesRead;
+    }
+
+    @Override
+    public void close() {
+    }
+}
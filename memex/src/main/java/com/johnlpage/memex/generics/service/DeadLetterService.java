@@ -0,0 +1,154 @@
+package com.johnlpage.memex.generics.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.Nullable;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+import org.springframework.stereotype.Service;
+
+import java.time.Instant;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Everything that gives up on a document sends it here - the loader for records it can't parse
+ * and batches that fail, the repository for documents the server rejected, the
+ * InvalidDataHandlerService for invalid ones and the Kafka consumer for malformed messages. They
+ * go to whichever DeadLetterSink is configured and the stream carries on without them. With no
+ * sink configured isEnabled() is false and failures stop a load as they always have.
+ *
+ * <p>How many have been dead lettered since startup, per collection and reason, is available
+ * from the deadletters actuator endpoint.
+ */
+@Service
+@Endpoint(id = "deadletters")
+public class DeadLetterService {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DeadLetterService.class);
+    private final DeadLetterSink sink;
+    private final MappingMongoConverter mappingMongoConverter;
+    private final ObjectMapper objectMapper;
+    private final Map<String, Map<DeadLetter.Reason, LongAdder>> counts = new ConcurrentHashMap<>();
+
+    public DeadLetterService(
+            @Nullable DeadLetterSink sink,
+            MappingMongoConverter mappingMongoConverter,
+            ObjectMapper objectMapper) {
+        this.sink = sink;
+        this.mappingMongoConverter = mappingMongoConverter;
+        this.objectMapper = objectMapper;
+    }
+
+    public boolean isEnabled() {
+        return sink != null;
+    }
+
+    /**
+     * @return the collection a model class is written to, which is what dead letters are kept by
+     */
+    public String sourceFor(Class<?> type) {
+        return mappingMongoConverter.getMappingContext().getRequiredPersistentEntity(type).getCollection();
+    }
+
+    /**
+     * A dead letter for a document, with the document as JSON so it can be loaded again
+     */
+    public DeadLetter letter(Class<?> type, DeadLetter.Reason reason, Object document, String error) {
+        String payload;
+        try {
+            payload = objectMapper.writeValueAsString(document);
+        } catch (JsonProcessingException e) {
+            payload = String.valueOf(document);
+        }
+        return new DeadLetter(sourceFor(type), reason, error, payload, Instant.now());
+    }
+
+    /**
+     * A dead letter for input that never became a document
+     */
+    public DeadLetter rawLetter(Class<?> type, DeadLetter.Reason reason, String raw, String error) {
+        return new DeadLetter(sourceFor(type), reason, error, raw, Instant.now());
+    }
+
+    /**
+     * @return true if the letters are safely in the sink, false if there is no sink or writing to it
+     * failed - in which case the caller should fail as it would have without one
+     */
+    public boolean send(List<DeadLetter> letters) {
+        if (sink == null) {
+            return false;
+        }
+        if (letters.isEmpty()) {
+            return true;
+        }
+        try {
+            sink.write(letters);
+        } catch (RuntimeException e) {
+            LOG.error("Could not write {} dead letters: {}", letters.size(), e.getMessage());
+            return false;
+        }
+        for (DeadLetter letter : letters) {
+            counts.computeIfAbsent(letter.source(), s -> new ConcurrentHashMap<>())
+                    .computeIfAbsent(letter.reason(), r -> new LongAdder())
+                    .increment();
+        }
+        DeadLetter first = letters.get(0);
+        LOG.warn(
+                "Dead lettered {} {} document(s) for {}: {}",
+                letters.size(),
+                first.reason(),
+                first.source(),
+                first.error());
+        return true;
+    }
+
+    /**
+     * The oldest dead letters for a model class, for replaying them. They stay in the sink until
+     * they are deleted.
+     *
+     * @param after only letters after the one with this id, null to start from the oldest
+     */
+    public List<DeadLetterSink.Kept> read(Class<?> type, @Nullable ObjectId after, int max) {
+        return sink == null ? List.of() : sink.read(sourceFor(type), after, max);
+    }
+
+    /**
+     * Deletes replayed dead letters. If it fails they are replayed again next time, which is
+     * harmless for the update strategies that replace or merge.
+     */
+    public void delete(Class<?> type, List<ObjectId> ids) {
+        if (sink == null || ids.isEmpty()) {
+            return;
+        }
+        try {
+            sink.delete(sourceFor(type), ids);
+        } catch (RuntimeException e) {
+            LOG.error("Could not delete {} replayed dead letters: {}", ids.size(), e.getMessage());
+        }
+    }
+
+    public long count(Class<?> type) {
+        return sink == null ? 0 : sink.count(sourceFor(type));
+    }
+
+    @ReadOperation
+    public Map<String, Map<DeadLetter.Reason, Long>> deadLetters() {
+        Map<String, Map<DeadLetter.Reason, Long>> snapshot = new TreeMap<>();
+        counts.forEach(
+                (source, reasons) -> {
+                    Map<DeadLetter.Reason, Long> bySource = new EnumMap<>(DeadLetter.Reason.class);
+                    reasons.forEach((reason, count) -> bySource.put(reason, count.sum()));
+                    snapshot.put(source, bySource);
+                });
+        return snapshot;
+    }
+}
@@ -0,0 +1,39 @@
+package com.johnlpage.memex.generics.service;
+
+import jakarta.annotation.Nullable;
+import org.bson.types.ObjectId;
+
+import java.util.List;
+
+/**
+ * Where dead letters are kept. Chosen with memex.deadletter.sink, MONGO keeps them in a
+ * collection next to the one they were meant for and FILE in a local append only file. Nothing is
+ * dead lettered unless one is configured.
+ */
+public interface DeadLetterSink {
+
+    void write(List<DeadLetter> letters);
+
+    /**
+     * Returns the oldest dead letters for a source without removing them, so a replay that dies
+     * part way through loses none
+     *
+     * @param after only letters kept after the one with this id, null to start from the oldest
+     * @param max   most to read
+     */
+    List<Kept> read(String source, @Nullable ObjectId after, int max);
+
+    /**
+     * Removes dead letters once what was replayed from them has been written or dead lettered
+     * again
+     */
+    void delete(String source, List<ObjectId> ids);
+
+    long count(String source);
+
+    /**
+     * A dead letter and the id the sink keeps it by, later letters have greater ids
+     */
+    record Kept(ObjectId id, DeadLetter letter) {
+    }
+}
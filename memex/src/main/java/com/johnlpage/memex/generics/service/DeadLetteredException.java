@@ -0,0 +1,17 @@
+package com.johnlpage.memex.generics.service;
+
+import lombok.Getter;
+
+/**
+ * A batch failed to write but every document in it has been dead lettered, so whatever is loading
+ * the stream can carry on.
+ */
+@Getter
+public class DeadLetteredException extends RuntimeException {
+    private final int documents;
+
+    public DeadLetteredException(int documents, Throwable cause) {
+        super("Dead lettered " + documents + " documents: " + cause.getMessage(), cause);
+        this.documents = documents;
+    }
+}
@@ -0,0 +1,193 @@
+package com.johnlpage.memex.generics.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decompresses a stream on another thread, so the load's split stage isn't also doing the
+ * decompression. The decompressing thread fills chunks into a bounded queue and waits when it is
+ * full, so it never gets more than maxChunks ahead of the reader and memory stays bounded however
+ * big the body is.
+ *
+ * <p>An error decompressing is thrown from the reader's next read once the chunks before it have
+ * been read. Closing the stream closes the compressed stream, interrupts the decompressing thread
+ * and waits a short while for it to finish, so nothing goes on reading a request body after the
+ * request is over.
+ */
+public class DecompressingInputStream extends InputStream {
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final byte[] END = new byte[0];
+    private static final long CLOSE_WAIT_MILLIS = 5_000;
+    private static final Logger LOG = LoggerFactory.getLogger(DecompressingInputStream.class);
+
+    private final BlockingQueue<byte[]> chunks;
+    private final InputStream compressed;
+    private final CountDownLatch decompressed = new CountDownLatch(1);
+    // The thread decompressing, only while it is, guarded by this
+    private Thread decoder;
+    private volatile boolean closed;
+    private volatile IOException error;
+    private byte[] chunk;
+    private int pos;
+    private boolean finished;
+
+    private DecompressingInputStream(InputStream compressed, int maxChunks) {
+        this.compressed = compressed;
+        this.chunks = new ArrayBlockingQueue<>(maxChunks);
+    }
+
+    /**
+     * @return a stream of the decompressed data, or the stream itself for IDENTITY. If the executor
+     *     has no thread free the data is decompressed on the reader's thread instead.
+     */
+    public static InputStream open(
+            InputStream compressed, ContentEncoding encoding, Executor executor, int maxChunks)
+            throws IOException {
+        if (encoding == ContentEncoding.IDENTITY) {
+            return compressed;
+        }
+        DecompressingInputStream stream = new DecompressingInputStream(compressed, maxChunks);
+        try {
+            executor.execute(() -> stream.decompress(encoding));
+            return stream;
+        } catch (RejectedExecutionException e) {
+            return encoding.decode(compressed);
+        }
+    }
+
+    private void decompress(ContentEncoding encoding) {
+        synchronized (this) {
+            if (closed) {
+                decompressed.countDown();
+                return;
+            }
+            decoder = Thread.currentThread();
+        }
+        try {
+            decompressAll(encoding);
+        } finally {
+            synchronized (this) {
+                decoder = null;
+                // A pooled thread mustn't take an interrupt meant for this stream to its next task
+                Thread.interrupted();
+            }
+            decompressed.countDown();
+        }
+    }
+
+    private void decompressAll(ContentEncoding encoding) {
+        try (InputStream decoded = encoding.decode(compressed)) {
+            while (!closed) {
+                byte[] buffer = new byte[CHUNK_SIZE];
+                int length = decoded.readNBytes(buffer, 0, CHUNK_SIZE);
+                if (length == 0) {
+                    break;
+                }
+                if (!put(length == CHUNK_SIZE ? buffer : Arrays.copyOf(buffer, length))) {
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            if (closed) {
+                return;
+            }
+            error = e;
+        } catch (RuntimeException e) {
+            error = new IOException("Decompression failed", e);
+        }
+        put(END);
+    }
+
+    // Waits for room, giving up if the reader has closed the stream
+    private boolean put(byte[] data) {
+        try {
+            while (!closed) {
+                if (chunks.offer(data, 100, TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    // The next chunk with something left in it, false at the end
+    private boolean nextChunk() throws IOException {
+        while (chunk == null || pos >= chunk.length) {
+            if (finished) {
+                return false;
+            }
+            try {
+                chunk = chunks.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for decompressed data");
+            }
+            pos = 0;
+            if (chunk == END) {
+                finished = true;
+                if (error != null) {
+                    throw error;
+                }
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        return nextChunk() ? chunk[pos++] & 0xFF : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!nextChunk()) {
+            return -1;
+        }
+        int n = Math.min(len, chunk.length - pos);
+        System.arraycopy(chunk, pos, b, off, n);
+        pos += n;
+        return n;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        // Make room in case the decompressing thread is waiting to put
+        chunks.clear();
+        // Ends a read blocked on a stalled client
+        try {
+            compressed.close();
+        } catch (IOException e) {
+            LOG.debug("Could not close compressed stream: {}", e.getMessage());
+        }
+        synchronized (this) {
+            if (decoder != null) {
+                decoder.interrupt();
+            }
+        }
+        try {
+            if (!decompressed.await(CLOSE_WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+                LOG.warn("Decompressing thread did not stop within {}ms of close", CLOSE_WAIT_MILLIS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package com.johnlpage.memex.generics.service;
+
+/**
+ * How the JSON loader shares batches out among the writer threads.
+ */
+public enum DispatchMode {
+    /**
+     * Batches are cut in stream order and written as soon as there is room in the in flight window.
+     * A document whose id is repeated in the stream may be in two batches being written at once.
+     */
+    ORDERED,
+    /**
+     * Each document goes to one of a number of lanes by a hash of its id, and a lane only sends its
+     * next batch once the last one has been written. An id is never being written by two batches at
+     * once, so repeats can't cause write conflicts and the last one in the stream is always the one
+     * left in the database.
+     */
+    PARTITIONED
+}
@@ -0,0 +1,292 @@
+package com.johnlpage.memex.generics.service;
+
+import com.johnlpage.memex.generics.repository.OptimizedMongoLoadRepositoryImpl;
+import com.johnlpage.memex.util.DocumentHash;
+import com.johnlpage.memex.util.ModelMetadata;
+import com.johnlpage.memex.util.OffHeapLongLongMap;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Component;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+/**
+ * Remembers a content hash of the last document written for each id so a reload of a feed that is
+ * mostly unchanged only has to send the documents that did change. The hashes are of the document
+ * as the MappingMongoConverter writes it, less the version field, kept in an OffHeapLongLongMap per
+ * collection of at most mongo.changedetection.max-entries ids. Once that is full new ids are simply
+ * not tracked and always written.
+ *
+ * <p>Because the loader decides whether to write a document before the write has happened, an entry
+ * is in one of two states. A committed entry holds the hash of what is in the database. When a
+ * document is sent to be written its entry is replaced by a pending ticket, so while that write is
+ * in flight any later document with the same id is written too. When the write succeeds the hash is
+ * committed, but only if the ticket is still the one there - if a later write of the same id has
+ * taken over it commits its own hash when it finishes. A failed write removes the entry as the
+ * database could hold either version.
+ *
+ * <p>This only knows about writes made through the loader. If something else changes the documents
+ * (or they are deleted) the cache is wrong until it is seeded again, seed() rebuilds it from a scan
+ * of the collection.
+ */
+@Component
+@Endpoint(id = "documenthashes")
+public class DocumentHashCache {
+
+    /**
+     * Returned by claim() when the document is the same as the last one written
+     */
+    public static final long UNCHANGED = 0L;
+    /**
+     * Returned by claim() when the document has to be written but the cache is full
+     */
+    public static final long UNTRACKED = 1L;
+    /**
+     * Pass as the hash to always write, for deletes
+     */
+    public static final long NO_HASH = -1L;
+
+    private static final Logger LOG = LoggerFactory.getLogger(DocumentHashCache.class);
+    // Tickets have the top bit set, hashes never do
+    private static final long PENDING = Long.MIN_VALUE;
+    private static final long ABSENT = Long.MIN_VALUE;
+    // Split so the parse, batch and write threads don't all queue on one lock
+    private static final int SEGMENTS = 16;
+
+    private final MongoTemplate mongoTemplate;
+    private final MappingMongoConverter mappingMongoConverter;
+    private final int maxEntries;
+    private final Map<String, CollectionHashes> collections = new ConcurrentHashMap<>();
+    private final AtomicLong tickets = new AtomicLong();
+
+    public DocumentHashCache(
+            MongoTemplate mongoTemplate,
+            MappingMongoConverter mappingMongoConverter,
+            @Value("${mongo.changedetection.max-entries:4000000}") int maxEntries) {
+        this.mongoTemplate = mongoTemplate;
+        this.mappingMongoConverter = mappingMongoConverter;
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * The hashes for the collection a model class is stored in, created on first use
+     */
+    public CollectionHashes forType(Class<?> type) {
+        String collection =
+                mappingMongoConverter.getMappingContext().getRequiredPersistentEntity(type).getCollection();
+        return collections.computeIfAbsent(
+                collection, name -> new CollectionHashes(name, ModelMetadata.of(type)));
+    }
+
+    /**
+     * Replaces the hashes for a collection with ones computed from what is in it now, reading only the
+     * fields the model maps. Don't run it while a load into the same collection is in progress.
+     *
+     * @return the number of documents hashed
+     */
+    public <T> long seed(Class<T> type) {
+        CollectionHashes hashes = forType(type);
+        hashes.clear();
+        Query query = new Query();
+        query.fields()
+                .exclude(OptimizedMongoLoadRepositoryImpl.PREVIOUS_VALS)
+                .exclude(OptimizedMongoLoadRepositoryImpl.UPDATE_ID)
+                .exclude(OptimizedMongoLoadRepositoryImpl.LAST_UPDATE_DATE);
+
+        long start = System.currentTimeMillis();
+        long count = 0;
+        try (Stream<T> documents = mongoTemplate.stream(query, type)) {
+            for (T document : (Iterable<T>) documents::iterator) {
+                if (!hashes.seed(hashes.idKey(document), hashes.hashOf(document))) {
+                    LOG.warn("Hash cache for {} is full after {} documents", hashes.name, count);
+                    break;
+                }
+                count++;
+            }
+        }
+        LOG.info(
+                "Seeded hash cache for {} with {} documents in {}ms",
+                hashes.name,
+                count,
+                System.currentTimeMillis() - start);
+        return count;
+    }
+
+    @ReadOperation
+    public Map<String, Snapshot> documentHashes() {
+        Map<String, Snapshot> snapshots = new LinkedHashMap<>();
+        collections.forEach((name, hashes) -> snapshots.put(name, hashes.snapshot()));
+        return snapshots;
+    }
+
+    /**
+     * @param unchanged documents skipped because they were the same as last time
+     * @param untracked documents written without being tracked because the cache was full
+     */
+    public record Snapshot(
+            int entries,
+            int maxEntries,
+            long offHeapBytes,
+            long lookups,
+            long unchanged,
+            long untracked,
+            double unchangedRatio) {
+    }
+
+    /**
+     * The hashes for one collection
+     */
+    public final class CollectionHashes {
+        private final String name;
+        private final ModelMetadata metadata;
+        private final Set<String> excludedFields = new HashSet<>();
+        private final OffHeapLongLongMap[] segments = new OffHeapLongLongMap[SEGMENTS];
+        private final LongAdder lookups = new LongAdder();
+        private final LongAdder unchanged = new LongAdder();
+        private final LongAdder untracked = new LongAdder();
+
+        private CollectionHashes(String name, ModelMetadata metadata) {
+            this.name = name;
+            this.metadata = metadata;
+            // The version changes on every write whether or not anything else did
+            if (metadata.hasVersionField()) {
+                excludedFields.add(metadata.getVersionFieldName());
+            }
+            excludedFields.add("_class");
+            int perSegment = Math.max(1, (maxEntries + SEGMENTS - 1) / SEGMENTS);
+            for (int i = 0; i < SEGMENTS; i++) {
+                segments[i] = new OffHeapLongLongMap(perSegment);
+            }
+        }
+
+        /**
+         * The key a document is tracked under, from its id
+         */
+        public long idKey(Object document) {
+            return DocumentHash.ofId(metadata.getId(document));
+        }
+
+        /**
+         * Hash of the document as it would be written, or NO_HASH if it is flagged to be deleted.
+         * Safe to call from any thread.
+         */
+        public long hashOf(Object document) {
+            if (metadata.isDeleted(document)) {
+                return NO_HASH;
+            }
+            Document mapped = new Document();
+            mappingMongoConverter.write(document, mapped);
+            return DocumentHash.of(mapped, excludedFields);
+        }
+
+        /**
+         * Decides whether a document needs writing, call in the order the documents are to be written.
+         *
+         * @return UNCHANGED to skip it, otherwise a ticket to pass to committed() or failed() once the
+         * write is done
+         */
+        public long claim(long idKey, long hash) {
+            lookups.increment();
+            OffHeapLongLongMap segment = segment(idKey);
+            synchronized (segment) {
+                if (hash != NO_HASH && segment.get(idKey, ABSENT) == hash) {
+                    unchanged.increment();
+                    return UNCHANGED;
+                }
+                long ticket = PENDING | tickets.incrementAndGet();
+                if (!segment.put(idKey, ticket)) {
+                    untracked.increment();
+                    return UNTRACKED;
+                }
+                return ticket;
+            }
+        }
+
+        /**
+         * The write for a claim succeeded
+         */
+        public void committed(long idKey, long ticket, long hash) {
+            if (ticket == UNTRACKED) {
+                return;
+            }
+            OffHeapLongLongMap segment = segment(idKey);
+            synchronized (segment) {
+                if (hash == NO_HASH) {
+                    // Deleted, nothing to compare the next one with
+                    segment.remove(idKey, ticket);
+                } else {
+                    segment.replace(idKey, ticket, hash);
+                }
+            }
+        }
+
+        /**
+         * The write for a claim failed, so what the database holds for this id isn't known
+         */
+        public void failed(long idKey, long ticket) {
+            if (ticket == UNTRACKED) {
+                return;
+            }
+            OffHeapLongLongMap segment = segment(idKey);
+            synchronized (segment) {
+                segment.remove(idKey);
+            }
+        }
+
+        private boolean seed(long idKey, long hash) {
+            OffHeapLongLongMap segment = segment(idKey);
+            synchronized (segment) {
+                return segment.put(idKey, hash);
+            }
+        }
+
+        private void clear() {
+            for (OffHeapLongLongMap segment : segments) {
+                synchronized (segment) {
+                    segment.clear();
+                }
+            }
+        }
+
+        private OffHeapLongLongMap segment(long idKey) {
+            return segments[(int) (idKey >>> 60) & (SEGMENTS - 1)];
+        }
+
+        private Snapshot snapshot() {
+            int entries = 0;
+            int capacity = 0;
+            long bytes = 0;
+            for (OffHeapLongLongMap segment : segments) {
+                synchronized (segment) {
+                    entries += segment.size();
+                    capacity += segment.maxEntries();
+                    bytes += segment.offHeapBytes();
+                }
+            }
+            long lookupCount = lookups.sum();
+            long unchangedCount = unchanged.sum();
+            return new Snapshot(
+                    entries,
+                    capacity,
+                    bytes,
+                    lookupCount,
+                    unchangedCount,
+                    untracked.sum(),
+                    lookupCount == 0 ? 0 : (double) unchangedCount / lookupCount);
+        }
+    }
+}
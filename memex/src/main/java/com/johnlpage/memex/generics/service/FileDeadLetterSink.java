@@ -0,0 +1,144 @@
+package com.johnlpage.memex.generics.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import jakarta.annotation.Nullable;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
+
+/**
+ * Appends dead letters to a local file per collection, one JSON object per line, in
+ * memex.deadletter.directory. Handy where the database itself is what's failing. Each line has
+ * the letter's id as well. Reading letters reads the whole file and deleting them rewrites it, fine
+ * for the occasional replay but not meant for millions.
+ */
+@Component
+@ConditionalOnProperty(name = "memex.deadletter.sink", havingValue = "FILE")
+public class FileDeadLetterSink implements DeadLetterSink {
+
+    private static final String ID = "id";
+    private final Path directory;
+    private final ObjectMapper objectMapper;
+
+    public FileDeadLetterSink(
+            @Value("${memex.deadletter.directory:deadletters}") String directory,
+            ObjectMapper objectMapper) {
+        this.directory = Path.of(directory);
+        this.objectMapper = objectMapper;
+    }
+
+    private Path file(String source) {
+        return directory.resolve(source + ".deadletter.jsonl");
+    }
+
+    @Override
+    public synchronized void write(List<DeadLetter> letters) {
+        Map<String, List<DeadLetter>> bySource = new LinkedHashMap<>();
+        for (DeadLetter letter : letters) {
+            bySource.computeIfAbsent(letter.source(), s -> new ArrayList<>()).add(letter);
+        }
+        try {
+            Files.createDirectories(directory);
+            for (Map.Entry<String, List<DeadLetter>> entry : bySource.entrySet()) {
+                try (BufferedWriter writer =
+                             Files.newBufferedWriter(
+                                     file(entry.getKey()),
+                                     StandardCharsets.UTF_8,
+                                     StandardOpenOption.CREATE,
+                                     StandardOpenOption.APPEND)) {
+                    for (DeadLetter letter : entry.getValue()) {
+                        ObjectNode line =
+                                objectMapper.createObjectNode().put(ID, new ObjectId().toHexString());
+                        line.setAll((ObjectNode) objectMapper.valueToTree(letter));
+                        writer.write(objectMapper.writeValueAsString(line));
+                        writer.newLine();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public synchronized List<Kept> read(String source, @Nullable ObjectId after, int max) {
+        Path file = file(source);
+        if (!Files.exists(file)) {
+            return List.of();
+        }
+        List<Kept> letters = new ArrayList<>();
+        try (Stream<String> lines = Files.lines(file, StandardCharsets.UTF_8)) {
+            for (String line : (Iterable<String>) lines::iterator) {
+                Kept kept = parse(line);
+                if (after == null || kept.id().compareTo(after) > 0) {
+                    letters.add(kept);
+                    if (letters.size() >= max) {
+                        break;
+                    }
+                }
+            }
+            return letters;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public synchronized void delete(String source, List<ObjectId> ids) {
+        Path file = file(source);
+        if (ids.isEmpty() || !Files.exists(file)) {
+            return;
+        }
+        Set<ObjectId> deleted = new HashSet<>(ids);
+        try {
+            List<String> rest = new ArrayList<>();
+            for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                if (!deleted.contains(parse(line).id())) {
+                    rest.add(line);
+                }
+            }
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            Files.write(tmp, rest, StandardCharsets.UTF_8);
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private Kept parse(String line) throws IOException {
+        ObjectNode node = (ObjectNode) objectMapper.readTree(line);
+        ObjectId id = new ObjectId(node.remove(ID).asText());
+        return new Kept(id, objectMapper.treeToValue(node, DeadLetter.class));
+    }
+
+    @Override
+    public synchronized long count(String source) {
+        Path file = file(source);
+        if (!Files.exists(file)) {
+            return 0;
+        }
+        try (Stream<String> lines = Files.lines(file, StandardCharsets.UTF_8)) {
+            return lines.count();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package com.johnlpage.memex.generics.service;
+
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * How far the load of one file has got. A file is loaded as one or more ranges, possibly at the
+ * same time, so everything here is updated from several threads.
+ */
+public class FileLoadProgress {
+
+    public enum State {
+        PENDING,
+        LOADING,
+        DONE,
+        FAILED
+    }
+
+    private final Path file;
+    private final long size;
+    private final int ranges;
+    private final boolean split;
+    private final AtomicInteger rangesLoaded = new AtomicInteger();
+    private final AtomicInteger rangesFailed = new AtomicInteger();
+    private final AtomicInteger rangesFinished = new AtomicInteger();
+    private final LongAdder bytesRead = new LongAdder();
+    private final AtomicLong updates = new AtomicLong();
+    private final AtomicLong deletes = new AtomicLong();
+    private final AtomicLong inserts = new AtomicLong();
+    private final Map<String, Long> errors = new ConcurrentHashMap<>();
+    private final AtomicLong started = new AtomicLong();
+    private volatile long finished;
+    private volatile String failure;
+
+    /**
+     * @param split whether the ranges are memory mapped parts of the file, otherwise there is one
+     *              range read as a stream
+     */
+    FileLoadProgress(Path file, long size, int ranges, boolean split) {
+        this.file = file;
+        this.size = size;
+        this.ranges = ranges;
+        this.split = split;
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    void rangeStarted() {
+        started.compareAndSet(0, System.currentTimeMillis());
+    }
+
+    /**
+     * @param bytes more bytes of the file read, compressed bytes for a compressed file
+     */
+    void read(long bytes) {
+        bytesRead.add(bytes);
+    }
+
+    /**
+     * @return true if that was the last range of the file to finish
+     */
+    boolean rangeLoaded(MongoDbJsonStreamingLoaderService.JsonStreamingLoadResponse response) {
+        add(response.updates(), response.deletes(), response.inserts(), response.errors());
+        return rangeFinished(rangesLoaded);
+    }
+
+    boolean rangeFailed(DataLoadException e) {
+        add(e.getUpdates(), e.getDeletes(), e.getInserts(), e.getErrors());
+        return rangeFailed(e.getMessage());
+    }
+
+    boolean rangeFailed(String message) {
+        if (failure == null) {
+            failure = message;
+        }
+        return rangeFinished(rangesFailed);
+    }
+
+    private void add(long updated, long deleted, long inserted, Map<String, Long> rangeErrors) {
+        updates.addAndGet(updated);
+        deletes.addAndGet(deleted);
+        inserts.addAndGet(inserted);
+        rangeErrors.forEach((reason, n) -> errors.merge(reason, n, Long::sum));
+    }
+
+    private boolean rangeFinished(AtomicInteger counter) {
+        counter.incrementAndGet();
+        if (rangesFinished.incrementAndGet() < ranges) {
+            return false;
+        }
+        finished = System.currentTimeMillis();
+        return true;
+    }
+
+    public State getState() {
+        if (started.get() == 0) {
+            return State.PENDING;
+        }
+        if (rangesFinished.get() < ranges) {
+            return State.LOADING;
+        }
+        return rangesFailed.get() > 0 ? State.FAILED : State.DONE;
+    }
+
+    public Snapshot snapshot() {
+        long start = started.get();
+        long end = finished != 0 ? finished : System.currentTimeMillis();
+        return new Snapshot(
+                file.toString(),
+                getState(),
+                size,
+                Math.min(bytesRead.sum(), size),
+                ranges,
+                split,
+                rangesLoaded.get(),
+                rangesFailed.get(),
+                updates.get(),
+                deletes.get(),
+                inserts.get(),
+                new TreeMap<>(errors),
+                start == 0 ? 0 : end - start,
+                failure);
+    }
+
+    /**
+     * @param bytes     size of the file on disk
+     * @param bytesRead how much of it has been read
+     * @param split     whether the file was split into memory mapped ranges
+     * @param errors    documents not loaded, by reason, as in the load response
+     * @param failure   why the first range that failed did, if any have
+     */
+    public record Snapshot(
+            String file,
+            State state,
+            long bytes,
+            long bytesRead,
+            int ranges,
+            boolean split,
+            int rangesLoaded,
+            int rangesFailed,
+            long updates,
+            long deletes,
+            long inserts,
+            Map<String, Long> errors,
+            long elapsedMillis,
+            String failure) {
+
+        public int percentRead() {
+            return bytes == 0 ? 100 : (int) (bytesRead * 100 / bytes);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.johnlpage.memex.generics.service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A part of an NDJSON file that can be loaded on its own. Ranges end just after a newline, so as
+ * long as there is one object per line none of them starts or ends part way through a record.
+ *
+ * @param start offset of the first byte of the range
+ * @param end   offset just past the last byte
+ */
+record FileRange(long start, long end) {
+
+    private static final int PROBE_SIZE = 8 * 1024;
+
+    long length() {
+        return end - start;
+    }
+
+    /**
+     * Cuts a file into ranges of about rangeSize bytes, each one running on to the end of the line
+     * it would otherwise have stopped in
+     */
+    static List<FileRange> split(FileChannel channel, long rangeSize) throws IOException {
+        if (rangeSize < 1) {
+            throw new IllegalArgumentException("rangeSize must be at least 1");
+        }
+        long size = channel.size();
+        List<FileRange> ranges = new ArrayList<>();
+        ByteBuffer probe = ByteBuffer.allocate(PROBE_SIZE);
+        long start = 0;
+        while (start < size) {
+            long end = size - start <= rangeSize ? size : nextLineStart(channel, start + rangeSize, probe);
+            ranges.add(new FileRange(start, end));
+            start = end;
+        }
+        return ranges;
+    }
+
+    // The start of the first line at or after from
+    private static long nextLineStart(FileChannel channel, long from, ByteBuffer probe)
+            throws IOException {
+        // Look from the byte before so a range can end on a newline exactly where it was aimed
+        long position = from - 1;
+        while (true) {
+            probe.clear();
+            int n = channel.read(probe, position);
+            if (n < 0) {
+                return channel.size();
+            }
+            for (int i = 0; i < n; i++) {
+                if (probe.get(i) == '\n') {
+                    return position + i + 1;
+                }
+            }
+            position += n;
+        }
+    }
+
+    /**
+     * @return the first byte of the file that isn't whitespace, or -1 if there isn't one
+     */
+    static int firstSignificantByte(FileChannel channel) throws IOException {
+        ByteBuffer probe = ByteBuffer.allocate(PROBE_SIZE);
+        long position = 0;
+        int n;
+        while ((n = channel.read(probe.clear(), position)) > 0) {
+            for (int i = 0; i < n; i++) {
+                byte b = probe.get(i);
+                if (b != ' ' && b != '\t' && b != '\r' && b != '\n') {
+                    return b;
+                }
+            }
+            position += n;
+        }
+        return -1;
+    }
+}
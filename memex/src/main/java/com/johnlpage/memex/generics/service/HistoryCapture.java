@@ -0,0 +1,29 @@
+package com.johnlpage.memex.generics.service;
+
+/**
+ * How a batch written with UPDATEWITHHISTORY gets the previous values of what it changed to the
+ * HistoryTriggerService, inside the batch's transaction.
+ */
+public enum HistoryCapture {
+    /**
+     * One bulk write, then the trigger finds the documents the write changed and reads their
+     * previous values back - two round trips whatever the batch size.
+     */
+    REQUERY,
+    /**
+     * Each document is written with its own findAndModify that returns its previous values and
+     * whether it was inserted, so there is nothing to read back - one round trip per document.
+     */
+    RETURNED,
+    /**
+     * Chooses between the two for each batch from what they have cost so far, see
+     * HistoryCapturePolicy. Batches bigger than memex.history.returned-max-batch always use
+     * REQUERY.
+     */
+    AUTO,
+    /**
+     * No transaction and no trigger, ChangeStreamHistoryWriter writes the history afterwards from a
+     * change stream on the collection.
+     */
+    CHANGE_STREAM
+}
@@ -0,0 +1,162 @@
+package com.johnlpage.memex.generics.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Chooses how each UPDATEWITHHISTORY batch captures its history. With memex.history.capture=AUTO
+ * the repository reports how long each batch's transaction was open, from the first write to the
+ * end of the commit, and this keeps a smoothed time per document for REQUERY and RETURNED in each
+ * collection. Small batches then use whichever has been cheaper. A RETURNED batch is a round trip
+ * per document, so it only wins for small batches, and only those up to returned-max-batch are
+ * compared. Every probe-every'th of them uses the other one, so a change in which is cheaper is
+ * noticed.
+ *
+ * <p>The choices and costs so far are available from the historycapture actuator endpoint, and the
+ * transaction times as memex.load.transaction tagged with the capture used.
+ */
+@Component
+@Endpoint(id = "historycapture")
+public class HistoryCapturePolicy {
+
+    private static final Logger LOG = LoggerFactory.getLogger(HistoryCapturePolicy.class);
+    // Weight given to each new observation in the smoothed costs
+    private static final double SMOOTHING = 0.2;
+
+    private final HistoryCapture capture;
+    private final int returnedMaxBatch;
+    private final int probeEvery;
+    private final Map<String, CollectionState> states = new ConcurrentHashMap<>();
+
+    public HistoryCapturePolicy(
+            @Value("${memex.history.capture:AUTO}") HistoryCapture capture,
+            @Value("${memex.history.returned-max-batch:32}") int returnedMaxBatch,
+            @Value("${memex.history.probe-every:20}") int probeEvery) {
+        this.capture = capture;
+        this.returnedMaxBatch = returnedMaxBatch;
+        this.probeEvery = Math.max(2, probeEvery);
+    }
+
+    /**
+     * @return true if the history is written from a change stream rather than in the batches'
+     * transactions
+     */
+    public boolean isChangeStream() {
+        return capture == HistoryCapture.CHANGE_STREAM;
+    }
+
+    /**
+     * @return REQUERY or RETURNED for a batch about to be written
+     */
+    public HistoryCapture choose(String collection, int documents) {
+        if (capture != HistoryCapture.AUTO) {
+            return capture;
+        }
+        if (documents > returnedMaxBatch) {
+            return HistoryCapture.REQUERY;
+        }
+        return states.computeIfAbsent(collection, c -> new CollectionState()).choose(collection);
+    }
+
+    /**
+     * Called by the repository once a batch's transaction has committed
+     */
+    public void recordTransaction(
+            String collection, HistoryCapture used, int documents, long transactionNanos) {
+        // Only batches small enough for either are a fair comparison
+        if (capture == HistoryCapture.AUTO && documents > 0 && documents <= returnedMaxBatch) {
+            states.computeIfAbsent(collection, c -> new CollectionState())
+                    .record(used, (double) transactionNanos / documents);
+        }
+    }
+
+    @ReadOperation
+    public Map<String, Snapshot> historyCapture() {
+        Map<String, Snapshot> snapshots = new TreeMap<>();
+        states.forEach((collection, state) -> snapshots.put(collection, state.snapshot()));
+        return snapshots;
+    }
+
+    /**
+     * @param requeryNanosPerDocument  smoothed transaction time per document with REQUERY
+     * @param returnedNanosPerDocument the same with RETURNED
+     * @param choice                   what a small batch uses next, unless it is a probe
+     */
+    public record Snapshot(
+            double requeryNanosPerDocument,
+            double returnedNanosPerDocument,
+            long requeryBatches,
+            long returnedBatches,
+            HistoryCapture choice) {
+    }
+
+    private final class CollectionState {
+        private double requeryNanosPerDocument;
+        private double returnedNanosPerDocument;
+        private long requeryBatches;
+        private long returnedBatches;
+        private long choices;
+        private HistoryCapture cheaper = HistoryCapture.REQUERY;
+
+        synchronized HistoryCapture choose(String collection) {
+            // Try each at least once before comparing them
+            if (requeryBatches == 0) {
+                return HistoryCapture.REQUERY;
+            }
+            if (returnedBatches == 0) {
+                return HistoryCapture.RETURNED;
+            }
+            HistoryCapture next =
+                    returnedNanosPerDocument < requeryNanosPerDocument
+                            ? HistoryCapture.RETURNED
+                            : HistoryCapture.REQUERY;
+            if (next != cheaper) {
+                LOG.info(
+                        "{} history capture for small batches {} -> {} ({} vs {} ns per document)",
+                        collection,
+                        cheaper,
+                        next,
+                        Math.round(requeryNanosPerDocument),
+                        Math.round(returnedNanosPerDocument));
+                cheaper = next;
+            }
+            if (++choices % probeEvery == 0) {
+                return cheaper == HistoryCapture.RETURNED
+                        ? HistoryCapture.REQUERY
+                        : HistoryCapture.RETURNED;
+            }
+            return cheaper;
+        }
+
+        synchronized void record(HistoryCapture used, double nanosPerDocument) {
+            if (used == HistoryCapture.RETURNED) {
+                returnedBatches++;
+                returnedNanosPerDocument = smooth(returnedNanosPerDocument, nanosPerDocument);
+            } else {
+                requeryBatches++;
+                requeryNanosPerDocument = smooth(requeryNanosPerDocument, nanosPerDocument);
+            }
+        }
+
+        private double smooth(double current, double sample) {
+            return current == 0 ? sample : current + SMOOTHING * (sample - current);
+        }
+
+        synchronized Snapshot snapshot() {
+            return new Snapshot(
+                    requeryNanosPerDocument,
+                    returnedNanosPerDocument,
+                    requeryBatches,
+                    returnedBatches,
+                    cheaper);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.johnlpage.memex.generics.service;
+
+import com.johnlpage.memex.generics.repository.OptimizedMongoLoadRepositoryImpl;
+import org.bson.BsonTimestamp;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Decides which changes also write a full snapshot of the record to its _history collection. A
+ * history record only holds the values a change replaced, so an as-of query rebuilds a version by
+ * replaying every change since back from the current one. With a snapshot after roughly every
+ * memex.history.snapshot-every changes to a record it only replays back from the nearest snapshot
+ * after the as-of time instead, however long the record's history is.
+ *
+ * <p>Whether a change is snapshotted is worked out from the change itself rather than from a count
+ * per record, so writing history stays a single insert with nothing more to read or keep. A
+ * snapshot has the same timestamp as the change it follows and holds the whole record after it.
+ * Zero turns snapshots off.
+ */
+@Component
+public class HistorySnapshots {
+
+    public static final String SNAPSHOT = "snapshot";
+    // The whole document, returned alongside the __previousValues of a change that is snapshotted
+    public static final String SNAPSHOT_FIELD = "__snapshot";
+
+    private final int every;
+
+    public HistorySnapshots(@Value("${memex.history.snapshot-every:100}") int every) {
+        this.every = Math.max(0, every);
+    }
+
+    /**
+     * For history written in the batch's transaction
+     */
+    public boolean isDue(Object recordId, ObjectId updateId) {
+        return every > 0 && Math.floorMod(mix(Objects.hash(recordId, updateId)), every) == 0;
+    }
+
+    /**
+     * For history written from a change stream, the same as {@link #dueExpression()}
+     */
+    public boolean isDue(BsonTimestamp clusterTime) {
+        return every > 0
+                && Math.floorMod((long) clusterTime.getTime() + clusterTime.getInc(), every) == 0;
+    }
+
+    /**
+     * True for a change stream event that is snapshotted, so only those carry the whole post-image.
+     * Each write in a batch has its own increment, so they aren't all snapshotted together.
+     */
+    public Document dueExpression() {
+        if (every == 0) {
+            return new Document("$literal", false);
+        }
+        Document sinceEpoch =
+                new Document(
+                        "$add",
+                        List.of(
+                                new Document("$tsSecond", "$clusterTime"),
+                                new Document("$tsIncrement", "$clusterTime")));
+        return new Document("$eq", List.of(new Document("$mod", List.of(sinceEpoch, every)), 0));
+    }
+
+    /*
+     * ObjectIds from one process hash to nearly consecutive values, so without mixing the choice
+     * would follow the record id and some records would never be snapshotted. This is the MurmurHash3
+     * 64 bit finalizer.
+     */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * A snapshot of a record as a change left it
+     *
+     * @param document the whole document after the change, any __previousValues are left out
+     */
+    static DocumentHistory snapshot(Object recordId, Instant timestamp, Document document) {
+        Document state = new Document(document);
+        state.remove(OptimizedMongoLoadRepositoryImpl.PREVIOUS_VALS);
+        DocumentHistory snapshot = new DocumentHistory();
+        snapshot.setRecordId(recordId);
+        snapshot.setType(SNAPSHOT);
+        snapshot.setTimestamp(timestamp);
+        snapshot.setChanges(state);
+        return snapshot;
+    }
+}
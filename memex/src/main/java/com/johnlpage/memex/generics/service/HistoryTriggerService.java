@@ -1,12 +1,11 @@
 package com.johnlpage.memex.generics.service;
 
-import static com.johnlpage.memex.util.AnnotationExtractor.getIdFromModel;
-import static com.johnlpage.memex.util.AnnotationExtractor.hasDeleteFlag;
-
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.johnlpage.memex.generics.repository.CapturedHistoryResult;
 import com.johnlpage.memex.generics.repository.OptimizedMongoLoadRepositoryImpl;
 import com.johnlpage.memex.util.AnnotationExtractor;
+import com.johnlpage.memex.util.ModelMetadata;
 import com.mongodb.bulk.BulkWriteResult;
 import com.mongodb.bulk.BulkWriteUpsert;
 import com.mongodb.client.ClientSession;
@@ -18,6 +17,7 @@ import org.bson.Document;
 import org.bson.types.ObjectId;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
@@ -34,6 +34,8 @@ public abstract class HistoryTriggerService<T> extends PostWriteTriggerService<T
     private static final Logger LOG = LoggerFactory.getLogger(HistoryTriggerService.class);
     private final MongoTemplate mongoTemplate;
     private final ObjectMapper objectMapper;
+    @Autowired
+    private HistorySnapshots snapshots;
 
     public HistoryTriggerService(MongoTemplate mongoTemplate, ObjectMapper objectMapper) {
         super();
@@ -53,6 +55,7 @@ public abstract class HistoryTriggerService<T> extends PostWriteTriggerService<T
         List<DocumentHistory> history = new ArrayList<>();
 
         String collectionName = AnnotationExtractor.getCollectionName(clazz);
+        ModelMetadata metadata = ModelMetadata.of(clazz);
 
         // Add inserts to history
         if (!result.getUpserts().isEmpty()) {
@@ -66,16 +69,20 @@ public abstract class HistoryTriggerService<T> extends PostWriteTriggerService<T
             }
         }
 
-        // Add updates
-        if (result.getModifiedCount() > 0) {
+        // Add updates, with HistoryCapture.RETURNED the writes have already returned them
+        if (result instanceof CapturedHistoryResult captured) {
+            List<Document> changed = captured.getChanged();
+            addReturnedSnapshots(session, collectionName, changed, updateId);
+            addUpdates(history, changed);
+        } else if (result.getModifiedCount() > 0) {
             Query query = new Query();
             List<Object> testIdList = new ArrayList<>();
+            List<Object> snapshotIds = new ArrayList<>();
             for (T v : documents) {
-                try {
-                    testIdList.add(
-                            AnnotationExtractor.getIdFromModel(v)); // This is easier to read than stream().map()
-                } catch (IllegalAccessException e) {
-                    LOG.error("Model has no defined @ID !!{}", e.getMessage());
+                Object id = metadata.getId(v);
+                testIdList.add(id); // This is easier to read than stream().map()
+                if (snapshots.isDue(id, updateId)) {
+                    snapshotIds.add(id);
                 }
             }
 
@@ -87,26 +94,25 @@ public abstract class HistoryTriggerService<T> extends PostWriteTriggerService<T
                                             + OptimizedMongoLoadRepositoryImpl.UPDATE_ID)
                             .is(updateId));
             query.fields().include(OptimizedMongoLoadRepositoryImpl.PREVIOUS_VALS);
-            List<Document> modifiedOnly =
-                    mongoTemplate.withSession(session).find(query, Document.class, collectionName);
+            if (!snapshotIds.isEmpty()) {
+                // The whole document as well for those being snapshotted, in the same read
+                Document wholeIfDue =
+                        new Document(
+                                "$cond",
+                                List.of(
+                                        new Document("$in", List.of("$_id", new Document("$literal", snapshotIds))),
+                                        "$$ROOT",
+                                        "$$REMOVE"));
+                query.fields().project(() -> wholeIfDue).as(HistorySnapshots.SNAPSHOT_FIELD);
+            }
+            List<Document> modifiedOnly;
+            try (BatchTracer.Span read = BatchTracer.current().span(BatchTracer.Phase.HISTORY_READ)) {
+                modifiedOnly =
+                        mongoTemplate.withSession(session).find(query, Document.class, collectionName);
+            }
 
             // We want to take those and write them to another collection
-
-            for (Document v : modifiedOnly) {
-                DocumentHistory vih = new DocumentHistory();
-                vih.setRecordId(v.get("_id"));
-                vih.setType("update");
-                Document previousValues =
-                        v.get(OptimizedMongoLoadRepositoryImpl.PREVIOUS_VALS, Document.class);
-                cleanMap(previousValues);
-                // Also remove __updatedId and __lastUpdateDate from this
-                previousValues.remove(OptimizedMongoLoadRepositoryImpl.UPDATE_ID);
-                previousValues.remove(OptimizedMongoLoadRepositoryImpl.LAST_UPDATE_DATE);
-
-                vih.setChanges(previousValues);
-                vih.setTimestamp(Instant.now());
-                history.add(vih); // Add this history records to the history list
-            }
+            addUpdates(history, modifiedOnly);
         }
 
         // We also need to capture any that have been deleted
@@ -116,9 +122,9 @@ public abstract class HistoryTriggerService<T> extends PostWriteTriggerService<T
 
         if (result.getDeletedCount() > 0) {
             for (T v : documents) {
-                if (hasDeleteFlag(v)) {
+                if (metadata.isDeleted(v)) {
                     DocumentHistory vih = new DocumentHistory();
-                    vih.setRecordId(getIdFromModel(v));
+                    vih.setRecordId(metadata.getId(v));
                     Map<String, Object> finalState;
                     finalState = objectMapper.convertValue(v, new TypeReference<>() {
                     });
@@ -131,12 +137,67 @@ public abstract class HistoryTriggerService<T> extends PostWriteTriggerService<T
         }
 
         // Write them all in one operation, we can use insert which is fast
-        mongoTemplate.withSession(session).insert(history, collectionName + HISTORY_POSTFIX);
+        try (BatchTracer.Span insert = BatchTracer.current().span(BatchTracer.Phase.HISTORY_INSERT)) {
+            mongoTemplate.withSession(session).insert(history, collectionName + HISTORY_POSTFIX);
+        }
+    }
+
+    private void addUpdates(List<DocumentHistory> history, List<Document> modifiedOnly) {
+        for (Document v : modifiedOnly) {
+            DocumentHistory vih = new DocumentHistory();
+            vih.setRecordId(v.get("_id"));
+            vih.setType("update");
+            vih.setChanges(
+                    previousChanges(v.get(OptimizedMongoLoadRepositoryImpl.PREVIOUS_VALS, Document.class)));
+            vih.setTimestamp(Instant.now());
+            history.add(vih); // Add this history records to the history list
+            // A snapshot has the same timestamp as the change it follows
+            Document whole = v.get(HistorySnapshots.SNAPSHOT_FIELD, Document.class);
+            if (whole != null) {
+                history.add(HistorySnapshots.snapshot(vih.getRecordId(), vih.getTimestamp(), whole));
+            }
+        }
+    }
+
+    /*
+     * The writes only returned the __previousValues, RETURNED batches are small so there is rarely
+     * anything due and this read is mostly skipped
+     */
+    private void addReturnedSnapshots(
+            ClientSession session, String collectionName, List<Document> changed, ObjectId updateId) {
+        Map<Object, Document> due = new HashMap<>();
+        for (Document v : changed) {
+            if (snapshots.isDue(v.get("_id"), updateId)) {
+                due.put(v.get("_id"), v);
+            }
+        }
+        if (due.isEmpty()) {
+            return;
+        }
+        Query query = new Query(Criteria.where("_id").in(due.keySet()));
+        query.fields().exclude(OptimizedMongoLoadRepositoryImpl.PREVIOUS_VALS);
+        try (BatchTracer.Span read = BatchTracer.current().span(BatchTracer.Phase.HISTORY_READ)) {
+            for (Document whole :
+                    mongoTemplate.withSession(session).find(query, Document.class, collectionName)) {
+                due.get(whole.get("_id")).put(HistorySnapshots.SNAPSHOT_FIELD, whole);
+            }
+        }
+    }
+
+    /**
+     * The changes for a history record from a document's __previousValues, which is modified
+     */
+    static Document previousChanges(Document previousValues) {
+        cleanMap(previousValues);
+        // Also remove __updatedId and __lastUpdateDate from this
+        previousValues.remove(OptimizedMongoLoadRepositoryImpl.UPDATE_ID);
+        previousValues.remove(OptimizedMongoLoadRepositoryImpl.LAST_UPDATE_DATE);
+        return previousValues;
     }
 
     // Remove all the empty children so our history isn't full of empty objects
 
-    boolean cleanMap(Map<String, Object> map) {
+    static boolean cleanMap(Map<String, Object> map) {
         Iterator<Map.Entry<String, Object>> iterator = map.entrySet().iterator();
         boolean hasNonEmptyChildren = false;
         while (iterator.hasNext()) {
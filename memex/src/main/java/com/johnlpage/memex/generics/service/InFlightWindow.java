@@ -0,0 +1,93 @@
+package com.johnlpage.memex.generics.service;
+
+import java.util.concurrent.Semaphore;
+
+/**
+ * Limits how much a single load has sent to the database and not had back, both as a number of
+ * batches and as a number of bytes. The loader acquires space for a batch before handing it to a
+ * write thread and releases it when the write completes, so if the database slows down the loader
+ * stops reading instead of queueing up batches, or ending up writing them itself on the request
+ * thread.
+ *
+ * <p>A batch bigger than the whole byte window is allowed through on its own rather than waiting
+ * forever.
+ */
+public class InFlightWindow {
+
+    private final int maxBatches;
+    private final int maxBytes;
+    private final Semaphore batches;
+    private final Semaphore bytes;
+
+    public InFlightWindow(int maxBatches, long maxBytes) {
+        if (maxBatches < 1 || maxBytes < 1) {
+            throw new IllegalArgumentException(
+                    "In flight window must allow at least one batch and one byte");
+        }
+        this.maxBatches = maxBatches;
+        this.maxBytes = (int) Math.min(maxBytes, Integer.MAX_VALUE);
+        this.batches = new Semaphore(maxBatches);
+        this.bytes = new Semaphore(this.maxBytes);
+    }
+
+    /**
+     * Waits until there is room for a batch of this many bytes and takes it.
+     *
+     * @return nanoseconds spent waiting, 0 if there was room straight away
+     */
+    public long acquire(long batchBytes) throws InterruptedException {
+        int permits = permitsFor(batchBytes);
+        long start = System.nanoTime();
+        boolean waited = false;
+        if (!batches.tryAcquire()) {
+            waited = true;
+            batches.acquire();
+        }
+        if (!bytes.tryAcquire(permits)) {
+            waited = true;
+            try {
+                bytes.acquire(permits);
+            } catch (InterruptedException e) {
+                batches.release();
+                throw e;
+            }
+        }
+        return waited ? Math.max(1, System.nanoTime() - start) : 0;
+    }
+
+    /**
+     * Gives back the room taken by acquire for a batch of this many bytes
+     */
+    public void release(long batchBytes) {
+        bytes.release(permitsFor(batchBytes));
+        batches.release();
+    }
+
+    /**
+     * Waits until everything acquired has been released
+     */
+    public void awaitEmpty() throws InterruptedException {
+        batches.acquire(maxBatches);
+        batches.release(maxBatches);
+    }
+
+    public int getBatchesInFlight() {
+        return maxBatches - batches.availablePermits();
+    }
+
+    public long getBytesInFlight() {
+        return maxBytes - (long) bytes.availablePermits();
+    }
+
+    public int getMaxBatches() {
+        return maxBatches;
+    }
+
+    public int getMaxBytes() {
+        return maxBytes;
+    }
+
+    private int permitsFor(long batchBytes) {
+        return (int) Math.max(1, Math.min(batchBytes, maxBytes));
+    }
+}
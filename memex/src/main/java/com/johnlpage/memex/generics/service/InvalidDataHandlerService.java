@@ -1,14 +1,27 @@
 package com.johnlpage.memex.generics.service;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Set;
 
 import jakarta.validation.ConstraintViolation;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 
 public class InvalidDataHandlerService<T> {
     private static final Logger LOG = LoggerFactory.getLogger(InvalidDataHandlerService.class);
 
+    // Set when this is a Spring bean, rejected documents are dead lettered if a sink is configured
+    private DeadLetterService deadLetters;
+
+    @Autowired(required = false)
+    public void setDeadLetters(DeadLetterService deadLetters) {
+        this.deadLetters = deadLetters;
+    }
+
     // Override to decide what to do with invalid data
     public boolean handleInvalidData(
             T document, Set<ConstraintViolation<T>> violations, Class<T> clazz) {
@@ -17,4 +30,49 @@ public class InvalidDataHandlerService<T> {
                 violations.size());
         return false;
     }
+
+    /**
+     * Called once with all the invalid documents in a batch or parse chunk, override this rather
+     * than handleInvalidData to deal with them together - for example to save them in one write.
+     * By default asks handleInvalidData about each one and dead letters the ones it rejects.
+     *
+     * @return the invalid documents that should be written anyway
+     */
+    public List<T> handleInvalidBatch(List<InvalidDocument<T>> invalid, Class<T> clazz) {
+        List<T> accepted = new ArrayList<>();
+        for (InvalidDocument<T> document : invalid) {
+            if (handleInvalidData(document.document(), document.violations(), clazz)) {
+                accepted.add(document.document());
+            }
+        }
+        Set<T> acceptedSet = Collections.newSetFromMap(new IdentityHashMap<>());
+        acceptedSet.addAll(accepted);
+        deadLetter(
+                invalid.stream().filter(document -> !acceptedSet.contains(document.document())).toList(),
+                clazz);
+        return accepted;
+    }
+
+    /**
+     * Sends invalid documents to the dead letter sink, with their violations as the error
+     */
+    protected void deadLetter(List<InvalidDocument<T>> rejected, Class<T> clazz) {
+        if (deadLetters == null || !deadLetters.isEnabled() || rejected.isEmpty()) {
+            return;
+        }
+        List<DeadLetter> letters = new ArrayList<>(rejected.size());
+        for (InvalidDocument<T> document : rejected) {
+            StringBuilder error = new StringBuilder();
+            for (ConstraintViolation<T> violation : document.violations()) {
+                if (!error.isEmpty()) {
+                    error.append("; ");
+                }
+                error.append(violation.getPropertyPath()).append(' ').append(violation.getMessage());
+            }
+            letters.add(
+                    deadLetters.letter(
+                            clazz, DeadLetter.Reason.INVALID, document.document(), error.toString()));
+        }
+        deadLetters.send(letters);
+    }
 }
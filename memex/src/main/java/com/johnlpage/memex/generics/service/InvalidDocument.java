@@ -0,0 +1,11 @@
+package com.johnlpage.memex.generics.service;
+
+import jakarta.validation.ConstraintViolation;
+
+import java.util.Set;
+
+/**
+ * A document that failed validation and what was wrong with it.
+ */
+public record InvalidDocument<T>(T document, Set<ConstraintViolation<T>> violations) {
+}
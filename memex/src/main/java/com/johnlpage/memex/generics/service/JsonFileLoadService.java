@@ -0,0 +1,354 @@
+package com.johnlpage.memex.generics.service;
+
+import com.johnlpage.memex.util.UpdateStrategy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Stream;
+
+/**
+ * Loads JSON files from local disk through a MongoDbJsonStreamingLoaderService, so they take the
+ * same parse, validate and write path as a load over HTTP. Large NDJSON files are cut into ranges
+ * on line boundaries and each range is loaded on its own from a MappedJsonRecordSource, several at
+ * once on the fileLoadExecutor. Compressed files, and files holding a JSON array, can't be cut up
+ * so each is read as one stream.
+ *
+ * <p>Progress is logged per file as the load runs and is available from the fileloads actuator
+ * endpoint.
+ */
+@Service
+@Endpoint(id = "fileloads")
+public class JsonFileLoadService {
+
+    private static final Logger LOG = LoggerFactory.getLogger(JsonFileLoadService.class);
+    // What a directory is expected to hold, anything else in it is left alone
+    private static final String LOADABLE = "*.{json,ndjson,jsonl}{,.gz,.zst}";
+    private final Executor fileLoadExecutor;
+    private final Executor decompressExecutor;
+    private final long rangeSize;
+    private final int decompressBufferChunks;
+    private final long progressIntervalMillis;
+
+    private volatile List<FileLoadProgress> files = List.of();
+
+    public JsonFileLoadService(
+            @Qualifier("fileLoadExecutor") Executor fileLoadExecutor,
+            @Qualifier("decompressExecutor") Executor decompressExecutor,
+            @Value("${memex.fileload.range-size:67108864}") long rangeSize,
+            @Value("${mongo.jsonloader.decompress-buffer-chunks:16}") int decompressBufferChunks,
+            @Value("${memex.fileload.progress-interval-ms:10000}") long progressIntervalMillis) {
+        this.fileLoadExecutor = fileLoadExecutor;
+        this.decompressExecutor = decompressExecutor;
+        this.rangeSize = rangeSize;
+        this.decompressBufferChunks = decompressBufferChunks;
+        this.progressIntervalMillis = progressIntervalMillis;
+    }
+
+    /**
+     * Loads every file a path names and waits for them all. A failure in one range doesn't stop
+     * the others, it is in that file's progress.
+     *
+     * @param pathOrGlob a file, a directory whose JSON files (optionally .gz or .zst) are all
+     *                   loaded, or a glob such as data/**.ndjson.gz
+     * @param options    as for a streamed load, except that file loads can't be resumed so loadId,
+     *                   resumeFrom, streamOffset and contentEncoding must not be set
+     * @return the final progress of each file
+     */
+    public <T> List<FileLoadProgress.Snapshot> loadFiles(
+            MongoDbJsonStreamingLoaderService<T> loader,
+            String pathOrGlob,
+            Class<T> type,
+            InvalidDataHandlerService<T> invalidDataHandlerService,
+            UpdateStrategy updateStrategy,
+            PreWriteTriggerService<T> preTrigger,
+            PostWriteTriggerService<T> postTrigger,
+            JsonLoadOptions options) throws IOException, InterruptedException {
+        if (options.getLoadId() != null
+                || options.getResumeFrom() != null
+                || options.getStreamOffset() != null
+                || options.getContentEncoding() != null) {
+            throw new IllegalArgumentException(
+                    "File loads can't be resumed and take the encoding from the file name");
+        }
+        List<Path> paths = expand(pathOrGlob);
+        if (paths.isEmpty()) {
+            throw new NoSuchFileException(pathOrGlob, null, "no JSON files to load");
+        }
+
+        List<FileLoadProgress> progress = new ArrayList<>();
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (Path path : paths) {
+            ContentEncoding encoding = encodingOf(path);
+            List<FileRange> ranges;
+            boolean split;
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                split = encoding == ContentEncoding.IDENTITY && FileRange.firstSignificantByte(channel) != '[';
+                ranges = split ? FileRange.split(channel, rangeSize) : List.of(new FileRange(0, channel.size()));
+                if (ranges.isEmpty()) {
+                    ranges = List.of(new FileRange(0, 0));
+                }
+            }
+            LOG.info("Loading {} as {} range(s)", path, ranges.size());
+            FileLoadProgress fileProgress =
+                    new FileLoadProgress(path, ranges.get(ranges.size() - 1).end(), ranges.size(), split);
+            progress.add(fileProgress);
+            for (FileRange range : ranges) {
+                futures.add(
+                        CompletableFuture.runAsync(
+                                () ->
+                                        loadRange(
+                                                loader,
+                                                fileProgress,
+                                                range,
+                                                encoding,
+                                                split,
+                                                type,
+                                                invalidDataHandlerService,
+                                                updateStrategy,
+                                                preTrigger,
+                                                postTrigger,
+                                                options),
+                                fileLoadExecutor));
+            }
+        }
+        files = List.copyOf(progress);
+
+        CompletableFuture<Void> all = CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]));
+        while (true) {
+            try {
+                all.get(progressIntervalMillis, TimeUnit.MILLISECONDS);
+                break;
+            } catch (TimeoutException e) {
+                for (FileLoadProgress file : progress) {
+                    if (file.getState() == FileLoadProgress.State.LOADING) {
+                        logProgress(file.snapshot());
+                    }
+                }
+            } catch (ExecutionException e) {
+                // loadRange keeps its own failures, this is only something like a rejected task
+                LOG.error("File load failed: {}", e.getCause().getMessage());
+                break;
+            }
+        }
+        return fileLoads();
+    }
+
+    private <T> void loadRange(
+            MongoDbJsonStreamingLoaderService<T> loader,
+            FileLoadProgress progress,
+            FileRange range,
+            ContentEncoding encoding,
+            boolean split,
+            Class<T> type,
+            InvalidDataHandlerService<T> invalidDataHandlerService,
+            UpdateStrategy updateStrategy,
+            PreWriteTriggerService<T> preTrigger,
+            PostWriteTriggerService<T> postTrigger,
+            JsonLoadOptions options) {
+        progress.rangeStarted();
+        boolean last;
+        try {
+            JsonRecordSource source;
+            if (split) {
+                // Offsets in dead letters and errors are still from the start of the file
+                source =
+                        new ProgressRecordSource(
+                                new MappedJsonRecordSource(progress.getFile(), range.start(), range.end()),
+                                progress);
+            } else {
+                InputStream in =
+                        new ProgressInputStream(
+                                new BufferedInputStream(Files.newInputStream(progress.getFile())), progress);
+                source =
+                        new JsonRecordSplitter(
+                                DecompressingInputStream.open(in, encoding, decompressExecutor, decompressBufferChunks));
+            }
+            last =
+                    progress.rangeLoaded(
+                            loader.loadFromRecordSource(
+                                    source,
+                                    type,
+                                    invalidDataHandlerService,
+                                    updateStrategy,
+                                    preTrigger,
+                                    postTrigger,
+                                    options));
+        } catch (DataLoadException e) {
+            LOG.error("Range {}-{} of {} failed: {}", range.start(), range.end(), progress.getFile(), e.getMessage());
+            last = progress.rangeFailed(e);
+        } catch (IOException | RuntimeException e) {
+            LOG.error("Range {}-{} of {} failed: {}", range.start(), range.end(), progress.getFile(), e.getMessage());
+            last = progress.rangeFailed(e.getMessage());
+        }
+        if (last) {
+            FileLoadProgress.Snapshot snapshot = progress.snapshot();
+            LOG.info(
+                    "{} {} in {}ms - Modified: {} Added: {} Removed: {} Errors: {}",
+                    snapshot.state() == FileLoadProgress.State.DONE ? "Loaded" : "Failed to load",
+                    snapshot.file(),
+                    snapshot.elapsedMillis(),
+                    snapshot.updates(),
+                    snapshot.inserts(),
+                    snapshot.deletes(),
+                    snapshot.errors());
+        }
+    }
+
+    private static void logProgress(FileLoadProgress.Snapshot file) {
+        LOG.info(
+                "{}: {}% read, {}/{} ranges done, Modified: {} Added: {} Removed: {}",
+                file.file(),
+                file.percentRead(),
+                file.rangesLoaded() + file.rangesFailed(),
+                file.ranges(),
+                file.updates(),
+                file.inserts(),
+                file.deletes());
+    }
+
+    /**
+     * Progress of each file in the file load that is running, or the last one
+     */
+    @ReadOperation
+    public List<FileLoadProgress.Snapshot> fileLoads() {
+        return files.stream().map(FileLoadProgress::snapshot).toList();
+    }
+
+    /**
+     * @return the files a path names in name order - the file itself, the JSON files in a
+     *     directory, or what a glob matches under the directory it starts in
+     */
+    static List<Path> expand(String pathOrGlob) throws IOException {
+        int glob = indexOfGlob(pathOrGlob);
+        if (glob < 0) {
+            Path path = Path.of(pathOrGlob);
+            if (Files.isRegularFile(path)) {
+                return List.of(path);
+            }
+            if (!Files.isDirectory(path)) {
+                throw new NoSuchFileException(pathOrGlob);
+            }
+            PathMatcher loadable = FileSystems.getDefault().getPathMatcher("glob:" + LOADABLE);
+            try (Stream<Path> listing = Files.list(path)) {
+                return listing
+                        .filter(p -> Files.isRegularFile(p) && loadable.matches(p.getFileName()))
+                        .sorted()
+                        .toList();
+            }
+        }
+        int separator = pathOrGlob.lastIndexOf('/', glob);
+        Path base = separator < 0 ? Path.of("") : Path.of(pathOrGlob.substring(0, separator + 1));
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + pathOrGlob);
+        try (Stream<Path> walk = Files.walk(base)) {
+            return walk.filter(p -> Files.isRegularFile(p) && matcher.matches(p)).sorted().toList();
+        }
+    }
+
+    private static int indexOfGlob(String path) {
+        for (int i = 0; i < path.length(); i++) {
+            if ("*?[{".indexOf(path.charAt(i)) >= 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    static ContentEncoding encodingOf(Path path) {
+        String name = path.getFileName().toString();
+        if (name.endsWith(".gz")) {
+            return ContentEncoding.GZIP;
+        }
+        if (name.endsWith(".zst")) {
+            return ContentEncoding.ZSTD;
+        }
+        return ContentEncoding.IDENTITY;
+    }
+
+    /**
+     * Adds what a range's source has read to its file's progress
+     */
+    private static class ProgressRecordSource implements JsonRecordSource {
+
+        private final JsonRecordSource source;
+        private final FileLoadProgress progress;
+        private long reported;
+
+        ProgressRecordSource(JsonRecordSource source, FileLoadProgress progress) {
+            this.source = source;
+            this.progress = progress;
+        }
+
+        @Override
+        public JsonRecord next() throws IOException {
+            JsonRecord record = source.next();
+            long read = source.bytesRead();
+            progress.read(read - reported);
+            reported = read;
+            return record;
+        }
+
+        @Override
+        public long bytesRead() {
+            return source.bytesRead();
+        }
+
+        @Override
+        public void close() throws IOException {
+            source.close();
+        }
+    }
+
+    /**
+     * Adds what is read from a file read as a stream to its progress
+     */
+    private static class ProgressInputStream extends FilterInputStream {
+
+        private final FileLoadProgress progress;
+
+        ProgressInputStream(InputStream in, FileLoadProgress progress) {
+            super(in);
+            this.progress = progress;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                progress.read(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                progress.read(n);
+            }
+            return n;
+        }
+    }
+}
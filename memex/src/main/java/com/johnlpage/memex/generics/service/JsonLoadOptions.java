@@ -0,0 +1,64 @@
+package com.johnlpage.memex.generics.service;
+
+import lombok.Builder;
+import lombok.Value;
+
+/**
+ * Per load settings for MongoDbJsonStreamingLoaderService, so each endpoint (or each request) can
+ * tune a load differently. Anything left null uses the mongo.jsonloader.* property for it.
+ */
+@Value
+@Builder(toBuilder = true)
+public class JsonLoadOptions {
+
+    public static final JsonLoadOptions DEFAULTS = JsonLoadOptions.builder().build();
+
+    /**
+     * Most batches that can be being written at once, the loader waits for one to finish before
+     * sending another. Keep it no higher than the number of batches the loadExecutor can run at
+     * once.
+     */
+    Integer maxBatchesInFlight;
+
+    /**
+     * Most JSON bytes that can be in batches being written at once
+     */
+    Long maxBytesInFlight;
+
+    /**
+     * Whether to skip documents that haven't changed since they were last loaded
+     */
+    ChangeDetection changeDetection;
+
+    /**
+     * Whether batches are cut in stream order or by lanes of ids
+     */
+    DispatchMode dispatchMode;
+
+    /**
+     * Number of lanes for DispatchMode.PARTITIONED, at most this many batches are written at once
+     */
+    Integer lanes;
+
+    /**
+     * Saves a checkpoint of how far the load has got under this id as it goes, so that if it dies
+     * part way through it can be resumed
+     */
+    String loadId;
+
+    /**
+     * Skips the records before this ordinal, to resume a load by sending the whole source again
+     */
+    Long resumeFrom;
+
+    /**
+     * The stream starts this many bytes into the source, to resume a load by sending only the rest
+     * of it. Must be the bytes of loadId's checkpoint, which says how many records came before.
+     */
+    Long streamOffset;
+
+    /**
+     * How the stream is compressed, null or IDENTITY if it isn't
+     */
+    ContentEncoding contentEncoding;
+}
@@ -0,0 +1,32 @@
+package com.johnlpage.memex.generics.service;
+
+import java.util.Arrays;
+
+/**
+ * The raw bytes of one top level JSON object from a load, as cut out by a JsonRecordSource. The
+ * bytes are a slice of an array that may hold other records too, nothing may change the array.
+ *
+ * @param array       holds the record's bytes, from the opening to the closing brace
+ * @param arrayOffset where in the array the record starts
+ * @param length      number of bytes in the record
+ * @param ordinal     position of the record in the source, starting at 0
+ * @param offset      byte offset in the source where the record starts
+ */
+public record JsonRecord(byte[] array, int arrayOffset, int length, long ordinal, long offset) {
+
+    /**
+     * A record that is the whole of bytes
+     */
+    public JsonRecord(byte[] bytes, long ordinal, long offset) {
+        this(bytes, 0, bytes.length, ordinal, offset);
+    }
+
+    /**
+     * @return exactly the bytes of the record, a copy if it is a slice of a bigger array
+     */
+    public byte[] bytes() {
+        return arrayOffset == 0 && length == array.length
+                ? array
+                : Arrays.copyOfRange(array, arrayOffset, arrayOffset + length);
+    }
+}
@@ -0,0 +1,68 @@
+package com.johnlpage.memex.generics.service;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+
+import java.io.IOException;
+
+/**
+ * Turns the raw bytes of a JsonRecord into an instance of the model class. Instances are immutable
+ * and safe to share between the parse threads.
+ *
+ * <p>In DIRECT mode the model is bound straight from the parser by an ObjectReader created once
+ * for the type. In TREE mode the record is read into a JsonNode tree first and the tree is then
+ * converted, which is how the loader always used to work and costs a full tree of garbage per
+ * record. The delete flag and the pre-write trigger both work on the bound model, so nothing in the
+ * loader needs the tree and DIRECT is the default.
+ */
+public final class JsonRecordBinder<T> {
+
+    /**
+     * How records are bound, set with mongo.jsonloader.bind-mode
+     */
+    public enum BindMode {
+        DIRECT,
+        TREE
+    }
+
+    private final BindMode bindMode;
+    private final Class<T> type;
+    private final ObjectMapper objectMapper;
+    private final JsonFactory jsonFactory;
+    private final ObjectReader reader;
+
+    public JsonRecordBinder(
+            BindMode bindMode, Class<T> type, ObjectMapper objectMapper, JsonFactory jsonFactory) {
+        this.bindMode = bindMode;
+        this.type = type;
+        this.objectMapper = objectMapper;
+        this.jsonFactory = jsonFactory;
+        this.reader = objectMapper.readerFor(type);
+    }
+
+    public T bind(JsonRecord record) throws IOException {
+        return bind(record.array(), record.arrayOffset(), record.length());
+    }
+
+    public T bind(byte[] json) throws IOException {
+        return bind(json, 0, json.length);
+    }
+
+    // Parses the slice where it is, records cut from a shared block are never copied out of it
+    private T bind(byte[] json, int offset, int length) throws IOException {
+        try (JsonParser parser = jsonFactory.createParser(json, offset, length)) {
+            if (bindMode == BindMode.TREE) {
+                JsonNode node = objectMapper.readTree(parser);
+                return objectMapper.treeToValue(node, type);
+            }
+            return reader.readValue(parser);
+        }
+    }
+
+    public BindMode getBindMode() {
+        return bindMode;
+    }
+}
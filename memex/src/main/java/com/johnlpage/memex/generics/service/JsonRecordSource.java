@@ -0,0 +1,28 @@
+package com.johnlpage.memex.generics.service;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Supplies the loader with one raw JSON object at a time without parsing it, so parsing can be
+ * spread over several threads. Implementations are only ever called from one thread.
+ */
+public interface JsonRecordSource extends Closeable {
+
+    /**
+     * @return the next record or null when the source is exhausted
+     */
+    JsonRecord next() throws IOException;
+
+    /**
+     * @return how many bytes of the source have been consumed so far
+     */
+    long bytesRead();
+
+    /**
+     * Every record before this ordinal has been written, found unchanged or dead lettered. Most
+     * sources have nothing to do, a dead letter replay deletes the letters.
+     */
+    default void committed(long records) {
+    }
+}
@@ -0,0 +1,150 @@
+package com.johnlpage.memex.generics.service;
+
+import com.fasterxml.jackson.core.JsonParseException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Cuts a stream of JSON objects into individual records by looking at the bytes only. It finds an
+ * opening brace, then the matching closing brace - allowing for nesting and for braces inside
+ * strings - and hands back everything in between. Anything between objects (whitespace, newlines,
+ * commas, the brackets of an enclosing array) is skipped, so it accepts the same input as the
+ * token based loader did: NDJSON, concatenated objects or an array of objects.
+ *
+ * <p>It does not validate the JSON, that happens when the record is parsed.
+ */
+public class JsonRecordSplitter implements JsonRecordSource {
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int INITIAL_RECORD_SIZE = 4 * 1024;
+
+    private final InputStream inputStream;
+    private final byte[] buffer = new byte[READ_BUFFER_SIZE];
+    private final long baseOffset;
+    private int pos;
+    private int limit;
+    private long bufferOffset; // Offset in the stream of buffer[0]
+    private long ordinal;
+
+    private byte[] record = new byte[INITIAL_RECORD_SIZE];
+    private int recordLength;
+
+    public JsonRecordSplitter(InputStream inputStream) {
+        this(inputStream, 0);
+    }
+
+    /**
+     * @param baseOffset offset to add to all record offsets, for a stream that is not the start of
+     *                   the original data
+     */
+    public JsonRecordSplitter(InputStream inputStream, long baseOffset) {
+        this(inputStream, baseOffset, 0);
+    }
+
+    /**
+     * @param baseOrdinal ordinal of the first record, for a stream that starts after that many
+     *                    records of the original data
+     */
+    public JsonRecordSplitter(InputStream inputStream, long baseOffset, long baseOrdinal) {
+        this.inputStream = inputStream;
+        this.baseOffset = baseOffset;
+        this.bufferOffset = baseOffset;
+        this.ordinal = baseOrdinal;
+    }
+
+    @Override
+    public JsonRecord next() throws IOException {
+        int depth = 0;
+        boolean inString = false;
+        boolean escaped = false;
+        long start = -1;
+        int segmentStart = pos;
+        recordLength = 0;
+
+        while (true) {
+            if (pos >= limit) {
+                if (depth > 0) {
+                    append(segmentStart, limit);
+                }
+                if (!fill()) {
+                    if (depth > 0) {
+                        throw new JsonParseException(
+                                null, "Unexpected end of input inside JSON object starting at byte " + start);
+                    }
+                    return null;
+                }
+                segmentStart = 0;
+            }
+            byte b = buffer[pos++];
+
+            if (depth == 0) {
+                if (b == '{') {
+                    depth = 1;
+                    start = bufferOffset + pos - 1;
+                    segmentStart = pos - 1;
+                }
+                continue;
+            }
+
+            if (inString) {
+                if (escaped) {
+                    escaped = false;
+                } else if (b == '\\') {
+                    escaped = true;
+                } else if (b == '"') {
+                    inString = false;
+                }
+                continue;
+            }
+
+            switch (b) {
+                case '"' -> inString = true;
+                case '{', '[' -> depth++;
+                case '}', ']' -> {
+                    if (--depth == 0) {
+                        append(segmentStart, pos);
+                        return new JsonRecord(Arrays.copyOf(record, recordLength), ordinal++, start);
+                    }
+                }
+                default -> {
+                }
+            }
+        }
+    }
+
+    @Override
+    public long bytesRead() {
+        return bufferOffset - baseOffset + pos;
+    }
+
+    private boolean fill() throws IOException {
+        bufferOffset += limit;
+        pos = 0;
+        limit = 0;
+        int n;
+        do {
+            n = inputStream.read(buffer, 0, buffer.length);
+        } while (n == 0);
+        if (n < 0) {
+            return false;
+        }
+        limit = n;
+        return true;
+    }
+
+    private void append(int from, int to) {
+        int n = to - from;
+        if (recordLength + n > record.length) {
+            record = Arrays.copyOf(record, Math.max(record.length * 2, recordLength + n));
+        }
+        System.arraycopy(buffer, from, record, recordLength, n);
+        recordLength += n;
+    }
+
+    @Override
+    public void close() throws IOException {
+        inputStream.close();
+    }
+}
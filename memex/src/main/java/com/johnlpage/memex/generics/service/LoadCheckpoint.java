@@ -0,0 +1,18 @@
+package com.johnlpage.memex.generics.service;
+
+import java.time.Instant;
+
+/**
+ * How far a load with a load id got, every record before this point has been dealt with.
+ *
+ * @param loadId     chosen by the client, the same one is used to resume
+ * @param collection the collection being loaded
+ * @param records    records committed, which is also the ordinal of the first one to load on resume
+ * @param bytes      the byte offset in the source that the first record to load is at or after,
+ *                   to resume with Content-Range
+ * @param complete   true once the whole source has been loaded
+ * @param updated    when the checkpoint was last saved
+ */
+public record LoadCheckpoint(
+        String loadId, String collection, long records, long bytes, boolean complete, Instant updated) {
+}
@@ -0,0 +1,83 @@
+package com.johnlpage.memex.generics.service;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.ReplaceOptions;
+import jakarta.annotation.Nullable;
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.stereotype.Service;
+
+import java.util.Date;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Keeps the checkpoints of loads that were given a load id, one document per load id, so a load
+ * that died part way through can carry on from the last one instead of starting again.
+ */
+@Service
+public class LoadCheckpointService {
+
+    // bytes <first>-<last or *>/<length or *>
+    private static final Pattern CONTENT_RANGE = Pattern.compile("^bytes\\s+(\\d+)-(\\d+|\\*)/(\\d+|\\*)$");
+
+    private final MongoTemplate mongoTemplate;
+    private final String collectionName;
+
+    public LoadCheckpointService(
+            MongoTemplate mongoTemplate,
+            @Value("${mongo.jsonloader.checkpoint-collection:memex_loadcheckpoints}")
+            String collectionName) {
+        this.mongoTemplate = mongoTemplate;
+        this.collectionName = collectionName;
+    }
+
+    private MongoCollection<Document> collection() {
+        return mongoTemplate.getCollection(collectionName);
+    }
+
+    @Nullable
+    public LoadCheckpoint find(String loadId) {
+        Document document = collection().find(Filters.eq("_id", loadId)).first();
+        if (document == null) {
+            return null;
+        }
+        return new LoadCheckpoint(
+                loadId,
+                document.getString("collection"),
+                document.getLong("records"),
+                document.getLong("bytes"),
+                document.getBoolean("complete", false),
+                document.getDate("updated").toInstant());
+    }
+
+    public void save(LoadCheckpoint checkpoint) {
+        collection()
+                .replaceOne(
+                        Filters.eq("_id", checkpoint.loadId()),
+                        new Document("collection", checkpoint.collection())
+                                .append("records", checkpoint.records())
+                                .append("bytes", checkpoint.bytes())
+                                .append("complete", checkpoint.complete())
+                                .append("updated", Date.from(checkpoint.updated())),
+                        new ReplaceOptions().upsert(true));
+    }
+
+    /**
+     * @return the first byte of a Content-Range header, or null if there isn't one
+     * @throws IllegalArgumentException if it isn't a byte range
+     */
+    @Nullable
+    public static Long contentRangeStart(@Nullable String contentRange) {
+        if (contentRange == null || contentRange.isBlank()) {
+            return null;
+        }
+        Matcher matcher = CONTENT_RANGE.matcher(contentRange.trim());
+        if (!matcher.matches()) {
+            throw new IllegalArgumentException("Content-Range must be bytes <start>-*/*, not " + contentRange);
+        }
+        return Long.parseLong(matcher.group(1));
+    }
+}
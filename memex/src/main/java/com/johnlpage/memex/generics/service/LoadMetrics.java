@@ -0,0 +1,194 @@
+package com.johnlpage.memex.generics.service;
+
+import com.johnlpage.memex.util.UpdateStrategy;
+import com.mongodb.bulk.BulkWriteResult;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Micrometer meters for the load path, available from /actuator/prometheus as memex_load_*. The
+ * loader's stages are reported through the LoadPipelineStats of each load and the repository
+ * reports each batch it writes, all tagged with the collection so loads into different collections
+ * can be told apart. Counters are rates in Prometheus, so records parsed per second is
+ * rate(memex_load_records_parsed_total[1m]) and the execute latency percentiles come from the
+ * memex_load_batch_execute_seconds histogram.
+ *
+ * <p>Comparing the stage timers shows which one limits a load, in the same way as the load stats
+ * endpoint does for a single load.
+ */
+@Component
+public class LoadMetrics {
+
+    private static final String PREFIX = "memex.load.";
+    private final MeterRegistry registry;
+    // Across every load running at once
+    private final AtomicInteger batchesInFlight = new AtomicInteger();
+    private final AtomicLong bytesInFlight = new AtomicLong();
+
+    public LoadMetrics(MeterRegistry registry) {
+        this.registry = registry;
+        registry.gauge(PREFIX + "batches.inflight", batchesInFlight);
+        registry.gauge(PREFIX + "bytes.inflight", bytesInFlight);
+    }
+
+    /**
+     * Meters for one load, looked up once so the per record calls are only an increment
+     */
+    public Load forCollection(String collection) {
+        return new Load(collection);
+    }
+
+    /**
+     * A batch the repository wrote, or part wrote
+     *
+     * @param buildNanos   turning the models into write models, mapping them and building any
+     *                     update pipelines
+     * @param executeNanos the bulk write itself, and for a transaction the post write trigger and
+     *                     the commit
+     */
+    public void batchWritten(
+            String collection,
+            UpdateStrategy strategy,
+            int documents,
+            long buildNanos,
+            long executeNanos,
+            BulkWriteResult result) {
+        String strategyName = strategy.name();
+        Timer.builder(PREFIX + "batch.build")
+                .tags("collection", collection, "strategy", strategyName)
+                .register(registry)
+                .record(buildNanos, TimeUnit.NANOSECONDS);
+        Timer.builder(PREFIX + "batch.execute")
+                .tags("collection", collection, "strategy", strategyName)
+                .publishPercentileHistogram()
+                .register(registry)
+                .record(executeNanos, TimeUnit.NANOSECONDS);
+        DistributionSummary.builder(PREFIX + "batch.documents")
+                .tags("collection", collection, "strategy", strategyName)
+                .register(registry)
+                .record(documents);
+        if (result.wasAcknowledged()) {
+            documents(collection, strategyName, "matched", result.getMatchedCount());
+            documents(collection, strategyName, "modified", result.getModifiedCount());
+            documents(collection, strategyName, "upserted", result.getUpserts().size());
+            documents(collection, strategyName, "inserted", result.getInsertedCount());
+            documents(collection, strategyName, "deleted", result.getDeletedCount());
+        }
+    }
+
+    /**
+     * A batch written in a transaction, so with a post write trigger
+     *
+     * @param capture        how an UPDATEWITHHISTORY batch captured its history, NONE for any other
+     * @param openNanos      from the first write to the end of the commit
+     */
+    public void transactionCommitted(String collection, String capture, long openNanos) {
+        Timer.builder(PREFIX + "transaction")
+                .tags("collection", collection, "capture", capture)
+                .publishPercentileHistogram()
+                .register(registry)
+                .record(openNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * A write attempt that threw, whether or not it is retried
+     */
+    public void batchFailed(String collection, UpdateStrategy strategy) {
+        registry.counter(PREFIX + "batch.failures", "collection", collection, "strategy", strategy.name())
+                .increment();
+    }
+
+    private void documents(String collection, String strategy, String outcome, int count) {
+        if (count > 0) {
+            registry.counter(
+                            PREFIX + "documents",
+                            "collection", collection,
+                            "strategy", strategy,
+                            "outcome", outcome)
+                    .increment(count);
+        }
+    }
+
+    /**
+     * The meters for the stages of loads into one collection
+     */
+    public final class Load {
+
+        private final String collection;
+        private final Counter recordsRead;
+        private final Counter bytesRead;
+        private final Counter recordsParsed;
+        private final Timer parse;
+        private final Counter recordsInvalid;
+        private final Timer validate;
+        private final Counter recordsUnchanged;
+        private final Counter recordsDeadLettered;
+        private final Timer windowWait;
+
+        private Load(String collection) {
+            this.collection = collection;
+            recordsRead = registry.counter(PREFIX + "records.read", "collection", collection);
+            bytesRead = registry.counter(PREFIX + "bytes.read", "collection", collection);
+            recordsParsed = registry.counter(PREFIX + "records.parsed", "collection", collection);
+            parse = registry.timer(PREFIX + "parse", "collection", collection);
+            recordsInvalid = registry.counter(PREFIX + "records.invalid", "collection", collection);
+            validate = registry.timer(PREFIX + "validate", "collection", collection);
+            recordsUnchanged = registry.counter(PREFIX + "records.unchanged", "collection", collection);
+            recordsDeadLettered =
+                    registry.counter(PREFIX + "records.deadlettered", "collection", collection);
+            windowWait = registry.timer(PREFIX + "window.wait", "collection", collection);
+        }
+
+        void recordRead(int bytes) {
+            recordsRead.increment();
+            bytesRead.increment(bytes);
+        }
+
+        /**
+         * @param nanos time to parse a chunk of records, on one parse thread
+         */
+        void parsed(int records, long nanos) {
+            recordsParsed.increment(records);
+            parse.record(nanos, TimeUnit.NANOSECONDS);
+        }
+
+        void validated(int invalid, long nanos) {
+            recordsInvalid.increment(invalid);
+            validate.record(nanos, TimeUnit.NANOSECONDS);
+        }
+
+        void unchanged() {
+            recordsUnchanged.increment();
+        }
+
+        void deadLettered(int records) {
+            recordsDeadLettered.increment(records);
+        }
+
+        void rejected(String reason, long records) {
+            registry.counter(PREFIX + "records.rejected", "collection", collection, "reason", reason)
+                    .increment(records);
+        }
+
+        void windowAcquired(long blockedNanos) {
+            windowWait.record(blockedNanos, TimeUnit.NANOSECONDS);
+        }
+
+        void writeStarted(long bytes) {
+            batchesInFlight.incrementAndGet();
+            bytesInFlight.addAndGet(bytes);
+        }
+
+        void writeFinished(long bytes) {
+            batchesInFlight.decrementAndGet();
+            bytesInFlight.addAndGet(-bytes);
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package com.johnlpage.memex.generics.service;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters for each stage of a single load through MongoDbJsonStreamingLoaderService. They are
+ * updated from the request thread, the parse threads and the write threads, so everything is an
+ * adder or an atomic. Snapshots can be taken while the load is running to see which stage is the
+ * one holding things up - the stage in front of it will have a full queue.
+ *
+ * <p>Given the LoadMetrics for the collection it also passes everything on to those, where it adds
+ * up across loads.
+ */
+public class LoadPipelineStats {
+
+    private final long startNanos = System.nanoTime();
+    private final LongAdder recordsRead = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder recordsParsed = new LongAdder();
+    private final LongAdder parseNanos = new LongAdder();
+    private final LongAdder recordsValidated = new LongAdder();
+    private final LongAdder recordsInvalid = new LongAdder();
+    private final LongAdder validateNanos = new LongAdder();
+    private final LongAdder recordsBatched = new LongAdder();
+    private final LongAdder recordsUnchanged = new LongAdder();
+    private final LongAdder recordsDeadLettered = new LongAdder();
+    private final Map<String, LongAdder> errors = new ConcurrentHashMap<>();
+    private final LongAdder recordsWritten = new LongAdder();
+    private final LongAdder batchesWritten = new LongAdder();
+    private final AtomicInteger parseQueueDepth = new AtomicInteger();
+    private final AtomicInteger maxParseQueueDepth = new AtomicInteger();
+    private final AtomicInteger batchQueueDepth = new AtomicInteger();
+    private final AtomicInteger writeQueueDepth = new AtomicInteger();
+    private final AtomicInteger maxWriteQueueDepth = new AtomicInteger();
+    private final AtomicLong bytesInFlight = new AtomicLong();
+    private final AtomicLong maxBytesInFlight = new AtomicLong();
+    private final LongAdder windowWaits = new LongAdder();
+    private final LongAdder windowBlockedNanos = new LongAdder();
+    private volatile long endNanos;
+    // Null if not reporting to Micrometer
+    private final LoadMetrics.Load metrics;
+
+    public LoadPipelineStats() {
+        this(null);
+    }
+
+    public LoadPipelineStats(LoadMetrics.Load metrics) {
+        this.metrics = metrics;
+    }
+
+    public void recordRead(int bytes) {
+        recordsRead.increment();
+        bytesRead.add(bytes);
+        if (metrics != null) {
+            metrics.recordRead(bytes);
+        }
+    }
+
+    public void parseQueued() {
+        maxParseQueueDepth.accumulateAndGet(parseQueueDepth.incrementAndGet(), Math::max);
+    }
+
+    public void parseDequeued() {
+        parseQueueDepth.decrementAndGet();
+    }
+
+    public void parsed(int records, long nanos) {
+        recordsParsed.add(records);
+        parseNanos.add(nanos);
+        if (metrics != null) {
+            metrics.parsed(records, nanos);
+        }
+    }
+
+    /**
+     * @param invalid records that failed validation and the handler didn't accept
+     */
+    public void validated(int records, int invalid, long nanos) {
+        recordsValidated.add(records);
+        recordsInvalid.add(invalid);
+        validateNanos.add(nanos);
+        if (metrics != null) {
+            metrics.validated(invalid, nanos);
+        }
+    }
+
+    public void batched(int records) {
+        recordsBatched.add(records);
+    }
+
+    /**
+     * A record was dropped by change detection because it was the same as last time
+     */
+    public void unchanged() {
+        recordsUnchanged.increment();
+        if (metrics != null) {
+            metrics.unchanged();
+        }
+    }
+
+    /**
+     * Records that couldn't be parsed or written were sent to the dead letter sink
+     */
+    public void deadLettered(int records) {
+        recordsDeadLettered.add(records);
+        if (metrics != null) {
+            metrics.deadLettered(records);
+        }
+    }
+
+    /**
+     * Records that were not loaded, counted by why - a server error name such as DuplicateKey, or
+     * one of the loader's own reasons
+     */
+    public void rejected(String reason, long records) {
+        if (records > 0) {
+            errors.computeIfAbsent(reason, r -> new LongAdder()).add(records);
+            if (metrics != null) {
+                metrics.rejected(reason, records);
+            }
+        }
+    }
+
+    public Map<String, Long> errors() {
+        Map<String, Long> counts = new TreeMap<>();
+        errors.forEach((reason, count) -> counts.put(reason, count.sum()));
+        return counts;
+    }
+
+    public void setBatchQueueDepth(int records) {
+        batchQueueDepth.set(records);
+    }
+
+    /**
+     * @param blockedNanos how long the loader waited for room in the in flight window
+     */
+    public void windowAcquired(long blockedNanos) {
+        if (blockedNanos > 0) {
+            windowWaits.increment();
+            windowBlockedNanos.add(blockedNanos);
+        }
+        if (metrics != null) {
+            metrics.windowAcquired(blockedNanos);
+        }
+    }
+
+    public void writeStarted(long bytes) {
+        maxWriteQueueDepth.accumulateAndGet(writeQueueDepth.incrementAndGet(), Math::max);
+        maxBytesInFlight.accumulateAndGet(bytesInFlight.addAndGet(bytes), Math::max);
+        if (metrics != null) {
+            metrics.writeStarted(bytes);
+        }
+    }
+
+    public void writeFinished(int records, long bytes) {
+        writeQueueDepth.decrementAndGet();
+        bytesInFlight.addAndGet(-bytes);
+        batchesWritten.increment();
+        recordsWritten.add(records);
+        if (metrics != null) {
+            metrics.writeFinished(bytes);
+        }
+    }
+
+    public void finish() {
+        endNanos = System.nanoTime();
+    }
+
+    public Snapshot snapshot() {
+        long end = endNanos == 0 ? System.nanoTime() : endNanos;
+        long elapsedMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(end - startNanos));
+        long unchanged = recordsUnchanged.sum();
+        long batched = recordsBatched.sum();
+        return new Snapshot(
+                elapsedMillis,
+                endNanos == 0,
+                bytesRead.sum(),
+                TimeUnit.NANOSECONDS.toMillis(parseNanos.sum()),
+                TimeUnit.NANOSECONDS.toMillis(validateNanos.sum()),
+                recordsInvalid.sum(),
+                batchesWritten.sum(),
+                bytesInFlight.get(),
+                maxBytesInFlight.get(),
+                windowWaits.sum(),
+                TimeUnit.NANOSECONDS.toMillis(windowBlockedNanos.sum()),
+                unchanged,
+                unchanged + batched == 0 ? 0 : (double) unchanged / (unchanged + batched),
+                recordsDeadLettered.sum(),
+                errors(),
+                List.of(
+                        StageSnapshot.of("split", recordsRead.sum(), 0, 0, elapsedMillis),
+                        StageSnapshot.of(
+                                "parse",
+                                recordsParsed.sum(),
+                                parseQueueDepth.get(),
+                                maxParseQueueDepth.get(),
+                                elapsedMillis),
+                        StageSnapshot.of("validate", recordsValidated.sum(), 0, 0, elapsedMillis),
+                        StageSnapshot.of("batch", batched, batchQueueDepth.get(), 0, elapsedMillis),
+                        StageSnapshot.of(
+                                "write",
+                                recordsWritten.sum(),
+                                writeQueueDepth.get(),
+                                maxWriteQueueDepth.get(),
+                                elapsedMillis)));
+    }
+
+    /**
+     * @param queueDepth for parse the chunks waiting to be parsed or collected, for batch the
+     *                   documents in the batch being filled, for write the batches in flight
+     */
+    public record StageSnapshot(
+            String stage, long records, int queueDepth, int maxQueueDepth, double recordsPerSecond) {
+
+        static StageSnapshot of(
+                String stage, long records, int queueDepth, int maxQueueDepth, long elapsedMillis) {
+            return new StageSnapshot(
+                    stage, records, queueDepth, maxQueueDepth, records * 1000.0 / elapsedMillis);
+        }
+    }
+
+    /**
+     * @param recordsInvalid      records dropped by the validate stage
+     * @param windowWaits         how many batches had to wait for room in the in flight window
+     * @param windowBlockedMillis total time the loader spent waiting for room in the window
+     * @param recordsUnchanged    records not written because change detection found them unchanged
+     * @param unchangedRatio      recordsUnchanged as a fraction of the records that reached the batch
+     *                            stage
+     * @param recordsDeadLettered records sent to the dead letter sink instead of being written
+     * @param errors              records not loaded, per reason
+     */
+    public record Snapshot(
+            long elapsedMillis,
+            boolean running,
+            long bytesRead,
+            long parseCpuMillis,
+            long validateCpuMillis,
+            long recordsInvalid,
+            long batchesWritten,
+            long bytesInFlight,
+            long maxBytesInFlight,
+            long windowWaits,
+            long windowBlockedMillis,
+            long recordsUnchanged,
+            double unchangedRatio,
+            long recordsDeadLettered,
+            Map<String, Long> errors,
+            List<StageSnapshot> stages) {
+    }
+}
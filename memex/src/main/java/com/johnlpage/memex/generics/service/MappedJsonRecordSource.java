@@ -0,0 +1,173 @@
+package com.johnlpage.memex.generics.service;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads the records of an NDJSON file, one object per line, straight from a memory mapping of it
+ * rather than through an InputStream. Whole lines are copied from the mapping a block at a time,
+ * each record is a slice of its block that the parser reads where it is, so every byte is copied
+ * once and there is one array per block rather than per record. Line ends are found eight bytes at
+ * a time.
+ *
+ * <p>Unlike JsonRecordSplitter it doesn't look inside the JSON, so it can't read an array of
+ * objects or objects that span lines. Blank lines are skipped.
+ */
+public class MappedJsonRecordSource implements JsonRecordSource {
+
+    // Copied from the mapping at once, a block is kept while any record in it is being loaded
+    private static final int BLOCK_SIZE = 1 << 20;
+    // Most of the file mapped at once, a mapping can't be bigger than 2GB
+    private static final long WINDOW_SIZE = 1L << 30;
+    private static final VarHandle LONGS =
+            MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final long ONES = 0x0101010101010101L;
+    private static final long HIGH_BITS = 0x8080808080808080L;
+    private static final long NEWLINES = ONES * '\n';
+
+    private final FileChannel channel;
+    private final long start;
+    private final long end;
+    private MappedByteBuffer window;
+    private long windowStart;
+    private long position; // Next byte of the file to copy into a block
+    private byte[] block = new byte[0];
+    private int blockPos;
+    private int blockLimit;
+    private long blockOffset; // Offset in the file of block[0]
+    private long ordinal;
+
+    public MappedJsonRecordSource(Path file) throws IOException {
+        this(file, 0, Long.MAX_VALUE);
+    }
+
+    /**
+     * Reads only the lines from start up to end, which should be the start of a line and the end
+     * of one. Record offsets are still from the start of the file.
+     */
+    public MappedJsonRecordSource(Path file, long start, long end) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.READ);
+        this.start = start;
+        this.end = Math.min(end, channel.size());
+        this.position = start;
+        this.blockOffset = start;
+    }
+
+    @Override
+    public JsonRecord next() throws IOException {
+        while (true) {
+            if (blockPos >= blockLimit && !fill()) {
+                return null;
+            }
+            int newline = indexOfNewline(block, blockPos, blockLimit);
+            int lineEnd = newline < 0 ? blockLimit : newline;
+            int from = blockPos;
+            int to = lineEnd;
+            blockPos = lineEnd + 1;
+            while (from < to && isWhitespace(block[from])) {
+                from++;
+            }
+            while (to > from && isWhitespace(block[to - 1])) {
+                to--;
+            }
+            if (from < to) {
+                return new JsonRecord(block, from, to - from, ordinal++, blockOffset + from);
+            }
+        }
+    }
+
+    @Override
+    public long bytesRead() {
+        return blockOffset + Math.min(blockPos, blockLimit) - start;
+    }
+
+    /**
+     * Copies the next whole lines from the mapping into a new block, never reusing the old one as
+     * records in it may still be waiting to be parsed
+     */
+    private boolean fill() throws IOException {
+        if (position >= end) {
+            return false;
+        }
+        int size = (int) Math.min(BLOCK_SIZE, end - position);
+        while (true) {
+            byte[] next = new byte[size];
+            copy(position, next, size);
+            int lastNewline = position + size < end ? lastIndexOfNewline(next, size) : size - 1;
+            if (lastNewline >= 0) {
+                block = next;
+                blockOffset = position;
+                blockPos = 0;
+                blockLimit = lastNewline + 1;
+                position += blockLimit;
+                return true;
+            }
+            // A line longer than the block, try again with a bigger one
+            if (size >= Integer.MAX_VALUE / 2) {
+                throw new IOException("Line at byte " + position + " is too long");
+            }
+            size = (int) Math.min((long) size * 2, end - position);
+        }
+    }
+
+    private void copy(long from, byte[] to, int length) throws IOException {
+        int copied = 0;
+        while (copied < length) {
+            long at = from + copied;
+            if (window == null || at < windowStart || at >= windowStart + window.capacity()) {
+                windowStart = at;
+                window = channel.map(FileChannel.MapMode.READ_ONLY, at, Math.min(WINDOW_SIZE, end - at));
+            }
+            int inWindow = (int) (at - windowStart);
+            int n = Math.min(length - copied, window.capacity() - inWindow);
+            window.get(inWindow, to, copied, n);
+            copied += n;
+        }
+    }
+
+    /**
+     * @return the index of the first newline in bytes from from up to to, or -1 if there isn't one
+     */
+    static int indexOfNewline(byte[] bytes, int from, int to) {
+        int i = from;
+        for (; i + Long.BYTES <= to; i += Long.BYTES) {
+            // Bytes that were '\n' are now zero, and only the lowest zero byte is sure to be found
+            // without a false match, which being little endian is the first in the array
+            long word = (long) LONGS.get(bytes, i) ^ NEWLINES;
+            long zeros = (word - ONES) & ~word & HIGH_BITS;
+            if (zeros != 0) {
+                return i + (Long.numberOfTrailingZeros(zeros) >>> 3);
+            }
+        }
+        for (; i < to; i++) {
+            if (bytes[i] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int lastIndexOfNewline(byte[] bytes, int to) {
+        for (int i = to - 1; i >= 0; i--) {
+            if (bytes[i] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -1,38 +1,148 @@
 package com.johnlpage.memex.generics.service;
 
 import com.fasterxml.jackson.core.JsonFactory;
-import com.fasterxml.jackson.core.JsonParser;
-import com.fasterxml.jackson.core.JsonToken;
-import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.johnlpage.memex.generics.repository.OptimizedMongoLoadRepository;
+import com.johnlpage.memex.generics.repository.PartialBulkWriteResult;
+import com.johnlpage.memex.util.AnnotationExtractor;
+import com.johnlpage.memex.util.DocumentHash;
+import com.johnlpage.memex.util.ModelMetadata;
 import com.johnlpage.memex.util.UpdateStrategy;
 import com.mongodb.bulk.BulkWriteResult;
 import jakarta.annotation.Nullable;
 import lombok.RequiredArgsConstructor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
-import java.io.BufferedInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
+/**
+ * Loads a stream of JSON objects into MongoDB as a pipeline of stages:
+ *
+ * <ol>
+ *   <li>split - the request thread cuts the raw bytes into one record per object
+ *   <li>parse - chunks of records are parsed, bound to the model and put through the pre-write
+ *       trigger on the parseExecutor threads
+ *   <li>validate - each parsed chunk is validated, also on the parseExecutor threads, and the
+ *       invalid documents handed to the InvalidDataHandlerService together. Skipped if there is no
+ *       handler or the model has no constraints.
+ *   <li>batch - the request thread collects parsed chunks in the order they were submitted and
+ *       fills batches
+ *   <li>write - batches are written asynchronously on the loadExecutor threads
+ * </ol>
+ *
+ * <p>Parsed chunks are always collected oldest first, so batches contain documents in exactly the
+ * order they were in the stream whatever order the parse threads finish in. Repeated ids keep the
+ * same ordering guarantees they had with the single threaded loader. The number of chunks waiting
+ * in the parse stage is bounded so a fast reader can't get far ahead of the parsers.
+ *
+ * <p>The write stage is bounded the same way by an InFlightWindow, a limit on both the batches and
+ * the bytes sent and not yet acknowledged. When the database falls behind the request thread waits
+ * for a write to finish, the time it spends waiting shows up in the load stats.
+ *
+ * <p>With ChangeDetection.HASH the parse stage also hashes each document and the batch stage, still
+ * in stream order, drops any that are the same as the last version written - see DocumentHashCache.
+ * For a reload of a feed where little has changed that removes most of the writes.
+ *
+ * <p>With DispatchMode.PARTITIONED the batch stage keeps a batch per lane and puts each document in
+ * the lane its id hashes to. A lane's batches are written one after another, each waiting for the
+ * one before, so an id repeated in the stream is never in two writes at once. The lanes are
+ * written in parallel with each other.
+ *
+ * <p>When a DeadLetterSink is configured, records that can't be parsed and batches that fail to
+ * write are sent to it and the load carries on, replayDeadLetters loads them again later. Without
+ * one the first failure stops the load.
+ *
+ * <p>A load given a load id saves a LoadCheckpoint as it goes - the point in the source that every
+ * record before has been written, found unchanged or dead lettered, tracked by a CommitWatermark as
+ * batches finish out of order. A load that died can then be resumed by sending the whole source
+ * again with resumeFrom, which skips the committed records without parsing them, or only the rest
+ * of it with a streamOffset.
+ *
+ * <p>A body sent gzip, deflate or zstd compressed is decompressed by a DecompressingInputStream on a
+ * decompressExecutor thread, a bounded buffer ahead of the split stage.
+ */
 @Service
 @RequiredArgsConstructor
 public abstract class MongoDbJsonStreamingLoaderService<T> {
 
     private static final Logger LOG =
             LoggerFactory.getLogger(MongoDbJsonStreamingLoaderService.class);
+    // Reasons in the load response's error counts for documents that never reached the server
+    private static final String PARSE_ERROR = "ParseError";
+    private static final String WRITE_FAILED = "WriteFailed";
     private final OptimizedMongoLoadRepository<T> repository;
     private final ObjectMapper objectMapper;
     private final JsonFactory jsonFactory;
-    @Value("${mongo.jsonloader.batch-size:200}")
-    private int batchSize;
+    // Records handed to a parse thread in one go, big enough to make the hand-off cheap
+    @Value("${mongo.jsonloader.parse-chunk-size:64}")
+    private int parseChunkSize;
+    // Maximum chunks submitted to the parse stage and not yet collected into a batch
+    @Value("${mongo.jsonloader.parse-queue-depth:64}")
+    private int parseQueueDepth;
+    // DIRECT binds each record straight into the model, TREE goes via a JsonNode first
+    @Value("${mongo.jsonloader.bind-mode:DIRECT}")
+    private JsonRecordBinder.BindMode bindMode;
+    // Default in flight window, JsonLoadOptions can override these per load
+    @Value("${mongo.jsonloader.max-batches-in-flight:16}")
+    private int maxBatchesInFlight;
+    @Value("${mongo.jsonloader.max-bytes-in-flight:67108864}")
+    private long maxBytesInFlight;
+    // Default for whether unchanged documents are skipped, JsonLoadOptions can override it
+    @Value("${mongo.jsonloader.change-detection:NONE}")
+    private ChangeDetection changeDetection;
+    // Default dispatch, and the lanes used by PARTITIONED, JsonLoadOptions can override these
+    @Value("${mongo.jsonloader.dispatch-mode:ORDERED}")
+    private DispatchMode dispatchMode;
+    @Value("${mongo.jsonloader.lanes:16}")
+    private int lanes;
+    @Autowired
+    @Qualifier("parseExecutor")
+    private Executor parseExecutor;
+    // Chooses the documents per batch, starting from mongo.jsonloader.batch-size
+    @Autowired
+    private AdaptiveBatchSizer batchSizer;
+    @Autowired
+    private DocumentHashCache hashCache;
+    @Autowired
+    private BatchValidator batchValidator;
+    @Autowired
+    private DeadLetterService deadLetters;
+    @Autowired
+    private LoadCheckpointService checkpoints;
+    @Autowired
+    private LoadMetrics metrics;
+    @Autowired
+    private BatchTracer tracer;
+    // Compressed bodies are decompressed on one of these, up to this many 64KB chunks ahead
+    @Autowired
+    @Qualifier("decompressExecutor")
+    private Executor decompressExecutor;
+    @Value("${mongo.jsonloader.decompress-buffer-chunks:16}")
+    private int decompressBufferChunks;
+    // Least time between checkpoints saved while a load with a load id runs
+    @Value("${mongo.jsonloader.checkpoint-interval-ms:1000}")
+    private long checkpointIntervalMillis;
+
+    private volatile LoadPipelineStats currentStats;
 
     /**
      * Parses a JSON stream object by object, assumes it's not an Array.
@@ -45,95 +155,758 @@ public abstract class MongoDbJsonStreamingLoaderService<T> {
             UpdateStrategy updateStrategy,
             PreWriteTriggerService<T> preTrigger,
             PostWriteTriggerService<T> postTrigger) throws DataLoadException {
+        return loadFromJsonStream(
+                inputStream,
+                type,
+                invalidDataHandlerService,
+                updateStrategy,
+                preTrigger,
+                postTrigger,
+                JsonLoadOptions.DEFAULTS);
+    }
 
-        AtomicLong updates = new AtomicLong(0);
-        AtomicLong deletes = new AtomicLong(0);
-        AtomicLong inserts = new AtomicLong(0);
-        List<T> toSave = new ArrayList<>();
-        List<CompletableFuture<BulkWriteResult>> futures = new ArrayList<>();
+    public JsonStreamingLoadResponse loadFromJsonStream(
+            InputStream inputStream,
+            Class<T> type,
+            InvalidDataHandlerService<T> invalidDataHandlerService,
+            UpdateStrategy updateStrategy,
+            PreWriteTriggerService<T> preTrigger,
+            PostWriteTriggerService<T> postTrigger,
+            JsonLoadOptions options) throws DataLoadException {
+        Long streamOffset = options.getStreamOffset();
+        ContentEncoding encoding =
+                options.getContentEncoding() != null ? options.getContentEncoding() : ContentEncoding.IDENTITY;
+        if (encoding != ContentEncoding.IDENTITY) {
+            if (streamOffset != null && streamOffset != 0) {
+                // Checkpoint offsets are in the decompressed data
+                throw new IllegalArgumentException("A compressed load can only be resumed with resumeFrom");
+            }
+            try {
+                inputStream =
+                        DecompressingInputStream.open(
+                                inputStream, encoding, decompressExecutor, decompressBufferChunks);
+            } catch (IOException e) {
+                throw new DataLoadException(0, 0, 0, "Could not decompress the load: " + e.getMessage(), e);
+            }
+        }
+        JsonRecordSource source = new JsonRecordSplitter(inputStream);
+        if (streamOffset != null && streamOffset != 0) {
+            // Records are numbered from the checkpoint so later checkpoints are still for the whole
+            // source
+            LoadCheckpoint checkpoint =
+                    options.getLoadId() == null ? null : checkpoints.find(options.getLoadId());
+            if (checkpoint == null || checkpoint.bytes() != streamOffset) {
+                throw new IllegalArgumentException(
+                        "Can only resume load "
+                                + options.getLoadId()
+                                + " from its checkpoint"
+                                + (checkpoint == null ? ", it has none" : " at byte " + checkpoint.bytes()));
+            }
+            source = new JsonRecordSplitter(inputStream, checkpoint.bytes(), checkpoint.records());
+        }
+        return loadFromRecordSource(
+                source,
+                type,
+                invalidDataHandlerService,
+                updateStrategy,
+                preTrigger,
+                postTrigger,
+                options);
+    }
+
+    /**
+     * Loads from any source of raw JSON records, such as a JsonRecordSplitter reading a stream or a
+     * MappedJsonRecordSource reading a file. The source is closed at the end.
+     */
+    public JsonStreamingLoadResponse loadFromRecordSource(
+            JsonRecordSource source,
+            Class<T> type,
+            InvalidDataHandlerService<T> invalidDataHandlerService,
+            UpdateStrategy updateStrategy,
+            PreWriteTriggerService<T> preTrigger,
+            PostWriteTriggerService<T> postTrigger,
+            JsonLoadOptions options) throws DataLoadException {
+
+        InFlightWindow window =
+                new InFlightWindow(
+                        options.getMaxBatchesInFlight() != null
+                                ? options.getMaxBatchesInFlight()
+                                : maxBatchesInFlight,
+                        options.getMaxBytesInFlight() != null
+                                ? options.getMaxBytesInFlight()
+                                : maxBytesInFlight);
+        DocumentHashCache.CollectionHashes hashes = null;
+        ChangeDetection detection =
+                options.getChangeDetection() != null ? options.getChangeDetection() : changeDetection;
+        if (detection == ChangeDetection.HASH) {
+            if (updateStrategy == UpdateStrategy.INSERT) {
+                LOG.warn("Change detection is not used with the INSERT strategy");
+            } else {
+                hashes = hashCache.forType(type);
+            }
+        }
+        DispatchMode dispatch =
+                options.getDispatchMode() != null ? options.getDispatchMode() : dispatchMode;
+        int laneCount = 1;
+        if (dispatch == DispatchMode.PARTITIONED) {
+            laneCount = options.getLanes() != null ? options.getLanes() : lanes;
+            if (laneCount < 1) {
+                throw new IllegalArgumentException("lanes must be at least 1");
+            }
+        }
+        LoadRun run =
+                new LoadRun(
+                        type,
+                        invalidDataHandlerService,
+                        updateStrategy,
+                        preTrigger,
+                        postTrigger,
+                        window,
+                        hashes,
+                        dispatch == DispatchMode.PARTITIONED,
+                        laneCount,
+                        options.getLoadId(),
+                        options.getResumeFrom() != null ? options.getResumeFrom() : 0);
+        currentStats = run.stats;
 
-        int count = 0;
         long startTime = System.currentTimeMillis();
-        try (BufferedInputStream bufferedInputStream = new BufferedInputStream(inputStream);
-             JsonParser parser = jsonFactory.createParser(bufferedInputStream)) {
-            // Iterate over tokens in the stream
-            while (!parser.isClosed()) {
-                // Check if the current token is the start of a new JSON object
-                JsonToken token = parser.nextToken();
-                if (token == JsonToken.START_OBJECT) {
-                    // Move the parser to the end of the current object
-                    JsonNode node = objectMapper.readTree(parser);
-
-                    T document = objectMapper.treeToValue(node, type);
-
-                    if (preTrigger != null) {
-                        // For a mutable model
-                        preTrigger.modifyMutableDataPreWrite(document);
-                        // for an immutable model
-                        // document = pretrigger.newImmutableDataPreWritedocument);
+        try (source) {
+            run.execute(source);
+            final long endTime = System.currentTimeMillis();
+            LOG.info("Processed {} docs. Time taken: {}ms.", run.count, endTime - startTime);
+            LOG.info(
+                    "Modified: {} Added: {} Removed: {} Unchanged: {}",
+                    run.updates,
+                    run.inserts,
+                    run.deletes,
+                    run.unchanged);
+            LOG.info("Pipeline stats: {}", run.stats.snapshot());
+            run.checkpoint(true);
+            run.committed();
+            return new JsonStreamingLoadResponse(
+                    run.updates.get(),
+                    run.deletes.get(),
+                    run.inserts.get(),
+                    true,
+                    "",
+                    run.stats.errors());
+        } catch (Exception e) {
+            // Let the batches already sent finish so the counts (and the change detection hashes)
+            // include them
+            run.drain();
+            run.committed();
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            LOG.error("Error during data load process: {}", cause.getMessage());
+            String resume = "";
+            LoadCheckpoint checkpoint = run.checkpoint(false);
+            if (checkpoint != null) {
+                resume =
+                        String.format(
+                                " - load %s can resume from record %d, byte %d",
+                                checkpoint.loadId(), checkpoint.records(), checkpoint.bytes());
+            }
+            throw new DataLoadException(
+                    run.updates.get(),
+                    run.deletes.get(),
+                    run.inserts.get(),
+                    run.stats.errors(),
+                    "Error during data load process: " + cause.getMessage() + resume,
+                    cause);
+        } finally {
+            run.stats.finish();
+        }
+    }
+
+    /**
+     * Stage counters and queue depths for the load in progress, or the last one if none is running.
+     */
+    @Nullable
+    public LoadPipelineStats.Snapshot getLoadStats() {
+        LoadPipelineStats stats = currentStats;
+        return stats == null ? null : stats.snapshot();
+    }
+
+    /**
+     * Seeds the change detection hashes for a model class from what is in its collection now.
+     *
+     * @return the number of documents hashed
+     */
+    public long seedChangeDetection(Class<T> type) {
+        return hashCache.seed(type);
+    }
+
+    /**
+     * Loads the dead letters for a model class again, oldest first. Any that fail again are dead
+     * lettered again, after the ones that were there when the replay started, so a replay always
+     * finishes. Each letter is deleted once its record is committed, if the replay fails the
+     * letters it hadn't got to are still there.
+     */
+    public JsonStreamingLoadResponse replayDeadLetters(
+            Class<T> type,
+            InvalidDataHandlerService<T> invalidDataHandlerService,
+            UpdateStrategy updateStrategy,
+            PreWriteTriggerService<T> preTrigger,
+            PostWriteTriggerService<T> postTrigger,
+            JsonLoadOptions options) throws DataLoadException {
+        return loadFromRecordSource(
+                new DeadLetterRecordSource(deadLetters, type),
+                type,
+                invalidDataHandlerService,
+                updateStrategy,
+                preTrigger,
+                postTrigger,
+                options);
+    }
+
+    /**
+     * @return the last checkpoint saved by the load with this id, or null if there isn't one
+     */
+    @Nullable
+    public LoadCheckpoint getCheckpoint(String loadId) {
+        return checkpoints.find(loadId);
+    }
+
+    /**
+     * @return how many dead letters are waiting to be replayed for a model class
+     */
+    public long countDeadLetters(Class<T> type) {
+        return deadLetters.count(type);
+    }
+
+    /**
+     * Parse stage - runs on a parseExecutor thread.
+     */
+    private List<Parsed<T>> parseChunk(
+            List<JsonRecord> chunk,
+            Class<T> type,
+            JsonRecordBinder<T> binder,
+            PreWriteTriggerService<T> preTrigger,
+            DocumentHashCache.CollectionHashes hashes,
+            boolean partitioned,
+            LoadPipelineStats stats)
+            throws IOException {
+        long start = System.nanoTime();
+        // Each document is given the time since the one before, for tracing its batch
+        long previous = start;
+        List<Parsed<T>> documents = new ArrayList<>(chunk.size());
+        List<DeadLetter> unparsable = new ArrayList<>();
+        IOException firstError = null;
+        for (JsonRecord record : chunk) {
+            T document;
+            try {
+                document = binder.bind(record);
+            } catch (IOException e) {
+                if (!deadLetters.isEnabled()) {
+                    throw e;
+                }
+                firstError = firstError == null ? e : firstError;
+                unparsable.add(
+                        deadLetters.rawLetter(
+                                type,
+                                DeadLetter.Reason.PARSE_ERROR,
+                                new String(
+                                        record.array(),
+                                        record.arrayOffset(),
+                                        record.length(),
+                                        StandardCharsets.UTF_8),
+                                "Record " + record.ordinal() + " at byte " + record.offset() + ": "
+                                        + e.getMessage()));
+                continue;
+            }
+
+            if (preTrigger != null) {
+                // For a mutable model
+                preTrigger.modifyMutableDataPreWrite(document);
+                // for an immutable model
+                // document = pretrigger.newImmutableDataPreWritedocument);
+            }
+            long idKey = 0;
+            long hash = DocumentHashCache.NO_HASH;
+            if (hashes != null) {
+                idKey = hashes.idKey(document);
+                hash = hashes.hashOf(document);
+            } else if (partitioned) {
+                idKey = DocumentHash.ofId(ModelMetadata.of(document.getClass()).getId(document));
+            }
+            long now = System.nanoTime();
+            documents.add(new Parsed<>(document, record, idKey, hash, now - previous));
+            previous = now;
+        }
+        if (!unparsable.isEmpty()) {
+            if (!deadLetters.send(unparsable)) {
+                throw firstError;
+            }
+            stats.deadLettered(unparsable.size());
+            stats.rejected(PARSE_ERROR, unparsable.size());
+        }
+        stats.parsed(documents.size(), System.nanoTime() - start);
+        return documents;
+    }
+
+    /**
+     * Validate stage - runs on a parseExecutor thread after the chunk is parsed.
+     */
+    private List<Parsed<T>> validateChunk(
+            List<Parsed<T>> parsed,
+            Class<T> type,
+            InvalidDataHandlerService<T> invalidDataHandlerService,
+            LoadPipelineStats stats) {
+        long start = System.nanoTime();
+        List<T> documents = new ArrayList<>(parsed.size());
+        for (Parsed<T> p : parsed) {
+            documents.add(p.document());
+        }
+        List<T> accepted = batchValidator.validate(documents, type, invalidDataHandlerService);
+        List<Parsed<T>> valid = parsed;
+        if (accepted.size() != documents.size()) {
+            // Accepted is in the same order, just with the rejected documents missing
+            valid = new ArrayList<>(accepted.size());
+            int next = 0;
+            for (Parsed<T> p : parsed) {
+                if (next < accepted.size() && accepted.get(next) == p.document()) {
+                    valid.add(p);
+                    next++;
+                }
+            }
+        }
+        stats.validated(parsed.size(), parsed.size() - valid.size(), System.nanoTime() - start);
+        stats.rejected(PartialBulkWriteResult.INVALID, parsed.size() - valid.size());
+        return valid;
+    }
+
+    /**
+     * A bound document and where in the source its JSON came from, and its id key (for change
+     * detection or choosing a lane) and hash if those are in use, and how long it took to parse
+     */
+    private record Parsed<D>(
+            D document, int bytes, long ordinal, long offset, long idKey, long hash, long parseNanos) {
+
+        Parsed(D document, JsonRecord record, long idKey, long hash, long parseNanos) {
+            this(document, record.length(), record.ordinal(), record.offset(), idKey, hash, parseNanos);
+        }
+    }
+
+    /**
+     * A document sent to be written and its claim on the change detection hashes
+     */
+    private record Claim(long idKey, long ticket, long hash) {
+    }
+
+    /**
+     * Documents collected for the next batch. In a PARTITIONED load each lane also remembers its last
+     * write so the next one can wait for it.
+     */
+    private final class Lane {
+        List<T> toSave = new ArrayList<>();
+        List<Claim> toSaveClaims = new ArrayList<>();
+        long toSaveBytes = 0;
+        long toSaveParseNanos = 0;
+        // Ordinal of the first record in toSave, which the batch is known by in the CommitWatermark
+        long firstOrdinal;
+        // Completes once every batch from this lane has been written, null if batches don't wait
+        CompletableFuture<?> lastWrite;
+
+        Lane(boolean sequential) {
+            lastWrite = sequential ? CompletableFuture.completedFuture(null) : null;
+        }
+    }
+
+    /**
+     * The state of a single call to loadFromRecordSource
+     */
+    private final class LoadRun {
+        final AtomicLong updates = new AtomicLong(0);
+        final AtomicLong deletes = new AtomicLong(0);
+        final AtomicLong inserts = new AtomicLong(0);
+        long unchanged = 0;
+        final LoadPipelineStats stats;
+        final ArrayDeque<CompletableFuture<List<Parsed<T>>>> parsing = new ArrayDeque<>();
+        // The first write that failed, once set no more batches are sent
+        final AtomicReference<Throwable> writeFailure = new AtomicReference<>();
+        final Class<T> type;
+        final String collection;
+        final JsonRecordBinder<T> binder;
+        final InvalidDataHandlerService<T> invalidDataHandlerService;
+        final UpdateStrategy updateStrategy;
+        final PreWriteTriggerService<T> preTrigger;
+        final PostWriteTriggerService<T> postTrigger;
+        final InFlightWindow window;
+        // Null unless skipping unchanged documents
+        final DocumentHashCache.CollectionHashes hashes;
+        // False if there is no handler or nothing in the model to validate
+        final boolean validating;
+        final boolean partitioned;
+        // A single lane unless partitioned
+        final List<Lane> lanes = new ArrayList<>();
+        // Documents in all the lanes waiting to be sent
+        int collected = 0;
+        int batchSize;
+        long count = 0;
+        // Null unless saving checkpoints
+        final String loadId;
+        // Records before this ordinal were committed by an earlier attempt at the load
+        final long resumeFrom;
+        // Created from the first record, so it starts wherever the source does
+        CommitWatermark watermark;
+        // Set by execute, told which records are committed
+        JsonRecordSource source;
+        long lastCheckpointNanos = System.nanoTime();
+
+        LoadRun(
+                Class<T> type,
+                InvalidDataHandlerService<T> invalidDataHandlerService,
+                UpdateStrategy updateStrategy,
+                PreWriteTriggerService<T> preTrigger,
+                PostWriteTriggerService<T> postTrigger,
+                InFlightWindow window,
+                DocumentHashCache.CollectionHashes hashes,
+                boolean partitioned,
+                int laneCount,
+                String loadId,
+                long resumeFrom) {
+            this.type = type;
+            this.collection = AnnotationExtractor.getCollectionName(type);
+            this.stats = new LoadPipelineStats(metrics.forCollection(collection));
+            this.binder = new JsonRecordBinder<>(bindMode, type, objectMapper, jsonFactory);
+            this.invalidDataHandlerService = invalidDataHandlerService;
+            this.updateStrategy = updateStrategy;
+            this.preTrigger = preTrigger;
+            this.postTrigger = postTrigger;
+            this.window = window;
+            this.hashes = hashes;
+            this.validating =
+                    invalidDataHandlerService != null && batchValidator.isConstrained(type);
+            this.partitioned = partitioned;
+            for (int i = 0; i < laneCount; i++) {
+                lanes.add(new Lane(partitioned));
+            }
+            this.batchSize = batchSizer.getBatchSize(updateStrategy);
+            this.loadId = loadId;
+            this.resumeFrom = resumeFrom;
+        }
+
+        void execute(JsonRecordSource source) throws IOException {
+            this.source = source;
+            List<JsonRecord> chunk = new ArrayList<>(parseChunkSize);
+            JsonRecord record;
+            JsonRecord last = null;
+            long skipped = 0;
+            while ((record = source.next()) != null) {
+                last = record;
+                stats.recordRead(record.length());
+                if (watermark == null) {
+                    watermark = new CommitWatermark(record.ordinal(), record.offset());
+                }
+                if (record.ordinal() < resumeFrom) {
+                    // Nothing is in flight yet so these go straight under the watermark
+                    watermark.seen(record.ordinal(), record.offset() + record.length());
+                    skipped++;
+                    continue;
+                }
+                chunk.add(record);
+                if (chunk.size() >= parseChunkSize) {
+                    submitChunk(chunk);
+                    chunk = new ArrayList<>(parseChunkSize);
+                    // Take whatever is ready, and wait for the oldest if the parse stage is full
+                    collectParsed(false);
+                    while (parsing.size() >= parseQueueDepth) {
+                        collectOldest();
+                    }
+                }
+            }
+            if (skipped > 0) {
+                LOG.info("Skipped {} records already loaded", skipped);
+            }
+            if (!chunk.isEmpty()) {
+                submitChunk(chunk);
+            }
+            collectParsed(true);
+            for (Lane lane : lanes) {
+                if (!lane.toSave.isEmpty()) {
+                    dispatch(lane);
+                }
+            }
+
+            // Wait for all the writes still in flight to complete
+            try {
+                window.awaitEmpty();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for writes to complete");
+            }
+            throwIfWriteFailed();
+            if (last != null) {
+                // Including any at the end that were dead lettered before the batch stage
+                watermark.seen(last.ordinal(), last.offset() + last.length());
+            }
+        }
+
+        /**
+         * Saves how far the load has got if it has a load id
+         *
+         * @return the checkpoint saved, or null if there is no load id or nothing was read
+         */
+        LoadCheckpoint checkpoint(boolean complete) {
+            lastCheckpointNanos = System.nanoTime();
+            if (loadId == null || watermark == null) {
+                return null;
+            }
+            CommitWatermark.Position position = watermark.position();
+            LoadCheckpoint checkpoint =
+                    new LoadCheckpoint(
+                            loadId,
+                            collection,
+                            position.records(),
+                            position.bytes(),
+                            complete,
+                            Instant.now());
+            try {
+                checkpoints.save(checkpoint);
+            } catch (RuntimeException e) {
+                // Only costs more of the load being repeated if it has to be resumed
+                LOG.warn("Could not save checkpoint for load {}: {}", loadId, e.getMessage());
+            }
+            return checkpoint;
+        }
+
+        /**
+         * Tells the source how far every record has been committed, only from the loader thread
+         */
+        void committed() {
+            if (source != null && watermark != null) {
+                source.committed(watermark.position().records());
+            }
+        }
+
+        private void checkpointIfDue() {
+            if (loadId != null
+                    && System.nanoTime() - lastCheckpointNanos
+                            >= TimeUnit.MILLISECONDS.toNanos(checkpointIntervalMillis)) {
+                checkpoint(false);
+            }
+        }
+
+        void drain() {
+            try {
+                window.awaitEmpty();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void submitChunk(List<JsonRecord> chunk) {
+            stats.parseQueued();
+            CompletableFuture<List<Parsed<T>>> parsed =
+                    CompletableFuture.supplyAsync(
+                            () -> {
+                                try {
+                                    return parseChunk(
+                                            chunk, type, binder, preTrigger, hashes, partitioned, stats);
+                                } catch (IOException e) {
+                                    throw new CompletionException(e);
+                                }
+                            },
+                            parseExecutor);
+            if (validating) {
+                parsed =
+                        parsed.thenApplyAsync(
+                                documents ->
+                                        validateChunk(documents, type, invalidDataHandlerService, stats),
+                                parseExecutor);
+            }
+            parsing.add(parsed);
+        }
+
+        private void collectParsed(boolean waitForAll) throws InterruptedIOException {
+            while (!parsing.isEmpty() && (waitForAll || parsing.peek().isDone())) {
+                collectOldest();
+            }
+        }
+
+        // Batch stage - always takes chunks in the order they were submitted
+        private void collectOldest() throws InterruptedIOException {
+            List<Parsed<T>> documents = parsing.poll().join();
+            stats.parseDequeued();
+            for (Parsed<T> parsed : documents) {
+                count++;
+                long ticket = 0;
+                if (hashes != null) {
+                    // Claimed here rather than in the parse stage so repeats of an id are seen in order
+                    ticket = hashes.claim(parsed.idKey(), parsed.hash());
+                    if (ticket == DocumentHashCache.UNCHANGED) {
+                        unchanged++;
+                        stats.unchanged();
+                        watermark.seen(parsed.ordinal(), parsed.offset() + parsed.bytes());
+                        continue;
                     }
+                }
+                Lane lane =
+                        lanes.size() == 1
+                                ? lanes.get(0)
+                                : lanes.get(Math.floorMod(parsed.idKey(), lanes.size()));
+                if (hashes != null) {
+                    lane.toSaveClaims.add(new Claim(parsed.idKey(), ticket, parsed.hash()));
+                }
+                if (lane.toSave.isEmpty()) {
+                    lane.firstOrdinal = parsed.ordinal();
+                    watermark.opened(parsed.ordinal(), parsed.offset());
+                }
+                lane.toSave.add(parsed.document());
+                lane.toSaveBytes += parsed.bytes();
+                lane.toSaveParseNanos += parsed.parseNanos();
+                watermark.seen(parsed.ordinal(), parsed.offset() + parsed.bytes());
+                collected++;
+                if (lane.toSave.size() >= batchSize) {
+                    dispatch(lane);
+                }
+            }
+            stats.setBatchQueueDepth(collected);
+            checkpointIfDue();
+            committed();
+        }
+
+        // Write stage - waits for room in the in flight window then hands the batch to a writer
+        private void dispatch(Lane lane) throws InterruptedIOException {
+            throwIfWriteFailed();
+            List<T> copyOfToSave = List.copyOf(lane.toSave);
+            List<Claim> claims = lane.toSaveClaims;
+            long batchBytes = lane.toSaveBytes;
+            long firstOrdinal = lane.firstOrdinal;
+            BatchTracer.Trace trace = tracer.trace(collection, updateStrategy, copyOfToSave.size());
+            trace.add(BatchTracer.Phase.PARSE, lane.toSaveParseNanos);
+            lane.toSave = new ArrayList<>();
+            lane.toSaveClaims = hashes == null ? claims : new ArrayList<>();
+            lane.toSaveBytes = 0;
+            lane.toSaveParseNanos = 0;
+            collected -= copyOfToSave.size();
+            batchSizer.recordDocumentBytes(updateStrategy, copyOfToSave.size(), batchBytes);
+            // Size the next batch from what the sizer has learned so far
+            batchSize = batchSizer.getBatchSize(updateStrategy);
+
+            try {
+                stats.windowAcquired(window.acquire(batchBytes));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting to send a batch");
+            }
+            stats.batched(copyOfToSave.size());
+            stats.writeStarted(batchBytes);
+
+            CompletableFuture<BulkWriteResult> write;
+            if (lane.lastWrite != null) {
+                // Sent when the lane's previous batch is done, whether or not that one succeeded
+                write =
+                        lane.lastWrite
+                                .handle((result, error) -> null)
+                                .thenCompose(ignored -> writeInLane(copyOfToSave, trace));
+                lane.lastWrite = write;
+            } else {
+                try {
+                    // Already validated, so no handler for the repository to validate with again
+                    write =
+                            repository.asyncWriteMany(
+                                    copyOfToSave, type, null, updateStrategy, postTrigger, trace);
+                } catch (RuntimeException e) {
+                    writeCompleted(copyOfToSave.size(), batchBytes, firstOrdinal, claims, null, e);
+                    throw e;
+                }
+            }
+            // Nothing keeps hold of the future, once complete it and its batch can be collected
+            write.whenComplete(
+                    (bulkWriteResult, error) ->
+                            writeCompleted(
+                                    copyOfToSave.size(),
+                                    batchBytes,
+                                    firstOrdinal,
+                                    claims,
+                                    bulkWriteResult,
+                                    error));
+        }
 
-                    count++;
-
-                    toSave.add(document);
-                    if (toSave.size() >= batchSize) {
-                        List<T> copyOfToSave = List.copyOf(toSave);
-                        toSave.clear();
-                        futures.add(
-                                repository
-                                        .asyncWriteMany(
-                                                copyOfToSave, type, invalidDataHandlerService, updateStrategy, postTrigger)
-                                        .thenApply(
-                                                bulkWriteResult -> {
-                                                    updates.addAndGet(bulkWriteResult.getModifiedCount());
-                                                    deletes.addAndGet(bulkWriteResult.getDeletedCount());
-                                                    inserts.addAndGet(
-                                                            bulkWriteResult.getUpserts().size()
-                                                                    + bulkWriteResult.getInsertedCount());
-                                                    return bulkWriteResult;
-                                                }));
+        private CompletableFuture<BulkWriteResult> writeInLane(List<T> batch, BatchTracer.Trace trace) {
+            // A batch queued behind one that failed is never sent
+            Throwable failure = writeFailure.get();
+            if (failure != null) {
+                return CompletableFuture.failedFuture(failure);
+            }
+            return repository.asyncWriteMany(batch, type, null, updateStrategy, postTrigger, trace);
+        }
+
+        private void writeCompleted(
+                int records,
+                long batchBytes,
+                long firstOrdinal,
+                List<Claim> claims,
+                BulkWriteResult bulkWriteResult,
+                Throwable error) {
+            Map<String, Long> rejected =
+                    error == null ? PartialBulkWriteResult.errorsOf(bulkWriteResult) : Map.of();
+            if (hashes != null) {
+                // Which documents a partial write rejected isn't known here, so forget them all
+                boolean allWritten = error == null && rejected.isEmpty();
+                for (Claim claim : claims) {
+                    if (allWritten) {
+                        hashes.committed(claim.idKey(), claim.ticket(), claim.hash());
+                    } else {
+                        hashes.failed(claim.idKey(), claim.ticket());
                     }
                 }
             }
-            if (!toSave.isEmpty()) {
-                futures.add(
-                        repository
-                                .asyncWriteMany(
-                                        toSave, type, invalidDataHandlerService, updateStrategy, postTrigger)
-                                .thenApply(
-                                        bulkWriteResult -> {
-                                            updates.addAndGet(bulkWriteResult.getModifiedCount());
-                                            deletes.addAndGet(bulkWriteResult.getDeletedCount());
-                                            inserts.addAndGet(
-                                                    bulkWriteResult.getUpserts().size() + bulkWriteResult.getInsertedCount());
-                                            return bulkWriteResult;
-                                        }));
+            DeadLetteredException deadLettered = deadLettered(error);
+            if (deadLettered != null) {
+                // Kept for replaying later, carry on with the rest of the stream
+                stats.deadLettered(deadLettered.getDocuments());
+                stats.rejected(WRITE_FAILED, deadLettered.getDocuments());
+                watermark.closed(firstOrdinal);
+            } else if (error != null) {
+                writeFailure.compareAndSet(null, error);
+            } else {
+                updates.addAndGet(bulkWriteResult.getModifiedCount());
+                deletes.addAndGet(bulkWriteResult.getDeletedCount());
+                inserts.addAndGet(
+                        bulkWriteResult.getUpserts().size() + bulkWriteResult.getInsertedCount());
+                rejected.forEach(stats::rejected);
+                watermark.closed(firstOrdinal);
             }
-            final long endTime = System.currentTimeMillis();
+            stats.writeFinished(records, batchBytes);
+            window.release(batchBytes);
+        }
 
-            CompletableFuture<Void> allFutures =
-                    CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]));
-            // Wait for all futures to complete
-            allFutures.join();
-            LOG.info("Processed {} docs. Time taken: {}ms.", count, endTime - startTime);
-            LOG.info("Modified: {} Added: {} Removed: {}", updates, inserts, deletes);
-            return new JsonStreamingLoadResponse(updates.get(), deletes.get(), inserts.get(), true, "");
-        } catch (Exception e) {
-            LOG.error("Error during data load process: {}", e.getMessage());
-            throw new DataLoadException(
-                    updates.get(),
-                    deletes.get(),
-                    inserts.get(),
-                    "Error during data load process: " + e.getMessage(),
-                    e );
+        private DeadLetteredException deadLettered(Throwable error) {
+            for (Throwable e = error; e != null; e = e.getCause() == e ? null : e.getCause()) {
+                if (e instanceof DeadLetteredException deadLettered) {
+                    return deadLettered;
+                }
+            }
+            return null;
+        }
+
+        private void throwIfWriteFailed() {
+            Throwable failure = writeFailure.get();
+            if (failure != null) {
+                throw failure instanceof CompletionException ce
+                        ? ce
+                        : new CompletionException(failure);
+            }
         }
     }
 
+    /**
+     * @param errors documents that were not loaded, counted by reason - DuplicateKey and the like
+     *               from the server, Invalid, ParseError, or WriteFailed for whole batches that
+     *               went to the dead letter sink
+     */
     public record JsonStreamingLoadResponse(
         long updates,
         long deletes,
         long inserts,
         boolean success,
-        String message
-    ) {}
+        String message,
+        Map<String, Long> errors
+    ) {
+        public JsonStreamingLoadResponse(
+            long updates, long deletes, long inserts, boolean success, String message) {
+            this(updates, deletes, inserts, success, message, Map.of());
+        }
+    }
 }
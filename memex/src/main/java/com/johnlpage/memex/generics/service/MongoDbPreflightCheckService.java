@@ -14,6 +14,8 @@ import org.springframework.boot.ApplicationRunner;
 import org.springframework.boot.SpringApplication;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.annotation.Bean;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
 import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.data.mongodb.core.aggregation.Aggregation;
 import org.springframework.data.mongodb.core.aggregation.AggregationOperation;
@@ -288,7 +290,9 @@ public class MongoDbPreflightCheckService {
         }
     }
 
+    // Before any other runner, such as a file load, uses the collections
     @Bean
+    @Order(Ordered.HIGHEST_PRECEDENCE)
     public ApplicationRunner mongoPreflightCheck(MongoVersionBean mongoVersionBean) {
         return args -> {
             LOG.info("*** PREFLIGHT CHECK STARTED ***");
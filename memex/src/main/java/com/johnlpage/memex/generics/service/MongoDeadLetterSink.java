@@ -0,0 +1,90 @@
+package com.johnlpage.memex.generics.service;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.InsertManyOptions;
+import com.mongodb.client.model.Sorts;
+import jakarta.annotation.Nullable;
+import lombok.RequiredArgsConstructor;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.stereotype.Component;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps dead letters in a collection named after the one they were meant for with _deadletter on
+ * the end, the same way history goes in _history. The payload is kept as a string so records that
+ * weren't valid JSON can be stored too.
+ */
+@Component
+@ConditionalOnProperty(name = "memex.deadletter.sink", havingValue = "MONGO")
+@RequiredArgsConstructor
+public class MongoDeadLetterSink implements DeadLetterSink {
+
+    public static final String COLLECTION_SUFFIX = "_deadletter";
+    private final MongoTemplate mongoTemplate;
+
+    private MongoCollection<Document> collection(String source) {
+        return mongoTemplate.getCollection(source + COLLECTION_SUFFIX);
+    }
+
+    @Override
+    public void write(List<DeadLetter> letters) {
+        Map<String, List<Document>> bySource = new LinkedHashMap<>();
+        for (DeadLetter letter : letters) {
+            bySource.computeIfAbsent(letter.source(), s -> new ArrayList<>())
+                    .add(
+                            new Document("reason", letter.reason().name())
+                                    .append("error", letter.error())
+                                    .append("payload", letter.payload())
+                                    .append("time", Date.from(letter.time())));
+        }
+        bySource.forEach(
+                (source, documents) ->
+                        collection(source).insertMany(documents, new InsertManyOptions().ordered(false)));
+    }
+
+    /**
+     * Oldest first by _id. Not leased, replay from one application instance at a time.
+     */
+    @Override
+    public List<Kept> read(String source, @Nullable ObjectId after, int max) {
+        List<Kept> letters = new ArrayList<>();
+        Bson filter = after == null ? new Document() : Filters.gt("_id", after);
+        for (Document document :
+                collection(source).find(filter).sort(Sorts.ascending("_id")).limit(max)) {
+            Date time = document.getDate("time");
+            letters.add(
+                    new Kept(
+                            document.getObjectId("_id"),
+                            new DeadLetter(
+                                    source,
+                                    DeadLetter.Reason.valueOf(document.getString("reason")),
+                                    document.getString("error"),
+                                    document.getString("payload"),
+                                    time == null ? Instant.EPOCH : time.toInstant())));
+        }
+        return letters;
+    }
+
+    @Override
+    public void delete(String source, List<ObjectId> ids) {
+        if (!ids.isEmpty()) {
+            collection(source).deleteMany(Filters.in("_id", ids));
+        }
+    }
+
+    @Override
+    public long count(String source) {
+        return collection(source).countDocuments();
+    }
+}
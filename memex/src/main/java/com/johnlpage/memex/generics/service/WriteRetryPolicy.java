@@ -0,0 +1,221 @@
+package com.johnlpage.memex.generics.service;
+
+import com.johnlpage.memex.util.UpdateStrategy;
+import com.mongodb.MongoException;
+import com.mongodb.bulk.BulkWriteError;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Component;
+
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * When and how often a bulk write that failed for a transient reason is tried again. Inside a
+ * transaction two batches writing the same _id at the same time get a write conflict, the server
+ * labels that a TransientTransactionError and the whole transaction can simply be run again. A commit
+ * that is labelled UnknownTransactionCommitResult may or may not have happened, and retrying the
+ * commit itself is safe.
+ *
+ * <p>Retries wait an exponentially growing, randomly jittered time so that the batches that
+ * conflicted don't just conflict again. After split-after conflicts a batch is split in two and
+ * each half retried on its own, so a few hot documents end up in small batches and don't keep
+ * taking the rest of the batch down with them.
+ *
+ * <p>In an unordered bulk write the server reports documents it could not write one by one. Of
+ * those the ones failing for a reason that may go away - a primary stepping down, a lock timeout -
+ * are retried on their own, the rest are rejected and counted under the server's name for the
+ * error.
+ *
+ * <p>Counts per update strategy are available from the writeretries actuator endpoint.
+ */
+@Component
+@Endpoint(id = "writeretries")
+public class WriteRetryPolicy {
+
+    // Server error codes where sending the same document again may well work
+    private static final Set<Integer> RETRYABLE_WRITE_ERRORS =
+            Set.of(6, 7, 89, 91, 112, 189, 262, 9001, 10107, 11600, 11602, 13435, 13436);
+
+    private static final Map<Integer, String> ERROR_NAMES =
+            Map.ofEntries(
+                    Map.entry(2, "BadValue"),
+                    Map.entry(6, "HostUnreachable"),
+                    Map.entry(7, "HostNotFound"),
+                    Map.entry(13, "Unauthorized"),
+                    Map.entry(14, "TypeMismatch"),
+                    Map.entry(28, "PathNotViable"),
+                    Map.entry(50, "MaxTimeMSExpired"),
+                    Map.entry(52, "DollarPrefixedFieldName"),
+                    Map.entry(61, "ShardKeyNotFound"),
+                    Map.entry(66, "ImmutableField"),
+                    Map.entry(89, "NetworkTimeout"),
+                    Map.entry(91, "ShutdownInProgress"),
+                    Map.entry(112, "WriteConflict"),
+                    Map.entry(121, "DocumentValidationFailure"),
+                    Map.entry(189, "PrimarySteppedDown"),
+                    Map.entry(262, "ExceededTimeLimit"),
+                    Map.entry(9001, "SocketException"),
+                    Map.entry(10107, "NotWritablePrimary"),
+                    Map.entry(10334, "BSONObjectTooLarge"),
+                    Map.entry(11000, "DuplicateKey"),
+                    Map.entry(11600, "InterruptedAtShutdown"),
+                    Map.entry(11602, "InterruptedDueToReplStateChange"),
+                    Map.entry(13435, "NotPrimaryNoSecondaryOk"),
+                    Map.entry(13436, "NotPrimaryOrSecondary"));
+
+    private final int maxAttempts;
+    private final long initialBackoffMillis;
+    private final long maxBackoffMillis;
+    private final int splitAfter;
+    private final Map<UpdateStrategy, Counters> counters = new EnumMap<>(UpdateStrategy.class);
+
+    public WriteRetryPolicy(
+            @Value("${mongo.writeretry.max-attempts:5}") int maxAttempts,
+            @Value("${mongo.writeretry.initial-backoff-ms:10}") long initialBackoffMillis,
+            @Value("${mongo.writeretry.max-backoff-ms:1000}") long maxBackoffMillis,
+            @Value("${mongo.writeretry.split-after:2}") int splitAfter) {
+        if (maxAttempts < 1 || splitAfter < 1) {
+            throw new IllegalArgumentException("max-attempts and split-after must be at least 1");
+        }
+        this.maxAttempts = maxAttempts;
+        this.initialBackoffMillis = initialBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+        this.splitAfter = splitAfter;
+        for (UpdateStrategy strategy : UpdateStrategy.values()) {
+            counters.put(strategy, new Counters());
+        }
+    }
+
+    /**
+     * @return true if the error, or one it was caused by, says the transaction can be run again
+     */
+    public boolean isTransient(Throwable error) {
+        return hasLabel(error, MongoException.TRANSIENT_TRANSACTION_ERROR_LABEL);
+    }
+
+    /**
+     * @return true if the commit may or may not have been applied and can be tried again
+     */
+    public boolean isUnknownCommitResult(Throwable error) {
+        return hasLabel(error, MongoException.UNKNOWN_TRANSACTION_COMMIT_RESULT_LABEL);
+    }
+
+    /**
+     * @return true if a document the server would not write in a bulk write is worth sending again
+     */
+    public boolean isRetryable(BulkWriteError error) {
+        return RETRYABLE_WRITE_ERRORS.contains(error.getCode());
+    }
+
+    /**
+     * @return the server's name for an error code, or Error followed by the code if it's not one
+     *     we know
+     */
+    public static String reason(int code) {
+        return ERROR_NAMES.getOrDefault(code, "Error" + code);
+    }
+
+    private static boolean hasLabel(Throwable error, String label) {
+        // Spring wraps driver exceptions in its own DataAccessExceptions
+        for (Throwable e = error; e != null; e = e.getCause() == e ? null : e.getCause()) {
+            if (e instanceof MongoException mongoException && mongoException.hasErrorLabel(label)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return attempts at a batch (or at a commit) before giving up, including the first
+     */
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * @return conflicts on a batch after which it is split instead of retried whole
+     */
+    public int getSplitAfter() {
+        return splitAfter;
+    }
+
+    /**
+     * Waits before the next attempt, a random time up to initial-backoff-ms doubled for each attempt
+     * so far, capped at max-backoff-ms.
+     *
+     * @return false if interrupted while waiting
+     */
+    public boolean backoff(int attempt) {
+        long ceiling = Math.min(maxBackoffMillis, initialBackoffMillis << Math.min(attempt - 1, 30));
+        long millis = ThreadLocalRandom.current().nextLong(ceiling / 2, ceiling + 1);
+        try {
+            TimeUnit.MILLISECONDS.sleep(millis);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    public void recordRetry(UpdateStrategy strategy) {
+        counters.get(strategy).retries.increment();
+    }
+
+    public void recordDocumentRetries(UpdateStrategy strategy, int documents) {
+        counters.get(strategy).documentRetries.add(documents);
+    }
+
+    public void recordCommitRetry(UpdateStrategy strategy) {
+        counters.get(strategy).commitRetries.increment();
+    }
+
+    public void recordSplit(UpdateStrategy strategy) {
+        counters.get(strategy).splits.increment();
+    }
+
+    public void recordExhausted(UpdateStrategy strategy) {
+        counters.get(strategy).exhausted.increment();
+    }
+
+    @ReadOperation
+    public Map<UpdateStrategy, Snapshot> writeRetries() {
+        Map<UpdateStrategy, Snapshot> snapshots = new LinkedHashMap<>();
+        counters.forEach((strategy, c) -> snapshots.put(strategy, c.snapshot()));
+        return snapshots;
+    }
+
+    /**
+     * @param retries         whole batches run again after a transient error
+     * @param documentRetries single documents sent again after a retryable write error
+     * @param commitRetries   commits tried again after an unknown commit result
+     * @param splits          batches split in two after repeated conflicts
+     * @param exhausted       batches that still failed after max-attempts and were given up on
+     */
+    public record Snapshot(
+            long retries, long documentRetries, long commitRetries, long splits, long exhausted) {
+    }
+
+    private static final class Counters {
+        private final LongAdder retries = new LongAdder();
+        private final LongAdder documentRetries = new LongAdder();
+        private final LongAdder commitRetries = new LongAdder();
+        private final LongAdder splits = new LongAdder();
+        private final LongAdder exhausted = new LongAdder();
+
+        private Snapshot snapshot() {
+            return new Snapshot(
+                    retries.sum(),
+                    documentRetries.sum(),
+                    commitRetries.sum(),
+                    splits.sum(),
+                    exhausted.sum());
+        }
+    }
+}
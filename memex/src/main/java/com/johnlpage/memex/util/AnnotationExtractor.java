@@ -26,55 +26,23 @@ public final class AnnotationExtractor {
    * Retrieves the value of the field annotated with @Id from the given model object.
    *
    * @param model the object from which to extract the _id field
-   * @return the value of the _id field as an Object, or null if no field is annotated with @Id
+   * @return the value of the _id field as an Object
    * @throws IllegalAccessException if the field is not accessible
+   * @see ModelMetadata for the cached version used on the load path
    */
   public static Object getIdFromModel(Object model) throws IllegalAccessException {
     if (model == null) {
       throw new IllegalArgumentException("The provided model is null");
     }
-
-    Class<?> modelClass = model.getClass();
-
-    // Iterate through all declared fields in the class
-    for (Field field : modelClass.getDeclaredFields()) {
-      // Check if the field has the @Id annotation
-      if (field.isAnnotationPresent(Id.class)) {
-        // Make the field accessible if it's private or protected
-        field.setAccessible(true);
-
-        // Return the value of the field for the given model instance
-        return field.get(model);
-      }
-    }
-
-    // If no field is annotated with @Id, handle this scenario according to your needs
-    throw new IllegalArgumentException(
-        "No field annotated with @Id found in model class " + modelClass.getName());
+    return ModelMetadata.of(model.getClass()).getId(model);
   }
 
+  /** True if the model has a field annotated with @DeleteFlag and it has a non-null value. */
   public static Boolean hasDeleteFlag(Object model) throws IllegalAccessException {
     if (model == null) {
       throw new IllegalArgumentException("The provided model is null");
     }
-
-    Class<?> modelClass = model.getClass();
-
-    // Iterate through all declared fields in the class
-    for (Field field : modelClass.getDeclaredFields()) {
-      // Check if the field has the @Id annotation
-      if (field.isAnnotationPresent(DeleteFlag.class)) {
-        // Make the field accessible if it's private or protected
-        field.setAccessible(true);
-
-        // Return the value of the field for the given model instance
-        return field.get(model) != null;
-      }
-    }
-
-    // If no field is annotated with @Id, handle this scenario according to your needs
-    throw new IllegalArgumentException(
-        "No field annotated with @Id found in model class " + modelClass.getName());
+    return ModelMetadata.of(model.getClass()).isDeleted(model);
   }
 
   public static Field getVersionField(Object model) throws IllegalAccessException {
@@ -0,0 +1,133 @@
+package com.johnlpage.memex.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.bson.types.Binary;
+import org.bson.types.ObjectId;
+
+/**
+ * 64 bit hashes of mapped documents, used to tell whether a document is the same as the one last
+ * written without asking the database. Not cryptographic, two different documents for the same id
+ * getting the same hash is a 1 in 2^63 chance.
+ *
+ * <p>The same document has to hash the same whether it came from a JSON feed or was read back from
+ * MongoDB, so fields within a document (and entries within a Map) are combined in a way that
+ * doesn't depend on their order - a HashMap payload bound from JSON and the same payload read from
+ * the database needn't iterate in the same order. Integer, Long, Short and Byte with the same value
+ * hash the same as the database doesn't distinguish them either. Array elements stay in order.
+ */
+public final class DocumentHash {
+
+  // Hashes never have the top bit set so callers can use it as a flag
+  public static final long HASH_MASK = Long.MAX_VALUE;
+
+  private static final long SEED = 0x2545F4914F6CDD1DL;
+  private static final long MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+  private DocumentHash() {}
+
+  /**
+   * @param excludedFields top level fields that are left out, such as the version field which the
+   *     database changes on every write
+   */
+  public static long of(Map<String, ?> document, Collection<String> excludedFields) {
+    long hash = SEED;
+    for (Map.Entry<String, ?> entry : document.entrySet()) {
+      if (!excludedFields.contains(entry.getKey())) {
+        hash += mix(combine(hashString(entry.getKey()), hashValue(entry.getValue())));
+      }
+    }
+    return mix(hash) & HASH_MASK;
+  }
+
+  public static long of(Map<String, ?> document) {
+    return of(document, Set.of());
+  }
+
+  /**
+   * A long standing in for an _id value, integral ids are used as they are (mixed), anything else
+   * is hashed.
+   */
+  public static long ofId(Object id) {
+    if (id instanceof Long || id instanceof Integer || id instanceof Short || id instanceof Byte) {
+      return mix(((Number) id).longValue());
+    }
+    return hashValue(id);
+  }
+
+  private static long hashValue(Object value) {
+    if (value == null) {
+      return 0x1L;
+    }
+    if (value instanceof String s) {
+      return combine(0x2L, hashString(s));
+    }
+    if (value instanceof Long
+        || value instanceof Integer
+        || value instanceof Short
+        || value instanceof Byte) {
+      return combine(0x3L, ((Number) value).longValue());
+    }
+    if (value instanceof Double || value instanceof Float) {
+      return combine(0x4L, Double.doubleToLongBits(((Number) value).doubleValue()));
+    }
+    if (value instanceof Boolean b) {
+      return b ? 0x5L : 0x6L;
+    }
+    if (value instanceof Date d) {
+      return combine(0x7L, d.getTime());
+    }
+    if (value instanceof ObjectId oid) {
+      return combine(0x8L, hashBytes(oid.toByteArray()));
+    }
+    if (value instanceof Map<?, ?> map) {
+      long hash = 0x9L;
+      for (Map.Entry<?, ?> entry : map.entrySet()) {
+        hash += mix(combine(hashValue(entry.getKey()), hashValue(entry.getValue())));
+      }
+      return mix(hash);
+    }
+    if (value instanceof List<?> list) {
+      long hash = 0xAL;
+      for (Object element : list) {
+        hash = combine(hash, hashValue(element));
+      }
+      return combine(hash, list.size());
+    }
+    if (value instanceof byte[] bytes) {
+      return combine(0xBL, hashBytes(bytes));
+    }
+    if (value instanceof Binary binary) {
+      return combine(combine(0xBL, hashBytes(binary.getData())), binary.getType());
+    }
+    // Decimal128, BigDecimal, java.time values and anything else
+    return combine(hashString(value.getClass().getName()), hashString(value.toString()));
+  }
+
+  private static long hashString(String s) {
+    long hash = SEED;
+    for (int i = 0; i < s.length(); i++) {
+      hash = (hash ^ s.charAt(i)) * MULTIPLIER;
+    }
+    return mix(hash ^ s.length());
+  }
+
+  private static long hashBytes(byte[] bytes) {
+    return hashString(new String(bytes, StandardCharsets.ISO_8859_1));
+  }
+
+  private static long combine(long hash, long value) {
+    return mix(hash * MULTIPLIER + value);
+  }
+
+  // The SplitMix64 finaliser, every input bit affects every output bit
+  private static long mix(long z) {
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    return z ^ (z >>> 31);
+  }
+}
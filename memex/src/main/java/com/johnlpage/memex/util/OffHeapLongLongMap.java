@@ -0,0 +1,215 @@
+package com.johnlpage.memex.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A fixed size map from long to long kept in a direct ByteBuffer, so millions of entries cost 16
+ * bytes each outside the heap rather than a boxed Long key, a boxed Long value and a HashMap node
+ * each on it - and the garbage collector never has to look at them.
+ *
+ * <p>Open addressing with linear probing, removals shift the following entries back so there are
+ * no tombstones. The table is sized for maxEntries at a load factor of 0.75 when it is created and
+ * never grows, once it holds maxEntries a put of a new key is refused. Key 0 marks an empty slot
+ * so it is held separately.
+ *
+ * <p>Not thread safe, callers lock around it.
+ */
+public final class OffHeapLongLongMap {
+
+  private static final int ENTRY_BYTES = 16;
+  private static final long EMPTY = 0L;
+  // A ByteBuffer is indexed by int, this keeps every slot offset below 2GB
+  private static final int MAX_SLOTS = 1 << 26;
+
+  private final ByteBuffer table;
+  private final int mask;
+  private final int maxEntries;
+  private int size;
+  private boolean hasZeroKey;
+  private long zeroKeyValue;
+
+  public OffHeapLongLongMap(int maxEntries) {
+    if (maxEntries < 1) {
+      throw new IllegalArgumentException("maxEntries must be at least 1");
+    }
+    long wanted = Math.max(2, (long) Math.ceil(maxEntries / 0.75));
+    if (wanted > MAX_SLOTS) {
+      throw new IllegalArgumentException(
+          "maxEntries " + maxEntries + " needs more than " + MAX_SLOTS + " slots");
+    }
+    int slots = Integer.highestOneBit((int) wanted - 1) << 1;
+    this.table = ByteBuffer.allocateDirect(slots * ENTRY_BYTES);
+    this.mask = slots - 1;
+    this.maxEntries = maxEntries;
+  }
+
+  /**
+   * @return the value for key, or absent if it isn't in the map
+   */
+  public long get(long key, long absent) {
+    if (key == EMPTY) {
+      return hasZeroKey ? zeroKeyValue : absent;
+    }
+    int slot = find(key);
+    return slot < 0 ? absent : valueAt(slot);
+  }
+
+  public boolean containsKey(long key) {
+    return key == EMPTY ? hasZeroKey : find(key) >= 0;
+  }
+
+  /**
+   * @return false if key wasn't already in the map and the map is full
+   */
+  public boolean put(long key, long value) {
+    if (key == EMPTY) {
+      if (!hasZeroKey) {
+        if (size >= maxEntries) {
+          return false;
+        }
+        hasZeroKey = true;
+        size++;
+      }
+      zeroKeyValue = value;
+      return true;
+    }
+    int slot = slotFor(key);
+    while (true) {
+      long existing = keyAt(slot);
+      if (existing == key) {
+        table.putLong(slot * ENTRY_BYTES + 8, value);
+        return true;
+      }
+      if (existing == EMPTY) {
+        if (size >= maxEntries) {
+          return false;
+        }
+        table.putLong(slot * ENTRY_BYTES, key);
+        table.putLong(slot * ENTRY_BYTES + 8, value);
+        size++;
+        return true;
+      }
+      slot = (slot + 1) & mask;
+    }
+  }
+
+  /**
+   * Sets the value only if key is in the map with the expected value
+   */
+  public boolean replace(long key, long expected, long value) {
+    if (key == EMPTY) {
+      if (hasZeroKey && zeroKeyValue == expected) {
+        zeroKeyValue = value;
+        return true;
+      }
+      return false;
+    }
+    int slot = find(key);
+    if (slot < 0 || valueAt(slot) != expected) {
+      return false;
+    }
+    table.putLong(slot * ENTRY_BYTES + 8, value);
+    return true;
+  }
+
+  public boolean remove(long key) {
+    if (key == EMPTY) {
+      if (!hasZeroKey) {
+        return false;
+      }
+      hasZeroKey = false;
+      size--;
+      return true;
+    }
+    int slot = find(key);
+    if (slot < 0) {
+      return false;
+    }
+    removeAt(slot);
+    return true;
+  }
+
+  /**
+   * Removes key only if it has the expected value
+   */
+  public boolean remove(long key, long expected) {
+    if (key == EMPTY) {
+      return hasZeroKey && zeroKeyValue == expected && remove(key);
+    }
+    int slot = find(key);
+    if (slot < 0 || valueAt(slot) != expected) {
+      return false;
+    }
+    removeAt(slot);
+    return true;
+  }
+
+  public void clear() {
+    for (int offset = 0; offset < table.capacity(); offset += 8) {
+      table.putLong(offset, 0L);
+    }
+    hasZeroKey = false;
+    size = 0;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public int maxEntries() {
+    return maxEntries;
+  }
+
+  public long offHeapBytes() {
+    return table.capacity();
+  }
+
+  private int find(long key) {
+    int slot = slotFor(key);
+    while (true) {
+      long existing = keyAt(slot);
+      if (existing == key) {
+        return slot;
+      }
+      if (existing == EMPTY) {
+        return -1;
+      }
+      slot = (slot + 1) & mask;
+    }
+  }
+
+  // Backward shift deletion - move up any entry after the gap that would no longer be found
+  private void removeAt(int slot) {
+    int gap = slot;
+    int next = (gap + 1) & mask;
+    while (true) {
+      long key = keyAt(next);
+      if (key == EMPTY) {
+        break;
+      }
+      int home = slotFor(key);
+      if (((next - home) & mask) >= ((next - gap) & mask)) {
+        table.putLong(gap * ENTRY_BYTES, key);
+        table.putLong(gap * ENTRY_BYTES + 8, valueAt(next));
+        gap = next;
+      }
+      next = (next + 1) & mask;
+    }
+    table.putLong(gap * ENTRY_BYTES, EMPTY);
+    table.putLong(gap * ENTRY_BYTES + 8, 0L);
+    size--;
+  }
+
+  private int slotFor(long key) {
+    // Fibonacci hashing spreads keys that only differ in their high bits
+    return (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+  }
+
+  private long keyAt(int slot) {
+    return table.getLong(slot * ENTRY_BYTES);
+  }
+
+  private long valueAt(int slot) {
+    return table.getLong(slot * ENTRY_BYTES + 8);
+  }
+}
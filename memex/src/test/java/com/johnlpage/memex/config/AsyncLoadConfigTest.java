@@ -0,0 +1,69 @@
+package com.johnlpage.memex.config;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AsyncLoadConfigTest {
+
+    @Test
+    void virtualConcurrencyDefaultsToTheConnectionPoolSize() {
+        assertEquals(100, AsyncLoadConfig.connectionPoolSize("mongodb://localhost:27017"));
+        assertEquals(250, AsyncLoadConfig.connectionPoolSize("mongodb://a,b/?maxPoolSize=250"));
+        assertEquals(
+                Integer.MAX_VALUE, AsyncLoadConfig.connectionPoolSize("mongodb://a/?maxPoolSize=0"));
+    }
+
+    @Test
+    void virtualModeUsesVirtualThreadsWhereTheJvmHasThem() throws Exception {
+        AsyncTaskExecutor executor =
+                AsyncLoadConfig.createLoadExecutor(AsyncLoadConfig.ExecutorMode.VIRTUAL, 4, 50);
+        String threadName =
+                executor.submit(() -> Thread.currentThread().toString()).get(5, TimeUnit.SECONDS);
+
+        if (Runtime.version().feature() >= 21) {
+            SimpleAsyncTaskExecutor virtual = assertInstanceOf(SimpleAsyncTaskExecutor.class, executor);
+            assertEquals(50, virtual.getConcurrencyLimit());
+            assertTrue(threadName.startsWith("VirtualThread"), threadName);
+        } else {
+            ThreadPoolTaskExecutor platform = assertInstanceOf(ThreadPoolTaskExecutor.class, executor);
+            assertEquals(4, platform.getMaxPoolSize());
+            platform.shutdown();
+        }
+    }
+
+    @Test
+    void aFullPoolShowsAsSaturatedAndCountsTheCallerRunning() throws Exception {
+        AsyncTaskExecutor executor =
+                AsyncLoadConfig.createLoadExecutor(AsyncLoadConfig.ExecutorMode.PLATFORM, 1, 0);
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        AsyncLoadConfig.monitorLoadExecutor(executor, registry);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+        Future<?> busy =
+                executor.submit(
+                        () -> {
+                            started.countDown();
+                            release.await();
+                            return null;
+                        });
+        started.await(5, TimeUnit.SECONDS);
+
+        String ranOn = executor.submit(() -> Thread.currentThread().getName()).get(5, TimeUnit.SECONDS);
+
+        assertEquals(Thread.currentThread().getName(), ranOn);
+        assertEquals(1.0, registry.get("memex.load.executor.saturation").gauge().value());
+        assertEquals(1, registry.get("memex.load.executor.caller.runs").counter().count());
+        release.countDown();
+        busy.get(5, TimeUnit.SECONDS);
+        ((ThreadPoolTaskExecutor) executor).shutdown();
+    }
+}
@@ -0,0 +1,140 @@
+package com.johnlpage.memex.cucumber.steps;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.johnlpage.memex.VehicleInspection.model.VehicleInspection;
+import com.johnlpage.memex.VehicleInspection.service.VehicleInspectionHistoryService;
+import com.johnlpage.memex.cucumber.service.MacrosRegister;
+import com.johnlpage.memex.cucumber.service.VehicleInspectionIdRangeValidator;
+import com.johnlpage.memex.generics.repository.AsOfMode;
+import com.johnlpage.memex.generics.service.HistorySnapshots;
+import com.johnlpage.memex.generics.service.HistoryTriggerService;
+import io.cucumber.java.en.Given;
+import io.cucumber.java.en.Then;
+import io.cucumber.java.en.When;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * As-of queries made on the history service itself rather than through the REST API, so they can
+ * be for any instant and not just a whole second, and the history they read can be looked at and
+ * changed directly.
+ */
+public class AsOfSteps {
+
+    private static final DateTimeFormatter AS_OF_PATTERN = DateTimeFormatter.ofPattern("yyyyMMddHHmmss");
+
+    @Autowired
+    private VehicleInspectionHistoryService historyService;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private MacrosRegister macroRegister;
+
+    @Autowired
+    private VehicleInspectionIdRangeValidator idRangeValidator;
+
+    // Results saved by name to compare with later ones
+    private final Map<String, JsonNode> saved = new HashMap<>();
+
+    private String historyCollection() {
+        return mongoTemplate.getCollectionName(VehicleInspection.class) + HistoryTriggerService.HISTORY_POSTFIX;
+    }
+
+    private Query history(long testId) {
+        idRangeValidator.validate(testId);
+        return Query.query(Criteria.where("recordId").is(testId));
+    }
+
+    // Either a time captured with the yyyyMMddHHmmss pattern or an ISO instant
+    private Instant asOf(String time) {
+        String processed = macroRegister.replaceMacros(time);
+        if (processed.matches("\\d{14}")) {
+            return LocalDateTime.parse(processed, AS_OF_PATTERN).toInstant(ZoneOffset.UTC);
+        }
+        return Instant.parse(processed);
+    }
+
+    private JsonNode asOfDate(long testId, String time, AsOfMode mode) throws JsonProcessingException {
+        idRangeValidator.validate(testId);
+        try (Stream<VehicleInspection> records = historyService.asOfDate(testId, asOf(time), mode)) {
+            return objectMapper.readTree(objectMapper.writeValueAsString(records.toList()));
+        }
+    }
+
+    @Given("vehicle inspection {long} has no history")
+    public void vehicleInspectionHasNoHistory(long testId) {
+        mongoTemplate.remove(history(testId), historyCollection());
+    }
+
+    @Given("I capture the time of history update {int} of vehicle inspection {long} to {string}")
+    public void iCaptureTheTimeOfHistoryUpdate(int update, long testId, String macroName) {
+        Query updates = history(testId);
+        updates.addCriteria(Criteria.where("type").is("update"));
+        updates.with(Sort.by("timestamp")).skip(update - 1).limit(1);
+        Map<?, ?> found = mongoTemplate.findOne(updates, Map.class, historyCollection());
+        assertNotNull(found, "Vehicle inspection " + testId + " has fewer than " + update + " updates");
+        macroRegister.registerMacro(macroName, ((Date) found.get("timestamp")).toInstant().toString());
+    }
+
+    @Then("vehicle inspection {long} should have {int} history snapshots")
+    public void vehicleInspectionShouldHaveHistorySnapshots(long testId, int expected) {
+        Query snapshots = history(testId);
+        snapshots.addCriteria(Criteria.where("type").is(HistorySnapshots.SNAPSHOT));
+        assertEquals(expected, mongoTemplate.count(snapshots, historyCollection()));
+    }
+
+    @When("the history snapshots of vehicle inspection {long} are deleted")
+    public void theHistorySnapshotsAreDeleted(long testId) {
+        Query snapshots = history(testId);
+        snapshots.addCriteria(Criteria.where("type").is(HistorySnapshots.SNAPSHOT));
+        mongoTemplate.remove(snapshots, historyCollection());
+    }
+
+    @When("I save vehicle inspection {long} as of {string} to {string}")
+    public void iSaveVehicleInspectionAsOf(long testId, String time, String name) throws JsonProcessingException {
+        saved.put(name, asOfDate(testId, time, AsOfMode.SERVER));
+    }
+
+    @Then("vehicle inspection {long} as of {string} should be the same as {string}")
+    public void vehicleInspectionAsOfShouldBeTheSameAs(long testId, String time, String name)
+            throws JsonProcessingException {
+        assertTrue(saved.containsKey(name), "Nothing was saved to " + name);
+        assertEquals(saved.get(name), asOfDate(testId, time, AsOfMode.SERVER));
+    }
+
+    @Then("the {string} result should have {int} records")
+    public void theResultShouldHaveRecords(String name, int expected) {
+        assertEquals(expected, saved.get(name).size());
+    }
+
+    @Then("the {string} result should contain {string}: {string}")
+    public void theResultShouldContain(String name, String path, String expected) {
+        JsonNode node = saved.get(name).get(0);
+        for (String field : path.split("\\.")) {
+            node = node == null ? null : node.get(field);
+        }
+        assertNotNull(node, name + " has no " + path);
+        assertEquals(expected, node.asText());
+    }
+}
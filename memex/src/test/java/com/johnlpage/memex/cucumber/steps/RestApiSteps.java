@@ -14,6 +14,8 @@ import io.restassured.http.ContentType;
 import io.restassured.path.json.JsonPath;
 import io.restassured.response.Response;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -30,6 +32,9 @@ public class RestApiSteps {
 
     private Response response;
 
+    // Response bodies saved by name to compare with later ones
+    private final Map<String, String> savedBodies = new HashMap<>();
+
     @ParameterType("true|false")
     public Boolean bool(String bool) {
         return Boolean.parseBoolean(bool);
@@ -45,6 +50,14 @@ public class RestApiSteps {
                 .post(processedUrl);
     }
 
+    @When("I send a POST request to {string} with no payload")
+    public void iSendAPOSTRequestWithNoPayload(String localUrl) {
+        String processedUrl = macroRegister.replaceMacros(localUrl);
+        response = given()
+                .baseUri(baseUrl)
+                .post(processedUrl);
+    }
+
     @When("I send a GET request to {string}")
     public void userSendsGetRequest(String localUrl) {
         String processedUrl = macroRegister.replaceMacros(localUrl);
@@ -89,6 +102,41 @@ public class RestApiSteps {
         response.then().body(containsString(expectedSubstring));
     }
 
+    @Then("the response should not contain {string}")
+    public void responseShouldNotContain(String unexpectedSubstring) {
+        assertNotNull(response.getBody(), "Response body should not be null");
+        response.then().body(not(containsString(unexpectedSubstring)));
+    }
+
+    @Then("I save the response to {string}")
+    public void iSaveTheResponseTo(String name) {
+        assertNotNull(response, "Response should not be null");
+        savedBodies.put(name, response.getBody().asString());
+    }
+
+    @Then("the response should be the same JSON as {string}")
+    public void theResponseShouldBeTheSameJsonAs(String name) {
+        assertTrue(savedBodies.containsKey(name), "No response was saved to " + name);
+        assertEquals(jsonLines(savedBodies.get(name)), jsonLines(response.getBody().asString()));
+    }
+
+    @Then("the response should have {int} lines")
+    public void theResponseShouldHaveLines(int expectedCount) {
+        assertNotNull(response, "Response should not be null");
+        assertEquals(expectedCount, jsonLines(response.getBody().asString()).size());
+    }
+
+    // Each line of a response holding one JSON object per line, parsed so field order doesn't matter
+    private static List<Object> jsonLines(String body) {
+        List<Object> lines = new ArrayList<>();
+        for (String line : body.split("\\r?\\n")) {
+            if (!line.trim().isEmpty()) {
+                lines.add(JsonPath.from(line).get("$"));
+            }
+        }
+        return lines;
+    }
+
     @Then("the response should contain {string}: [{string}, {string}, {string}]")
     public void the_response_should_contain(String field, String val1, String val2, String val3) {
         List<String> expectedValues = List.of(val1, val2, val3);
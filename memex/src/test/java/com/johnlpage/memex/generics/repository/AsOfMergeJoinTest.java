@@ -0,0 +1,161 @@
+package com.johnlpage.memex.generics.repository;
+
+import org.bson.Document;
+import org.bson.types.Binary;
+import org.bson.types.MaxKey;
+import org.bson.types.MinKey;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AsOfMergeJoinTest {
+
+    private static Document record(long id, String result) {
+        return new Document("_id", id).append("result", result);
+    }
+
+    private static Document change(long recordId, long time, String type, Document changes) {
+        Document history =
+                new Document("recordId", recordId).append("timestamp", new Date(time)).append("type", type);
+        if (changes != null) {
+            history.append("changes", changes);
+        }
+        return history;
+    }
+
+    private static List<Document> join(List<Document> records, List<Document> history) {
+        List<Document> rebuilt = new ArrayList<>();
+        new AsOfMergeJoin(records.iterator(), history.iterator()).forEachRemaining(rebuilt::add);
+        return rebuilt;
+    }
+
+    @Test
+    void eachRecordGetsItsOwnChangesUndone() {
+        List<Document> rebuilt =
+                join(
+                        List.of(record(1, "PASS"), record(2, "PASS"), record(3, "PASS")),
+                        List.of(
+                                change(1, 10, "update", new Document("result", "FAIL")),
+                                change(1, 20, "update", new Document("result", "REFUSED")),
+                                change(3, 10, "update", new Document("result", "ABANDONED"))));
+
+        assertEquals(List.of(record(1, "FAIL"), record(2, "PASS"), record(3, "ABANDONED")), rebuilt);
+    }
+
+    @Test
+    void historyForRecordsNotAskedForIsSkipped() {
+        List<Document> rebuilt =
+                join(
+                        List.of(record(2, "PASS"), record(4, "PASS")),
+                        List.of(
+                                change(1, 10, "update", new Document("result", "X")),
+                                change(3, 10, "update", new Document("result", "Y")),
+                                change(4, 10, "update", new Document("result", "FAIL")),
+                                change(5, 10, "update", new Document("result", "Z"))));
+
+        assertEquals(List.of(record(2, "PASS"), record(4, "FAIL")), rebuilt);
+    }
+
+    @Test
+    void startsFromTheFirstSnapshot() {
+        // The current result is PASS, the snapshot was taken with the change at 20
+        List<Document> rebuilt =
+                join(
+                        List.of(record(1, "PASS")),
+                        List.of(
+                                change(1, 10, "update", new Document("result", "FAIL")),
+                                change(1, 20, "snapshot", record(1, "REFUSED")),
+                                change(1, 20, "update", new Document("result", "ABANDONED")),
+                                change(1, 30, "update", new Document("result", "NOT USED")),
+                                change(1, 40, "snapshot", record(1, "NOT USED"))));
+
+        assertEquals(List.of(record(1, "FAIL")), rebuilt);
+    }
+
+    @Test
+    void aRecordInsertedSinceIsLeftOut() {
+        List<Document> rebuilt =
+                join(
+                        List.of(record(1, "PASS"), record(2, "PASS")),
+                        List.of(
+                                change(1, 10, "insert", null),
+                                change(1, 20, "update", new Document("result", "FAIL"))));
+
+        assertEquals(List.of(record(2, "PASS")), rebuilt);
+    }
+
+    @Test
+    void idsCompareTheWayMongoDbSortsThem() {
+        assertTrue(AsOfMergeJoin.compareIds(2, 10L) < 0);
+        assertEquals(0, AsOfMergeJoin.compareIds(3L, 3.0));
+        assertTrue(AsOfMergeJoin.compareIds(3L, 3.5) < 0);
+        assertTrue(AsOfMergeJoin.compareIds(Double.NaN, Long.MIN_VALUE) < 0);
+        assertTrue(AsOfMergeJoin.compareIds("a", "b") < 0);
+        ObjectId first = new ObjectId(new Date(1000));
+        assertTrue(AsOfMergeJoin.compareIds(first, new ObjectId(new Date(2000))) < 0);
+        assertTrue(AsOfMergeJoin.compareIds(new Document("a", 1), new Document("a", 2)) < 0);
+        assertTrue(AsOfMergeJoin.compareIds(new Document("a", 1), new Document("a", 1).append("b", 1)) < 0);
+    }
+
+    @Test
+    void idsOfDifferentTypesSortByTypeBracket() {
+        List<Object> sorted =
+                List.of(
+                        new MinKey(),
+                        10L,
+                        "1",
+                        new Document("a", 1),
+                        new Binary(new byte[] {1}),
+                        new ObjectId(),
+                        false,
+                        new Date(0),
+                        new MaxKey());
+        for (int i = 0; i < sorted.size(); i++) {
+            for (int j = 0; j < sorted.size(); j++) {
+                assertEquals(
+                        Integer.compare(i, j),
+                        Integer.signum(AsOfMergeJoin.compareIds(sorted.get(i), sorted.get(j))),
+                        sorted.get(i) + " and " + sorted.get(j));
+            }
+        }
+    }
+
+    @Test
+    void stringsSortByTheirUtf8Bytes() {
+        // U+1F600 is a surrogate pair in UTF-16, which String.compareTo puts before U+FF5E
+        String emoji = "\uD83D\uDE00";
+        String fullwidthTilde = "\uFF5E";
+        assertTrue(emoji.compareTo(fullwidthTilde) < 0);
+
+        assertTrue(AsOfMergeJoin.compareIds(fullwidthTilde, emoji) < 0);
+    }
+
+    @Test
+    void recordsWithMixedIdTypesAllGetTheirHistory() {
+        ObjectId objectId = new ObjectId();
+        List<Document> rebuilt =
+                join(
+                        List.of(
+                                new Document("_id", 1L).append("result", "PASS"),
+                                new Document("_id", "a").append("result", "PASS"),
+                                new Document("_id", objectId).append("result", "PASS")),
+                        List.of(
+                                new Document("recordId", 1L)
+                                        .append("timestamp", new Date(10))
+                                        .append("type", "update")
+                                        .append("changes", new Document("result", "FAIL")),
+                                new Document("recordId", objectId)
+                                        .append("timestamp", new Date(10))
+                                        .append("type", "update")
+                                        .append("changes", new Document("result", "REFUSED"))));
+
+        assertEquals(
+                List.of("FAIL", "PASS", "REFUSED"),
+                rebuilt.stream().map(document -> document.getString("result")).toList());
+    }
+}
@@ -0,0 +1,97 @@
+package com.johnlpage.memex.generics.repository;
+
+import org.bson.Document;
+import org.bson.types.MinKey;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AsOfReconstructionTest {
+
+    private static Document rebuild(Document... versions) {
+        AsOfReconstruction reconstruction = new AsOfReconstruction();
+        for (Document version : versions) {
+            reconstruction.merge(version);
+        }
+        return reconstruction.result();
+    }
+
+    @Test
+    void olderValuesReplaceNewerOnes() {
+        Document current =
+                new Document("_id", 1L)
+                        .append("result", "PASS")
+                        .append("vehicle", new Document("make", "FORD").append("colour", "RED"));
+        Document newest = new Document("vehicle", new Document("colour", "BLUE"));
+        Document oldest = new Document("result", "FAIL").append("vehicle", new Document("colour", "GREEN"));
+
+        assertEquals(
+                new Document("_id", 1L)
+                        .append("result", "FAIL")
+                        .append("vehicle", new Document("make", "FORD").append("colour", "GREEN")),
+                rebuild(current, newest, oldest));
+    }
+
+    @Test
+    void aFieldAddedSinceIsNull() {
+        Document current = new Document("_id", 1L).append("mileage", 1000);
+
+        assertEquals(
+                new Document("_id", 1L).append("mileage", null),
+                rebuild(current, new Document("mileage", null)));
+    }
+
+    @Test
+    void minKeyKeepsTheArrayElement() {
+        MinKey same = new MinKey();
+        Document current = new Document("defects", List.of("a", "b", "c"));
+        Document previous = new Document("defects", Arrays.asList(same, "x", same));
+
+        assertEquals(List.of("a", "x", "c"), rebuild(current, previous).get("defects"));
+    }
+
+    @Test
+    void arraysMergeToTheLongerLength() {
+        Document current = new Document("defects", List.of("a", "b", "c"));
+
+        assertEquals(
+                Arrays.asList("a", null, null),
+                rebuild(current, new Document("defects", List.of("a"))).get("defects"));
+        assertEquals(
+                List.of("a", "b", "c", "d"),
+                rebuild(current, new Document("defects", Arrays.asList(new MinKey(), "b", "c", "d")))
+                        .get("defects"));
+    }
+
+    @Test
+    void emptyDocumentsAndTheLockVersionDropOut() {
+        Document current =
+                new Document("_id", 1L).append("empty", new Document()).append("lock_version", 3);
+
+        assertEquals(new Document("_id", 1L), rebuild(current));
+    }
+
+    @Test
+    void onlyFlattensAsDeepAsTheAggregation() {
+        Document deepest = new Document("leaf", 1);
+        Document current = deepest;
+        for (int i = 0; i < MongoHistoryRepositoryImpl.MAX_UNROLL_DEPTH + 1; i++) {
+            current = new Document("n", current);
+        }
+        // Below the last level flattened a change replaces the whole sub-document
+        Document previous = new Document("other", 2);
+        Document change = previous;
+        for (int i = 0; i < MongoHistoryRepositoryImpl.MAX_UNROLL_DEPTH + 1; i++) {
+            change = new Document("n", change);
+        }
+
+        Document result = rebuild(current, change);
+        for (int i = 0; i < MongoHistoryRepositoryImpl.MAX_UNROLL_DEPTH + 1; i++) {
+            result = result.get("n", Document.class);
+        }
+        assertEquals(previous, result);
+    }
+}
@@ -0,0 +1,613 @@
+package com.johnlpage.memex.generics.repository;
+
+import com.johnlpage.memex.VehicleInspection.model.VehicleInspection;
+import com.johnlpage.memex.generics.service.AdaptiveBatchSizer;
+import com.johnlpage.memex.generics.service.BatchTracer;
+import com.johnlpage.memex.generics.service.BatchValidator;
+import com.johnlpage.memex.generics.service.DeadLetter;
+import com.johnlpage.memex.generics.service.DeadLetteredException;
+import com.johnlpage.memex.generics.service.HistoryCapture;
+import com.johnlpage.memex.generics.service.HistoryCapturePolicy;
+import com.johnlpage.memex.generics.service.HistoryTriggerService;
+import com.johnlpage.memex.generics.service.LoadMetrics;
+import com.johnlpage.memex.generics.service.PostWriteTriggerService;
+import com.johnlpage.memex.generics.service.ServiceTestFixtures;
+import com.johnlpage.memex.generics.service.WriteRetryPolicy;
+import com.johnlpage.memex.util.UpdateStrategy;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.MongoCommandException;
+import com.mongodb.MongoException;
+import com.mongodb.ServerAddress;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.bulk.BulkWriteUpsert;
+import com.mongodb.client.ClientSession;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoDatabase;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.micrometer.observation.Observation;
+import io.micrometer.observation.ObservationHandler;
+import io.micrometer.observation.ObservationRegistry;
+import jakarta.validation.Validation;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonInt64;
+import org.bson.BsonString;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.data.mongodb.BulkOperationException;
+import org.springframework.data.mongodb.UncategorizedMongoDbException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.FindAndReplaceOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+import org.springframework.data.mongodb.core.query.Query;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+/**
+ * Retries, batch splitting and per document errors in writeMany, against mocked MongoDB operations.
+ */
+class OptimizedMongoLoadRepositoryImplTest {
+
+    private final MongoTemplate mongoTemplate = mock(MongoTemplate.class);
+    private final MongoTemplate sessionTemplate = mock(MongoTemplate.class);
+    private final MongoClient mongoClient = mock(MongoClient.class);
+    private final ClientSession session = mock(ClientSession.class);
+    @SuppressWarnings("unchecked")
+    private final PostWriteTriggerService<VehicleInspection> postWrite =
+            mock(PostWriteTriggerService.class);
+    // No waiting between attempts
+    private final WriteRetryPolicy retryPolicy = new WriteRetryPolicy(5, 0, 0, 2);
+    private final ServiceTestFixtures.MemorySink deadLetterSink =
+            new ServiceTestFixtures.MemorySink();
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final LoadMetrics metrics = new LoadMetrics(meterRegistry);
+    // Names of the observations stopped, in order
+    private final List<String> spans = new CopyOnWriteArrayList<>();
+    private final BatchTracer tracer = new BatchTracer(true, 10, 5, recording(spans));
+    private final OptimizedMongoLoadRepositoryImpl<VehicleInspection> repository =
+            new OptimizedMongoLoadRepositoryImpl<>(
+                    mongoTemplate,
+                    mock(MappingMongoConverter.class),
+                    mongoClient,
+                    new AdaptiveBatchSizer(false, 100, 1, 1000, 250, 8_000_000),
+                    retryPolicy,
+                    new BatchValidator(Validation.buildDefaultValidatorFactory().getValidator()),
+                    ServiceTestFixtures.deadLetterService(deadLetterSink),
+                    metrics,
+                    tracer,
+                    new HistoryCapturePolicy(HistoryCapture.AUTO, 32, 20));
+
+    // Decides from the ids in a bulk write whether its execute fails
+    private Predicate<List<Object>> fails = ids -> false;
+    // Ids the server rejects individually, the rest of the batch is still written
+    private Set<Long> rejected = Set.of();
+    // Ids that get a retryable error (primary stepped down) this many more times
+    private Map<Long, AtomicInteger> steppedDown = Map.of();
+    private final List<Integer> executeSizes = new CopyOnWriteArrayList<>();
+    private final AtomicInteger executes = new AtomicInteger();
+
+    @BeforeEach
+    void setUp() {
+        when(mongoClient.startSession()).thenReturn(session);
+        when(mongoTemplate.withSession(session)).thenReturn(sessionTemplate);
+        when(sessionTemplate.bulkOps(any(BulkOperations.BulkMode.class), eq(VehicleInspection.class)))
+                .thenAnswer(invocation -> bulkOps());
+        when(mongoTemplate.bulkOps(any(BulkOperations.BulkMode.class), eq(VehicleInspection.class)))
+                .thenAnswer(invocation -> bulkOps());
+    }
+
+    private BulkOperations bulkOps() {
+        List<Object> ids = new ArrayList<>();
+        BulkOperations ops = mock(BulkOperations.class);
+        when(ops.replaceOne(any(Query.class), any(), any(FindAndReplaceOptions.class)))
+                .thenAnswer(
+                        invocation -> {
+                            ids.add(invocation.getArgument(0, Query.class).getQueryObject().get("_id"));
+                            return ops;
+                        });
+        when(ops.execute())
+                .thenAnswer(
+                        invocation -> {
+                            executes.incrementAndGet();
+                            executeSizes.add(ids.size());
+                            if (fails.test(ids)) {
+                                throw writeConflict();
+                            }
+                            List<BulkWriteError> errors = new ArrayList<>();
+                            for (int i = 0; i < ids.size(); i++) {
+                                Long id = (Long) ids.get(i);
+                                AtomicInteger stepDowns = steppedDown.get(id);
+                                if (rejected.contains(id)) {
+                                    errors.add(
+                                            new BulkWriteError(
+                                                    11000, "E11000 duplicate key", new BsonDocument(), i));
+                                } else if (stepDowns != null && stepDowns.getAndDecrement() > 0) {
+                                    errors.add(
+                                            new BulkWriteError(
+                                                    189, "Primary stepped down", new BsonDocument(), i));
+                                }
+                            }
+                            if (!errors.isEmpty()) {
+                                BulkWriteResult partial =
+                                        BulkWriteResult.acknowledged(
+                                                0, 0, 0, 0, upserts(ids, errors), List.of());
+                                throw new BulkOperationException(
+                                        "Bulk write failed",
+                                        new MongoBulkWriteException(
+                                                partial, errors, null, new ServerAddress(), Set.of()));
+                            }
+                            return BulkWriteResult.acknowledged(
+                                    0, 0, 0, 0, upserts(ids, List.of()), List.of());
+                        });
+        return ops;
+    }
+
+    // An upsert for every document without an error
+    private static List<BulkWriteUpsert> upserts(List<Object> ids, List<BulkWriteError> errors) {
+        Set<Integer> failed = new HashSet<>();
+        errors.forEach(error -> failed.add(error.getIndex()));
+        List<BulkWriteUpsert> upserts = new ArrayList<>();
+        for (int i = 0; i < ids.size(); i++) {
+            if (!failed.contains(i)) {
+                upserts.add(new BulkWriteUpsert(i, new BsonInt64((Long) ids.get(i))));
+            }
+        }
+        return upserts;
+    }
+
+    private static void assertUpsertsAreTheirIds(BulkWriteResult result) {
+        for (BulkWriteUpsert upsert : result.getUpserts()) {
+            assertEquals(upsert.getIndex(), upsert.getId().asInt64().getValue());
+        }
+    }
+
+    private static RuntimeException writeConflict() {
+        MongoException conflict = new MongoException(112, "WriteConflict");
+        conflict.addLabel(MongoException.TRANSIENT_TRANSACTION_ERROR_LABEL);
+        // The way Spring's exception translation hands it back
+        return new UncategorizedMongoDbException("Write conflict", conflict);
+    }
+
+    private static ObservationRegistry recording(List<String> stopped) {
+        ObservationRegistry registry = ObservationRegistry.create();
+        registry.observationConfig()
+                .observationHandler(
+                        new ObservationHandler<>() {
+                            @Override
+                            public boolean supportsContext(Observation.Context context) {
+                                return true;
+                            }
+
+                            @Override
+                            public void onStop(Observation.Context context) {
+                                stopped.add(context.getName());
+                            }
+                        });
+        return registry;
+    }
+
+    private static List<VehicleInspection> inspections(int count) {
+        List<VehicleInspection> inspections = new ArrayList<>();
+        for (long id = 0; id < count; id++) {
+            VehicleInspection inspection = new VehicleInspection();
+            inspection.setTestid(id);
+            inspections.add(inspection);
+        }
+        return inspections;
+    }
+
+    /**
+     * A repository whose UPDATEWITHHISTORY batches always use HistoryCapture.RETURNED, with a
+     * database that answers each findAndModify as if the documents with ids in existing were there
+     * and those in changed are changed by it.
+     */
+    private OptimizedMongoLoadRepositoryImpl<VehicleInspection> returning(
+            Set<Long> existing, Set<Long> changed) {
+        MongoDatabase db = mock(MongoDatabase.class);
+        when(mongoTemplate.getDb()).thenReturn(db);
+        when(db.getCodecRegistry()).thenReturn(MongoClientSettings.getDefaultCodecRegistry());
+        when(db.runCommand(eq(session), any(Bson.class)))
+                .thenAnswer(
+                        invocation -> {
+                            executes.incrementAndGet();
+                            Document command = invocation.getArgument(1);
+                            Long id = command.get("query", Document.class).getLong("_id");
+                            if (rejected.contains(id)) {
+                                throw new MongoCommandException(
+                                        new BsonDocument("ok", new BsonInt32(0))
+                                                .append("code", new BsonInt32(11000))
+                                                .append("errmsg", new BsonString("E11000 duplicate key")),
+                                        new ServerAddress());
+                            }
+                            if (!existing.contains(id)) {
+                                return new Document("lastErrorObject", new Document("upserted", id));
+                            }
+                            // The update stamps the batch's id on __previousValues when it changes anything
+                            Object updateId = changed.contains(id) ? objectIdIn(command) : new ObjectId();
+                            return new Document("lastErrorObject", new Document("updatedExisting", true))
+                                    .append(
+                                            "value",
+                                            new Document("_id", id)
+                                                    .append(
+                                                            OptimizedMongoLoadRepositoryImpl.PREVIOUS_VALS,
+                                                            new Document(
+                                                                    OptimizedMongoLoadRepositoryImpl.UPDATE_ID,
+                                                                    updateId)
+                                                                    .append("make", "OLD")));
+                        });
+        return new OptimizedMongoLoadRepositoryImpl<>(
+                mongoTemplate,
+                ServiceTestFixtures.mappingMongoConverter(),
+                mongoClient,
+                new AdaptiveBatchSizer(false, 100, 1, 1000, 250, 8_000_000),
+                retryPolicy,
+                new BatchValidator(Validation.buildDefaultValidatorFactory().getValidator()),
+                ServiceTestFixtures.deadLetterService(deadLetterSink),
+                metrics,
+                new BatchTracer(false, 1, 1, ObservationRegistry.NOOP),
+                new HistoryCapturePolicy(HistoryCapture.RETURNED, 32, 20));
+    }
+
+    private static ObjectId objectIdIn(Object value) {
+        if (value instanceof ObjectId id) {
+            return id;
+        }
+        Collection<?> children =
+                value instanceof Map<?, ?> map
+                        ? map.values()
+                        : value instanceof Collection<?> list ? list : List.of();
+        for (Object child : children) {
+            ObjectId id = objectIdIn(child);
+            if (id != null) {
+                return id;
+            }
+        }
+        return null;
+    }
+
+    private BulkWriteResult write(List<VehicleInspection> inspections) throws IllegalAccessException {
+        return repository.writeMany(
+                inspections, VehicleInspection.class, null, UpdateStrategy.REPLACE, postWrite);
+    }
+
+    @Test
+    void transientErrorIsRetried() throws IllegalAccessException {
+        AtomicInteger conflicts = new AtomicInteger(1);
+        fails = ids -> conflicts.getAndDecrement() > 0;
+
+        BulkWriteResult result = write(inspections(10));
+
+        assertEquals(10, result.getUpserts().size());
+        assertEquals(2, executes.get());
+        WriteRetryPolicy.Snapshot counts = retryPolicy.writeRetries().get(UpdateStrategy.REPLACE);
+        assertEquals(1, counts.retries());
+        assertEquals(0, counts.splits());
+        verify(session, times(1)).commitTransaction();
+        verify(session, times(2)).close();
+    }
+
+    @Test
+    void writesAreTimedAndCountedForTheMetrics() throws IllegalAccessException {
+        AtomicInteger conflicts = new AtomicInteger(1);
+        fails = ids -> conflicts.getAndDecrement() > 0;
+
+        write(inspections(10));
+
+        String[] tags = {"collection", "vehicleinspection", "strategy", "REPLACE"};
+        assertEquals(1, meterRegistry.get("memex.load.batch.execute").tags(tags).timer().count());
+        assertEquals(1, meterRegistry.get("memex.load.batch.failures").tags(tags).counter().count());
+        assertEquals(
+                10,
+                meterRegistry.get("memex.load.documents").tags(tags).tag("outcome", "upserted").counter().count());
+    }
+
+    @Test
+    void eachPhaseOfABatchIsTracedAndTheSlowestKept() throws IllegalAccessException {
+        AtomicInteger conflicts = new AtomicInteger(1);
+        fails = ids -> conflicts.getAndDecrement() > 0;
+
+        write(inspections(10));
+
+        // Both attempts are in the one batch
+        assertEquals(
+                List.of(
+                        "memex.trace.batch.build",
+                        "memex.trace.batch.execute",
+                        "memex.trace.batch.build",
+                        "memex.trace.batch.execute",
+                        "memex.trace.batch.trigger",
+                        "memex.trace.batch.commit",
+                        "memex.trace.batch"),
+                spans);
+        List<BatchTracer.SlowBatch> slowest = tracer.slowBatches();
+        assertEquals(1, slowest.size());
+        BatchTracer.SlowBatch batch = slowest.get(0);
+        assertEquals("vehicleinspection", batch.collection());
+        assertEquals(UpdateStrategy.REPLACE, batch.strategy());
+        assertEquals(10, batch.documents());
+        assertNull(batch.error());
+        assertTrue(
+                batch.phases().keySet().containsAll(List.of("build", "execute", "trigger", "commit")));
+        assertTrue(batch.millis() >= batch.phases().get("execute"));
+    }
+
+    @Test
+    void repeatedConflictsSplitTheBatchAroundTheHotDocument() throws IllegalAccessException {
+        // Any batch with id 5 and anything else in it conflicts
+        fails = ids -> ids.contains(5L) && ids.size() > 1;
+
+        BulkWriteResult result = write(inspections(8));
+
+        // 8 -> 4 + 4, the half with 5 -> 2 + 2, the quarter with 5 -> 1 + 1
+        assertEquals(3, retryPolicy.writeRetries().get(UpdateStrategy.REPLACE).splits());
+        assertEquals(8, result.getUpserts().size());
+        for (int i = 0; i < 8; i++) {
+            BulkWriteUpsert upsert = result.getUpserts().get(i);
+            assertEquals(i, upsert.getIndex());
+            assertEquals(i, upsert.getId().asInt64().getValue());
+        }
+    }
+
+    @Test
+    void givesUpAfterMaxAttempts() {
+        fails = ids -> true;
+
+        assertThrows(UncategorizedMongoDbException.class, () -> write(inspections(1)));
+        assertEquals(5, executes.get());
+        assertEquals(1, retryPolicy.writeRetries().get(UpdateStrategy.REPLACE).exhausted());
+    }
+
+    @Test
+    void otherErrorsAreNotRetried() {
+        fails =
+                ids -> {
+                    throw new IllegalStateException("Not transient");
+                };
+
+        assertThrows(IllegalStateException.class, () -> write(inspections(4)));
+        assertEquals(1, executes.get());
+        assertEquals(0, retryPolicy.writeRetries().get(UpdateStrategy.REPLACE).retries());
+    }
+
+    @Test
+    void rejectedDocumentsAreDeadLetteredAndTheRestKept() throws IllegalAccessException {
+        rejected = Set.of(2L, 5L);
+
+        // Outside a transaction the rest of the batch was written by the same bulk write
+        BulkWriteResult result =
+                repository.writeMany(
+                        inspections(8), VehicleInspection.class, null, UpdateStrategy.REPLACE, null);
+        assertEquals(6, result.getUpserts().size());
+        assertUpsertsAreTheirIds(result);
+        assertEquals(Map.of("DuplicateKey", 2L), PartialBulkWriteResult.errorsOf(result));
+        assertEquals(List.of(8), executeSizes);
+        assertEquals(2, deadLetterSink.letters.size());
+        assertEquals(DeadLetter.Reason.WRITE_ERROR, deadLetterSink.letters.get(0).reason());
+        assertTrue(deadLetterSink.letters.get(0).payload().contains("\"testid\":2"));
+        assertTrue(deadLetterSink.letters.get(1).error().startsWith("11000"));
+
+        // In one the transaction rolled them back, so they are written again without the rejects
+        executeSizes.clear();
+        result = write(inspections(8));
+        assertEquals(6, result.getUpserts().size());
+        assertUpsertsAreTheirIds(result);
+        assertEquals(Map.of("DuplicateKey", 2L), PartialBulkWriteResult.errorsOf(result));
+        assertEquals(List.of(8, 6), executeSizes);
+        assertEquals(4, deadLetterSink.letters.size());
+    }
+
+    @Test
+    void failedBatchesAreDeadLetteredWhole() {
+        fails =
+                ids -> {
+                    throw new IllegalStateException("Not transient");
+                };
+
+        CompletableFuture<BulkWriteResult> write =
+                repository.asyncWriteMany(
+                        inspections(3), VehicleInspection.class, null, UpdateStrategy.REPLACE, postWrite);
+
+        CompletionException e = assertThrows(CompletionException.class, write::join);
+        DeadLetteredException deadLettered =
+                assertInstanceOf(DeadLetteredException.class, e.getCause());
+        assertEquals(3, deadLettered.getDocuments());
+        assertEquals(3, deadLetterSink.letters.size());
+        assertEquals(DeadLetter.Reason.WRITE_FAILED, deadLetterSink.letters.get(2).reason());
+    }
+
+    @Test
+    void onlyRetryableDocumentsAreSentAgain() throws IllegalAccessException {
+        rejected = Set.of(5L);
+        steppedDown = Map.of(3L, new AtomicInteger(1));
+
+        BulkWriteResult result =
+                repository.writeMany(
+                        inspections(8), VehicleInspection.class, null, UpdateStrategy.REPLACE, null);
+
+        // Everything but 3 and 5 written first time, then 3 on its own
+        assertEquals(List.of(8, 1), executeSizes);
+        assertEquals(7, result.getUpserts().size());
+        assertEquals(3, result.getUpserts().get(3).getIndex());
+        assertUpsertsAreTheirIds(result);
+        assertEquals(Map.of("DuplicateKey", 1L), PartialBulkWriteResult.errorsOf(result));
+        assertEquals(1, retryPolicy.writeRetries().get(UpdateStrategy.REPLACE).documentRetries());
+        assertEquals(1, deadLetterSink.letters.size());
+    }
+
+    @Test
+    void retryableErrorsThatDontClearAreCountedAfterMaxAttempts() throws IllegalAccessException {
+        steppedDown = Map.of(1L, new AtomicInteger(100));
+
+        BulkWriteResult result =
+                repository.writeMany(
+                        inspections(4), VehicleInspection.class, null, UpdateStrategy.REPLACE, null);
+
+        assertEquals(List.of(4, 1, 1, 1, 1), executeSizes);
+        assertEquals(3, result.getUpserts().size());
+        assertEquals(Map.of("PrimarySteppedDown", 1L), PartialBulkWriteResult.errorsOf(result));
+        assertEquals(4, retryPolicy.writeRetries().get(UpdateStrategy.REPLACE).documentRetries());
+    }
+
+    @Test
+    void withoutASinkRejectedDocumentsAreStillCounted() throws IllegalAccessException {
+        OptimizedMongoLoadRepositoryImpl<VehicleInspection> noSink =
+                new OptimizedMongoLoadRepositoryImpl<>(
+                        mongoTemplate,
+                        mock(MappingMongoConverter.class),
+                        mongoClient,
+                        new AdaptiveBatchSizer(false, 100, 1, 1000, 250, 8_000_000),
+                        retryPolicy,
+                        new BatchValidator(Validation.buildDefaultValidatorFactory().getValidator()),
+                        ServiceTestFixtures.deadLetterService(null),
+                        metrics,
+                        new BatchTracer(false, 1, 1, ObservationRegistry.NOOP),
+                        new HistoryCapturePolicy(HistoryCapture.AUTO, 32, 20));
+        rejected = Set.of(1L);
+
+        BulkWriteResult result =
+                noSink.writeMany(
+                        inspections(3), VehicleInspection.class, null, UpdateStrategy.REPLACE, postWrite);
+
+        assertEquals(List.of(3, 2), executeSizes);
+        assertEquals(2, result.getUpserts().size());
+        assertEquals(Map.of("DuplicateKey", 1L), PartialBulkWriteResult.errorsOf(result));
+    }
+
+    @Test
+    void whenTheSinkFailsTheBatchFails() {
+        deadLetterSink.failing = true;
+        rejected = Set.of(1L);
+
+        assertThrows(BulkOperationException.class, () -> write(inspections(3)));
+        CompletableFuture<BulkWriteResult> write =
+                repository.asyncWriteMany(
+                        inspections(3), VehicleInspection.class, null, UpdateStrategy.REPLACE, postWrite);
+        CompletionException e = assertThrows(CompletionException.class, write::join);
+        assertInstanceOf(BulkOperationException.class, e.getCause());
+    }
+
+    @Test
+    void unknownCommitResultRetriesTheCommit() throws IllegalAccessException {
+        MongoException unknown = new MongoException("Commit timed out");
+        unknown.addLabel(MongoException.UNKNOWN_TRANSACTION_COMMIT_RESULT_LABEL);
+        doThrow(unknown).doNothing().when(session).commitTransaction();
+
+        write(inspections(3));
+
+        assertEquals(1, executes.get());
+        verify(session, times(2)).commitTransaction();
+        assertEquals(1, retryPolicy.writeRetries().get(UpdateStrategy.REPLACE).commitRetries());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void returnedHistoryComesBackFromTheWritesThemselves() throws IllegalAccessException {
+        HistoryTriggerService<VehicleInspection> history = mock(HistoryTriggerService.class);
+        OptimizedMongoLoadRepositoryImpl<VehicleInspection> returning =
+                returning(Set.of(1L, 2L), Set.of(1L));
+
+        BulkWriteResult result =
+                returning.writeMany(
+                        inspections(3),
+                        VehicleInspection.class,
+                        null,
+                        UpdateStrategy.UPDATEWITHHISTORY,
+                        history);
+
+        assertEquals(3, executes.get());
+        verify(sessionTemplate, never()).find(any(Query.class), any(), any());
+        ArgumentCaptor<BulkWriteResult> written = ArgumentCaptor.forClass(BulkWriteResult.class);
+        verify(history).postWriteTrigger(eq(session), written.capture(), any(), any(), any());
+        CapturedHistoryResult captured = assertInstanceOf(CapturedHistoryResult.class, written.getValue());
+        assertSame(captured, result);
+        assertEquals(2, result.getMatchedCount());
+        assertEquals(1, result.getModifiedCount());
+        assertEquals(List.of(new BulkWriteUpsert(0, new BsonInt64(0))), result.getUpserts());
+        assertEquals(1, captured.getChanged().size());
+        Document changed = captured.getChanged().get(0);
+        assertEquals(1L, changed.get("_id"));
+        assertEquals(
+                "OLD",
+                changed.get(OptimizedMongoLoadRepositoryImpl.PREVIOUS_VALS, Document.class).get("make"));
+        verify(session).commitTransaction();
+        assertEquals(
+                1,
+                meterRegistry.get("memex.load.transaction")
+                        .tags("collection", "vehicleinspection", "capture", "RETURNED")
+                        .timer()
+                        .count());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void aDocumentRejectedWithReturnedHistoryIsRejectedAlone() throws IllegalAccessException {
+        HistoryTriggerService<VehicleInspection> history = mock(HistoryTriggerService.class);
+        OptimizedMongoLoadRepositoryImpl<VehicleInspection> returning = returning(Set.of(), Set.of());
+        rejected = Set.of(1L);
+        when(session.hasActiveTransaction()).thenReturn(true);
+
+        BulkWriteResult result =
+                returning.writeMany(
+                        inspections(3),
+                        VehicleInspection.class,
+                        null,
+                        UpdateStrategy.UPDATEWITHHISTORY,
+                        history);
+
+        // The first attempt stops at the rejected document, the second writes the other two
+        assertEquals(4, executes.get());
+        verify(session).abortTransaction();
+        assertEquals(2, result.getUpserts().size());
+        assertUpsertsAreTheirIds(result);
+        assertEquals(Map.of("DuplicateKey", 1L), PartialBulkWriteResult.errorsOf(result));
+        assertEquals(1, deadLetterSink.letters.size());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void historyFromAChangeStreamNeedsNoTransaction() throws IllegalAccessException {
+        HistoryTriggerService<VehicleInspection> history = mock(HistoryTriggerService.class);
+        OptimizedMongoLoadRepositoryImpl<VehicleInspection> streamed =
+                new OptimizedMongoLoadRepositoryImpl<>(
+                        mongoTemplate,
+                        mock(MappingMongoConverter.class),
+                        mongoClient,
+                        new AdaptiveBatchSizer(false, 100, 1, 1000, 250, 8_000_000),
+                        retryPolicy,
+                        new BatchValidator(Validation.buildDefaultValidatorFactory().getValidator()),
+                        ServiceTestFixtures.deadLetterService(deadLetterSink),
+                        metrics,
+                        new BatchTracer(false, 1, 1, ObservationRegistry.NOOP),
+                        new HistoryCapturePolicy(HistoryCapture.CHANGE_STREAM, 32, 20));
+
+        BulkWriteResult result =
+                streamed.writeMany(
+                        inspections(3), VehicleInspection.class, null, UpdateStrategy.REPLACE, history);
+
+        assertEquals(3, result.getUpserts().size());
+        verify(mongoClient, never()).startSession();
+        verifyNoInteractions(history);
+    }
+}
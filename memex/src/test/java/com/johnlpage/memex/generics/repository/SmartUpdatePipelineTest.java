@@ -0,0 +1,93 @@
+package com.johnlpage.memex.generics.repository;
+
+import com.johnlpage.memex.VehicleInspection.model.VehicleInspection;
+import com.johnlpage.memex.util.ModelMetadata;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SmartUpdatePipelineTest {
+
+    private static final ModelMetadata VERSIONED = ModelMetadata.of(VehicleInspection.class);
+    private static final ModelMetadata UNVERSIONED = ModelMetadata.of(Unversioned.class);
+
+    static class Unversioned {
+        @org.springframework.data.annotation.Id
+        Long id;
+    }
+
+    private static Document inspection(long id, String result, int mileage) {
+        return new Document("_id", id)
+                .append("lock_version", 3L)
+                .append("testresult", result)
+                .append("testmileage", mileage)
+                .append("note", "$notAVariable")
+                .append("vehicle", new Document("make", "FORD").append("model", "FOCUS"))
+                .append("faileditems", List.of(new Document("rfrid", 1), new Document("rfrid", mileage)));
+    }
+
+    private static String json(List<Document> stages) {
+        return stages.stream().map(Document::toJson).collect(Collectors.joining("\n"));
+    }
+
+    private static void assertSameAsUntemplated(
+            Document source, boolean withHistory, ModelMetadata metadata) {
+        ObjectId batchId = new ObjectId();
+        String expected =
+                json(
+                        SmartUpdatePipeline.buildWithoutTemplate(
+                                Document.parse(source.toJson()), batchId, withHistory, metadata));
+        String actual =
+                json(
+                        SmartUpdatePipeline.build(
+                                Document.parse(source.toJson()), batchId, withHistory, metadata));
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    void templatedPipelineMatchesTheOriginal() {
+        for (boolean withHistory : new boolean[]{false, true}) {
+            // The second document of each shape is bound from the cached template
+            assertSameAsUntemplated(inspection(1, "Passed", 100), withHistory, VERSIONED);
+            assertSameAsUntemplated(inspection(2, "Failed", 200), withHistory, VERSIONED);
+            assertSameAsUntemplated(inspection(3, "Failed", 300), withHistory, UNVERSIONED);
+        }
+    }
+
+    @Test
+    void differentShapesGetDifferentTemplates() {
+        Document base = inspection(4, "Passed", 400);
+        assertSameAsUntemplated(base, true, VERSIONED);
+        int cached = SmartUpdatePipeline.templateCount();
+
+        // Same paths again, no new template
+        assertSameAsUntemplated(inspection(5, "Passed", 500), true, VERSIONED);
+        assertEquals(cached, SmartUpdatePipeline.templateCount());
+
+        // A scalar where there was an array is a different shape when keeping history
+        Document scalar = inspection(6, "Passed", 600).append("faileditems", "none");
+        assertSameAsUntemplated(scalar, true, VERSIONED);
+        // An extra field is a different shape
+        assertSameAsUntemplated(inspection(7, "Passed", 700).append("extra", 1), true, VERSIONED);
+        assertEquals(cached + 2, SmartUpdatePipeline.templateCount());
+    }
+
+    @Test
+    void valuesAreNotSharedBetweenDocuments() {
+        ObjectId batchId = new ObjectId();
+        List<Document> first =
+                SmartUpdatePipeline.build(inspection(8, "Passed", 800), batchId, true, VERSIONED);
+        List<Document> second =
+                SmartUpdatePipeline.build(inspection(9, "Failed", 900), batchId, true, VERSIONED);
+
+        assertTrue(json(first).contains("Passed"));
+        assertFalse(json(first).contains("Failed"));
+        assertTrue(json(second).contains("Failed"));
+        assertFalse(json(second).contains("Passed"));
+    }
+}
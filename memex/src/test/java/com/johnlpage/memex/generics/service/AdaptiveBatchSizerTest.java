@@ -0,0 +1,74 @@
+package com.johnlpage.memex.generics.service;
+
+import com.johnlpage.memex.util.UpdateStrategy;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AdaptiveBatchSizerTest {
+
+    private static final long MILLIS = 1_000_000;
+
+    // 100ms target, sizes 10 to 1000, 1MB per batch
+    private final AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(true, 100, 10, 1000, 100, 1_000_000);
+
+    @Test
+    void growsGraduallyWhileBatchesAreFast() {
+        sizer.recordExecute(UpdateStrategy.REPLACE, 100, 10 * MILLIS);
+        assertEquals(125, sizer.getBatchSize(UpdateStrategy.REPLACE));
+
+        for (int i = 0; i < 50; i++) {
+            sizer.recordExecute(UpdateStrategy.REPLACE, 100, 10 * MILLIS);
+        }
+        assertEquals(1000, sizer.getBatchSize(UpdateStrategy.REPLACE));
+    }
+
+    @Test
+    void shrinksTowardsTheTargetLatency() {
+        // 2ms a document means 50 documents in 100ms
+        for (int i = 0; i < 50; i++) {
+            sizer.recordExecute(UpdateStrategy.UPDATEWITHHISTORY, 100, 200 * MILLIS);
+        }
+        assertEquals(50, sizer.getBatchSize(UpdateStrategy.UPDATEWITHHISTORY));
+    }
+
+    @Test
+    void strategiesAreSizedSeparately() {
+        sizer.recordExecute(UpdateStrategy.INSERT, 100, MILLIS);
+        sizer.recordExecute(UpdateStrategy.UPDATEWITHHISTORY, 100, 1000 * MILLIS);
+
+        assertTrue(sizer.getBatchSize(UpdateStrategy.INSERT) > 100);
+        assertEquals(10, sizer.getBatchSize(UpdateStrategy.UPDATEWITHHISTORY));
+        assertEquals(100, sizer.getBatchSize(UpdateStrategy.REPLACE));
+    }
+
+    @Test
+    void failureHalvesAndStopsGrowth() {
+        sizer.recordFailure(UpdateStrategy.UPDATE);
+        assertEquals(50, sizer.getBatchSize(UpdateStrategy.UPDATE));
+
+        // Fast but recent failures, so no growth yet
+        sizer.recordExecute(UpdateStrategy.UPDATE, 50, MILLIS);
+        assertEquals(50, sizer.getBatchSize(UpdateStrategy.UPDATE));
+
+        AdaptiveBatchSizer.Snapshot snapshot = sizer.batchSizes().get(UpdateStrategy.UPDATE);
+        assertEquals(2, snapshot.batches());
+        assertEquals(1, snapshot.failures());
+    }
+
+    @Test
+    void largeDocumentsCapTheBatchByBytes() {
+        sizer.recordDocumentBytes(UpdateStrategy.REPLACE, 10, 200_000);
+        assertEquals(50, sizer.getBatchSize(UpdateStrategy.REPLACE));
+    }
+
+    @Test
+    void disabledAlwaysUsesTheInitialSize() {
+        AdaptiveBatchSizer fixed = new AdaptiveBatchSizer(false, 200, 10, 1000, 100, 1_000_000);
+        fixed.recordExecute(UpdateStrategy.REPLACE, 200, 10_000 * MILLIS);
+        fixed.recordFailure(UpdateStrategy.REPLACE);
+
+        assertEquals(200, fixed.getBatchSize(UpdateStrategy.REPLACE));
+        assertFalse(fixed.batchSizes().get(UpdateStrategy.REPLACE).adaptive());
+    }
+}
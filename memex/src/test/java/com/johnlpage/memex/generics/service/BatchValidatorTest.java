@@ -0,0 +1,91 @@
+package com.johnlpage.memex.generics.service;
+
+import com.johnlpage.memex.VehicleInspection.model.VehicleInspection;
+import jakarta.validation.Validation;
+import jakarta.validation.Validator;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.johnlpage.memex.generics.service.ServiceTestFixtures.batchValidator;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+class BatchValidatorTest {
+
+    private static VehicleInspection inspection(long id, long mileage) {
+        VehicleInspection inspection = new VehicleInspection();
+        inspection.setTestid(id);
+        inspection.setTestmileage(mileage);
+        return inspection;
+    }
+
+    /**
+     * Counts the calls made to it, and accepts any document with an even id
+     */
+    private static class CountingHandler extends InvalidDataHandlerService<VehicleInspection> {
+        final List<Integer> batchSizes = new ArrayList<>();
+
+        @Override
+        public List<VehicleInspection> handleInvalidBatch(
+                List<InvalidDocument<VehicleInspection>> invalid, Class<VehicleInspection> clazz) {
+            batchSizes.add(invalid.size());
+            return invalid.stream()
+                    .map(InvalidDocument::document)
+                    .filter(document -> document.getTestid() % 2 == 0)
+                    .toList();
+        }
+    }
+
+    @Test
+    void invalidDocumentsGoToTheHandlerTogether() {
+        CountingHandler handler = new CountingHandler();
+        List<VehicleInspection> items = new ArrayList<>();
+        for (long id = 0; id < 10; id++) {
+            // Mileage must be at least 1, so ids 3 to 6 are invalid
+            items.add(inspection(id, id >= 3 && id <= 6 ? 0 : 100));
+        }
+
+        List<VehicleInspection> accepted =
+                batchValidator().validate(items, VehicleInspection.class, handler);
+
+        assertEquals(List.of(4), handler.batchSizes);
+        // 3 and 5 rejected, 4 and 6 accepted by the handler, order kept
+        assertEquals(
+                List.of(0L, 1L, 2L, 4L, 6L, 7L, 8L, 9L),
+                accepted.stream().map(VehicleInspection::getTestid).toList());
+    }
+
+    @Test
+    void defaultBatchHandlerAsksAboutEachDocument() {
+        InvalidDataHandlerService<VehicleInspection> handler = spy(new InvalidDataHandlerService<>());
+        List<VehicleInspection> items = List.of(inspection(1, 0), inspection(2, 5), inspection(3, 0));
+
+        List<VehicleInspection> accepted =
+                batchValidator().validate(items, VehicleInspection.class, handler);
+
+        assertEquals(List.of(items.get(1)), accepted);
+        verify(handler, times(2)).handleInvalidData(any(), any(), eq(VehicleInspection.class));
+    }
+
+    @Test
+    void unconstrainedClassesAndMissingHandlersAreNotValidated() {
+        Validator validator = spy(Validation.buildDefaultValidatorFactory().getValidator());
+        BatchValidator batchValidator = new BatchValidator(validator);
+        List<String> strings = List.of("a", "b");
+        List<VehicleInspection> inspections = List.of(inspection(1, 0));
+
+        InvalidDataHandlerService<String> handler = new InvalidDataHandlerService<>();
+        assertSame(strings, batchValidator.validate(strings, String.class, handler));
+        assertSame(strings, batchValidator.validate(strings, String.class, handler));
+        assertSame(inspections, batchValidator.validate(inspections, VehicleInspection.class, null));
+
+        verify(validator, never()).validate(any());
+        // Looked up once and cached
+        verify(validator, times(1)).getConstraintsForClass(String.class);
+        assertTrue(batchValidator.isConstrained(VehicleInspection.class));
+    }
+}
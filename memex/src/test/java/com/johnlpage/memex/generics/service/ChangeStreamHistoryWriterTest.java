@@ -0,0 +1,211 @@
+package com.johnlpage.memex.generics.service;
+
+import com.mongodb.client.ChangeStreamIterable;
+import com.mongodb.client.MongoChangeStreamCursor;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.UpdateDescription;
+import org.bson.BsonDateTime;
+import org.bson.BsonDocument;
+import org.bson.BsonInt64;
+import org.bson.BsonString;
+import org.bson.BsonTimestamp;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.mongodb.core.MongoTemplate;
+
+import java.time.Instant;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.*;
+
+class ChangeStreamHistoryWriterTest {
+
+    private static final BsonTimestamp CLUSTER_TIME = new BsonTimestamp(1_700_000_000, 7);
+    private static final long WALL_TIME = 1_700_000_000_123L;
+
+    private static ChangeStreamDocument<Document> change(
+            String type, long id, Document fullDocument, UpdateDescription update) {
+        return change(type, id, fullDocument, null, update);
+    }
+
+    private static ChangeStreamDocument<Document> change(
+            String type, long id, Document fullDocument, Document beforeChange, UpdateDescription update) {
+        return new ChangeStreamDocument<>(
+                type,
+                new BsonDocument("_data", new BsonString("token")),
+                null,
+                null,
+                fullDocument,
+                beforeChange,
+                new BsonDocument("_id", new BsonInt64(id)),
+                CLUSTER_TIME,
+                update,
+                null,
+                null,
+                new BsonDateTime(WALL_TIME),
+                null,
+                null);
+    }
+
+    private static Document previousValues(Document values) {
+        return new Document("__previousValues", values);
+    }
+
+    private static UpdateDescription updated(String... fields) {
+        BsonDocument updatedFields = new BsonDocument();
+        for (String field : fields) {
+            updatedFields.append(field, new BsonString("x"));
+        }
+        return new UpdateDescription(List.of(), updatedFields);
+    }
+
+    @Test
+    void anUpdateRecordsTheValuesBeforeIt() {
+        Document previous =
+                new Document("__updateId", new ObjectId())
+                        .append("__lastUpdateDate", new Date())
+                        .append("make", "FORD")
+                        .append("vehicle", new Document("colour", "RED").append("empty", new Document()));
+
+        DocumentHistory history =
+                ChangeStreamHistoryWriter.history(
+                        change(
+                                "update",
+                                42,
+                                previousValues(previous),
+                                updated("make", "__previousValues.make", "__previousValues.__updateId")));
+
+        assertEquals("update", history.getType());
+        assertEquals(42L, history.getRecordId());
+        assertEquals(Instant.ofEpochMilli(WALL_TIME), history.getTimestamp());
+        assertEquals(
+                new Document("make", "FORD").append("vehicle", new Document("colour", "RED")),
+                history.getChanges());
+    }
+
+    @Test
+    void onlyChangesThatWroteHistoryAreRecorded() {
+        Document stale = new Document("__updateId", new ObjectId()).append("make", "FORD");
+        Document stampedOnly = new Document("__updateId", new ObjectId());
+
+        // An update by something else, the __previousValues are an older change's
+        assertNull(
+                ChangeStreamHistoryWriter.history(
+                        change("update", 1, previousValues(stale), updated("make"))));
+        // An UPDATE write, which stamps __previousValues but records no values
+        assertNull(
+                ChangeStreamHistoryWriter.history(
+                        change("update", 1, previousValues(stampedOnly), updated("__previousValues"))));
+        // A plain insert rather than an upsert by the loader
+        assertNull(ChangeStreamHistoryWriter.history(change("insert", 1, new Document(), null)));
+        assertNull(ChangeStreamHistoryWriter.history(change("replace", 1, new Document(), null)));
+    }
+
+    @Test
+    void insertsAndDeletes() {
+        DocumentHistory insert =
+                ChangeStreamHistoryWriter.history(
+                        change("insert", 5, previousValues(new Document("__lastUpdateDate", "now")), null));
+        Document deleted =
+                new Document("_id", 5L)
+                        .append("make", "FORD")
+                        .append("__previousValues", new Document("make", "VAUXHALL"));
+        DocumentHistory delete = ChangeStreamHistoryWriter.history(change("delete", 5, null, deleted, null));
+        DocumentHistory expired = ChangeStreamHistoryWriter.history(change("delete", 5, null, null));
+
+        assertEquals("insert", insert.getType());
+        assertNull(insert.getChanges());
+        assertEquals("delete", delete.getType());
+        assertEquals(5L, delete.getRecordId());
+        // The final state, like the history trigger records
+        assertEquals(new Document("_id", 5L).append("make", "FORD"), delete.getChanges());
+        assertEquals("delete", expired.getType());
+        assertNull(expired.getChanges());
+    }
+
+    @Test
+    void aSnapshotFollowsTheUpdateItWasTakenWith() {
+        Document postImage =
+                new Document("_id", 42L)
+                        .append("make", "VAUXHALL")
+                        .append("__previousValues", new Document("__updateId", new ObjectId()).append("make", "FORD"));
+        ChangeStreamDocument<Document> change =
+                change("update", 42, postImage, updated("make", "__previousValues.make"));
+        DocumentHistory history = ChangeStreamHistoryWriter.history(change);
+
+        DocumentHistory snapshot = ChangeStreamHistoryWriter.snapshotOf(change, history);
+
+        assertEquals(HistorySnapshots.SNAPSHOT, snapshot.getType());
+        assertEquals(history.getTimestamp(), snapshot.getTimestamp());
+        assertEquals(new Document("_id", 42L).append("make", "VAUXHALL"), snapshot.getChanges());
+        assertNotEquals(history.getHistoryId(), snapshot.getHistoryId());
+        assertEquals(snapshot.getHistoryId(), ChangeStreamHistoryWriter.snapshotOf(change, history).getHistoryId());
+    }
+
+    @Test
+    void theSameChangeAlwaysHasTheSameId() {
+        DocumentHistory first = ChangeStreamHistoryWriter.history(change("delete", 5, null, null));
+        DocumentHistory again = ChangeStreamHistoryWriter.history(change("delete", 5, null, null));
+        DocumentHistory other = ChangeStreamHistoryWriter.history(change("delete", 6, null, null));
+
+        assertEquals(first.getHistoryId(), again.getHistoryId());
+        assertNotEquals(first.getHistoryId(), other.getHistoryId());
+        // Still sorts by when the change was made
+        assertEquals(CLUSTER_TIME.getTime(), first.getHistoryId().getTimestamp());
+    }
+
+    @Test
+    void keysWithTheSameHashCodeHaveDifferentIds() {
+        BsonDocument aa = new BsonDocument("_id", new BsonString("Aa"));
+        BsonDocument bb = new BsonDocument("_id", new BsonString("BB"));
+        assertEquals(aa.hashCode(), bb.hashCode());
+
+        assertNotEquals(
+                ChangeStreamHistoryWriter.historyId(CLUSTER_TIME, aa),
+                ChangeStreamHistoryWriter.historyId(CLUSTER_TIME, bb));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void aWorkerThatFailsSaysWhyAndCarriesOnFromItsCheckpoint() throws InterruptedException {
+        MongoTemplate mongoTemplate = mock(MongoTemplate.class, RETURNS_DEEP_STUBS);
+        when(mongoTemplate.getCollection("checkpoints").find(any(Bson.class)).first()).thenReturn(null);
+        ChangeStreamIterable<Document> stream = mock(ChangeStreamIterable.class);
+        when(mongoTemplate.getCollection("inspections").watch(anyList())).thenReturn(stream);
+        when(stream.fullDocument(any())).thenReturn(stream);
+        when(stream.fullDocumentBeforeChange(any())).thenReturn(stream);
+        when(stream.batchSize(anyInt())).thenReturn(stream);
+        when(stream.maxAwaitTime(anyLong(), any())).thenReturn(stream);
+        when(stream.resumeAfter(any())).thenReturn(stream);
+        MongoChangeStreamCursor<ChangeStreamDocument<Document>> cursor = mock(MongoChangeStreamCursor.class);
+        when(stream.cursor()).thenReturn(cursor);
+        BsonDocument checkpoint = new BsonDocument("_data", new BsonString("checkpoint"));
+        when(cursor.getResumeToken()).thenReturn(checkpoint);
+        // Not a MongoException
+        when(cursor.tryNext()).thenThrow(new IllegalStateException("Cannot convert")).thenReturn(null);
+        CollectionPreflightConfig config = mock(CollectionPreflightConfig.class);
+        when(config.hasHistoryCollection()).thenReturn(true);
+        when(config.getCollectionName()).thenReturn("inspections");
+        ChangeStreamHistoryWriter writer =
+                new ChangeStreamHistoryWriter(
+                        mongoTemplate, List.of(config), new HistorySnapshots(0), "checkpoints", 10, 10);
+
+        writer.run(null);
+        try {
+            verify(stream, timeout(5_000)).resumeAfter(checkpoint);
+            String failure = writer.historyStream().get("inspections").failure();
+            assertNotNull(failure);
+            assertTrue(failure.contains("Cannot convert"));
+        } finally {
+            writer.destroy();
+        }
+    }
+}
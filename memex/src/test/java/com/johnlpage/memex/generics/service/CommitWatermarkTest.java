@@ -0,0 +1,61 @@
+package com.johnlpage.memex.generics.service;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CommitWatermarkTest {
+
+    // Every record is 10 bytes with a byte between them
+    private static void see(CommitWatermark watermark, long ordinal) {
+        watermark.seen(ordinal, ordinal * 11 + 10);
+    }
+
+    @Test
+    void onlyMovesPastBatchesOnceEveryEarlierOneIsClosed() {
+        CommitWatermark watermark = new CommitWatermark(0, 0);
+        // Two lanes, records 0, 2 and 3 in one batch and 1 and 4 in the other
+        watermark.opened(0, 0);
+        watermark.opened(1, 11);
+        for (long ordinal = 0; ordinal < 5; ordinal++) {
+            see(watermark, ordinal);
+        }
+        assertEquals(new CommitWatermark.Position(0, 0), watermark.position());
+
+        // The later batch finishing first doesn't move it
+        watermark.closed(1);
+        assertEquals(new CommitWatermark.Position(0, 0), watermark.position());
+
+        watermark.closed(0);
+        assertEquals(new CommitWatermark.Position(5, 54), watermark.position());
+    }
+
+    @Test
+    void anUnclosedBatchHoldsItBack() {
+        CommitWatermark watermark = new CommitWatermark(100, 1100);
+        assertEquals(new CommitWatermark.Position(100, 1100), watermark.position());
+
+        watermark.opened(100, 1100);
+        see(watermark, 100);
+        see(watermark, 101);
+        watermark.closed(100);
+        // Record 102 found unchanged, 103 starts a batch that fails
+        see(watermark, 102);
+        watermark.opened(103, 1133);
+        see(watermark, 103);
+        watermark.opened(104, 1144);
+        see(watermark, 104);
+        watermark.closed(104);
+
+        assertEquals(new CommitWatermark.Position(103, 1133), watermark.position());
+    }
+
+    @Test
+    void contentRangeGivesTheFirstByte() {
+        assertNull(LoadCheckpointService.contentRangeStart(null));
+        assertEquals(1024, LoadCheckpointService.contentRangeStart("bytes 1024-*/*"));
+        assertEquals(1024, LoadCheckpointService.contentRangeStart("bytes 1024-2047/4096"));
+        assertThrows(
+                IllegalArgumentException.class, () -> LoadCheckpointService.contentRangeStart("items 3-4/5"));
+    }
+}
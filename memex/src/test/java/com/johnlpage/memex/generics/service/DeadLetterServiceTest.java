@@ -0,0 +1,89 @@
+package com.johnlpage.memex.generics.service;
+
+import com.johnlpage.memex.VehicleInspection.model.VehicleInspection;
+import com.johnlpage.memex.generics.service.ServiceTestFixtures.MemorySink;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static com.johnlpage.memex.generics.service.ServiceTestFixtures.OBJECT_MAPPER;
+import static com.johnlpage.memex.generics.service.ServiceTestFixtures.deadLetterService;
+import static org.junit.jupiter.api.Assertions.*;
+
+class DeadLetterServiceTest {
+
+    private static VehicleInspection inspection(long id) {
+        VehicleInspection inspection = new VehicleInspection();
+        inspection.setTestid(id);
+        return inspection;
+    }
+
+    @Test
+    void lettersAreCountedBySourceAndReason() throws Exception {
+        MemorySink sink = new MemorySink();
+        DeadLetterService deadLetters = deadLetterService(sink);
+
+        assertTrue(
+                deadLetters.send(
+                        List.of(
+                                deadLetters.letter(
+                                        VehicleInspection.class, DeadLetter.Reason.WRITE_FAILED, inspection(7), "x"),
+                                deadLetters.rawLetter(
+                                        VehicleInspection.class, DeadLetter.Reason.PARSE_ERROR, "{bad", "y"))));
+
+        assertEquals(2, deadLetters.count(VehicleInspection.class));
+        assertEquals(
+                Map.of(DeadLetter.Reason.WRITE_FAILED, 1L, DeadLetter.Reason.PARSE_ERROR, 1L),
+                deadLetters.deadLetters().get("vehicleinspection"));
+        // The payload is JSON the loader can read back
+        VehicleInspection back =
+                OBJECT_MAPPER.readValue(sink.letters.get(0).payload(), VehicleInspection.class);
+        assertEquals(7L, back.getTestid());
+    }
+
+    @Test
+    void sendFailsWithoutAWorkingSink() {
+        DeadLetterService none = deadLetterService(null);
+        assertFalse(none.isEnabled());
+        assertFalse(none.send(List.of(none.rawLetter(VehicleInspection.class, DeadLetter.Reason.PARSE_ERROR, "", ""))));
+
+        MemorySink sink = new MemorySink();
+        sink.failing = true;
+        DeadLetterService broken = deadLetterService(sink);
+        assertFalse(
+                broken.send(List.of(broken.rawLetter(VehicleInspection.class, DeadLetter.Reason.PARSE_ERROR, "", ""))));
+        assertTrue(broken.deadLetters().isEmpty());
+    }
+
+    @Test
+    void fileSinkReadsOldestFirstAndKeepsLettersUntilDeleted(@TempDir Path directory) {
+        FileDeadLetterSink sink = new FileDeadLetterSink(directory.toString(), OBJECT_MAPPER);
+        DeadLetterService deadLetters = deadLetterService(sink);
+        List<DeadLetter> letters = new ArrayList<>();
+        for (long id = 0; id < 5; id++) {
+            letters.add(
+                    deadLetters.letter(
+                            VehicleInspection.class, DeadLetter.Reason.WRITE_ERROR, inspection(id), "E" + id));
+        }
+        sink.write(letters.subList(0, 3));
+        sink.write(letters.subList(3, 5));
+
+        assertEquals(5, sink.count("vehicleinspection"));
+        assertEquals(0, sink.count("other"));
+        List<DeadLetterSink.Kept> first = sink.read("vehicleinspection", null, 2);
+        assertEquals(letters.subList(0, 2), first.stream().map(DeadLetterSink.Kept::letter).toList());
+        List<DeadLetterSink.Kept> rest = sink.read("vehicleinspection", first.get(1).id(), 10);
+        assertEquals(letters.subList(2, 5), rest.stream().map(DeadLetterSink.Kept::letter).toList());
+        assertEquals(5, sink.count("vehicleinspection"));
+
+        sink.delete("vehicleinspection", List.of(first.get(0).id(), rest.get(0).id()));
+        assertEquals(3, sink.count("vehicleinspection"));
+        assertEquals(
+                List.of(letters.get(1), letters.get(3), letters.get(4)),
+                sink.read("vehicleinspection", null, 10).stream().map(DeadLetterSink.Kept::letter).toList());
+    }
+}
@@ -0,0 +1,202 @@
+package com.johnlpage.memex.generics.service;
+
+import com.github.luben.zstd.ZstdOutputStream;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DecompressingInputStreamTest {
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    @AfterEach
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    // About 1MB of NDJSON, more than the buffer holds
+    private static byte[] ndjson() {
+        StringBuilder json = new StringBuilder();
+        for (int i = 0; i < 20_000; i++) {
+            json.append("{\"testid\":").append(i).append(",\"testresult\":\"PASSED\",\"pad\":\"")
+                    .append("x".repeat(i % 20))
+                    .append("\"}\n");
+        }
+        return json.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] compress(byte[] data, ContentEncoding encoding) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (OutputStream out =
+                     switch (encoding) {
+                         case GZIP -> new GZIPOutputStream(bytes);
+                         case DEFLATE -> new DeflaterOutputStream(bytes);
+                         case ZSTD -> new ZstdOutputStream(bytes);
+                         case IDENTITY -> bytes;
+                     }) {
+            out.write(data);
+        }
+        return bytes.toByteArray();
+    }
+
+    @Test
+    void everyEncodingRoundTrips() throws IOException {
+        byte[] data = ndjson();
+        for (ContentEncoding encoding : ContentEncoding.values()) {
+            byte[] compressed = compress(data, encoding);
+            try (InputStream in =
+                         DecompressingInputStream.open(
+                                 new ByteArrayInputStream(compressed), encoding, executor, 2)) {
+                assertArrayEquals(data, in.readAllBytes(), encoding.name());
+            }
+        }
+    }
+
+    @Test
+    void headerNamesAreRecognised() {
+        assertEquals(ContentEncoding.IDENTITY, ContentEncoding.fromHeader(null));
+        assertEquals(ContentEncoding.GZIP, ContentEncoding.fromHeader("x-gzip"));
+        assertEquals(ContentEncoding.ZSTD, ContentEncoding.fromHeader(" ZSTD "));
+        assertThrows(IllegalArgumentException.class, () -> ContentEncoding.fromHeader("br"));
+        assertThrows(IllegalArgumentException.class, () -> ContentEncoding.fromHeader("gzip, zstd"));
+    }
+
+    @Test
+    void corruptDataFailsTheReaderAfterWhatDecompressed() throws IOException {
+        byte[] data = ndjson();
+        byte[] compressed = compress(data, ContentEncoding.GZIP);
+        byte[] truncated = Arrays.copyOf(compressed, compressed.length / 2);
+
+        try (InputStream in =
+                     DecompressingInputStream.open(
+                             new ByteArrayInputStream(truncated), ContentEncoding.GZIP, executor, 2)) {
+            byte[] buffer = new byte[4096];
+            long read = 0;
+            IOException error = null;
+            try {
+                int n;
+                while ((n = in.read(buffer)) >= 0) {
+                    read += n;
+                }
+            } catch (IOException e) {
+                error = e;
+            }
+            assertNotNull(error);
+            assertTrue(read > 0);
+        }
+    }
+
+    @Test
+    void closingEarlyStopsTheDecompressingThread() throws Exception {
+        byte[] compressed = compress(ndjson(), ContentEncoding.ZSTD);
+        InputStream in =
+                DecompressingInputStream.open(
+                        new ByteArrayInputStream(compressed), ContentEncoding.ZSTD, executor, 1);
+        in.read(new byte[10]);
+        in.close();
+
+        // The thread is free for the next stream once it has noticed
+        assertEquals(
+                "free", executor.submit(() -> "free").get(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Half a file, then blocks like a client that has stopped sending until it is closed
+     */
+    private static final class StalledInputStream extends InputStream {
+        private final InputStream sent;
+        private boolean closed;
+
+        StalledInputStream(byte[] compressed) {
+            sent = new ByteArrayInputStream(Arrays.copyOf(compressed, compressed.length / 2));
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) throws IOException {
+            int n = sent.read(b, off, len);
+            if (n > 0) {
+                return n;
+            }
+            while (!closed) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+            throw new IOException("Stream closed");
+        }
+
+        @Override
+        public synchronized void close() {
+            closed = true;
+            notifyAll();
+        }
+
+        synchronized boolean isClosed() {
+            return closed;
+        }
+    }
+
+    @Test
+    void closingMidFileClosesTheSourceAndTheDecompressingThreadExits() throws Exception {
+        StalledInputStream source = new StalledInputStream(compress(ndjson(), ContentEncoding.GZIP));
+        List<Thread> decoders = new ArrayList<>();
+        Executor ownThread =
+                command -> {
+                    Thread thread = new Thread(command, "decoder");
+                    decoders.add(thread);
+                    thread.start();
+                };
+        InputStream in = DecompressingInputStream.open(source, ContentEncoding.GZIP, ownThread, 1);
+        in.read(new byte[10]);
+        in.close();
+
+        assertTrue(source.isClosed());
+        Thread decoder = decoders.get(0);
+        decoder.join(1000);
+        assertFalse(decoder.isAlive());
+    }
+
+    @Test
+    void decompressesOnTheReadersThreadWhenNoneAreFree() throws IOException {
+        byte[] data = ndjson();
+        try (InputStream in =
+                     DecompressingInputStream.open(
+                             new ByteArrayInputStream(compress(data, ContentEncoding.GZIP)),
+                             ContentEncoding.GZIP,
+                             command -> {
+                                 throw new RejectedExecutionException("Busy");
+                             },
+                             2)) {
+            assertFalse(in instanceof DecompressingInputStream);
+            assertArrayEquals(data, in.readAllBytes());
+        }
+    }
+}
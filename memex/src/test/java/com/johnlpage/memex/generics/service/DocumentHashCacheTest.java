@@ -0,0 +1,108 @@
+package com.johnlpage.memex.generics.service;
+
+import com.johnlpage.memex.VehicleInspection.model.Vehicle;
+import com.johnlpage.memex.VehicleInspection.model.VehicleInspection;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDate;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static com.johnlpage.memex.generics.service.ServiceTestFixtures.hashCache;
+import static org.junit.jupiter.api.Assertions.*;
+
+class DocumentHashCacheTest {
+
+    private final DocumentHashCache.CollectionHashes hashes =
+            hashCache(1000).forType(VehicleInspection.class);
+
+    private static VehicleInspection inspection(long id, String result, Map<String, Object> payload) {
+        VehicleInspection inspection = new VehicleInspection();
+        inspection.setTestid(id);
+        inspection.setTestresult(result);
+        inspection.setTestdate(LocalDate.of(2024, 3, 1));
+        Vehicle vehicle = new Vehicle();
+        vehicle.setMake("FORD");
+        inspection.setVehicle(vehicle);
+        inspection.setPayload(payload);
+        return inspection;
+    }
+
+    @Test
+    void hashIgnoresVersionAndPayloadOrder() {
+        Map<String, Object> ordered = new LinkedHashMap<>();
+        ordered.put("a", 1);
+        ordered.put("b", "two");
+        Map<String, Object> reversed = new HashMap<>();
+        reversed.put("b", "two");
+        reversed.put("a", 1L);
+
+        VehicleInspection first = inspection(1, "PASSED", ordered);
+        VehicleInspection second = inspection(1, "PASSED", reversed);
+        second.setLockVersion(7L);
+
+        assertEquals(hashes.hashOf(first), hashes.hashOf(second));
+        assertNotEquals(hashes.hashOf(first), hashes.hashOf(inspection(1, "FAILED", ordered)));
+        assertTrue(hashes.hashOf(first) >= 0);
+
+        first.setDeleted(true);
+        assertEquals(DocumentHashCache.NO_HASH, hashes.hashOf(first));
+    }
+
+    @Test
+    void unchangedOnlyAfterASuccessfulWrite() {
+        long key = hashes.idKey(inspection(2, "PASSED", null));
+        long hash = hashes.hashOf(inspection(2, "PASSED", null));
+
+        long ticket = hashes.claim(key, hash);
+        assertTrue(ticket < 0);
+        // Still being written, so a repeat is written too
+        long repeat = hashes.claim(key, hash);
+        assertNotEquals(DocumentHashCache.UNCHANGED, repeat);
+
+        // The older write finishing doesn't commit as the repeat has taken over
+        hashes.committed(key, ticket, hash);
+        assertNotEquals(DocumentHashCache.UNCHANGED, ticket = hashes.claim(key, hash));
+        hashes.committed(key, ticket, hash);
+        assertEquals(DocumentHashCache.UNCHANGED, hashes.claim(key, hash));
+
+        // A failure forgets it
+        long changed = hashes.hashOf(inspection(2, "FAILED", null));
+        ticket = hashes.claim(key, changed);
+        hashes.failed(key, ticket);
+        assertNotEquals(DocumentHashCache.UNCHANGED, hashes.claim(key, hash));
+    }
+
+    @Test
+    void deletesAreAlwaysWrittenAndForgotten() {
+        long key = hashes.idKey(inspection(3, "PASSED", null));
+        long hash = hashes.hashOf(inspection(3, "PASSED", null));
+        hashes.committed(key, hashes.claim(key, hash), hash);
+
+        long ticket = hashes.claim(key, DocumentHashCache.NO_HASH);
+        assertNotEquals(DocumentHashCache.UNCHANGED, ticket);
+        hashes.committed(key, ticket, DocumentHashCache.NO_HASH);
+        assertNotEquals(DocumentHashCache.UNCHANGED, hashes.claim(key, hash));
+    }
+
+    @Test
+    void writesUntrackedWhenFull() {
+        // One entry in each of the 16 segments
+        DocumentHashCache cache = hashCache(16);
+        DocumentHashCache.CollectionHashes small = cache.forType(VehicleInspection.class);
+        int untracked = 0;
+        for (long id = 0; id < 100; id++) {
+            long key = small.idKey(inspection(id, "PASSED", null));
+            if (small.claim(key, 5) == DocumentHashCache.UNTRACKED) {
+                untracked++;
+            }
+        }
+
+        DocumentHashCache.Snapshot snapshot = cache.documentHashes().get("vehicleinspection");
+        assertTrue(untracked >= 84);
+        assertEquals(100 - untracked, snapshot.entries());
+        assertEquals(untracked, snapshot.untracked());
+        assertEquals(16, snapshot.maxEntries());
+    }
+}
@@ -0,0 +1,69 @@
+package com.johnlpage.memex.generics.service;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HistoryCapturePolicyTest {
+
+    private static final String COLLECTION = "inspections";
+
+    // Batches of up to 32 compared, every 5th small batch a probe
+    private final HistoryCapturePolicy policy = new HistoryCapturePolicy(HistoryCapture.AUTO, 32, 5);
+
+    private void record(HistoryCapture used, long nanosPerDocument) {
+        policy.recordTransaction(COLLECTION, used, 10, 10 * nanosPerDocument);
+    }
+
+    @Test
+    void triesEachBeforeChoosing() {
+        assertEquals(HistoryCapture.REQUERY, policy.choose(COLLECTION, 10));
+        record(HistoryCapture.REQUERY, 1000);
+        assertEquals(HistoryCapture.RETURNED, policy.choose(COLLECTION, 10));
+    }
+
+    @Test
+    void choosesTheCheaperAndProbesTheOther() {
+        record(HistoryCapture.REQUERY, 1000);
+        record(HistoryCapture.RETURNED, 400);
+
+        assertEquals(HistoryCapture.RETURNED, policy.choose(COLLECTION, 10));
+        assertEquals(HistoryCapture.RETURNED, policy.choose(COLLECTION, 10));
+        assertEquals(HistoryCapture.RETURNED, policy.choose(COLLECTION, 10));
+        assertEquals(HistoryCapture.RETURNED, policy.choose(COLLECTION, 10));
+        assertEquals(HistoryCapture.REQUERY, policy.choose(COLLECTION, 10));
+
+        HistoryCapturePolicy.Snapshot snapshot = policy.historyCapture().get(COLLECTION);
+        assertEquals(HistoryCapture.RETURNED, snapshot.choice());
+        assertEquals(400, snapshot.returnedNanosPerDocument());
+    }
+
+    @Test
+    void switchesBackWhenItGetsDearer() {
+        record(HistoryCapture.REQUERY, 1000);
+        record(HistoryCapture.RETURNED, 400);
+        for (int i = 0; i < 20; i++) {
+            record(HistoryCapture.RETURNED, 3000);
+        }
+        assertEquals(HistoryCapture.REQUERY, policy.choose(COLLECTION, 10));
+    }
+
+    @Test
+    void bigBatchesAlwaysRequeryAndAreNotCompared() {
+        record(HistoryCapture.REQUERY, 1000);
+        record(HistoryCapture.RETURNED, 400);
+        policy.recordTransaction(COLLECTION, HistoryCapture.REQUERY, 100, 100);
+
+        assertEquals(HistoryCapture.REQUERY, policy.choose(COLLECTION, 33));
+        assertEquals(1000, policy.historyCapture().get(COLLECTION).requeryNanosPerDocument());
+    }
+
+    @Test
+    void aFixedCaptureIsAlwaysUsed() {
+        HistoryCapturePolicy returned = new HistoryCapturePolicy(HistoryCapture.RETURNED, 32, 5);
+
+        assertEquals(HistoryCapture.RETURNED, returned.choose(COLLECTION, 1000));
+        returned.recordTransaction(COLLECTION, HistoryCapture.RETURNED, 10, 1000);
+        assertTrue(returned.historyCapture().isEmpty());
+    }
+}
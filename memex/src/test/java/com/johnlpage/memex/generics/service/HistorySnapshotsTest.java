@@ -0,0 +1,76 @@
+package com.johnlpage.memex.generics.service;
+
+import org.bson.BsonTimestamp;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HistorySnapshotsTest {
+
+    @Test
+    void roughlyOneChangeInEveryIsSnapshotted() {
+        HistorySnapshots snapshots = new HistorySnapshots(10);
+        int due = 0;
+        for (int i = 0; i < 10_000; i++) {
+            if (snapshots.isDue((long) i % 50, new ObjectId())) {
+                due++;
+            }
+        }
+        assertTrue(due > 700 && due < 1300, "snapshotted " + due);
+    }
+
+    @Test
+    void everyRecordGetsSnapshotted() {
+        HistorySnapshots snapshots = new HistorySnapshots(10);
+        for (long recordId = 0; recordId < 20; recordId++) {
+            boolean snapshotted = false;
+            for (int batch = 0; batch < 200 && !snapshotted; batch++) {
+                snapshotted = snapshots.isDue(recordId, new ObjectId());
+            }
+            assertTrue(snapshotted, "record " + recordId);
+        }
+    }
+
+    @Test
+    void theSameChangeIsAlwaysDecidedTheSameWay() {
+        HistorySnapshots snapshots = new HistorySnapshots(7);
+        ObjectId updateId = new ObjectId();
+        BsonTimestamp clusterTime = new BsonTimestamp(1_700_000_000, 12);
+
+        assertEquals(snapshots.isDue(42L, updateId), snapshots.isDue(42L, updateId));
+        assertEquals(snapshots.isDue(clusterTime), snapshots.isDue(clusterTime));
+        // Matches the stream's $mod of seconds plus increment
+        assertTrue(snapshots.isDue(new BsonTimestamp(7, 14)));
+        assertFalse(snapshots.isDue(new BsonTimestamp(7, 15)));
+    }
+
+    @Test
+    void zeroTurnsThemOff() {
+        HistorySnapshots snapshots = new HistorySnapshots(0);
+
+        assertFalse(snapshots.isDue(1L, new ObjectId()));
+        assertFalse(snapshots.isDue(new BsonTimestamp(0, 0)));
+        assertEquals(new Document("$literal", false), snapshots.dueExpression());
+    }
+
+    @Test
+    void aSnapshotIsTheWholeDocumentWithoutItsPreviousValues() {
+        Document document =
+                new Document("_id", 5L)
+                        .append("make", "FORD")
+                        .append("__previousValues", new Document("make", "VAUXHALL"));
+        Instant timestamp = Instant.now();
+
+        DocumentHistory snapshot = HistorySnapshots.snapshot(5L, timestamp, document);
+
+        assertEquals(HistorySnapshots.SNAPSHOT, snapshot.getType());
+        assertEquals(timestamp, snapshot.getTimestamp());
+        assertEquals(new Document("_id", 5L).append("make", "FORD"), snapshot.getChanges());
+        // The document itself is left alone
+        assertTrue(document.containsKey("__previousValues"));
+    }
+}
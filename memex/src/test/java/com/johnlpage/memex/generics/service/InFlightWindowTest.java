@@ -0,0 +1,75 @@
+package com.johnlpage.memex.generics.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class InFlightWindowTest {
+
+    @Test
+    void acquireIsFreeWhileThereIsRoom() throws InterruptedException {
+        InFlightWindow window = new InFlightWindow(2, 1000);
+
+        assertEquals(0, window.acquire(400));
+        assertEquals(0, window.acquire(400));
+        assertEquals(2, window.getBatchesInFlight());
+        assertEquals(800, window.getBytesInFlight());
+    }
+
+    @Test
+    void waitsForABatchSlotAndReportsTheTimeBlocked() throws Exception {
+        InFlightWindow window = new InFlightWindow(1, 1000);
+        window.acquire(10);
+
+        CompletableFuture<Long> blocked =
+                CompletableFuture.supplyAsync(
+                        () -> {
+                            try {
+                                return window.acquire(10);
+                            } catch (InterruptedException e) {
+                                throw new RuntimeException(e);
+                            }
+                        });
+        Thread.sleep(50);
+        assertFalse(blocked.isDone());
+
+        window.release(10);
+        assertTrue(blocked.get(5, TimeUnit.SECONDS) > 0);
+    }
+
+    @Test
+    void waitsForBytesEvenWithFreeBatchSlots() throws Exception {
+        InFlightWindow window = new InFlightWindow(10, 100);
+        window.acquire(80);
+
+        CompletableFuture<Long> blocked =
+                CompletableFuture.supplyAsync(
+                        () -> {
+                            try {
+                                return window.acquire(50);
+                            } catch (InterruptedException e) {
+                                throw new RuntimeException(e);
+                            }
+                        });
+        Thread.sleep(50);
+        assertFalse(blocked.isDone());
+
+        window.release(80);
+        assertTrue(blocked.get(5, TimeUnit.SECONDS) > 0);
+        assertEquals(1, window.getBatchesInFlight());
+    }
+
+    @Test
+    void batchBiggerThanTheWindowGoesThroughAlone() throws InterruptedException {
+        InFlightWindow window = new InFlightWindow(4, 100);
+
+        assertEquals(0, window.acquire(5000));
+        assertEquals(100, window.getBytesInFlight());
+        window.release(5000);
+        assertEquals(0, window.getBytesInFlight());
+        window.awaitEmpty();
+    }
+}
@@ -0,0 +1,171 @@
+package com.johnlpage.memex.generics.service;
+
+import com.johnlpage.memex.util.UpdateStrategy;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class JsonFileLoadServiceTest {
+
+    @TempDir
+    Path dir;
+
+    private static String ndjson(int from, int to) {
+        StringBuilder json = new StringBuilder();
+        for (int i = from; i < to; i++) {
+            json.append("{\"_id\":").append(i).append(",\"name\":\"record ").append(i).append("\"}\n");
+        }
+        return json.toString();
+    }
+
+    private Path write(String name, String content) throws IOException {
+        return Files.writeString(dir.resolve(name), content);
+    }
+
+    // A loader that reads each source to the end and counts each record as an insert
+    @SuppressWarnings("unchecked")
+    private static MongoDbJsonStreamingLoaderService<Object> recordingLoader(List<JsonRecord> records)
+            throws DataLoadException {
+        MongoDbJsonStreamingLoaderService<Object> loader = mock(MongoDbJsonStreamingLoaderService.class);
+        when(loader.loadFromRecordSource(any(), any(), any(), any(), any(), any(), any()))
+                .thenAnswer(
+                        invocation -> {
+                            int n = 0;
+                            try (JsonRecordSource source = invocation.getArgument(0)) {
+                                JsonRecord record;
+                                while ((record = source.next()) != null) {
+                                    synchronized (records) {
+                                        records.add(record);
+                                    }
+                                    n++;
+                                }
+                            }
+                            return new MongoDbJsonStreamingLoaderService.JsonStreamingLoadResponse(0, 0, n, true, "");
+                        });
+        return loader;
+    }
+
+    private static JsonFileLoadService service(long rangeSize) {
+        return new JsonFileLoadService(Runnable::run, Runnable::run, rangeSize, 4, 1000);
+    }
+
+    private static List<FileLoadProgress.Snapshot> load(
+            JsonFileLoadService service, MongoDbJsonStreamingLoaderService<Object> loader, String path)
+            throws Exception {
+        return service.loadFiles(
+                loader, path, Object.class, null, UpdateStrategy.INSERT, null, null, JsonLoadOptions.DEFAULTS);
+    }
+
+    @Test
+    void rangesEndJustAfterANewline() throws IOException {
+        Path file = write("a.ndjson", ndjson(0, 100));
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            List<FileRange> ranges = FileRange.split(channel, 500);
+            assertTrue(ranges.size() > 1);
+            byte[] bytes = Files.readAllBytes(file);
+            long expectedStart = 0;
+            for (FileRange range : ranges) {
+                assertEquals(expectedStart, range.start());
+                assertEquals('\n', bytes[(int) range.end() - 1]);
+                expectedStart = range.end();
+            }
+            assertEquals(bytes.length, expectedStart);
+        }
+    }
+
+    @Test
+    void everyRecordIsLoadedOnceWhateverTheRangeSize() throws Exception {
+        String json = ndjson(0, 1000);
+        write("a.ndjson", json);
+        for (long rangeSize : new long[]{1, 37, 4096, 1 << 20}) {
+            List<JsonRecord> records = new ArrayList<>();
+            List<FileLoadProgress.Snapshot> files =
+                    load(service(rangeSize), recordingLoader(records), dir.toString());
+
+            assertEquals(1, files.size());
+            FileLoadProgress.Snapshot file = files.get(0);
+            assertEquals(FileLoadProgress.State.DONE, file.state());
+            assertTrue(file.split());
+            assertEquals(1000, file.inserts());
+            assertEquals(json.length(), file.bytesRead());
+            assertEquals(1000, records.size());
+            for (JsonRecord record : records) {
+                // Offsets are from the start of the file whichever range a record was in
+                String expected = json.substring((int) record.offset(), (int) record.offset() + record.length());
+                assertEquals(expected, new String(record.bytes(), StandardCharsets.UTF_8));
+            }
+            assertEquals(1000, records.stream().mapToLong(JsonRecord::offset).distinct().count());
+        }
+    }
+
+    @Test
+    void compressedFilesAndArraysAreReadWhole() throws Exception {
+        try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(dir.resolve("b.ndjson.gz")))) {
+            out.write(ndjson(0, 50).getBytes(StandardCharsets.UTF_8));
+        }
+        write("c.json", "[\n" + ndjson(50, 80).replace("}\n{", "},\n{") + "]\n");
+        List<JsonRecord> records = new ArrayList<>();
+
+        List<FileLoadProgress.Snapshot> files = load(service(16), recordingLoader(records), dir.toString());
+
+        assertEquals(2, files.size());
+        assertEquals(List.of(1, 1), files.stream().map(FileLoadProgress.Snapshot::ranges).toList());
+        assertFalse(files.get(0).split());
+        assertEquals(50, files.get(0).inserts());
+        assertEquals(100, files.get(0).percentRead());
+        assertEquals(30, files.get(1).inserts());
+        assertEquals(80, records.size());
+    }
+
+    @Test
+    void aFailedRangeFailsItsFileOnly() throws Exception {
+        write("a.ndjson", ndjson(0, 10));
+        write("b.ndjson", ndjson(10, 20));
+        @SuppressWarnings("unchecked")
+        MongoDbJsonStreamingLoaderService<Object> loader = mock(MongoDbJsonStreamingLoaderService.class);
+        when(loader.loadFromRecordSource(any(), any(), any(), any(), any(), any(), any()))
+                .thenThrow(new DataLoadException(0, 0, 3, "Write failed", null))
+                .thenReturn(new MongoDbJsonStreamingLoaderService.JsonStreamingLoadResponse(0, 0, 10, true, ""));
+
+        List<FileLoadProgress.Snapshot> files = load(service(1 << 20), loader, dir.toString());
+
+        assertEquals(FileLoadProgress.State.FAILED, files.get(0).state());
+        assertEquals("Write failed", files.get(0).failure());
+        assertEquals(3, files.get(0).inserts());
+        assertEquals(FileLoadProgress.State.DONE, files.get(1).state());
+    }
+
+    @Test
+    void directoriesOnlyGiveJsonFilesAndGlobsMatchTheirPattern() throws Exception {
+        write("b.ndjson.gz", "");
+        write("a.json", "");
+        write("loaddata.sh", "");
+        Files.createDirectory(dir.resolve("more"));
+        write("more/c.ndjson", "");
+
+        assertEquals(
+                List.of(dir.resolve("a.json"), dir.resolve("b.ndjson.gz")),
+                JsonFileLoadService.expand(dir.toString()));
+        assertEquals(
+                List.of(dir.resolve("b.ndjson.gz"), dir.resolve("more/c.ndjson")),
+                JsonFileLoadService.expand(dir + "/**ndjson*"));
+        assertEquals(List.of(dir.resolve("a.json")), JsonFileLoadService.expand(dir + "/a.json"));
+        assertEquals(ContentEncoding.ZSTD, JsonFileLoadService.encodingOf(Path.of("x.ndjson.zst")));
+        assertThrows(IOException.class, () -> JsonFileLoadService.expand(dir + "/missing"));
+    }
+}
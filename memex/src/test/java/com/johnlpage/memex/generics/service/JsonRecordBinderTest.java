@@ -0,0 +1,53 @@
+package com.johnlpage.memex.generics.service;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.johnlpage.memex.VehicleInspection.model.VehicleInspection;
+import com.johnlpage.memex.config.ObjectMapperConfig;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class JsonRecordBinderTest {
+
+    private static final String JSON =
+            "{\"testid\":59,\"testdate\":\"2021-08-21T00:00:00.000Z\",\"testclass\":\"4\","
+                    + "\"testmileage\":120775,\"capacity\":2148,\"deleted\":true,"
+                    + "\"vehicle\":{\"vehicleid\":7,\"make\":\"FORD\",\"model\":\"FOCUS\"},"
+                    + "\"fuel\":\"Diesel\",\"faileditems\":[{\"rfrid\":10019,\"details\":{\"minoritem\":\"Y\"}},"
+                    + "{\"rfrid\":31322,\"location\":{\"vertical\":\"\"}}],"
+                    + "\"lastseen\":\"2022-01-02T03:04:05.000Z\",\"score\":1.5}";
+
+    private final JsonFactory jsonFactory = new JsonFactory();
+    private final ObjectMapper objectMapper = new ObjectMapperConfig().objectMapper(jsonFactory);
+
+    private VehicleInspection bind(JsonRecordBinder.BindMode mode) throws IOException {
+        return new JsonRecordBinder<>(mode, VehicleInspection.class, objectMapper, jsonFactory)
+                .bind(JSON.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void directBindingMatchesTreeBinding() throws IOException {
+        VehicleInspection direct = bind(JsonRecordBinder.BindMode.DIRECT);
+        VehicleInspection tree = bind(JsonRecordBinder.BindMode.TREE);
+
+        assertEquals(objectMapper.valueToTree(tree), objectMapper.valueToTree(direct));
+        assertEquals(tree.getPayload(), direct.getPayload());
+    }
+
+    @Test
+    void directBindingFillsMappedAndUnmappedFields() throws IOException {
+        VehicleInspection direct = bind(JsonRecordBinder.BindMode.DIRECT);
+
+        assertEquals(59L, direct.getTestid());
+        assertEquals(LocalDate.of(2021, 8, 21), direct.getTestdate());
+        assertEquals(Boolean.TRUE, direct.getDeleted());
+        assertEquals("FORD", direct.getVehicle().getMake());
+        assertEquals(1.5, direct.getPayload().get("score"));
+        assertEquals(4, direct.getPayload().size());
+    }
+}
@@ -0,0 +1,79 @@
+package com.johnlpage.memex.generics.service;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class JsonRecordSplitterTest {
+
+    private static List<JsonRecord> split(InputStream in) throws IOException {
+        List<JsonRecord> records = new ArrayList<>();
+        try (JsonRecordSplitter splitter = new JsonRecordSplitter(in)) {
+            JsonRecord record;
+            while ((record = splitter.next()) != null) {
+                records.add(record);
+            }
+        }
+        return records;
+    }
+
+    private static List<JsonRecord> split(String json) throws IOException {
+        return split(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static String text(JsonRecord record) {
+        return new String(record.bytes(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void splitsNdjsonWithOrdinalsAndOffsets() throws IOException {
+        List<JsonRecord> records = split("{\"a\":1}\n{\"a\":2}\n");
+
+        assertEquals(2, records.size());
+        assertEquals("{\"a\":1}", text(records.get(0)));
+        assertEquals("{\"a\":2}", text(records.get(1)));
+        assertEquals(1, records.get(1).ordinal());
+        assertEquals(8, records.get(1).offset());
+    }
+
+    @Test
+    void handlesArraysNestingAndBracesInStrings() throws IOException {
+        String first = "{\"a\":{\"b\":[1,{\"c\":\"}\"}]},\"d\":\"x\\\"{\"}";
+        List<JsonRecord> records = split("[ " + first + " , {\"e\":[]} ]");
+
+        assertEquals(2, records.size());
+        assertEquals(first, text(records.get(0)));
+        assertEquals("{\"e\":[]}", text(records.get(1)));
+    }
+
+    @Test
+    void recordsSpanningReadBuffersAreJoined() throws IOException {
+        // Deliver one byte at a time so every record crosses many buffer fills
+        String json = "{\"long\":\"" + "x".repeat(100_000) + "\"}{\"b\":2}";
+        InputStream trickle = new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, 7));
+            }
+        };
+
+        List<JsonRecord> records = split(trickle);
+
+        assertEquals(2, records.size());
+        assertEquals(100_011, records.get(0).length());
+        assertEquals("{\"b\":2}", text(records.get(1)));
+    }
+
+    @Test
+    void truncatedObjectThrows() {
+        assertThrows(JsonParseException.class, () -> split("{\"a\":1}{\"b\":"));
+    }
+}
@@ -0,0 +1,111 @@
+package com.johnlpage.memex.generics.service;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MappedJsonRecordSourceTest {
+
+    @TempDir
+    Path dir;
+
+    private static List<JsonRecord> read(JsonRecordSource source) throws IOException {
+        List<JsonRecord> records = new ArrayList<>();
+        try (source) {
+            JsonRecord record;
+            while ((record = source.next()) != null) {
+                records.add(record);
+            }
+        }
+        return records;
+    }
+
+    private static String text(JsonRecord record) {
+        return new String(record.bytes(), StandardCharsets.UTF_8);
+    }
+
+    private Path write(String content) throws IOException {
+        return Files.writeString(dir.resolve("data.ndjson"), content);
+    }
+
+    @Test
+    void findsTheFirstNewlineWhereverItIs() {
+        Random random = new Random(42);
+        for (int n = 0; n < 2000; n++) {
+            byte[] bytes = new byte[1 + random.nextInt(40)];
+            for (int i = 0; i < bytes.length; i++) {
+                // Plenty of bytes either side of '\n' to catch a bad borrow
+                bytes[i] = (byte) (random.nextInt(4) == 0 ? '\n' : '\n' + random.nextInt(3) - 1 + random.nextInt(250));
+            }
+            int from = random.nextInt(bytes.length);
+            int expected = -1;
+            for (int i = from; i < bytes.length; i++) {
+                if (bytes[i] == '\n') {
+                    expected = i;
+                    break;
+                }
+            }
+            assertEquals(expected, MappedJsonRecordSource.indexOfNewline(bytes, from, bytes.length));
+        }
+    }
+
+    @Test
+    void givesTheSameRecordsAsTheSplitter() throws IOException {
+        String json = "{\"a\":1}\r\n\n  {\"a\":\"two\"}\n{\"a\":{\"b\":[3]}}\n   \n{\"a\":4}";
+        Path file = write(json);
+
+        List<JsonRecord> mapped = read(new MappedJsonRecordSource(file));
+        List<JsonRecord> split = read(new JsonRecordSplitter(Files.newInputStream(file)));
+
+        assertEquals(split.size(), mapped.size());
+        for (int i = 0; i < split.size(); i++) {
+            assertEquals(text(split.get(i)), text(mapped.get(i)));
+            assertEquals(split.get(i).ordinal(), mapped.get(i).ordinal());
+            assertEquals(split.get(i).offset(), mapped.get(i).offset());
+        }
+    }
+
+    @Test
+    void recordsAreSlicesTheBinderParsesInPlace() throws IOException {
+        Path file = write("{\"a\":1}\n{\"a\":2}\n{\"a\":3}\n");
+        JsonRecordBinder<JsonNode> binder =
+                new JsonRecordBinder<>(
+                        JsonRecordBinder.BindMode.DIRECT, JsonNode.class, new ObjectMapper(), new JsonFactory());
+
+        List<JsonRecord> records = read(new MappedJsonRecordSource(file));
+
+        assertSame(records.get(0).array(), records.get(2).array());
+        assertEquals(16, records.get(2).arrayOffset());
+        assertEquals(3, binder.bind(records.get(2)).get("a").asInt());
+    }
+
+    @Test
+    void linesLongerThanABlockAndRangesOfTheFile() throws IOException {
+        String longLine = "{\"long\":\"" + "x".repeat(2_500_000) + "\"}\n";
+        String json = "{\"a\":1}\n" + longLine + "{\"a\":3}\n";
+        Path file = write(json);
+
+        List<JsonRecord> records = read(new MappedJsonRecordSource(file));
+        assertEquals(3, records.size());
+        assertEquals(longLine.length() - 1, records.get(1).length());
+        assertEquals("{\"a\":3}", text(records.get(2)));
+
+        MappedJsonRecordSource range = new MappedJsonRecordSource(file, 8, 8 + longLine.length());
+        records = read(range);
+        assertEquals(1, records.size());
+        assertEquals(8, records.get(0).offset());
+        assertEquals(longLine.length(), range.bytesRead());
+    }
+}
@@ -0,0 +1,595 @@
+package com.johnlpage.memex.generics.service;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.johnlpage.memex.VehicleInspection.model.VehicleInspection;
+import com.johnlpage.memex.config.ObjectMapperConfig;
+import com.johnlpage.memex.generics.repository.OptimizedMongoLoadRepository;
+import com.johnlpage.memex.generics.repository.PartialBulkWriteResult;
+import com.johnlpage.memex.generics.service.ServiceTestFixtures.MemorySink;
+import com.johnlpage.memex.util.UpdateStrategy;
+import com.mongodb.bulk.BulkWriteResult;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.micrometer.observation.ObservationRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+import static com.johnlpage.memex.generics.service.ServiceTestFixtures.batchValidator;
+import static com.johnlpage.memex.generics.service.ServiceTestFixtures.deadLetterService;
+import static com.johnlpage.memex.generics.service.ServiceTestFixtures.hashCache;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Runs the loader pipeline against a repository that only pretends to write.
+ */
+class MongoDbJsonStreamingLoaderServiceTest {
+
+    private final ExecutorService parseExecutor = Executors.newFixedThreadPool(4);
+    private final ExecutorService writeExecutor = Executors.newFixedThreadPool(8);
+    private final ExecutorService decompressExecutor = Executors.newSingleThreadExecutor();
+    private final DocumentHashCache hashCache = hashCache(10_000);
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final BatchTracer tracer = new BatchTracer(false, 1, 1, ObservationRegistry.NOOP);
+    private final Map<String, LoadCheckpoint> savedCheckpoints = new ConcurrentHashMap<>();
+    // Keeps checkpoints in savedCheckpoints instead of a collection
+    private final LoadCheckpointService checkpoints =
+            new LoadCheckpointService(mock(MongoTemplate.class), "checkpoints") {
+                @Override
+                public LoadCheckpoint find(String loadId) {
+                    return savedCheckpoints.get(loadId);
+                }
+
+                @Override
+                public void save(LoadCheckpoint checkpoint) {
+                    savedCheckpoints.put(checkpoint.loadId(), checkpoint);
+                }
+            };
+
+    @AfterEach
+    void shutdown() {
+        parseExecutor.shutdownNow();
+        writeExecutor.shutdownNow();
+        decompressExecutor.shutdownNow();
+    }
+
+    private MongoDbJsonStreamingLoaderService<VehicleInspection> loader(
+            OptimizedMongoLoadRepository<VehicleInspection> repository) {
+        return loader(repository, null);
+    }
+
+    private MongoDbJsonStreamingLoaderService<VehicleInspection> loader(
+            OptimizedMongoLoadRepository<VehicleInspection> repository, DeadLetterSink sink) {
+        JsonFactory jsonFactory = new JsonFactory();
+        ObjectMapper objectMapper = new ObjectMapperConfig().objectMapper(jsonFactory);
+        MongoDbJsonStreamingLoaderService<VehicleInspection> loader =
+                new MongoDbJsonStreamingLoaderService<>(repository, objectMapper, jsonFactory) {
+                };
+        ReflectionTestUtils.setField(
+                loader, "batchSizer", new AdaptiveBatchSizer(false, 10, 1, 2000, 250, 8_000_000));
+        ReflectionTestUtils.setField(loader, "parseChunkSize", 4);
+        ReflectionTestUtils.setField(loader, "parseQueueDepth", 3);
+        ReflectionTestUtils.setField(loader, "bindMode", JsonRecordBinder.BindMode.DIRECT);
+        ReflectionTestUtils.setField(loader, "maxBatchesInFlight", 16);
+        ReflectionTestUtils.setField(loader, "maxBytesInFlight", 1_000_000L);
+        ReflectionTestUtils.setField(loader, "parseExecutor", parseExecutor);
+        ReflectionTestUtils.setField(loader, "changeDetection", ChangeDetection.NONE);
+        ReflectionTestUtils.setField(loader, "hashCache", hashCache);
+        ReflectionTestUtils.setField(loader, "dispatchMode", DispatchMode.ORDERED);
+        ReflectionTestUtils.setField(loader, "lanes", 4);
+        ReflectionTestUtils.setField(loader, "batchValidator", batchValidator());
+        ReflectionTestUtils.setField(
+                loader, "deadLetters", deadLetterService(sink));
+        ReflectionTestUtils.setField(loader, "checkpoints", checkpoints);
+        ReflectionTestUtils.setField(loader, "checkpointIntervalMillis", 0L);
+        ReflectionTestUtils.setField(loader, "decompressExecutor", decompressExecutor);
+        ReflectionTestUtils.setField(loader, "decompressBufferChunks", 4);
+        ReflectionTestUtils.setField(loader, "metrics", new LoadMetrics(meterRegistry));
+        ReflectionTestUtils.setField(loader, "tracer", tracer);
+        return loader;
+    }
+
+    private static ByteArrayInputStream json(int documents) {
+        return json(documents, -1);
+    }
+
+    // Every document has testclass 4 except changedId which has 5
+    private static ByteArrayInputStream json(int documents, int changedId) {
+        StringBuilder json = new StringBuilder();
+        for (int i = 0; i < documents; i++) {
+            json.append("{\"testid\":")
+                    .append(i)
+                    .append(",\"testclass\":\"")
+                    .append(i == changedId ? 5 : 4)
+                    .append("\"}\n");
+        }
+        return new ByteArrayInputStream(json.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void writesEveryDocumentInStreamOrderWithinTheWindow() throws DataLoadException {
+        SlowRepository repository = new SlowRepository();
+
+        MongoDbJsonStreamingLoaderService.JsonStreamingLoadResponse response =
+                loader(repository)
+                        .loadFromJsonStream(
+                                json(503),
+                                VehicleInspection.class,
+                                null,
+                                UpdateStrategy.INSERT,
+                                null,
+                                null,
+                                JsonLoadOptions.builder().maxBatchesInFlight(3).build());
+
+        assertTrue(response.success());
+        assertEquals(503, response.inserts());
+        assertEquals(503, repository.written.size());
+        for (int i = 0; i < 503; i++) {
+            assertEquals(i, repository.written.get(i));
+        }
+        assertTrue(repository.maxConcurrent.get() <= 3);
+        assertEquals(
+                503,
+                meterRegistry.get("memex.load.records.parsed").tag("collection", "vehicleinspection").counter().count());
+        assertEquals(0, meterRegistry.get("memex.load.batches.inflight").gauge().value());
+    }
+
+    @Test
+    void failedWriteFailsTheLoad() {
+        SlowRepository repository = new SlowRepository();
+        repository.failAfter = 5;
+
+        DataLoadException e =
+                assertThrows(
+                        DataLoadException.class,
+                        () ->
+                                loader(repository)
+                                        .loadFromJsonStream(
+                                                json(1000),
+                                                VehicleInspection.class,
+                                                null,
+                                                UpdateStrategy.INSERT,
+                                                null,
+                                                null,
+                                                JsonLoadOptions.builder().maxBatchesInFlight(2).build()));
+        assertTrue(e.getMessage().contains("Write failed"));
+        // It stops sending batches soon after the failure rather than writing the whole stream
+        assertTrue(repository.batches.get() < 20);
+    }
+
+    // An UPDATE load of the stream
+    private static void update(
+            MongoDbJsonStreamingLoaderService<VehicleInspection> loader,
+            ByteArrayInputStream json,
+            ChangeDetection changeDetection)
+            throws DataLoadException {
+        loader.loadFromJsonStream(
+                json,
+                VehicleInspection.class,
+                null,
+                UpdateStrategy.UPDATE,
+                null,
+                null,
+                JsonLoadOptions.builder().changeDetection(changeDetection).build());
+    }
+
+    @Test
+    void hashChangeDetectionOnlyWritesChangedDocuments() throws DataLoadException {
+        SlowRepository repository = new SlowRepository();
+        MongoDbJsonStreamingLoaderService<VehicleInspection> loader = loader(repository);
+
+        update(loader, json(300), ChangeDetection.HASH);
+        assertEquals(300, repository.written.size());
+
+        // Nothing changed
+        repository.written.clear();
+        update(loader, json(300), ChangeDetection.HASH);
+        assertEquals(0, repository.written.size());
+        assertEquals(300, loader.getLoadStats().recordsUnchanged());
+        assertEquals(1.0, loader.getLoadStats().unchangedRatio());
+
+        // One changed, and a load without change detection writes everything
+        update(loader, json(300, 17), ChangeDetection.HASH);
+        assertEquals(List.of(17L), repository.written);
+        update(loader, json(300, 17), ChangeDetection.NONE);
+        assertEquals(301, repository.written.size());
+    }
+
+    @Test
+    void failedWritesAreNotRemembered() throws DataLoadException {
+        SlowRepository repository = new SlowRepository();
+        repository.failAfter = 0;
+        MongoDbJsonStreamingLoaderService<VehicleInspection> loader = loader(repository);
+
+        assertThrows(DataLoadException.class, () -> update(loader, json(30), ChangeDetection.HASH));
+        repository.failAfter = Integer.MAX_VALUE;
+        repository.written.clear();
+        update(loader, json(30), ChangeDetection.HASH);
+        assertEquals(30, repository.written.size());
+    }
+
+    @Test
+    void partitionedDispatchNeverWritesAnIdTwiceAtOnce() throws DataLoadException {
+        SlowRepository repository = new SlowRepository();
+        // 40 ids each repeated 15 times, testclass counts the repeats
+        StringBuilder json = new StringBuilder();
+        for (int i = 0; i < 600; i++) {
+            json.append("{\"testid\":")
+                    .append(i % 40)
+                    .append(",\"testclass\":\"")
+                    .append(i / 40)
+                    .append("\"}\n");
+        }
+
+        MongoDbJsonStreamingLoaderService.JsonStreamingLoadResponse response =
+                loader(repository)
+                        .loadFromJsonStream(
+                                new ByteArrayInputStream(json.toString().getBytes(StandardCharsets.UTF_8)),
+                                VehicleInspection.class,
+                                null,
+                                UpdateStrategy.UPDATE,
+                                null,
+                                null,
+                                JsonLoadOptions.builder().dispatchMode(DispatchMode.PARTITIONED).build());
+
+        assertTrue(response.success());
+        assertEquals(600, repository.written.size());
+        assertEquals(0, repository.overlaps.get());
+        // Lanes still write in parallel, but no more of them than there are lanes
+        assertTrue(repository.maxConcurrent.get() > 1);
+        assertTrue(repository.maxConcurrent.get() <= 4);
+        // Every id's repeats were sent in stream order
+        Map<Long, Integer> lastRepeat = new HashMap<>();
+        for (VehicleInspection inspection : repository.writtenDocuments) {
+            int repeat = Integer.parseInt(inspection.getTestclass());
+            assertEquals(
+                    lastRepeat.getOrDefault(inspection.getTestid(), -1) + 1,
+                    repeat,
+                    "Out of order for " + inspection.getTestid());
+            lastRepeat.put(inspection.getTestid(), repeat);
+        }
+    }
+
+    @Test
+    void invalidDocumentsAreDroppedBeforeTheWriteStage() throws DataLoadException {
+        SlowRepository repository = new SlowRepository();
+        // testmileage must be at least 1, ids 20 to 29 have 0
+        StringBuilder json = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            json.append("{\"testid\":")
+                    .append(i)
+                    .append(",\"testmileage\":")
+                    .append(i >= 20 && i < 30 ? 0 : 1000)
+                    .append("}\n");
+        }
+        List<Integer> handled = new CopyOnWriteArrayList<>();
+        InvalidDataHandlerService<VehicleInspection> handler =
+                new InvalidDataHandlerService<>() {
+                    @Override
+                    public List<VehicleInspection> handleInvalidBatch(
+                            List<InvalidDocument<VehicleInspection>> invalid,
+                            Class<VehicleInspection> clazz) {
+                        handled.add(invalid.size());
+                        return List.of();
+                    }
+                };
+
+        MongoDbJsonStreamingLoaderService<VehicleInspection> loader = loader(repository);
+        loader.loadFromJsonStream(
+                new ByteArrayInputStream(json.toString().getBytes(StandardCharsets.UTF_8)),
+                VehicleInspection.class,
+                handler,
+                UpdateStrategy.INSERT,
+                null,
+                null);
+
+        assertEquals(90, repository.written.size());
+        assertFalse(repository.written.contains(25L));
+        // One call per parse chunk of 4 with invalid documents in it: 20-23, 24-27, 28-29, chunks
+        // are validated in parallel so in any order
+        assertEquals(List.of(2, 4, 4), handled.stream().sorted().toList());
+        assertEquals(10, loader.getLoadStats().recordsInvalid());
+        assertEquals(Map.of("Invalid", 10L), loader.getLoadStats().errors());
+        // The repository isn't asked to validate them again
+        assertTrue(repository.handlers.stream().allMatch(h -> h == null));
+    }
+
+    @Test
+    void withADeadLetterSinkFailuresDontStopTheLoad() throws DataLoadException {
+        SlowRepository repository = new SlowRepository();
+        // The third batch fails and is dead lettered, as the real repository does
+        repository.deadLetterBatch = 3;
+        MemorySink sink = new MemorySink();
+        repository.deadLetters = deadLetterService(sink);
+        MongoDbJsonStreamingLoaderService<VehicleInspection> loader = loader(repository, sink);
+        StringBuilder json = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            json.append(i == 42 ? "{\"testid\":\"not a number\"}" : "{\"testid\":" + i + "}");
+        }
+
+        MongoDbJsonStreamingLoaderService.JsonStreamingLoadResponse response =
+                loader.loadFromJsonStream(
+                        new ByteArrayInputStream(json.toString().getBytes(StandardCharsets.UTF_8)),
+                        VehicleInspection.class,
+                        null,
+                        UpdateStrategy.INSERT,
+                        null,
+                        null,
+                        JsonLoadOptions.builder().maxBatchesInFlight(1).build());
+
+        assertTrue(response.success());
+        assertEquals(89, response.inserts());
+        assertEquals(Map.of("ParseError", 1L, "WriteFailed", 10L), response.errors());
+        assertEquals(11, sink.letters.size());
+        List<DeadLetter> unparsable =
+                sink.letters.stream().filter(l -> l.reason() == DeadLetter.Reason.PARSE_ERROR).toList();
+        assertEquals(1, unparsable.size());
+        assertEquals("{\"testid\":\"not a number\"}", unparsable.get(0).payload());
+        assertTrue(unparsable.get(0).error().startsWith("Record 42 at byte "));
+        assertEquals(11, loader.getLoadStats().recordsDeadLettered());
+
+        // Replaying inserts the batch that failed, the one that still can't be parsed goes back
+        repository.deadLetterBatch = 0;
+        repository.written.clear();
+        response =
+                loader.replayDeadLetters(
+                        VehicleInspection.class, null, UpdateStrategy.INSERT, null, null, JsonLoadOptions.DEFAULTS);
+        assertEquals(10, response.inserts());
+        assertEquals(
+                List.of(20L, 21L, 22L, 23L, 24L, 25L, 26L, 27L, 28L, 29L),
+                repository.written.stream().sorted().toList());
+        assertEquals(1, sink.letters.size());
+        assertEquals(DeadLetter.Reason.PARSE_ERROR, sink.letters.get(0).reason());
+        assertEquals(1, loader.countDeadLetters(VehicleInspection.class));
+    }
+
+    @Test
+    void aReplayThatFailsLeavesItsDeadLettersInTheSink() throws DataLoadException {
+        SlowRepository repository = new SlowRepository();
+        repository.deadLetterBatch = 2;
+        MemorySink sink = new MemorySink();
+        repository.deadLetters = deadLetterService(sink);
+        MongoDbJsonStreamingLoaderService<VehicleInspection> loader = loader(repository, sink);
+        loader.loadFromJsonStream(
+                json(30),
+                VehicleInspection.class,
+                null,
+                UpdateStrategy.INSERT,
+                null,
+                null,
+                JsonLoadOptions.builder().maxBatchesInFlight(1).build());
+        List<DeadLetter> letters = List.copyOf(sink.letters);
+        assertEquals(10, letters.size());
+
+        // Every batch the replay sends fails
+        repository.deadLetterBatch = 0;
+        repository.failAfter = repository.batches.get();
+        assertThrows(
+                DataLoadException.class,
+                () ->
+                        loader.replayDeadLetters(
+                                VehicleInspection.class,
+                                null,
+                                UpdateStrategy.INSERT,
+                                null,
+                                null,
+                                JsonLoadOptions.DEFAULTS));
+        assertEquals(letters, sink.letters);
+    }
+
+    @Test
+    void aFailedLoadResumesFromItsCheckpoint() throws Exception {
+        SlowRepository repository = new SlowRepository();
+        MongoDbJsonStreamingLoaderService<VehicleInspection> loader = loader(repository);
+        byte[] json = json(100).readAllBytes();
+        // One batch at a time so exactly the first three batches are written
+        JsonLoadOptions options =
+                JsonLoadOptions.builder().maxBatchesInFlight(1).loadId("daily").build();
+
+        repository.failAfter = 3;
+        DataLoadException failed =
+                assertThrows(
+                        DataLoadException.class,
+                        () ->
+                                loader.loadFromJsonStream(
+                                        new ByteArrayInputStream(json),
+                                        VehicleInspection.class,
+                                        null,
+                                        UpdateStrategy.REPLACE,
+                                        null,
+                                        null,
+                                        options));
+        LoadCheckpoint checkpoint = loader.getCheckpoint("daily");
+        assertEquals(30, checkpoint.records());
+        assertFalse(checkpoint.complete());
+        assertTrue(failed.getMessage().endsWith("can resume from record 30, byte " + checkpoint.bytes()));
+        assertEquals(
+                "{\"testid\":30",
+                new String(json, (int) checkpoint.bytes(), 12, StandardCharsets.UTF_8));
+
+        // Sending only the rest of the source, numbered on from the checkpoint
+        repository.failAfter = Integer.MAX_VALUE;
+        repository.written.clear();
+        loader.loadFromJsonStream(
+                new ByteArrayInputStream(
+                        json, (int) checkpoint.bytes(), json.length - (int) checkpoint.bytes()),
+                VehicleInspection.class,
+                null,
+                UpdateStrategy.REPLACE,
+                null,
+                null,
+                options.toBuilder().streamOffset(checkpoint.bytes()).build());
+        assertEquals(70, repository.written.size());
+        assertEquals(30L, repository.written.get(0));
+        checkpoint = loader.getCheckpoint("daily");
+        assertTrue(checkpoint.complete());
+        assertEquals(100, checkpoint.records());
+
+        // Or the whole source again, skipping what's done
+        repository.written.clear();
+        loader.loadFromJsonStream(
+                new ByteArrayInputStream(json),
+                VehicleInspection.class,
+                null,
+                UpdateStrategy.REPLACE,
+                null,
+                null,
+                options.toBuilder().resumeFrom(90L).build());
+        assertEquals(List.of(90L, 91L, 92L, 93L, 94L, 95L, 96L, 97L, 98L, 99L), repository.written);
+
+        // An offset that isn't the checkpoint can't be resumed from
+        assertThrows(
+                IllegalArgumentException.class,
+                () ->
+                        loader.loadFromJsonStream(
+                                new ByteArrayInputStream(json, 5, json.length - 5),
+                                VehicleInspection.class,
+                                null,
+                                UpdateStrategy.REPLACE,
+                                null,
+                                null,
+                                options.toBuilder().streamOffset(5L).build()));
+    }
+
+    @Test
+    void gzipBodiesAreDecompressedAsTheyAreRead() throws Exception {
+        SlowRepository repository = new SlowRepository();
+        ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+        try (GZIPOutputStream out = new GZIPOutputStream(gzipped)) {
+            json(1000).transferTo(out);
+        }
+
+        MongoDbJsonStreamingLoaderService.JsonStreamingLoadResponse response =
+                loader(repository)
+                        .loadFromJsonStream(
+                                new ByteArrayInputStream(gzipped.toByteArray()),
+                                VehicleInspection.class,
+                                null,
+                                UpdateStrategy.INSERT,
+                                null,
+                                null,
+                                JsonLoadOptions.builder().contentEncoding(ContentEncoding.GZIP).build());
+
+        assertEquals(1000, response.inserts());
+        assertEquals(999L, repository.written.get(999));
+    }
+
+    @Test
+    void documentsRejectedByTheServerAreCountedByReason() throws DataLoadException {
+        SlowRepository repository = new SlowRepository();
+        repository.duplicates = Set.of(3L, 17L, 64L);
+
+        MongoDbJsonStreamingLoaderService.JsonStreamingLoadResponse response =
+                loader(repository)
+                        .loadFromJsonStream(
+                                json(100), VehicleInspection.class, null, UpdateStrategy.INSERT, null, null);
+
+        assertTrue(response.success());
+        assertEquals(97, response.inserts());
+        assertEquals(Map.of("DuplicateKey", 3L), response.errors());
+    }
+
+    private class SlowRepository implements OptimizedMongoLoadRepository<VehicleInspection> {
+        final List<Long> written = new CopyOnWriteArrayList<>();
+        final List<VehicleInspection> writtenDocuments = new CopyOnWriteArrayList<>();
+        final List<InvalidDataHandlerService<VehicleInspection>> handlers =
+                new CopyOnWriteArrayList<>();
+        // Ids in batches being written now, and how often one was already there
+        final Set<Long> inFlight = ConcurrentHashMap.newKeySet();
+        final AtomicInteger overlaps = new AtomicInteger();
+        final AtomicInteger batches = new AtomicInteger();
+        final AtomicInteger concurrent = new AtomicInteger();
+        final AtomicInteger maxConcurrent = new AtomicInteger();
+        volatile int failAfter = Integer.MAX_VALUE;
+        volatile int deadLetterBatch = 0;
+        // Where the dead lettered batch goes, as the real repository sends it
+        volatile DeadLetterService deadLetters;
+        // Ids the server rejects one by one, the rest of their batch is written
+        volatile Set<Long> duplicates = Set.of();
+
+        @Override
+        public BulkWriteResult writeMany(
+                List<VehicleInspection> items,
+                Class<VehicleInspection> clazz,
+                InvalidDataHandlerService<VehicleInspection> invalidDataHandlerService,
+                UpdateStrategy updateStrategy,
+                PostWriteTriggerService<VehicleInspection> postTrigger) {
+            int batch = batches.incrementAndGet();
+            maxConcurrent.accumulateAndGet(concurrent.incrementAndGet(), Math::max);
+            Set<Long> ids = new HashSet<>();
+            items.forEach(item -> ids.add(item.getTestid()));
+            for (Long id : ids) {
+                if (!inFlight.add(id)) {
+                    overlaps.incrementAndGet();
+                }
+            }
+            try {
+                TimeUnit.MILLISECONDS.sleep(2);
+                if (batch > failAfter) {
+                    throw new IllegalStateException("Write failed");
+                }
+                long rejected = ids.stream().filter(duplicates::contains).count();
+                BulkWriteResult result =
+                        BulkWriteResult.acknowledged(
+                                items.size() - (int) rejected, 0, 0, 0, List.of(), List.of());
+                return rejected == 0
+                        ? result
+                        : new PartialBulkWriteResult(result, Map.of("DuplicateKey", rejected));
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            } finally {
+                inFlight.removeAll(ids);
+                concurrent.decrementAndGet();
+            }
+        }
+
+        @Override
+        public CompletableFuture<BulkWriteResult> asyncWriteMany(
+                List<VehicleInspection> items,
+                Class<VehicleInspection> clazz,
+                InvalidDataHandlerService<VehicleInspection> invalidDataHandlerService,
+                UpdateStrategy updateStrategy,
+                PostWriteTriggerService<VehicleInspection> postTrigger) {
+            // Recorded on the loader thread so this is the order batches were sent in
+            items.forEach(item -> written.add(item.getTestid()));
+            writtenDocuments.addAll(items);
+            handlers.add(invalidDataHandlerService);
+            if (batches.get() + 1 == deadLetterBatch) {
+                batches.incrementAndGet();
+                if (deadLetters != null) {
+                    deadLetters.send(
+                            items.stream()
+                                    .map(
+                                            item ->
+                                                    deadLetters.letter(
+                                                            clazz, DeadLetter.Reason.WRITE_FAILED, item, "Write failed"))
+                                    .toList());
+                }
+                return CompletableFuture.failedFuture(
+                        new DeadLetteredException(items.size(), new IllegalStateException("Write failed")));
+            }
+            return CompletableFuture.supplyAsync(
+                    () -> writeMany(items, clazz, invalidDataHandlerService, updateStrategy, postTrigger),
+                    writeExecutor);
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.johnlpage.memex.generics.service;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.johnlpage.memex.config.MongoConfig;
+import com.johnlpage.memex.config.ObjectMapperConfig;
+import jakarta.validation.Validation;
+import org.bson.types.ObjectId;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.convert.DefaultMongoTypeMapper;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+import org.springframework.data.mongodb.core.convert.MongoCustomConversions;
+import org.springframework.data.mongodb.core.convert.NoOpDbRefResolver;
+import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.mockito.Mockito.mock;
+
+/**
+ * The loader's collaborators set up the way the application does, for the tests of the loader, the
+ * services it uses and the repository it writes through. Nothing here talks to a database.
+ */
+public final class ServiceTestFixtures {
+
+    static final ObjectMapper OBJECT_MAPPER = new ObjectMapperConfig().objectMapper(new JsonFactory());
+
+    private ServiceTestFixtures() {
+    }
+
+    /**
+     * A converter with the application's conversions
+     */
+    public static MappingMongoConverter mappingMongoConverter() {
+        // The conversions don't need the database factory
+        MongoCustomConversions conversions = new MongoConfig(null).customConversions();
+        MongoMappingContext mappingContext = new MongoMappingContext();
+        mappingContext.setSimpleTypeHolder(conversions.getSimpleTypeHolder());
+        mappingContext.afterPropertiesSet();
+        MappingMongoConverter converter =
+                new MappingMongoConverter(NoOpDbRefResolver.INSTANCE, mappingContext);
+        converter.setCustomConversions(conversions);
+        converter.setTypeMapper(new DefaultMongoTypeMapper(null));
+        converter.afterPropertiesSet();
+        return converter;
+    }
+
+    static DocumentHashCache hashCache(int maxEntries) {
+        return new DocumentHashCache(mock(MongoTemplate.class), mappingMongoConverter(), maxEntries);
+    }
+
+    static BatchValidator batchValidator() {
+        return new BatchValidator(Validation.buildDefaultValidatorFactory().getValidator());
+    }
+
+    /**
+     * @param sink null for none
+     */
+    public static DeadLetterService deadLetterService(DeadLetterSink sink) {
+        return new DeadLetterService(sink, mappingMongoConverter(), OBJECT_MAPPER);
+    }
+
+    /**
+     * Keeps dead letters in a list
+     */
+    public static class MemorySink implements DeadLetterSink {
+        public final List<DeadLetter> letters = new ArrayList<>();
+        // The id of each letter in letters
+        private final List<ObjectId> ids = new ArrayList<>();
+        public volatile boolean failing = false;
+
+        @Override
+        public synchronized void write(List<DeadLetter> letters) {
+            if (failing) {
+                throw new IllegalStateException("Sink unavailable");
+            }
+            for (DeadLetter letter : letters) {
+                this.letters.add(letter);
+                ids.add(new ObjectId());
+            }
+        }
+
+        @Override
+        public synchronized List<Kept> read(String source, ObjectId after, int max) {
+            List<Kept> read = new ArrayList<>();
+            for (int i = 0; i < letters.size() && read.size() < max; i++) {
+                if (letters.get(i).source().equals(source)
+                        && (after == null || ids.get(i).compareTo(after) > 0)) {
+                    read.add(new Kept(ids.get(i), letters.get(i)));
+                }
+            }
+            return read;
+        }
+
+        @Override
+        public synchronized void delete(String source, List<ObjectId> deleted) {
+            for (ObjectId id : deleted) {
+                int i = ids.indexOf(id);
+                if (i >= 0 && letters.get(i).source().equals(source)) {
+                    ids.remove(i);
+                    letters.remove(i);
+                }
+            }
+        }
+
+        @Override
+        public synchronized long count(String source) {
+            return letters.stream().filter(letter -> letter.source().equals(source)).count();
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.johnlpage.memex.util;
+
+import com.johnlpage.memex.VehicleInspection.model.Vehicle;
+import com.johnlpage.memex.VehicleInspection.model.VehicleInspection;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ModelMetadataTest {
+
+    @Test
+    void of_returnsSameInstance_forSameClass() {
+        assertSame(ModelMetadata.of(VehicleInspection.class), ModelMetadata.of(VehicleInspection.class));
+    }
+
+    @Test
+    void getId_readsIdField() {
+        VehicleInspection inspection = new VehicleInspection();
+        inspection.setTestid(42L);
+
+        assertEquals(42L, ModelMetadata.of(VehicleInspection.class).getId(inspection));
+    }
+
+    @Test
+    void isDeleted_trueOnlyWhenFlagSet() {
+        ModelMetadata metadata = ModelMetadata.of(VehicleInspection.class);
+        VehicleInspection inspection = new VehicleInspection();
+
+        assertTrue(metadata.hasDeleteFlagField());
+        assertFalse(metadata.isDeleted(inspection));
+        inspection.setDeleted(true);
+        assertTrue(metadata.isDeleted(inspection));
+    }
+
+    @Test
+    void versionField_usesDatabaseNameAndType() {
+        ModelMetadata metadata = ModelMetadata.of(VehicleInspection.class);
+        VehicleInspection inspection = new VehicleInspection();
+
+        assertTrue(metadata.hasVersionField());
+        assertEquals("lock_version", metadata.getVersionFieldName());
+        assertEquals(1L, metadata.getVersionOne());
+
+        metadata.setInitialVersion(inspection);
+        assertEquals(1L, inspection.getLockVersion());
+    }
+
+    @Test
+    void modelWithoutAnnotations_hasNoVersionOrDeleteFlag() {
+        ModelMetadata metadata = ModelMetadata.of(Vehicle.class);
+        Vehicle vehicle = new Vehicle();
+
+        assertFalse(metadata.hasVersionField());
+        assertFalse(metadata.isDeleted(vehicle));
+        assertThrows(IllegalArgumentException.class, () -> metadata.getId(vehicle));
+    }
+}
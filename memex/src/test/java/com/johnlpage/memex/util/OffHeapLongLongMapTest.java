@@ -0,0 +1,84 @@
+package com.johnlpage.memex.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OffHeapLongLongMapTest {
+
+    @Test
+    void behavesLikeAHashMap() {
+        OffHeapLongLongMap map = new OffHeapLongLongMap(5000);
+        Map<Long, Long> expected = new HashMap<>();
+        Random random = new Random(42);
+
+        for (int i = 0; i < 200_000; i++) {
+            // A small key range so there are plenty of updates, removes and collisions
+            long key = random.nextInt(8000) - 100;
+            long value = random.nextLong();
+            switch (random.nextInt(3)) {
+                case 0 -> {
+                    boolean stored = map.put(key, value);
+                    if (stored) {
+                        expected.put(key, value);
+                    } else {
+                        assertEquals(5000, expected.size());
+                        assertFalse(expected.containsKey(key));
+                    }
+                }
+                case 1 -> assertEquals(expected.remove(key) != null, map.remove(key));
+                default -> assertEquals(expected.getOrDefault(key, -7L), map.get(key, -7L));
+            }
+            assertEquals(expected.size(), map.size());
+        }
+        expected.forEach((key, value) -> assertEquals(value, map.get(key, -7L)));
+    }
+
+    @Test
+    void refusesNewKeysWhenFull() {
+        OffHeapLongLongMap map = new OffHeapLongLongMap(3);
+        assertTrue(map.put(1, 10));
+        assertTrue(map.put(0, 20));
+        assertTrue(map.put(2, 30));
+        assertFalse(map.put(3, 40));
+        // Existing keys can still change
+        assertTrue(map.put(1, 11));
+        assertEquals(11, map.get(1, -1));
+
+        map.remove(0);
+        assertTrue(map.put(3, 40));
+        assertEquals(3, map.size());
+    }
+
+    @Test
+    void conditionalReplaceAndRemove() {
+        OffHeapLongLongMap map = new OffHeapLongLongMap(10);
+        map.put(5, 50);
+
+        assertFalse(map.replace(5, 49, 51));
+        assertTrue(map.replace(5, 50, 51));
+        assertFalse(map.replace(6, 0, 1));
+        assertFalse(map.remove(5, 50));
+        assertTrue(map.remove(5, 51));
+        assertFalse(map.containsKey(5));
+    }
+
+    @Test
+    void clearEmptiesTheTable() {
+        OffHeapLongLongMap map = new OffHeapLongLongMap(100);
+        for (long key = 0; key < 100; key++) {
+            map.put(key, key);
+        }
+        map.clear();
+
+        assertEquals(0, map.size());
+        for (long key = 0; key < 100; key++) {
+            assertFalse(map.containsKey(key));
+        }
+        assertEquals(256 * 16, map.offHeapBytes());
+    }
+}
@@ -44,3 +44,161 @@ Feature: Vehicle Inspection REST API - Point-in-Time History (As Of)
     And the response should contain "vehicle.model": "Focus"
     And the response should contain "faileditems": ["Handbrake", "Lights", "Wipers"]
 
+
+  @get @as_of @snapshots
+  Scenario: As-of versions are the same whether they start from a history snapshot or not
+    # The test profile has memex.history.snapshot-every=1 so every update is snapshotted
+    Given the vehicle inspection with id 10002 does not exist
+    And vehicle inspection 10002 has no history
+    And the following vehicle inspections exist:
+      | vehicleinspection                                                                                                     |
+      | {"testid": 10002, "testresult": "FAIL", "testmileage": 10000, "faileditems": ["Brakes"], "vehicle": {"make": "Ford", "model": "Focus"}} |
+    And I wait for 1 second
+    And I capture the current timestamp to "<before>" with "yyyyMMddHHmmss" pattern
+    And I wait for 1 second
+    And I send a POST request to "/api/inspections?updateStrategy=UPDATEWITHHISTORY" with the payload:
+      """
+      [{"testid": 10002, "testresult": "PASS", "testmileage": 20000, "faileditems": [], "vehicle": {"make": "Ford", "model": "Focus"}}]
+      """
+    And the response status code should be 200
+    And I wait for 1 second
+    And I send a POST request to "/api/inspections?updateStrategy=UPDATEWITHHISTORY" with the payload:
+      """
+      [{"testid": 10002, "testresult": "FAIL", "testmileage": 30000, "faileditems": ["Lights", "Wipers"], "vehicle": {"make": "Ford", "model": "Fiesta"}}]
+      """
+    And the response status code should be 200
+    And I wait for 1 second
+    And I capture the current timestamp to "<between>" with "yyyyMMddHHmmss" pattern
+    And I wait for 1 second
+    And I send a POST request to "/api/inspections?updateStrategy=UPDATEWITHHISTORY" with the payload:
+      """
+      [{"testid": 10002, "testresult": "PASS", "testmileage": 40000, "faileditems": [], "vehicle": {"make": "Ford", "model": "Fiesta"}}]
+      """
+    And the response status code should be 200
+    And I wait for 1 second
+    And I capture the current timestamp to "<after>" with "yyyyMMddHHmmss" pattern
+    And I capture the time of history update 2 of vehicle inspection 10002 to "<at>"
+    Then vehicle inspection 10002 should have 3 history snapshots
+    When I save vehicle inspection 10002 as of "<before>" to "before"
+    And I save vehicle inspection 10002 as of "<at>" to "at"
+    And I save vehicle inspection 10002 as of "<between>" to "between"
+    And I save vehicle inspection 10002 as of "<after>" to "after"
+    Then the "before" result should contain "testmileage": "10000"
+    And the "at" result should contain "testmileage": "30000"
+    And the "between" result should contain "testmileage": "30000"
+    And the "after" result should contain "testmileage": "40000"
+    When the history snapshots of vehicle inspection 10002 are deleted
+    Then vehicle inspection 10002 should have 0 history snapshots
+    And vehicle inspection 10002 as of "<before>" should be the same as "before"
+    And vehicle inspection 10002 as of "<at>" should be the same as "at"
+    And vehicle inspection 10002 as of "<between>" should be the same as "between"
+    And vehicle inspection 10002 as of "<after>" should be the same as "after"
+
+  @get @as_of @sunny_day
+  Scenario: Rebuilding a version on the client gives the same result as the aggregation
+    Given the vehicle inspection with id 10003 does not exist
+    And vehicle inspection 10003 has no history
+    And the following vehicle inspections exist:
+      | vehicleinspection                                                                                                                  |
+      | {"testid": 10003, "testresult": "FAIL", "testmileage": 10000, "faileditems": ["Brakes", "Lights", "Wipers"], "vehicle": {"make": "Ford", "model": "Focus"}} |
+    And I wait for 1 second
+    And I capture the current timestamp to "<before>" with "yyyyMMddHHmmss" pattern
+    And I wait for 1 second
+    And I send a POST request to "/api/inspections?updateStrategy=UPDATEWITHHISTORY" with the payload:
+      """
+      [{"testid": 10003, "testresult": "PASS", "testmileage": 20000, "faileditems": ["Lights"], "vehicle": {"make": "Ford", "model": "Fiesta", "year": 2019}}]
+      """
+    And the response status code should be 200
+    And I wait for 1 second
+    And I capture the current timestamp to "<between>" with "yyyyMMddHHmmss" pattern
+    And I wait for 1 second
+    And I send a POST request to "/api/inspections?updateStrategy=UPDATEWITHHISTORY" with the payload:
+      """
+      [{"testid": 10003, "testresult": "FAIL", "testmileage": 30000, "faileditems": ["Lights", "Horn", "Mirrors", "Seatbelts"], "vehicle": {"make": "Ford", "model": "Fiesta", "year": 2019}}]
+      """
+    And the response status code should be 200
+    When I send a GET request to "/api/inspections/asOf?id=10003&asOfDate=<before>&mode=SERVER"
+    Then the response status code should be 200
+    And the response should contain "vehicle.model": "Focus"
+    And the response should contain "faileditems": ["Brakes", "Lights", "Wipers"]
+    And I save the response to "server before"
+    When I send a GET request to "/api/inspections/asOf?id=10003&asOfDate=<before>&mode=CLIENT"
+    Then the response status code should be 200
+    And the response should be the same JSON as "server before"
+    When I send a GET request to "/api/inspections/asOf?id=10003&asOfDate=<between>&mode=SERVER"
+    Then the response status code should be 200
+    And the response should contain "testmileage": 20000
+    And I save the response to "server between"
+    When I send a GET request to "/api/inspections/asOf?id=10003&asOfDate=<between>&mode=CLIENT"
+    Then the response status code should be 200
+    And the response should be the same JSON as "server between"
+
+  @get @as_of
+  Scenario: A vehicle inspection inserted after the as-of time is not returned in either mode
+    Given the vehicle inspection with id 10006 does not exist
+    And vehicle inspection 10006 has no history
+    And I capture the current timestamp to "<before>" with "yyyyMMddHHmmss" pattern
+    And I wait for 1 second
+    And the following vehicle inspections exist:
+      | vehicleinspection                                                                   |
+      | {"testid": 10006, "testresult": "PASS", "vehicle": {"make": "Ford", "model": "Ka"}} |
+    When I send a GET request to "/api/inspections/asOf?id=10006&asOfDate=<before>&mode=SERVER"
+    Then the response status code should be 200
+    And the response should be empty
+    When I send a GET request to "/api/inspections/asOf?id=10006&asOfDate=<before>&mode=CLIENT"
+    Then the response status code should be 200
+    And the response should be empty
+
+  @post @as_of @export @sunny_day
+  Scenario: Export every matching vehicle inspection as it was at a time
+    Given the vehicle inspections in range 10004-10005 do not exist
+    And vehicle inspection 10004 has no history
+    And vehicle inspection 10005 has no history
+    And the following vehicle inspections exist:
+      | vehicleinspection                                                                                |
+      | {"testid": 10004, "testresult": "FAIL", "testmileage": 10000, "vehicle": {"make": "Ford", "model": "Focus"}} |
+      | {"testid": 10005, "testresult": "FAIL", "testmileage": 50000, "vehicle": {"make": "Audi", "model": "A3"}}    |
+    And I wait for 1 second
+    And I capture the current timestamp to "<before>" with "yyyyMMddHHmmss" pattern
+    And I wait for 1 second
+    And I send a POST request to "/api/inspections?updateStrategy=UPDATEWITHHISTORY" with the payload:
+      """
+      [
+        {"testid": 10004, "testresult": "PASS", "testmileage": 20000, "vehicle": {"make": "Ford", "model": "Focus"}},
+        {"testid": 10005, "testresult": "PASS", "testmileage": 60000, "vehicle": {"make": "Audi", "model": "A3"}}
+      ]
+      """
+    And the response status code should be 200
+    When I send a GET request to "/api/inspections/asOf?id=10004&asOfDate=<before>"
+    Then the response status code should be 200
+    And I save the response to "10004 before"
+    When I send a POST request to "/api/inspections/asOf/export?asOfDate=<before>" with the payload:
+      """
+      {"testid": {"$in": [10004, 10005]}}
+      """
+    Then the response status code should be 200
+    And the "Content-Type" header should be "application/x-ndjson"
+    And the response should be a stream of valid JSON objects, each on a new line
+    And the response should have 2 lines
+    And the response should contain "\"testmileage\":10000"
+    And the response should contain "\"testmileage\":50000"
+    And the response should not contain "PASS"
+    When I send a POST request to "/api/inspections/asOf/export?asOfDate=<before>" with the payload:
+      """
+      {"testid": 10004}
+      """
+    Then the response status code should be 200
+    And the response should be the same JSON as "10004 before"
+    When I send a POST request to "/api/inspections/asOf/export?asOfDate=<before>" with no payload
+    Then the response status code should be 200
+    And the response should be a stream of valid JSON objects, each on a new line
+    And the response should contain "\"testid\":10004"
+    And the response should contain "\"testid\":10005"
+
+  @post @as_of @export @rainy_day
+  Scenario: Fail to export vehicle inspections with a filter that isn't valid JSON
+    When I send a POST request to "/api/inspections/asOf/export?asOfDate=20240101000000" with the payload:
+      """
+      {"testid": {"$in": [10004,
+      """
+    Then the response status code should be 400